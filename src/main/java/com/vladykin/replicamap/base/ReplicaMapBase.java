@@ -3,6 +3,7 @@ package com.vladykin.replicamap.base;
 import com.vladykin.replicamap.ReplicaMap;
 import com.vladykin.replicamap.ReplicaMapException;
 import com.vladykin.replicamap.ReplicaMapListener;
+import com.vladykin.replicamap.kafka.impl.msg.OpMessage;
 import com.vladykin.replicamap.kafka.impl.util.Utils;
 import java.util.Map;
 import java.util.Objects;
@@ -27,6 +28,7 @@ import static com.vladykin.replicamap.base.ReplicaMapBase.OpState.STARTING;
 import static com.vladykin.replicamap.kafka.impl.msg.OpMessage.OP_COMPUTE;
 import static com.vladykin.replicamap.kafka.impl.msg.OpMessage.OP_COMPUTE_IF_PRESENT;
 import static com.vladykin.replicamap.kafka.impl.msg.OpMessage.OP_MERGE;
+import static com.vladykin.replicamap.kafka.impl.msg.OpMessage.OP_PATCH;
 import static com.vladykin.replicamap.kafka.impl.msg.OpMessage.OP_PUT;
 import static com.vladykin.replicamap.kafka.impl.msg.OpMessage.OP_PUT_IF_ABSENT;
 import static com.vladykin.replicamap.kafka.impl.msg.OpMessage.OP_REMOVE_ANY;
@@ -40,6 +42,7 @@ import static com.vladykin.replicamap.kafka.impl.msg.OpMessage.OP_REPLACE_EXACT;
  * @see #sendUpdate
  * @see #onReceiveUpdate
  * @see #canSendFunction(BiFunction)
+ * @see #canSendPatch()
  *
  * @author Sergi Vladykin http://vladykin.com
  */
@@ -245,12 +248,13 @@ public abstract class ReplicaMapBase<K, V> implements ReplicaMap<K, V> {
      * @param updateType Update type.
      * @param key Key.
      * @param exp Expected value or {@code null} if none.
-     * @param upd New value or {@code null} if none.
+     * @param upd New value or {@code null} if none. For {@link OpMessage#OP_PATCH} it must be the patched
+     *            value or {@code null} if the patch base did not match the current value.
      * @param function Function to apply.
      * @param updatedValueConsumer Consume the updated value.
      * @return {@code true} If the map was actually updated, {@code false} if not.
      */
-    @SuppressWarnings({"unchecked", "UnusedReturnValue"})
+    @SuppressWarnings("UnusedReturnValue")
     public boolean onReceiveUpdate(
         boolean myUpdate,
         long opId,
@@ -260,14 +264,34 @@ public abstract class ReplicaMapBase<K, V> implements ReplicaMap<K, V> {
         V upd,
         BiFunction<?,?,?> function,
         Consumer<V> updatedValueConsumer
+    ) {
+        return onReceiveUpdate(map, myUpdate, opId, updateType, key, exp, upd, function, updatedValueConsumer);
+    }
+
+    /**
+     * The same as {@link #onReceiveUpdate(boolean, long, byte, Object, Object, Object, BiFunction, Consumer)},
+     * but the update is applied to the given map, which must be either the inner map or its part holding the key.
+     *
+     * @param m Map to apply the update to.
+     */
+    @SuppressWarnings("unchecked")
+    protected boolean onReceiveUpdate(
+        Map<K,V> m,
+        boolean myUpdate,
+        long opId,
+        byte updateType,
+        K key,
+        V exp,
+        V upd,
+        BiFunction<?,?,?> function,
+        Consumer<V> updatedValueConsumer
     ) {
         Object result = null;
         Throwable ex = null;
         boolean updated;
+        boolean resend = false;
         final V old;
 
-        Map<K,V> m = map;
-
         try {
             old = m.get(key);
 
@@ -322,6 +346,17 @@ public abstract class ReplicaMapBase<K, V> implements ReplicaMap<K, V> {
                     updated = wasUpdated(old, upd, function);
                     break;
 
+                case OP_PATCH:
+                    if (upd != null) {
+                        result = m.put(key, upd);
+                        updated = true;
+                    }
+                    else { // The patch base did not match, the issuer has to resend the full value.
+                        updated = false;
+                        resend = myUpdate;
+                    }
+                    break;
+
                 default:
                     assert !myUpdate;
                     log.warn("Unexpected op type: {}", (char)updateType);
@@ -337,10 +372,14 @@ public abstract class ReplicaMapBase<K, V> implements ReplicaMap<K, V> {
         finally {
             if (myUpdate) {
                 AsyncOp<Object,?,?> op = ops.get(new OpKey<>(key, opId));
-                if (op != null)
-                    op.finish(result, ex, true);
-                else
+                if (op == null)
                     log.warn("AsyncOp was not found for key [{}] and op id: {}", key, opId);
+                else if (resend && ex == null) {
+                    op.patchRejected = true;
+                    doSendUpdate((AsyncOp<?,K,V>)op);
+                }
+                else
+                    op.finish(result, ex, true);
             }
         }
 
@@ -374,6 +413,17 @@ public abstract class ReplicaMapBase<K, V> implements ReplicaMap<K, V> {
 
     protected void doSendUpdate(AsyncOp<?,K,V> op) {
         try {
+            if (op.updateType == OP_PUT && !op.patchRejected && canSendPatch()) {
+                V base = map.get(op.opKey.key);
+
+                if (base != null) {
+                    // The current value is the patch base, the patch will be applied only
+                    // if the current value on the receiving side is the same.
+                    sendUpdate(op.opKey.opId, OP_PATCH, op.opKey.key, base, op.upd, null, op);
+                    return;
+                }
+            }
+
             sendUpdate(op.opKey.opId, op.updateType, op.opKey.key, op.exp, op.upd, op.function, op);
         }
         catch (Exception e) {
@@ -435,6 +485,14 @@ public abstract class ReplicaMapBase<K, V> implements ReplicaMap<K, V> {
      */
     protected abstract boolean canSendFunction(BiFunction<?,?,?> function);
 
+    /**
+     * @return {@code true} If this map is able to send {@link OpMessage#OP_PUT} as {@link OpMessage#OP_PATCH}
+     *         against the current value.
+     */
+    protected boolean canSendPatch() {
+        return false;
+    }
+
     protected boolean canSendNonNullFunction(BiFunction<?,?,?> remappingFunction) {
         Utils.requireNonNull(remappingFunction, "remappingFunction");
         return canSendFunction(remappingFunction);
@@ -491,6 +549,8 @@ public abstract class ReplicaMapBase<K, V> implements ReplicaMap<K, V> {
         protected volatile OpState state;
         protected final ReplicaMapBase<K,V> map;
 
+        protected volatile boolean patchRejected;
+
         public AsyncOp(
             ReplicaMapBase<K,V> map,
             byte updateType,
@@ -509,6 +569,13 @@ public abstract class ReplicaMapBase<K, V> implements ReplicaMap<K, V> {
             opKey = new OpKey<>(key, map.nextOpId());
         }
 
+        /**
+         * @return Key.
+         */
+        public K getKey() {
+            return opKey.key;
+        }
+
         protected boolean casState(OpState exp, OpState upd) {
             return STATE.compareAndSet(this, exp, upd);
         }
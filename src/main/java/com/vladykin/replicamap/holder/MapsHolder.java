@@ -4,6 +4,8 @@ import com.vladykin.replicamap.ReplicaMap;
 import com.vladykin.replicamap.ReplicaMapManager;
 import com.vladykin.replicamap.kafka.KReplicaMapManager;
 import com.vladykin.replicamap.kafka.KReplicaMapManagerConfig;
+import java.util.Collection;
+import java.util.Set;
 
 /**
  * Holds the maps for {@link ReplicaMapManager}.
@@ -43,4 +45,43 @@ public interface MapsHolder extends AutoCloseable {
     default Object getDefaultMapId() {
         throw new UnsupportedOperationException();
     }
+
+    /**
+     * Gets the partitions to co-locate the keys of the given map with {@code MapIdPartitioner}.
+     * The result must be the same on all the clients.
+     *
+     * @param mapId Map id.
+     * @param totalPartitions Total number of partitions.
+     * @return Partitions of the map or {@code null} if the keys of the map are spread across all the partitions.
+     * @see KReplicaMapManagerConfig#MAPS_PARTITIONS
+     */
+    @SuppressWarnings("unused")
+    default int[] getMapPartitions(Object mapId, int totalPartitions) {
+        return null;
+    }
+
+    /**
+     * Gets the ids of the maps materialized by this client. With {@link KReplicaMapManagerConfig#MAPS_ID_HEADER}
+     * the records of the other maps are skipped without deserialization, such a map is loaded
+     * on the first access by {@link KReplicaMapManager#getMap(Object)}.
+     *
+     * @return Ids of the materialized maps in the form of {@link String#valueOf(Object)}
+     *         or {@code null} if all the maps are materialized.
+     */
+    default Set<String> getMaterializedMaps() {
+        return null;
+    }
+
+    /**
+     * Gets all the existing maps or throws an exception if not supported.
+     * Must be supported to change the allowed partitions at runtime,
+     * see {@link KReplicaMapManager#setAllowedPartitions} and
+     * {@link KReplicaMapManagerConfig#ALLOWED_PARTITIONS_RESOLVER}.
+     *
+     * @return Existing maps.
+     * @throws UnsupportedOperationException If not supported.
+     */
+    default Collection<ReplicaMap<?,?>> getMaps() {
+        throw new UnsupportedOperationException();
+    }
 }
@@ -2,16 +2,39 @@ package com.vladykin.replicamap.holder;
 
 import com.vladykin.replicamap.ReplicaMap;
 import com.vladykin.replicamap.base.ReplicaMapBase;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Convenience holder implementation that contains multiple maps.
  * Needs to define the way to get the map identifier from a key {@link #getMapId(Object)}.
+ * The subclass may declare the maps materialized by this client, see {@link MapsHolder#getMaterializedMaps()}.
  *
  * @author Sergi Vladykin http://vladykin.com
  */
 public abstract class MapsHolderMulti extends ConcurrentHashMap<Object,ReplicaMap<?,?>> implements MapsHolder {
+    protected final Set<String> materializedMaps;
+
+    /**
+     * All the maps are materialized.
+     */
+    protected MapsHolderMulti() {
+        this(null);
+    }
+
+    /**
+     * @param materializedMaps Ids of the maps materialized by this client
+     *                         or {@code null} if all the maps are materialized.
+     */
+    protected MapsHolderMulti(Collection<String> materializedMaps) {
+        this.materializedMaps = materializedMaps == null ? null :
+            Collections.unmodifiableSet(new HashSet<>(materializedMaps));
+    }
+
     /**
      * Create new inner map to wrap with {@link ReplicaMap}.
      * Override this method to create custom inner maps (possibly depending on map identifier).
@@ -42,6 +65,16 @@ public abstract class MapsHolderMulti extends ConcurrentHashMap<Object,ReplicaMa
         return map;
     }
 
+    @Override
+    public Set<String> getMaterializedMaps() {
+        return materializedMaps;
+    }
+
+    @Override
+    public Collection<ReplicaMap<?,?>> getMaps() {
+        return values();
+    }
+
     @Override
     public void close() {
         values().forEach(ReplicaMapBase::interruptRunningOps);
@@ -1,11 +1,14 @@
 package com.vladykin.replicamap.holder;
 
 import com.vladykin.replicamap.ReplicaMap;
+import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static com.vladykin.replicamap.base.ReplicaMapBase.interruptRunningOps;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
 
 /**
  * Convenience holder implementation that contains only a single map.
@@ -52,6 +55,12 @@ public class MapsHolderSingle extends AtomicReference<ReplicaMap<?,?>> implement
         return getDefaultMapId();
     }
 
+    @Override
+    public Collection<ReplicaMap<?,?>> getMaps() {
+        ReplicaMap<?,?> map = get();
+        return map == null ? emptyList() : singletonList(map);
+    }
+
     @Override
     public void close() {
         interruptRunningOps(getAndSet(null));
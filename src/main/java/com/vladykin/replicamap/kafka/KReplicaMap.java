@@ -1,13 +1,19 @@
 package com.vladykin.replicamap.kafka;
 
 import com.vladykin.replicamap.ReplicaMap;
+import com.vladykin.replicamap.ReplicaMapException;
 import com.vladykin.replicamap.base.ReplicaMapBase;
+import com.vladykin.replicamap.kafka.impl.msg.ValuePatch;
+import com.vladykin.replicamap.kafka.impl.util.SegmentedMap;
 import com.vladykin.replicamap.kafka.impl.util.Utils;
+import java.util.Collection;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
 
 /**
  * Implementation of {@link ReplicaMap} over Kafka.
@@ -42,8 +48,62 @@ public class KReplicaMap<K,V> extends ReplicaMapBase<K,V> {
     }
 
     @Override
-    protected void beforeStart(AsyncOp<?,K,V> op) {
+    public int size() {
+        manager.checkRunning(); // The whole map is not served by ready partitions.
+        return super.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        manager.checkRunning();
+        return super.isEmpty();
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        manager.checkRunning();
+        return super.containsValue(value);
+    }
+
+    @Override
+    public Set<K> keySet() {
+        manager.checkRunning();
+        return super.keySet();
+    }
+
+    @Override
+    public Collection<V> values() {
+        manager.checkRunning();
+        return super.values();
+    }
+
+    @Override
+    public Set<Entry<K,V>> entrySet() {
         manager.checkRunning();
+        return super.entrySet();
+    }
+
+    @Override
+    public V get(Object key) {
+        Utils.requireNonNull(key, "key");
+        manager.checkKeyReady(id, key);
+        manager.checkReplicated(key);
+        return map.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        Utils.requireNonNull(key, "key");
+        manager.checkKeyReady(id, key);
+        manager.checkReplicated(key);
+        return map.containsKey(key);
+    }
+
+    @Override
+    protected void beforeStart(AsyncOp<?,K,V> op) {
+        manager.checkKeyReady(id, op.getKey());
+        manager.checkWritable();
+        manager.checkReplicated(op.getKey());
     }
 
     @Override
@@ -63,4 +123,83 @@ public class KReplicaMap<K,V> extends ReplicaMapBase<K,V> {
     protected boolean canSendFunction(BiFunction<?,?,?> function) {
         return manager.canSendFunction(function);
     }
+
+    @Override
+    protected boolean canSendPatch() {
+        return manager.canSendPatch();
+    }
+
+    /**
+     * Applies the update received from the given partition, if the inner map is segmented,
+     * then the update goes directly to the segment of the partition without resolving it for the key.
+     *
+     * @param part Partition the update was received from.
+     * @see #onReceiveUpdate(boolean, long, byte, Object, Object, Object, BiFunction, Consumer)
+     */
+    public boolean onReceiveUpdate(
+        int part,
+        boolean myUpdate,
+        long opId,
+        byte updateType,
+        K key,
+        V exp,
+        V upd,
+        BiFunction<?,?,?> function,
+        Consumer<V> updatedValueConsumer
+    ) {
+        return onReceiveUpdate(getInnerMap(part), myUpdate, opId, updateType, key, exp, upd,
+            function, updatedValueConsumer);
+    }
+
+    /**
+     * @param part Partition.
+     * @return Part of the inner map holding the keys of the given partition.
+     */
+    protected Map<K,V> getInnerMap(int part) {
+        return map instanceof SegmentedMap ? ((SegmentedMap<K,V>)map).getSegment(part) : map;
+    }
+
+    /**
+     * Fails the local operations in progress on the keys of the given partitions, since their updates
+     * are not applied anymore and the operations would never complete.
+     *
+     * @param parts Partitions.
+     * @param router Function to resolve partition for a key.
+     */
+    protected void failPartitionOps(Set<Integer> parts, ToIntFunction<Object> router) {
+        for (AsyncOp<Object,?,?> op : ops.values()) {
+            int part = router.applyAsInt(op.getKey());
+
+            if (parts.contains(part)) {
+                op.onError(new ReplicaMapException("Partition " + part +
+                    " is not allowed anymore, the outcome of the operation is unknown."));
+            }
+        }
+    }
+
+    /**
+     * Evicts the keys of the given partitions from the local map, it is not an update,
+     * thus the listener is not notified. Only the segmented map drops the segments,
+     * otherwise all the keys of the map have to be checked.
+     *
+     * @param parts Partitions.
+     * @param router Function to resolve partition for a key.
+     */
+    protected void evictPartitions(Set<Integer> parts, ToIntFunction<Object> router) {
+        if (map instanceof SegmentedMap) {
+            for (int part : parts)
+                ((SegmentedMap<K,V>)map).getSegment(part).clear();
+        }
+        else
+            map.keySet().removeIf(key -> parts.contains(router.applyAsInt(key)));
+    }
+
+    /**
+     * @param key Key.
+     * @param patch Received patch.
+     * @return Patched value or {@code null} if the patch base does not match the current value.
+     */
+    protected V applyPatch(K key, ValuePatch patch) {
+        return manager.applyPatch(map.get(key), patch);
+    }
 }
@@ -6,25 +6,43 @@ import com.vladykin.replicamap.ReplicaMapManager;
 import com.vladykin.replicamap.holder.MapsHolder;
 import com.vladykin.replicamap.kafka.compute.ComputeDeserializer;
 import com.vladykin.replicamap.kafka.compute.ComputeSerializer;
+import com.vladykin.replicamap.kafka.impl.compress.CompressingSerializer;
+import com.vladykin.replicamap.kafka.impl.compress.DecompressingDeserializer;
+import com.vladykin.replicamap.kafka.impl.compress.ValueCompressor;
 import com.vladykin.replicamap.kafka.impl.msg.FlushNotification;
 import com.vladykin.replicamap.kafka.impl.msg.FlushRequest;
+import com.vladykin.replicamap.kafka.impl.msg.KeyFilterDeserializer;
+import com.vladykin.replicamap.kafka.impl.msg.KeyPrefixFilter;
+import com.vladykin.replicamap.kafka.impl.msg.MapIdFilterDeserializer;
+import com.vladykin.replicamap.kafka.impl.msg.MapIdHeaderSerializer;
 import com.vladykin.replicamap.kafka.impl.msg.MapUpdate;
 import com.vladykin.replicamap.kafka.impl.msg.OpMessage;
 import com.vladykin.replicamap.kafka.impl.msg.OpMessageDeserializer;
 import com.vladykin.replicamap.kafka.impl.msg.OpMessageSerializer;
+import com.vladykin.replicamap.kafka.impl.msg.SerializedValueSerializer;
+import com.vladykin.replicamap.kafka.impl.msg.ValuePatch;
 import com.vladykin.replicamap.kafka.impl.part.AllowedOnlyPartitioner;
 import com.vladykin.replicamap.kafka.impl.part.FlushPartitionAssignor;
+import com.vladykin.replicamap.kafka.impl.part.MapIdPartitioner;
 import com.vladykin.replicamap.kafka.impl.part.NeverPartitioner;
+import com.vladykin.replicamap.kafka.impl.part.RendezvousPartitionsResolver;
 import com.vladykin.replicamap.kafka.impl.util.Box;
 import com.vladykin.replicamap.kafka.impl.util.LazyList;
+import com.vladykin.replicamap.kafka.impl.util.SegmentedMap;
 import com.vladykin.replicamap.kafka.impl.util.Utils;
 import com.vladykin.replicamap.kafka.impl.worker.Worker;
 import com.vladykin.replicamap.kafka.impl.worker.flush.FlushQueue;
 import com.vladykin.replicamap.kafka.impl.worker.flush.FlushWorker;
+import com.vladykin.replicamap.kafka.impl.worker.ops.FlushTrigger;
 import com.vladykin.replicamap.kafka.impl.worker.ops.OpsWorker;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -34,14 +52,21 @@ import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
 import org.apache.kafka.clients.CommonClientConfigs;
 import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
@@ -52,9 +77,16 @@ import org.apache.kafka.clients.producer.Partitioner;
 import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.PartitionInfo;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
 import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.LongDeserializer;
+import org.apache.kafka.common.serialization.LongSerializer;
 import org.apache.kafka.common.serialization.Serializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -63,7 +95,10 @@ import static com.vladykin.replicamap.kafka.KReplicaMapManager.State.RUNNING;
 import static com.vladykin.replicamap.kafka.KReplicaMapManager.State.STARTING;
 import static com.vladykin.replicamap.kafka.KReplicaMapManager.State.STOPPED;
 import static com.vladykin.replicamap.kafka.KReplicaMapManager.State.STOPPING;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.ALLOWED_MAPS;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.ALLOWED_PARTITIONS;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.ALLOWED_PARTITIONS_MEMBERS_TOPIC;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.ALLOWED_PARTITIONS_MEMBER_ID;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.ALLOWED_PARTITIONS_RESOLVER;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.BOOTSTRAP_SERVERS;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.CLIENT_ID;
@@ -71,22 +106,59 @@ import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.COMPUTE_DES
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.COMPUTE_SERIALIZER_CLASS;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.DATA_TOPIC;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.DEFAULT_FLUSH_TOPIC_SUFFIX;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.DEFAULT_MEMBERS_TOPIC_SUFFIX;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.DEFAULT_OPS_TOPIC_SUFFIX;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_CAPACITY;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_COALESCE_MS;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_DEDICATED_STATEFUL_MAPS;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_GROUP_INSTANCE_ID;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_LOAD_AWARE;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_MAX_POLL_TIMEOUT_MS;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_MAX_REPLAY_MS;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_MAX_TX_RECORDS;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_PERIOD_BYTES;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_PERIOD_MS;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_PERIOD_OPS;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_REUSE_OPS_BYTES;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_ROLE;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_ROLE_DEDICATED;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_ROLE_NONE;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_ROLE_SHARED;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_QUEUE_LAZY;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_SKIP_UNCHANGED;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_TOPIC;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_PARALLELISM;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_TX_PARTITIONS;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_WORKERS;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.KEY_DESERIALIZER_CLASS;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.KEY_SERIALIZER_CLASS;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.MAPS_CHECK_PRECONDITION;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.MAPS_SEGMENTED;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.MAPS_HOLDER;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.MAPS_ID_HEADER;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.MAPS_SERVE_READY_PARTITIONS;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.MAPS_PARTITIONS;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.MAPS_PARTITIONS_HASHED;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.OPS_FORMAT_VERSION;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.OPS_MAX_PARALLEL;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.OPS_PATCH_MIN_BYTES;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.OPS_SEND_TIMEOUT_MS;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.OPS_TOPIC;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.OPS_WORKERS;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.PARTITIONER_CLASS;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.READ_ONLY;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.REPLICATION_FILTER;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.REPLICATION_FILTER_KEY_PREFIXES;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.VALUE_COMPRESSION_DATA;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.VALUE_COMPRESSION_DICTIONARIES;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.VALUE_COMPRESSION_DICTIONARY_ID;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.VALUE_COMPRESSION_MIN_BYTES;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.VALUE_COMPRESSION_OPS;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.VALUE_DESERIALIZER_CLASS;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.VALUE_SERIALIZER_CLASS;
+import static com.vladykin.replicamap.kafka.impl.msg.OpMessage.OP_PATCH;
+import static com.vladykin.replicamap.kafka.impl.msg.OpMessage.OP_PUT;
+import static com.vladykin.replicamap.kafka.impl.msg.OpMessage.OP_REMOVE_ANY;
 import static com.vladykin.replicamap.kafka.impl.util.Utils.MIN_POLL_TIMEOUT_MS;
 import static com.vladykin.replicamap.kafka.impl.util.Utils.assignPartitionsRoundRobin;
 import static com.vladykin.replicamap.kafka.impl.util.Utils.check;
@@ -95,7 +167,10 @@ import static com.vladykin.replicamap.kafka.impl.util.Utils.generateUniqueNodeId
 import static com.vladykin.replicamap.kafka.impl.util.Utils.getMacAddresses;
 import static com.vladykin.replicamap.kafka.impl.util.Utils.ifNull;
 import static com.vladykin.replicamap.kafka.impl.util.Utils.parseIntSet;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptySet;
 import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
 
 /**
  * Manages all {@link ReplicaMap} instances attached to a Kafka data topic.
@@ -123,11 +198,48 @@ public class KReplicaMapManager implements ReplicaMapManager {
     protected final boolean mapsCheckPrecondition;
     protected final long opsSendTimeout;
     protected final int flushPeriodOps;
+    protected final long flushPeriodMs;
+    protected final long flushPeriodBytes;
+    protected final long flushMaxReplayMs;
+    protected final int flushParallelism;
+    protected final int flushTxPartitions;
+    protected final long flushCoalesceMs;
+    protected final boolean flushSkipUnchanged;
+    protected final int flushMaxTxRecords;
+    protected final String flushGroupInstanceId;
+    protected final boolean flushLoadAware;
+    protected final boolean flushQueueLazy;
+    protected final int flushCapacity;
     protected final long flushMaxPollTimeout;
+    protected final int opsFormatVersion;
+    protected final ValueCompressor valueCompressor;
+    protected final boolean compressOps;
+    protected final boolean compressData;
+    protected final boolean flushReuseOpsBytes;
+    protected final int opsPatchMinBytes;
+    protected final Serializer<Object> patchValueSerializer;
+    protected final Deserializer<Object> patchValueDeserializer;
     protected final String flushConsumerGroupId;
     protected final String dataTransactionalId;
 
     protected final MapsHolder maps;
+    protected final boolean readOnly;
+    protected final String flushRole;
+    protected final Set<String> flushDedicatedStatefulMaps;
+    protected final boolean mapsSegmented;
+    protected final boolean mapsIdHeader;
+    protected final boolean mapsServeReadyPartitions;
+    /** The ids of the materialized maps or {@code null} if all the maps are materialized. */
+    protected final Set<String> materializedMaps;
+    /** The loading of the maps that were not materialized on start. */
+    protected final Map<String,CompletableFuture<Void>> mapsBackfills = new ConcurrentHashMap<>();
+    /** The ops workers loading the maps that were not materialized on start to the ids of these maps. */
+    protected final Map<OpsWorker,String> backfillWorkers = new ConcurrentHashMap<>();
+    /** The filter for the serialized keys replicated to this client or {@code null} to replicate all the keys. */
+    protected final Predicate<byte[]> replicationFilter;
+    protected final Partitioner keyPartitioner;
+    protected final Serializer<Object> keyPartitionerSerializer;
+    protected final Cluster keyPartitionerCluster;
 
     protected ComputeSerializer computeSerializer;
     protected final Producer<Object,OpMessage> opsProducer;
@@ -138,12 +250,20 @@ public class KReplicaMapManager implements ReplicaMapManager {
 
     protected final List<FlushWorker> flushWorkers;
     protected final List<OpsWorker> opsWorkers;
+    /** The workers without partitions are removed, thus the ids are not derived from the number of workers. */
+    protected final AtomicInteger opsWorkerIds = new AtomicInteger();
 
     protected final CompletableFuture<ReplicaMapManager> opsSteadyFut;
     protected final CompletableFuture<ReplicaMapManager> stoppedFut = new CompletableFuture<>();
 
     protected final int totalPartitions;
-    protected final short[] allowedPartitions;
+    protected volatile short[] allowedPartitions;
+
+    protected Supplier<Set<Integer>> allowedPartitionsResolver;
+    protected final AtomicReference<Set<Integer>> resolvedAllowedPartitions = new AtomicReference<>();
+
+    /** The last change of the allowed partitions, the changes are applied one by one. */
+    protected volatile CompletableFuture<Void> allowedPartitionsChangeFut = CompletableFuture.completedFuture(null);
 
     protected volatile State state = NEW;
 
@@ -174,6 +294,17 @@ public class KReplicaMapManager implements ReplicaMapManager {
         flushTopic = ifNull(cfg.getString(FLUSH_TOPIC), dataTopic + DEFAULT_FLUSH_TOPIC_SUFFIX);
 
         mapsCheckPrecondition = cfg.getBoolean(MAPS_CHECK_PRECONDITION);
+        mapsSegmented = cfg.getBoolean(MAPS_SEGMENTED);
+        mapsIdHeader = cfg.getBoolean(MAPS_ID_HEADER);
+        mapsServeReadyPartitions = cfg.getBoolean(MAPS_SERVE_READY_PARTITIONS);
+        readOnly = cfg.getBoolean(READ_ONLY);
+
+        flushRole = cfg.getString(FLUSH_ROLE);
+        check(FLUSH_ROLE_SHARED.equals(flushRole) || FLUSH_ROLE_NONE.equals(flushRole) ||
+            FLUSH_ROLE_DEDICATED.equals(flushRole), () -> "Unsupported " + FLUSH_ROLE + ": " + flushRole);
+        check(!readOnly || !isDedicatedFlusher(), () -> READ_ONLY + " can not be used with the " +
+            FLUSH_ROLE + " " + FLUSH_ROLE_DEDICATED);
+        flushDedicatedStatefulMaps = new HashSet<>(cfg.getList(FLUSH_DEDICATED_STATEFUL_MAPS));
 
         int maxActiveOps = cfg.getInt(OPS_MAX_PARALLEL);
         checkPositive(maxActiveOps, OPS_MAX_PARALLEL);
@@ -189,31 +320,107 @@ public class KReplicaMapManager implements ReplicaMapManager {
         flushPeriodOps = cfg.getInt(FLUSH_PERIOD_OPS);
         checkPositive(flushPeriodOps, FLUSH_PERIOD_OPS);
 
+        flushPeriodMs = cfg.getLong(FLUSH_PERIOD_MS);
+        check(flushPeriodMs >= 0, () -> FLUSH_PERIOD_MS + " must not be negative");
+
+        flushPeriodBytes = cfg.getLong(FLUSH_PERIOD_BYTES);
+        check(flushPeriodBytes >= 0, () -> FLUSH_PERIOD_BYTES + " must not be negative");
+
+        flushMaxReplayMs = cfg.getLong(FLUSH_MAX_REPLAY_MS);
+        check(flushMaxReplayMs >= 0, () -> FLUSH_MAX_REPLAY_MS + " must not be negative");
+
         int opsWorkers = cfg.getInt(OPS_WORKERS);
         checkPositive(opsWorkers, OPS_WORKERS);
 
         int flushWorkers = cfg.getInt(FLUSH_WORKERS);
         checkPositive(flushWorkers, FLUSH_WORKERS);
 
+        flushParallelism = cfg.getInt(FLUSH_PARALLELISM);
+        checkPositive(flushParallelism, FLUSH_PARALLELISM);
+
+        flushTxPartitions = cfg.getInt(FLUSH_TX_PARTITIONS);
+        checkPositive(flushTxPartitions, FLUSH_TX_PARTITIONS);
+
+        flushCoalesceMs = cfg.getLong(FLUSH_COALESCE_MS);
+        check(flushCoalesceMs >= 0, () -> FLUSH_COALESCE_MS + " must not be negative");
+
+        flushSkipUnchanged = cfg.getBoolean(FLUSH_SKIP_UNCHANGED);
+        flushQueueLazy = cfg.getBoolean(FLUSH_QUEUE_LAZY);
+        check(!flushQueueLazy || !isDedicatedFlusher(), () -> FLUSH_QUEUE_LAZY + " can not be used with the " +
+            FLUSH_ROLE + " " + FLUSH_ROLE_DEDICATED);
+
+        flushMaxTxRecords = cfg.getInt(FLUSH_MAX_TX_RECORDS);
+        check(flushMaxTxRecords >= 0, () -> FLUSH_MAX_TX_RECORDS + " must not be negative");
+
+        flushGroupInstanceId = cfg.getString(FLUSH_GROUP_INSTANCE_ID);
+
+        flushLoadAware = cfg.getBoolean(FLUSH_LOAD_AWARE);
+        flushCapacity = cfg.getInt(FLUSH_CAPACITY);
+        checkPositive(flushCapacity, FLUSH_CAPACITY);
+
         flushConsumerGroupId = flushTopic + SUFFIX;
         dataTransactionalId = dataTopic + SUFFIX;
 
         clientId = ifNull(cfg.getLong(CLIENT_ID), this::generateClientId);
         clientIdHex = Long.toHexString(clientId);
 
-        allowedPartitions = resolveAllowedPartitions();
+        opsFormatVersion = cfg.getInt(OPS_FORMAT_VERSION);
+        check(opsFormatVersion == OpMessageSerializer.FORMAT_V1 || opsFormatVersion == OpMessageSerializer.FORMAT_V2,
+            () -> "Unsupported " + OPS_FORMAT_VERSION + ": " + opsFormatVersion);
 
-        if (allowedPartitions != null && log.isDebugEnabled()) {
-            log.debug("Resolved allowed partitions for topics [{}, {}, {}]: {}",
-                dataTopic, opsTopic, flushTopic, allowedPartitions);
-        }
+        compressOps = cfg.getBoolean(VALUE_COMPRESSION_OPS);
+        check(!compressOps || opsFormatVersion == OpMessageSerializer.FORMAT_V2,
+            () -> VALUE_COMPRESSION_OPS + " requires " + OPS_FORMAT_VERSION + " " + OpMessageSerializer.FORMAT_V2);
+        compressData = cfg.getBoolean(VALUE_COMPRESSION_DATA);
+        // The dedicated flusher does not deserialize the values, thus it always writes the received bytes.
+        flushReuseOpsBytes = cfg.getBoolean(FLUSH_REUSE_OPS_BYTES) || isDedicatedFlusher();
+        valueCompressor = newValueCompressor();
+
+        opsPatchMinBytes = cfg.getInt(OPS_PATCH_MIN_BYTES);
+        check(opsPatchMinBytes >= 0, () -> OPS_PATCH_MIN_BYTES + " must not be negative");
+        check(opsPatchMinBytes == 0 || opsFormatVersion == OpMessageSerializer.FORMAT_V2,
+            () -> OPS_PATCH_MIN_BYTES + " requires " + OPS_FORMAT_VERSION + " " + OpMessageSerializer.FORMAT_V2);
 
         try {
             maps = cfg.getConfiguredInstance(MAPS_HOLDER, MapsHolder.class);
 
-            opsProducer = newKafkaProducerOps();
+            Set<String> mapsToMaterialize = maps.getMaterializedMaps();
+            if (mapsToMaterialize == null)
+                materializedMaps = null;
+            else {
+                materializedMaps = ConcurrentHashMap.newKeySet();
+                materializedMaps.addAll(mapsToMaterialize);
+            }
+
+            replicationFilter = newReplicationFilter();
+
+            // Any client may send patches, thus we always need to be able to apply them.
+            Map<String, Object> patchCfg = new TreeMap<>();
+            configureAll(patchCfg);
+            patchValueSerializer = newValueSerializer(patchCfg);
+            patchValueDeserializer = newValueDeserializer(patchCfg);
+
+            opsProducer = readOnly ? null : newKafkaProducerOps();
             totalPartitions = resolveTotalPartitions();
 
+            // Needed for the segmented maps, to evict the keys of the removed partitions
+            // and to resolve the partitions of the allowed maps.
+            Map<String, Object> keyPartitionerCfg = new TreeMap<>();
+            configureAll(keyPartitionerCfg);
+            configureAllProducers(keyPartitionerCfg);
+
+            keyPartitioner = newKeyPartitioner(keyPartitionerCfg);
+            keyPartitionerSerializer = newKeySerializer(keyPartitionerCfg);
+            keyPartitionerCluster = newKeyPartitionerCluster();
+
+            // The resolver may need the total number of partitions.
+            allowedPartitions = resolveAllowedPartitions();
+
+            if (allowedPartitions != null && log.isDebugEnabled()) {
+                log.debug("Resolved allowed partitions for topics [{}, {}, {}]: {}",
+                    dataTopic, opsTopic, flushTopic, allowedPartitions);
+            }
+
             validateAllowedPartitions();
 
             if (opsWorkers > getAllowedPartitions())
@@ -224,17 +431,32 @@ public class KReplicaMapManager implements ReplicaMapManager {
                 flushWorkers = Math.max(opsWorkers >>> 1, 1);
             checkPositive(flushWorkers, "flushWorkers");
 
-            flushProducer = newKafkaProducerFlush();
-            flushQueues = new ArrayList<>(totalPartitions);
-            cleanQueue = newCleanQueue();
+            flushProducer = readOnly ? null : newKafkaProducerFlush();
+
+            if (readOnly || FLUSH_ROLE_NONE.equals(flushRole)) {
+                // The writers without the flush role still send the flush requests.
+                flushWorkers = 0;
+                flushQueues = null;
+                cleanQueue = null;
+            }
+            else {
+                flushQueues = new ArrayList<>(totalPartitions);
+                cleanQueue = newCleanQueue();
+
+                for (int part = 0; part < totalPartitions; part++)
+                    flushQueues.add(newFlushQueue(new TopicPartition(dataTopic, part)));
+            }
 
-            for (int part = 0; part < totalPartitions; part++)
-                flushQueues.add(newFlushQueue(new TopicPartition(dataTopic, part)));
+            // The flushing client must apply the updates of all the maps and keys.
+            check(materializedMaps == null || flushQueues == null, () -> "Materialized maps require " +
+                FLUSH_ROLE + " " + FLUSH_ROLE_NONE + " or " + READ_ONLY);
+            check(replicationFilter == null || flushQueues == null, () -> REPLICATION_FILTER + " requires " +
+                FLUSH_ROLE + " " + FLUSH_ROLE_NONE + " or " + READ_ONLY);
 
-            this.opsWorkers = new ArrayList<>(opsWorkers);
+            this.opsWorkers = new CopyOnWriteArrayList<>(); // New workers are added when partitions are allowed.
             for (int workerId = 0; workerId < opsWorkers; workerId++) {
                 Set<Integer> assignedParts = assignPartitionsToWorker(workerId, opsWorkers);
-                this.opsWorkers.add(newOpsWorker(workerId, assignedParts));
+                this.opsWorkers.add(newOpsWorker(opsWorkerIds.getAndIncrement(), assignedParts));
             }
 
             opsSteadyFut = Utils.allOf(this.opsWorkers.stream()
@@ -260,15 +482,19 @@ public class KReplicaMapManager implements ReplicaMapManager {
         }
     }
 
-    @SuppressWarnings("unchecked")
     protected short[] resolveAllowedPartitions() {
         Set<Integer> apSet = parseIntSet(cfg.getList(ALLOWED_PARTITIONS));
 
+        if (apSet == null)
+            apSet = resolveAllowedMapsPartitions();
+
         if (apSet == null) {
-            Supplier<Set<Integer>> resolver = cfg.getConfiguredInstance(ALLOWED_PARTITIONS_RESOLVER, Supplier.class);
+            allowedPartitionsResolver = newAllowedPartitionsResolver();
 
-            if (resolver != null)
-                apSet = resolver.get();
+            if (allowedPartitionsResolver != null) {
+                checkMapsListed(); // The resolver may change the allowed partitions at runtime.
+                apSet = allowedPartitionsResolver.get();
+            }
         }
 
         if (apSet == null)
@@ -277,6 +503,129 @@ public class KReplicaMapManager implements ReplicaMapManager {
         if (apSet.isEmpty())
             throw new ReplicaMapException("Allowed partitions list is empty.");
 
+        return toAllowedPartitions(apSet);
+    }
+
+    protected Set<Integer> resolveAllowedMapsPartitions() {
+        List<String> allowedMaps = cfg.getList(ALLOWED_MAPS);
+
+        if (allowedMaps == null)
+            return null;
+
+        check(keyPartitioner instanceof MapIdPartitioner, () -> ALLOWED_MAPS + " requires " +
+            PARTITIONER_CLASS + " " + MapIdPartitioner.class.getName());
+
+        Set<Integer> apSet = new TreeSet<>();
+
+        for (String mapId : allowedMaps) {
+            int[] mapParts = ((MapIdPartitioner)keyPartitioner).getMapPartitions(mapId, totalPartitions);
+            check(mapParts != null, () -> "No partitions configured for the allowed map: " + mapId);
+
+            for (int part : mapParts)
+                apSet.add(part);
+        }
+
+        return apSet;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected Predicate<byte[]> newReplicationFilter() {
+        Class<Predicate<byte[]>> filterClass = (Class<Predicate<byte[]>>)cfg.getClass(REPLICATION_FILTER);
+        List<String> keyPrefixes = cfg.getList(REPLICATION_FILTER_KEY_PREFIXES);
+
+        check(filterClass == null || keyPrefixes == null, () -> REPLICATION_FILTER + " and " +
+            REPLICATION_FILTER_KEY_PREFIXES + " can not be used together.");
+
+        if (keyPrefixes != null)
+            return new KeyPrefixFilter(keyPrefixes);
+
+        if (filterClass == null)
+            return null;
+
+        Map<String, Object> filterCfg = new HashMap<>(cfg.originals());
+        filterCfg.putAll(cfg.values());
+
+        return Utils.getConfiguredInstance(filterClass, filterCfg);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected Supplier<Set<Integer>> newAllowedPartitionsResolver() {
+        Class<Supplier<Set<Integer>>> resolverClass = (Class<Supplier<Set<Integer>>>)cfg.getClass(ALLOWED_PARTITIONS_RESOLVER);
+
+        if (resolverClass == null)
+            return null;
+
+        Map<String, Object> resCfg = new HashMap<>(cfg.originals());
+        resCfg.putAll(cfg.values());
+
+        resCfg.put(ALLOWED_PARTITIONS_MEMBER_ID, ifNull(cfg.getString(ALLOWED_PARTITIONS_MEMBER_ID), clientIdHex));
+        resCfg.put(ALLOWED_PARTITIONS_MEMBERS_TOPIC, ifNull(cfg.getString(ALLOWED_PARTITIONS_MEMBERS_TOPIC),
+            dataTopic + DEFAULT_MEMBERS_TOPIC_SUFFIX));
+
+        RendezvousPartitionsResolver.setupResolverConfig(resCfg, totalPartitions,
+            this::onAllowedPartitionsResolved, this::isAllowedPartitionsSteady,
+            this::newKafkaProducerMembers, this::newKafkaConsumerMembers);
+
+        return Utils.getConfiguredInstance(resolverClass, resCfg);
+    }
+
+    /**
+     * Called by the resolver when the allowed partitions change, the latest change is applied
+     * when the manager is running.
+     *
+     * @param parts New allowed partitions.
+     */
+    protected void onAllowedPartitionsResolved(Set<Integer> parts) {
+        resolvedAllowedPartitions.set(parts);
+
+        if (getState() == RUNNING)
+            applyResolvedAllowedPartitions();
+    }
+
+    /**
+     * @return {@code true} If the manager is running and all the allowed partitions are loaded.
+     */
+    protected boolean isAllowedPartitionsSteady() {
+        return getState() == RUNNING &&
+            resolvedAllowedPartitions.get() == null &&
+            allowedPartitionsChangeFut.isDone();
+    }
+
+    protected void applyResolvedAllowedPartitions() {
+        Set<Integer> parts = resolvedAllowedPartitions.getAndSet(null);
+
+        if (parts == null || getState() != RUNNING)
+            return;
+
+        if (parts.isEmpty()) {
+            // There are more members than needed, but holding no partitions at all is not supported.
+            log.error("Resolved allowed partitions are empty for topics [{}, {}, {}], client id: {}, " +
+                "keeping the current ones until the next change.", dataTopic, opsTopic, flushTopic, clientIdHex);
+            return;
+        }
+
+        log.info("Changing allowed partitions for topics [{}, {}, {}] to {}, client id: {}",
+            dataTopic, opsTopic, flushTopic, parts, clientIdHex);
+
+        try {
+            setAllowedPartitions(parts).whenComplete((x, e) -> {
+                if (e != null)
+                    onResolvedAllowedPartitionsFailed(parts, e);
+            });
+        }
+        catch (Exception e) {
+            onResolvedAllowedPartitionsFailed(parts, e);
+        }
+    }
+
+    protected void onResolvedAllowedPartitionsFailed(Set<Integer> parts, Throwable e) {
+        if (getState() == RUNNING) { // Otherwise we are stopping and the change does not matter.
+            log.error("Failed to change allowed partitions for topics [" + dataTopic + ", " +
+                opsTopic + ", " + flushTopic + "] to " + parts + ", client id: " + clientIdHex, e);
+        }
+    }
+
+    protected short[] toAllowedPartitions(Set<Integer> apSet) {
         apSet = new TreeSet<>(apSet); // sort the partitions
         short[] ap = new short[apSet.size()];
         int i = 0;
@@ -292,18 +641,218 @@ public class KReplicaMapManager implements ReplicaMapManager {
     }
 
     protected void validateAllowedPartitions() {
+        validateAllowedPartitions(allowedPartitions);
+    }
+
+    protected void validateAllowedPartitions(short[] allowedPartitions) {
         if (allowedPartitions != null) {
             for (short part : allowedPartitions) {
                 if (part < 0 || part >= totalPartitions)
                     throw new ReplicaMapException("Invalid allowed partitions: " + Arrays.toString(allowedPartitions));
             }
+
+            // The flush assignor assigns only the whole groups sharing a transactional data producer.
+            if (flushTxPartitions > 1 && !readOnly && !FLUSH_ROLE_NONE.equals(flushRole)) {
+                for (short part : allowedPartitions) {
+                    int first = part / flushTxPartitions * flushTxPartitions;
+                    int last = Math.min(totalPartitions, first + flushTxPartitions);
+
+                    for (int p = first; p < last; p++) {
+                        if (!Utils.contains(allowedPartitions, (short)p)) {
+                            throw new ReplicaMapException("Allowed partitions " + Arrays.toString(allowedPartitions) +
+                                " must consist of whole groups of " + FLUSH_TX_PARTITIONS + " " + flushTxPartitions +
+                                ", partition " + p + " is missing.");
+                        }
+                    }
+                }
+            }
         }
     }
 
+    /**
+     * Changes the allowed partitions at runtime, the changes are applied one by one in the order of the calls.
+     * <p>
+     * The removed partitions are not allowed for updates immediately, then the flush workers rejoin
+     * the flush group without them, the updates for them are not applied anymore, the local operations
+     * still in progress on their keys fail and their keys are evicted from the local maps.
+     * Unless the maps are segmented (see {@link KReplicaMapManagerConfig#MAPS_SEGMENTED}),
+     * the eviction has to check all the keys of each map.
+     * <p>
+     * Requires {@link MapsHolder#getMaps()} to be supported by the configured maps holder.
+     * <p>
+     * The added partitions are loaded by a new ops worker while the rest of the maps stay live,
+     * when the partitions are loaded they become allowed for the updates and flushing.
+     *
+     * @param parts New allowed partitions or {@code null} if all the partitions are allowed.
+     * @return Future completed when the change is finished.
+     * @see KReplicaMapManagerConfig#ALLOWED_PARTITIONS
+     */
+    public synchronized CompletableFuture<Void> setAllowedPartitions(Set<Integer> parts) {
+        checkRunning();
+        checkMapsListed();
+
+        check(parts == null || !parts.isEmpty(), () -> "Allowed partitions list is empty.");
+        short[] newAllowed = parts == null ? null : toAllowedPartitions(parts);
+        validateAllowedPartitions(newAllowed);
+
+        CompletableFuture<Void> fut = allowedPartitionsChangeFut
+            .handle((x, e) -> null) // The failed change does not prevent the next one.
+            .thenCompose(x -> changeAllowedPartitions(newAllowed));
+
+        allowedPartitionsChangeFut = fut;
+        return fut;
+    }
+
+    /**
+     * Checks that the maps holder can list the maps to evict the keys of the removed partitions.
+     */
+    protected void checkMapsListed() {
+        try {
+            maps.getMaps();
+        }
+        catch (UnsupportedOperationException e) {
+            throw new ReplicaMapException("Changing allowed partitions at runtime requires " + MAPS_HOLDER +
+                " supporting getMaps(): " + maps.getClass().getName(), e);
+        }
+    }
+
+    protected CompletableFuture<Void> changeAllowedPartitions(short[] newAllowed) {
+        checkRunning();
+
+        Set<Integer> oldParts = allowedPartitionsSet(allowedPartitions);
+        Set<Integer> newParts = allowedPartitionsSet(newAllowed);
+
+        Set<Integer> removed = new TreeSet<>(oldParts);
+        removed.removeAll(newParts);
+
+        Set<Integer> added = new TreeSet<>(newParts);
+        added.removeAll(oldParts);
+
+        log.info("Changing allowed partitions for topics [{}, {}, {}], added: {}, removed: {}",
+            dataTopic, opsTopic, flushTopic, added, removed);
+
+        CompletableFuture<Void> fut = CompletableFuture.completedFuture(null);
+
+        if (!removed.isEmpty()) {
+            Set<Integer> retained = new TreeSet<>(oldParts);
+            retained.retainAll(newParts);
+
+            // The retained set may be empty, but it is still better than null meaning all the partitions.
+            fut = removePartitions(removed, newAllowed == null ? null : toAllowedPartitions(retained));
+        }
+
+        if (!added.isEmpty())
+            fut = fut.thenCompose(x -> addPartitions(added, newAllowed));
+
+        return fut.thenRun(() -> log.info("Changed allowed partitions for topics [{}, {}, {}]: {}",
+            dataTopic, opsTopic, flushTopic, newParts));
+    }
+
+    protected Set<Integer> allowedPartitionsSet(short[] allowedPartitions) {
+        Set<Integer> parts = new TreeSet<>();
+
+        for (int part = 0; part < totalPartitions; part++) {
+            if (allowedPartitions == null || Utils.contains(allowedPartitions, (short)part))
+                parts.add(part);
+        }
+
+        return parts;
+    }
+
+    protected CompletableFuture<Void> removePartitions(Set<Integer> removed, short[] retained) {
+        allowedPartitions = retained;
+
+        // The partitions must not be flushed by this client when we drop their flush queues.
+        List<CompletableFuture<Void>> flushFuts = new ArrayList<>();
+        for (FlushWorker worker : flushWorkers)
+            flushFuts.add(worker.setAllowedPartitions(retained));
+
+        return Utils.allOf(flushFuts).thenCompose(x -> {
+            List<CompletableFuture<Void>> opsFuts = new ArrayList<>();
+
+            for (OpsWorker worker : opsWorkers) {
+                Set<Integer> parts = worker.getAssignedPartitions();
+                parts.retainAll(removed);
+
+                if (!parts.isEmpty()) {
+                    opsFuts.add(worker.removePartitions(parts).thenRun(() -> {
+                        onPartitionsRemoved(parts);
+                        removeStoppedOpsWorker(worker);
+                    }));
+                }
+            }
+
+            return Utils.allOf(opsFuts);
+        });
+    }
+
+    /**
+     * Called when the updates for the partitions are not applied anymore.
+     *
+     * @param parts Removed partitions.
+     */
+    protected void onPartitionsRemoved(Set<Integer> parts) {
+        for (ReplicaMap<?,?> map : maps.getMaps()) {
+            ((KReplicaMap<?,?>)map).failPartitionOps(parts, this::resolveKeyPartition);
+            ((KReplicaMap<?,?>)map).evictPartitions(parts, this::resolveKeyPartition);
+        }
+
+        if (flushQueues != null) {
+            for (int part : parts) {
+                FlushQueue flushQueue = flushQueues.get(part);
+                long maxOffset = flushQueue.getMaxAddOffset();
+
+                if (maxOffset != Long.MIN_VALUE) // Release the memory, the queue is reset again on loading.
+                    flushQueue.reset(maxOffset);
+            }
+        }
+
+        log.debug("Evicted partitions {} for topics [{}, {}, {}]", parts, dataTopic, opsTopic, flushTopic);
+    }
+
+    /**
+     * Removes the ops worker if it has no partitions left, such a worker closes its consumers and stops.
+     *
+     * @param worker Ops worker.
+     */
+    protected void removeStoppedOpsWorker(OpsWorker worker) {
+        if (worker.getAssignedPartitions().isEmpty() && opsWorkers.remove(worker)) {
+            backfillWorkers.remove(worker);
+            log.debug("Removed ops worker without partitions: {}", worker.getName());
+        }
+    }
+
+    protected synchronized CompletableFuture<Void> addPartitions(Set<Integer> added, short[] newAllowed) {
+        checkRunning();
+
+        OpsWorker opsWorker = newOpsWorker(opsWorkerIds.getAndIncrement(), added);
+        opsWorkers.add(opsWorker);
+        opsWorker.start();
+
+        return opsWorker.getSteadyFuture().thenCompose(x -> {
+            allowedPartitions = newAllowed;
+
+            List<CompletableFuture<Void>> flushFuts = new ArrayList<>();
+            for (FlushWorker worker : flushWorkers)
+                flushFuts.add(worker.setAllowedPartitions(newAllowed));
+
+            return Utils.allOf(flushFuts);
+        });
+    }
+
     protected int resolveTotalPartitions() {
-        int opsParts = opsProducer.partitionsFor(opsTopic).size();
-        int flushParts = opsProducer.partitionsFor(flushTopic).size();
-        int dataParts = opsProducer.partitionsFor(dataTopic).size();
+        if (opsProducer != null)
+            return resolveTotalPartitions(opsProducer::partitionsFor);
+
+        try (Consumer<Object,OpMessage> opsConsumer = newKafkaConsumerOps()) {
+            return resolveTotalPartitions(opsConsumer::partitionsFor);
+        }
+    }
+
+    protected int resolveTotalPartitions(Function<String,List<PartitionInfo>> partitionsFor) {
+        int opsParts = partitionsFor.apply(opsTopic).size();
+        int flushParts = partitionsFor.apply(flushTopic).size();
+        int dataParts = partitionsFor.apply(dataTopic).size();
 
         checkEqualPartitions(opsTopic, opsParts, dataTopic, dataParts);
         checkEqualPartitions(opsTopic, opsParts, flushTopic, flushParts);
@@ -330,7 +879,15 @@ public class KReplicaMapManager implements ReplicaMapManager {
     }
 
     protected FlushQueue newFlushQueue(TopicPartition dataPart) {
-        return new FlushQueue(dataPart);
+        return new FlushQueue(dataPart, flushQueueLazy ? this::getCurrentValue : null);
+    }
+
+    /**
+     * @param key Key.
+     * @return Current value for the key in the local replica.
+     */
+    protected Object getCurrentValue(Object key) {
+        return getMapById(maps.getMapId(key)).unwrap().get(key);
     }
 
     protected FlushWorker newFlushWorker(int workerId, int parts) {
@@ -351,15 +908,32 @@ public class KReplicaMapManager implements ReplicaMapManager {
             receivedFlushRequests,
             successfulFlushes,
             flushMaxPollTimeout,
+            flushParallelism,
+            flushTxPartitions,
+            flushCoalesceMs,
+            flushSkipUnchanged,
+            flushMaxTxRecords == 0 ? Integer.MAX_VALUE : flushMaxTxRecords,
             allowedPartitions,
-            newLazyList(parts),
+            newLazyList((parts + flushTxPartitions - 1) / flushTxPartitions),
             this::newKafkaProducerData,
             newLazyList(1),
-            this::newKafkaConsumerFlush
+            (ownedParts, flushLoad) -> newKafkaConsumerFlush(workerId, ownedParts, flushLoadAware ? flushLoad : null)
         );
     }
 
     protected OpsWorker newOpsWorker(int workerId, Set<Integer> assignedParts) {
+        // The snapshot, since the maps materialized later are loaded by their own workers.
+        return newOpsWorker(workerId, assignedParts,
+            materializedMaps == null ? null : new HashSet<>(materializedMaps)::contains);
+    }
+
+    /**
+     * @param workerId Worker id.
+     * @param assignedParts Assigned partitions.
+     * @param mapsFilter Filter for the ids of the maps to apply or {@code null} to apply all the maps.
+     * @return Ops worker.
+     */
+    protected OpsWorker newOpsWorker(int workerId, Set<Integer> assignedParts, Predicate<String> mapsFilter) {
         if (log.isDebugEnabled())
             log.debug("Creating new ops worker {} for partitions: {}", workerId, assignedParts);
 
@@ -370,13 +944,14 @@ public class KReplicaMapManager implements ReplicaMapManager {
             flushTopic,
             workerId,
             assignedParts,
-            newKafkaConsumerData(),
-            newKafkaConsumerOps(),
+            newKafkaConsumerData(mapsFilter),
+            newKafkaConsumerOps(mapsFilter),
             flushProducer,
-            flushPeriodOps,
+            newFlushTrigger(),
+            flushCoalesceMs,
             flushQueues,
             cleanQueue,
-            this::applyReceivedUpdate,
+            isDedicatedFlusher() ? this::applyReceivedUpdateDedicated : this::applyReceivedUpdate,
             sentFlushRequests,
             receivedUpdates,
             receivedDataRecords,
@@ -384,6 +959,10 @@ public class KReplicaMapManager implements ReplicaMapManager {
         );
     }
 
+    protected FlushTrigger newFlushTrigger() {
+        return new FlushTrigger(flushPeriodOps, flushPeriodMs, flushPeriodBytes, flushMaxReplayMs);
+    }
+
     protected Set<Integer> assignPartitionsToWorker(int workerId, int allWorkers) {
         return assignPartitionsRoundRobin(workerId, allWorkers, totalPartitions, allowedPartitions);
     }
@@ -540,6 +1119,127 @@ public class KReplicaMapManager implements ReplicaMapManager {
         check(getState() == RUNNING, () -> "Manager is not running, actual state: " + getState());
     }
 
+    /**
+     * Checks that the maps can be accessed: the manager is running or it is starting
+     * with {@link KReplicaMapManagerConfig#MAPS_SERVE_READY_PARTITIONS} enabled.
+     */
+    protected void checkServing() {
+        if (!mapsServeReadyPartitions || getState() != STARTING)
+            checkRunning();
+    }
+
+    /**
+     * Checks that the given key can be accessed: the manager is running or it is starting
+     * and the partition of the key is ready.
+     *
+     * @param mapId Map id.
+     * @param key Key.
+     * @see KReplicaMapManagerConfig#MAPS_SERVE_READY_PARTITIONS
+     */
+    protected void checkKeyReady(Object mapId, Object key) {
+        if (getState() == RUNNING)
+            return;
+
+        checkServing();
+
+        int part = resolveKeyPartition(key);
+        CompletableFuture<Void> fut = getPartitionReadyFuture(mapId, part);
+
+        check(fut.isDone(), () -> "Partition " + part + " is not ready yet for key: " + key);
+        check(!fut.isCompletedExceptionally(), () -> "Partition " + part + " is not available for key: " + key);
+    }
+
+    /**
+     * Gets the future completed when the partition is ready: all the updates known at the moment
+     * of loading are applied to the maps. It allows to start serving the keys of the ready partitions
+     * before the whole manager is running (see {@link KReplicaMapManagerConfig#MAPS_SERVE_READY_PARTITIONS}).
+     *
+     * @param part Partition.
+     * @return Future, it fails if the partition is not allowed or the loading has failed.
+     */
+    public CompletableFuture<Void> getPartitionReadyFuture(int part) {
+        return getPartitionReadyFuture(null, part);
+    }
+
+    /**
+     * Gets the future completed when the partition is ready for the given map, the loading of
+     * the other maps that were not materialized on start is not awaited.
+     *
+     * @param mapId Map id or {@code null} for the maps materialized on start.
+     * @param part Partition.
+     * @return Future, it fails if the partition is not allowed or the loading has failed.
+     * @see #getPartitionReadyFuture(int)
+     */
+    public CompletableFuture<Void> getPartitionReadyFuture(Object mapId, int part) {
+        String id = mapId == null ? null : String.valueOf(mapId);
+        List<CompletableFuture<Void>> futs = new ArrayList<>();
+
+        for (OpsWorker worker : opsWorkers) {
+            String workerMapId = backfillWorkers.get(worker);
+
+            // Skip the loading of the other maps and the failed loading, it is retried on the next map access.
+            if (workerMapId != null &&
+                (!workerMapId.equals(id) || worker.getSteadyFuture().isCompletedExceptionally()))
+                continue;
+
+            CompletableFuture<Void> fut = worker.getPartitionSteadyFuture(part);
+
+            if (fut != null)
+                futs.add(fut);
+        }
+
+        if (futs.isEmpty()) {
+            CompletableFuture<Void> fut = new CompletableFuture<>();
+            fut.completeExceptionally(new ReplicaMapException("Partition " + part + " is not allowed."));
+            return fut;
+        }
+
+        return futs.size() == 1 ? futs.get(0) : Utils.allOf(futs);
+    }
+
+    protected void checkWritable() {
+        check(!readOnly, () -> "Manager is read-only.");
+        check(!isDedicatedFlusher(), () -> "Manager is a dedicated flusher.");
+    }
+
+    /**
+     * Rejects the reads and updates of the keys not replicated to this client, so that a missing key
+     * can be told from a filtered out one. The key is serialized for each check.
+     *
+     * @param key Key.
+     * @see KReplicaMapManagerConfig#REPLICATION_FILTER
+     */
+    protected void checkReplicated(Object key) {
+        if (replicationFilter != null) {
+            byte[] keyBytes = keyPartitionerSerializer.serialize(opsTopic, key);
+            check(replicationFilter.test(keyBytes), () -> "Key is not replicated to this client: " + key);
+        }
+    }
+
+    /**
+     * @return {@code true} If this manager only reads the maps.
+     * @see KReplicaMapManagerConfig#READ_ONLY
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * @return The role of this manager in flushing.
+     * @see KReplicaMapManagerConfig#FLUSH_ROLE
+     */
+    public String getFlushRole() {
+        return flushRole;
+    }
+
+    /**
+     * @return {@code true} If this manager only flushes and does not keep the maps.
+     * @see KReplicaMapManagerConfig#FLUSH_ROLE_DEDICATED
+     */
+    public boolean isDedicatedFlusher() {
+        return FLUSH_ROLE_DEDICATED.equals(flushRole);
+    }
+
     /**
      * Setup common settings for all the Kafka producers and consumers.
      * @param anyCfg Either producer or consumer config.
@@ -560,16 +1260,21 @@ public class KReplicaMapManager implements ReplicaMapManager {
         proCfg.putIfAbsent(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, true);
         proCfg.putIfAbsent(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION, 1); // disallow reordering
         proCfg.putIfAbsent(ProducerConfig.RETRIES_CONFIG, Integer.MAX_VALUE);
+
+        // For the partitioner co-locating the keys of each map.
+        MapIdPartitioner.setupProducerConfig(proCfg, maps, cfg.getList(MAPS_PARTITIONS), cfg.getInt(MAPS_PARTITIONS_HASHED));
     }
 
     /**
      * Setup data producer.
      * @param proCfg Data producer config.
-     * @param part Partition.
+     * @param txGroup Transaction group index, picks the transactional id.
      */
-    protected void configureProducerData(Map<String, Object> proCfg, int part) {
+    protected void configureProducerData(Map<String, Object> proCfg, int txGroup) {
         proCfg.putIfAbsent(ProducerConfig.LINGER_MS_CONFIG, 100L);
-        proCfg.putIfAbsent(ProducerConfig.TRANSACTIONAL_ID_CONFIG, dataTransactionalId + "_" + part);
+        proCfg.putIfAbsent(ProducerConfig.TRANSACTIONAL_ID_CONFIG, flushTxPartitions == 1 ?
+            dataTransactionalId + "_" + txGroup : // The same as before to keep fencing the old clients.
+            dataTransactionalId + "_" + flushTxPartitions + "x" + txGroup);
         proCfg.putIfAbsent(ProducerConfig.PARTITIONER_CLASS_CONFIG, NeverPartitioner.class);
     }
 
@@ -583,10 +1288,9 @@ public class KReplicaMapManager implements ReplicaMapManager {
 
         Class<? extends Partitioner> partitionerClass = (Class<? extends Partitioner>)cfg.getClass(PARTITIONER_CLASS);
 
-        if (allowedPartitions != null)
-            AllowedOnlyPartitioner.setupProducerConfig(proCfg, allowedPartitions, partitionerClass);
-        else
-            proCfg.putIfAbsent(ProducerConfig.PARTITIONER_CLASS_CONFIG, partitionerClass);
+        // The allowed partitions may change at runtime.
+        AllowedOnlyPartitioner.setupProducerConfig(proCfg, (Supplier<short[]>)() -> allowedPartitions,
+            partitionerClass);
     }
 
     /**
@@ -631,11 +1335,23 @@ public class KReplicaMapManager implements ReplicaMapManager {
     /**
      * Setup flush consumer.
      * @param conCfg Flush consumer config.
+     * @param workerId Flush worker id.
+     * @param ownedParts Live collection of the flush partitions owned by the worker.
+     * @param flushLoad Flush load of the owned partitions or {@code null} if the assignment is not load aware.
      */
-    protected void configureConsumerFlush(Map<String, Object> conCfg) {
+    protected void configureConsumerFlush(
+        Map<String, Object> conCfg,
+        int workerId,
+        Collection<TopicPartition> ownedParts,
+        ToLongFunction<TopicPartition> flushLoad
+    ) {
         conCfg.putIfAbsent(ConsumerConfig.GROUP_ID_CONFIG, flushConsumerGroupId);
 
-        FlushPartitionAssignor.setupConsumerConfig(conCfg, allowedPartitions, flushTopic);
+        if (flushGroupInstanceId != null) // The constant is missing in the older Kafka versions.
+            conCfg.putIfAbsent("group.instance.id", flushGroupInstanceId + "-" + workerId);
+
+        FlushPartitionAssignor.setupConsumerConfig(conCfg, allowedPartitions, flushTopic, flushTxPartitions,
+            ownedParts, flushLoad, flushCapacity);
     }
 
     protected <K,V> Producer<K,V> newKafkaProducer(
@@ -646,12 +1362,24 @@ public class KReplicaMapManager implements ReplicaMapManager {
         return new KafkaProducer<>(proCfg, keySerializer, valueSerializer);
     }
 
-    protected Producer<Object,Object> newKafkaProducerData(int part) {
+    protected Producer<Object,Object> newKafkaProducerData(int txGroup) {
         Map<String, Object> proCfg = new TreeMap<>();
 
         configureAll(proCfg);
         configureAllProducers(proCfg);
-        configureProducerData(proCfg, part);
+        configureProducerData(proCfg, txGroup);
+
+        if (compressData || flushReuseOpsBytes || mapsIdHeader) {
+            Serializer<Object> valSer = newValueSerializer(proCfg);
+
+            if (flushReuseOpsBytes)
+                valSer = new SerializedValueSerializer<>(valSer);
+
+            if (compressData)
+                valSer = new CompressingSerializer<>(valSer, valueCompressor);
+
+            return newKafkaProducer(proCfg, newMapKeySerializer(proCfg), valSer);
+        }
 
         return newKafkaProducer(proCfg, null, null);
     }
@@ -664,7 +1392,7 @@ public class KReplicaMapManager implements ReplicaMapManager {
         configureProducerOps(proCfg);
 
         return newKafkaProducer(proCfg,
-            newKeySerializer(proCfg),
+            newMapKeySerializer(proCfg),
             newOpMessageSerializer(
                 newValueSerializer(proCfg),
                 updateComputeSerializer(
@@ -692,36 +1420,92 @@ public class KReplicaMapManager implements ReplicaMapManager {
         return new KafkaConsumer<>(conCfg, keyDeserializer, valueDeserializer);
     }
 
+    protected Producer<String,Long> newKafkaProducerMembers() {
+        Map<String, Object> proCfg = new TreeMap<>();
+
+        configureAll(proCfg);
+        configureAllProducers(proCfg);
+        proCfg.putIfAbsent(ProducerConfig.LINGER_MS_CONFIG, 0L);
+
+        return newKafkaProducer(proCfg, new StringSerializer(), new LongSerializer());
+    }
+
+    protected Consumer<String,Long> newKafkaConsumerMembers() {
+        Map<String, Object> conCfg = new TreeMap<>();
+
+        configureAll(conCfg);
+        configureAllConsumers(conCfg);
+
+        return newKafkaConsumer(conCfg, new StringDeserializer(), new LongDeserializer());
+    }
+
     protected Consumer<Object,Object> newKafkaConsumerData() {
+        return newKafkaConsumerData(null);
+    }
+
+    protected Consumer<Object,Object> newKafkaConsumerData(Predicate<String> mapsFilter) {
         Map<String, Object> conCfg = new TreeMap<>();
 
         configureAll(conCfg);
         configureAllConsumers(conCfg);
         configureConsumerData(conCfg);
 
-        return newKafkaConsumer(conCfg, null, null);
+        // Always able to read compressed records, since any other client may write them.
+        return newKafkaConsumer(conCfg,
+            filterMaps(filterKeys(newKeyDeserializer(conCfg), true), mapsFilter),
+            filterMaps(filterKeys(new DecompressingDeserializer<>(
+                newValueDeserializer(conCfg), valueCompressor), false), mapsFilter));
     }
 
     protected Consumer<Object,OpMessage> newKafkaConsumerOps() {
+        return newKafkaConsumerOps(null);
+    }
+
+    protected Consumer<Object,OpMessage> newKafkaConsumerOps(Predicate<String> mapsFilter) {
         Map<String, Object> conCfg = new TreeMap<>();
 
         configureAll(conCfg);
         configureAllConsumers(conCfg);
         configureConsumerOps(conCfg);
 
+        // The dedicated flusher without stateful maps never needs the deserialized values.
+        boolean rawValues = isDedicatedFlusher() && flushDedicatedStatefulMaps.isEmpty();
+
         return newKafkaConsumer(conCfg,
-            newKeyDeserializer(conCfg),
-            newOpMessageDeserializer(
-                newValueDeserializer(conCfg),
-                newComputeDeserializer(conCfg)));
+            filterMaps(filterKeys(newKeyDeserializer(conCfg), true), mapsFilter),
+            filterMaps(filterKeys(newOpMessageDeserializer(
+                rawValues ? new ByteArrayDeserializer() : newValueDeserializer(conCfg),
+                newComputeDeserializer(conCfg)), false), mapsFilter));
     }
 
-    protected Consumer<Object,FlushRequest> newKafkaConsumerFlush() {
+    /**
+     * @param des Deserializer.
+     * @param isKey If the deserializer is for the keys or for the values.
+     * @return Deserializer that skips the records with the keys not accepted by the replication filter.
+     */
+    protected <T> Deserializer<T> filterKeys(Deserializer<T> des, boolean isKey) {
+        return replicationFilter == null ? des : new KeyFilterDeserializer<>(des, replicationFilter, isKey);
+    }
+
+    /**
+     * @param des Deserializer.
+     * @param mapsFilter Filter for the ids of the maps to deserialize or {@code null} to deserialize all the maps.
+     * @return Deserializer that skips the records of the maps not accepted by the filter.
+     */
+    protected <T> Deserializer<T> filterMaps(Deserializer<T> des, Predicate<String> mapsFilter) {
+        return mapsFilter == null ? des : new MapIdFilterDeserializer<>(des, mapsFilter);
+    }
+
+    protected Consumer<Object,FlushRequest> newKafkaConsumerFlush(
+        int workerId,
+        Collection<TopicPartition> ownedParts,
+        ToLongFunction<TopicPartition> flushLoad
+    ) {
         Map<String, Object> conCfg = new TreeMap<>();
 
         configureAll(conCfg);
         configureAllConsumers(conCfg);
-        configureConsumerFlush(conCfg);
+        configureConsumerFlush(conCfg, workerId, ownedParts, flushLoad);
 
         return newKafkaConsumer(conCfg,
             newKeyDeserializer(conCfg),
@@ -729,6 +1513,15 @@ public class KReplicaMapManager implements ReplicaMapManager {
                 newValueDeserializer(conCfg), null));
     }
 
+    /**
+     * @param proCfg Producer config.
+     * @return Key serializer for the ops and data records.
+     */
+    protected <K> Serializer<K> newMapKeySerializer(Map<String, Object> proCfg) {
+        Serializer<K> s = newKeySerializer(proCfg);
+        return mapsIdHeader ? new MapIdHeaderSerializer<>(s, maps) : s;
+    }
+
     @SuppressWarnings("unchecked")
     protected <K> Serializer<K> newKeySerializer(Map<String, Object> proCfg) {
         Serializer<K> s = cfg.getConfiguredInstance(KEY_SERIALIZER_CLASS, Serializer.class);
@@ -780,12 +1573,45 @@ public class KReplicaMapManager implements ReplicaMapManager {
 
     @SuppressWarnings("unchecked")
     protected <V, M extends OpMessage> Deserializer<M> newOpMessageDeserializer(Deserializer<V> v, ComputeDeserializer c) {
-        return (Deserializer<M>)new OpMessageDeserializer<>(v, c);
+        return (Deserializer<M>)new OpMessageDeserializer<>(v, c, valueCompressor, flushReuseOpsBytes);
     }
 
     @SuppressWarnings("unchecked")
     protected <V, M extends OpMessage> Serializer<M> newOpMessageSerializer(Serializer<V> v, ComputeSerializer c) {
-        return (Serializer<M>)new OpMessageSerializer<>(v, c);
+        return (Serializer<M>)new OpMessageSerializer<>(v, c, opsFormatVersion,
+            compressOps ? valueCompressor : null, opsPatchMinBytes);
+    }
+
+    protected ValueCompressor newValueCompressor() {
+        Map<Integer,byte[]> dictionaries = new HashMap<>();
+
+        for (String dict : cfg.getList(VALUE_COMPRESSION_DICTIONARIES)) {
+            int sep = dict.indexOf(':');
+            check(sep > 0, () -> "Invalid " + VALUE_COMPRESSION_DICTIONARIES + " entry: " + dict);
+
+            int dictId;
+            try {
+                dictId = Integer.parseInt(dict.substring(0, sep).trim());
+            }
+            catch (NumberFormatException e) {
+                throw new ReplicaMapException("Invalid " + VALUE_COMPRESSION_DICTIONARIES + " entry: " + dict, e);
+            }
+            checkPositive(dictId, VALUE_COMPRESSION_DICTIONARIES + " id");
+
+            try {
+                if (dictionaries.put(dictId, Files.readAllBytes(Paths.get(dict.substring(sep + 1).trim()))) != null)
+                    throw new ReplicaMapException("Duplicate dictionary id in " + VALUE_COMPRESSION_DICTIONARIES + ": " + dictId);
+            }
+            catch (IOException e) {
+                throw new ReplicaMapException("Failed to read compression dictionary: " + dict, e);
+            }
+        }
+
+        int dictId = cfg.getInt(VALUE_COMPRESSION_DICTIONARY_ID);
+        check(dictId == ValueCompressor.NO_DICTIONARY || dictionaries.containsKey(dictId),
+            () -> "Unknown " + VALUE_COMPRESSION_DICTIONARY_ID + ": " + dictId);
+
+        return new ValueCompressor(dictionaries, dictId, cfg.getInt(VALUE_COMPRESSION_MIN_BYTES));
     }
 
     @Override
@@ -808,6 +1634,9 @@ public class KReplicaMapManager implements ReplicaMapManager {
         if (ex == null && casState(STARTING, RUNNING)) {
             log.info("Started for topics [{}, {}, {}], client id: {}", dataTopic, opsTopic, flushTopic, clientIdHex);
 
+            // The resolver may have changed the allowed partitions while we were starting.
+            applyResolvedAllowedPartitions();
+
             return this;
         }
 
@@ -818,14 +1647,143 @@ public class KReplicaMapManager implements ReplicaMapManager {
 
     @Override
     public <K,V> KReplicaMap<K,V> getMap(Object mapId) {
-        checkRunning();
+        checkServing();
+
+        CompletableFuture<Void> fut = loadMap(mapId);
+        if (fut != null) {
+            try {
+                fut.get();
+            }
+            catch (InterruptedException | ExecutionException e) {
+                throw new ReplicaMapException("Failed to load map [" + mapId + "] for topics [" +
+                    dataTopic + ", " + opsTopic + ", " + flushTopic + "], client id: " + clientIdHex, e);
+            }
+        }
+
         return getMapById(mapId);
     }
 
     @Override
     public <K, V> KReplicaMap<K,V> getMap() {
+        return getMap(maps.getDefaultMapId());
+    }
+
+    /**
+     * Asynchronously gets the map. If the map is not materialized by this client
+     * (see {@link MapsHolder#getMaterializedMaps()}), then it is loaded first from the data
+     * and ops topics for the allowed partitions. If the loading fails, the next call retries it.
+     * <p>
+     * Each loaded map costs one more ops worker with its own data and ops consumers over all
+     * the allowed partitions of the map, which keeps reading the ops topic for as long as the manager runs.
+     *
+     * @param mapId Map id.
+     * @return Future completed when the map is loaded.
+     */
+    public <K,V> CompletableFuture<KReplicaMap<K,V>> openMap(Object mapId) {
+        checkServing();
+
+        CompletableFuture<Void> fut = loadMap(mapId);
+
+        if (fut == null)
+            return CompletableFuture.completedFuture(getMapById(mapId));
+
+        return fut.thenApply(x -> getMapById(mapId));
+    }
+
+    /**
+     * @param mapId Map id.
+     * @return Future for the map loading or {@code null} if the map is already loaded.
+     */
+    protected CompletableFuture<Void> loadMap(Object mapId) {
+        if (materializedMaps == null)
+            return null;
+
+        String id = String.valueOf(mapId);
+        CompletableFuture<Void> fut = mapsBackfills.get(id);
+
+        if (fut == null) {
+            if (materializedMaps.contains(id))
+                return null;
+
+            fut = backfillMap(mapId, id);
+        }
+
+        return fut.isDone() && !fut.isCompletedExceptionally() ? null : fut;
+    }
+
+    protected synchronized CompletableFuture<Void> backfillMap(Object mapId, String id) {
+        CompletableFuture<Void> fut = mapsBackfills.get(id);
+
+        if (fut != null)
+            return fut;
+
+        checkRunning();
+
+        // The backfill is ordered with the allowed partitions changes to load exactly the allowed partitions.
+        fut = allowedPartitionsChangeFut
+            .handle((x, e) -> null)
+            .thenCompose(x -> startBackfill(mapId, id));
+
+        allowedPartitionsChangeFut = fut;
+        mapsBackfills.put(id, fut);
+
+        CompletableFuture<Void> backfillFut = fut;
+        fut.whenComplete((x, e) -> {
+            if (e != null)
+                onBackfillFailed(mapId, id, backfillFut, e);
+        });
+
+        return fut;
+    }
+
+    /**
+     * Forgets the failed map loading, so that the next access to the map retries it.
+     *
+     * @param mapId Map id.
+     * @param id Map id string.
+     * @param fut Failed loading future.
+     * @param e Failure.
+     */
+    protected void onBackfillFailed(Object mapId, String id, CompletableFuture<Void> fut, Throwable e) {
+        if (mapsBackfills.remove(id, fut)) {
+            materializedMaps.remove(id);
+
+            if (getState() == RUNNING) {
+                log.error("Failed to load map [" + mapId + "] for topics [" + dataTopic + ", " + opsTopic + ", " +
+                    flushTopic + "], client id: " + clientIdHex + ", will retry on the next access.", e);
+            }
+        }
+    }
+
+    protected synchronized CompletableFuture<Void> startBackfill(Object mapId, String id) {
         checkRunning();
-        return getMapById(maps.getDefaultMapId());
+
+        Set<Integer> parts = allowedPartitionsSet(allowedPartitions);
+
+        if (keyPartitioner instanceof MapIdPartitioner) {
+            int[] mapParts = ((MapIdPartitioner)keyPartitioner).getMapPartitions(mapId, totalPartitions);
+
+            if (mapParts != null)
+                parts.retainAll(Arrays.stream(mapParts).boxed().collect(toSet()));
+        }
+
+        // The workers for the partitions allowed later must apply this map as well.
+        materializedMaps.add(id);
+
+        if (parts.isEmpty())
+            return CompletableFuture.completedFuture(null);
+
+        log.info("Loading map [{}] for topics [{}, {}, {}], partitions: {}, client id: {}",
+            mapId, dataTopic, opsTopic, flushTopic, parts, clientIdHex);
+
+        // The existing workers skip this map, thus the new worker loads and applies it for all the partitions.
+        OpsWorker opsWorker = newOpsWorker(opsWorkerIds.getAndIncrement(), parts, id::equals);
+        backfillWorkers.put(opsWorker, id);
+        opsWorkers.add(opsWorker);
+        opsWorker.start();
+
+        return opsWorker.getSteadyFuture().thenRun(() -> log.info(
+            "Loaded map [{}] for topics [{}, {}, {}], client id: {}", mapId, dataTopic, opsTopic, flushTopic, clientIdHex));
     }
 
     @Override
@@ -869,6 +1827,8 @@ public class KReplicaMapManager implements ReplicaMapManager {
     }
 
     protected void doStop() {
+        Utils.maybeClose(allowedPartitionsResolver);
+
         Worker.interruptAll(opsWorkers);
         Worker.interruptAll(flushWorkers);
 
@@ -882,6 +1842,12 @@ public class KReplicaMapManager implements ReplicaMapManager {
         Utils.close(flushProducer);
 
         Utils.close(maps);
+        Utils.maybeClose(replicationFilter);
+        Utils.close(valueCompressor);
+        Utils.close(patchValueSerializer);
+        Utils.close(patchValueDeserializer);
+        Utils.close(keyPartitioner);
+        Utils.close(keyPartitionerSerializer);
     }
 
     protected <K,V> KReplicaMap<K,V> getMapById(Object mapId) {
@@ -889,6 +1855,10 @@ public class KReplicaMapManager implements ReplicaMapManager {
     }
 
     protected <K,V> KReplicaMap<K,V> newReplicaMap(Object mapId, Map<K,V> map) {
+        // Only the default inner maps are segmented, custom ones may have semantics we can not combine.
+        if (mapsSegmented && map.getClass() == ConcurrentHashMap.class && map.isEmpty())
+            map = newSegmentedMap(mapId);
+
         return map instanceof NavigableMap ?
             new KReplicaNavigableMap<>(this, mapId, (NavigableMap<K,V>)map,
                 opsSemaphore, mapsCheckPrecondition, opsSendTimeout, TimeUnit.MILLISECONDS) :
@@ -896,6 +1866,36 @@ public class KReplicaMapManager implements ReplicaMapManager {
                 opsSemaphore, mapsCheckPrecondition, opsSendTimeout, TimeUnit.MILLISECONDS);
     }
 
+    @SuppressWarnings("unused")
+    protected <K,V> Map<K,V> newSegmentedMap(Object mapId) {
+        return new SegmentedMap<>(totalPartitions, part -> new ConcurrentHashMap<>(), this::resolveKeyPartition);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected Partitioner newKeyPartitioner(Map<String, Object> proCfg) {
+        // The same partitioner as for the ops, but without the allowed partitions check,
+        // since the maps can be read for any key.
+        return Utils.getConfiguredInstance((Class<? extends Partitioner>)cfg.getClass(PARTITIONER_CLASS), proCfg);
+    }
+
+    protected Cluster newKeyPartitionerCluster() {
+        List<PartitionInfo> parts = new ArrayList<>(totalPartitions);
+
+        for (int part = 0; part < totalPartitions; part++)
+            parts.add(new PartitionInfo(opsTopic, part, null, null, null));
+
+        return new Cluster(null, emptyList(), parts, emptySet(), emptySet());
+    }
+
+    /**
+     * @param key Key.
+     * @return Partition of the ops topic for the given key.
+     */
+    protected int resolveKeyPartition(Object key) {
+        byte[] keyBytes = keyPartitionerSerializer.serialize(opsTopic, key);
+        return keyPartitioner.partition(opsTopic, key, keyBytes, null, null, keyPartitionerCluster);
+    }
+
     protected <K,V> ProducerRecord<Object,OpMessage> newMapUpdateRecord(
         @SuppressWarnings("unused") KReplicaMap<K,V> map,
         long opId,
@@ -919,7 +1919,8 @@ public class KReplicaMapManager implements ReplicaMapManager {
         BiFunction<?,?,?> function,
         java.util.function.Consumer<Throwable> onSendFailed
     ) {
-        checkRunning();
+        checkServing();
+        checkWritable();
 
         if (log.isTraceEnabled()) {
             log.trace("Sending operation [{}] from map [{}] to topic [{}], for key [{}]: {} -> {}",
@@ -961,7 +1962,11 @@ public class KReplicaMapManager implements ReplicaMapManager {
 
         KReplicaMap<K,V> map = getMapById(mapId);
 
+        if (updateType == OP_PATCH)
+            upd = map.applyPatch(key, (ValuePatch)upd);
+
         return map.onReceiveUpdate(
+            part,
             clientId == this.clientId,
             opId,
             updateType,
@@ -972,6 +1977,84 @@ public class KReplicaMapManager implements ReplicaMapManager {
             updatedValueBox);
     }
 
+    /**
+     * Resolves the received update on the dedicated flusher: unconditional puts and removes
+     * do not need the current value, other operations are applied only to the stateful maps.
+     * Other operations can not be resolved, the error is logged and the flushing of the partition
+     * is held at the offset of the update (see {@link FlushQueue#holdKey}) until the next unconditional
+     * update of the key, the ops worker keeps processing the records.
+     */
+    @SuppressWarnings("unchecked")
+    protected <K,V> boolean applyReceivedUpdateDedicated(
+        String topic,
+        int part,
+        long offset,
+        long clientId,
+        long opId,
+        byte updateType,
+        K key,
+        V exp,
+        V upd,
+        BiFunction<?,?,?> function,
+        Box<V> updatedValueBox
+    ) {
+        Object mapId = maps.getMapId(key);
+
+        if (flushDedicatedStatefulMaps.contains(String.valueOf(mapId))) {
+            return applyReceivedUpdate(topic, part, offset, clientId, opId, updateType,
+                key, exp, upd, function, updatedValueBox);
+        }
+
+        FlushQueue flushQueue = topic.equals(opsTopic) ? flushQueues.get(part) : null;
+
+        if (updateType == OP_PUT || updateType == OP_REMOVE_ANY) {
+            if (updateType == OP_PUT && updatedValueBox != null)
+                updatedValueBox.set(upd);
+
+            // The value is known again.
+            if (flushQueue != null)
+                flushQueue.releaseKey(key);
+
+            return true;
+        }
+
+        log.error("Dedicated flusher can not resolve operation [{}] for map [{}] in partition {} at offset {}, " +
+            "the flushing of the partition is held until the key is put or removed unconditionally, " +
+            "the map must be listed in {}", (char)updateType, mapId, new TopicPartition(topic, part), offset,
+            FLUSH_DEDICATED_STATEFUL_MAPS);
+
+        if (flushQueue != null)
+            flushQueue.holdKey(key, offset);
+
+        return false;
+    }
+
+    protected boolean canSendPatch() {
+        return opsPatchMinBytes > 0;
+    }
+
+    /**
+     * @param base Current value.
+     * @param patch Received patch.
+     * @return Patched value or {@code null} if the patch base does not match the current value.
+     */
+    @SuppressWarnings("unchecked")
+    protected <V> V applyPatch(V base, ValuePatch patch) {
+        if (base == null)
+            return null;
+
+        byte[] patched = patch.apply(patchValueSerializer.serialize(opsTopic, base));
+
+        if (patched == null) {
+            if (log.isDebugEnabled())
+                log.debug("Patch base digest mismatch for topic [{}]: {}", opsTopic, patch);
+
+            return null;
+        }
+
+        return (V)patchValueDeserializer.deserialize(opsTopic, patched);
+    }
+
     protected boolean canSendFunction(BiFunction<?,?,?> function) {
         ComputeSerializer s = computeSerializer;
         return s != null && s.canSerialize(function);
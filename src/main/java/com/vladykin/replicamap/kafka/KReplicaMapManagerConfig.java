@@ -37,27 +37,71 @@ public class KReplicaMapManagerConfig extends AbstractConfig {
     public static final String PARTITIONER_CLASS = ProducerConfig.PARTITIONER_CLASS_CONFIG;
     public static final String ALLOWED_PARTITIONS = "allowed.partitions";
     public static final String ALLOWED_PARTITIONS_RESOLVER = "allowed.partitions.resolver";
+    public static final String ALLOWED_MAPS = "allowed.maps";
+    public static final String ALLOWED_PARTITIONS_REPLICATION_FACTOR = "allowed.partitions.replication.factor";
+    public static final String ALLOWED_PARTITIONS_MEMBER_ID = "allowed.partitions.member.id";
+    public static final String ALLOWED_PARTITIONS_MEMBERS = "allowed.partitions.members";
+    public static final String ALLOWED_PARTITIONS_MEMBERS_TOPIC = "allowed.partitions.members.topic";
+    public static final String ALLOWED_PARTITIONS_MEMBERS_HEARTBEAT_MS = "allowed.partitions.members.heartbeat.ms";
+    public static final String ALLOWED_PARTITIONS_MEMBERS_TIMEOUT_MS = "allowed.partitions.members.timeout.ms";
+    public static final String REPLICATION_FILTER = "replication.filter";
+    public static final String REPLICATION_FILTER_KEY_PREFIXES = "replication.filter.key.prefixes";
 
     public static final String COMPUTE_SERIALIZER_CLASS = "compute.serializer";
     public static final String COMPUTE_DESERIALIZER_CLASS = "compute.deserializer";
 
     public static final String CLIENT_ID = "client.id";
+    public static final String READ_ONLY = "read.only";
     public static final String DATA_TOPIC = "data.topic";
     public static final String OPS_TOPIC = "ops.topic";
     public static final String OPS_MAX_PARALLEL = "ops.max.parallel";
     public static final String OPS_SEND_TIMEOUT_MS = "ops.send.timeout.ms";
     public static final String OPS_WORKERS = "ops.workers";
+    public static final String OPS_FORMAT_VERSION = "ops.format.version";
+    public static final String OPS_PATCH_MIN_BYTES = "ops.patch.min.bytes";
     public static final String FLUSH_TOPIC = "flush.topic";
     public static final String FLUSH_PERIOD_OPS = "flush.period.ops";
+    public static final String FLUSH_PERIOD_MS = "flush.period.ms";
+    public static final String FLUSH_PERIOD_BYTES = "flush.period.bytes";
+    public static final String FLUSH_MAX_REPLAY_MS = "flush.max.replay.ms";
     public static final String FLUSH_MAX_POLL_TIMEOUT_MS = "flush.max.poll.timeout.ms";
     public static final String FLUSH_WORKERS = "flush.workers";
+    public static final String FLUSH_PARALLELISM = "flush.parallelism";
+    public static final String FLUSH_TX_PARTITIONS = "flush.tx.partitions";
+    public static final String FLUSH_COALESCE_MS = "flush.coalesce.ms";
+    public static final String FLUSH_SKIP_UNCHANGED = "flush.skip.unchanged";
+    public static final String FLUSH_MAX_TX_RECORDS = "flush.max.tx.records";
+    public static final String FLUSH_GROUP_INSTANCE_ID = "flush.group.instance.id";
+    public static final String FLUSH_LOAD_AWARE = "flush.load.aware";
+    public static final String FLUSH_CAPACITY = "flush.capacity";
+    public static final String FLUSH_QUEUE_LAZY = "flush.queue.lazy";
+    public static final String FLUSH_ROLE = "flush.role";
+    public static final String FLUSH_DEDICATED_STATEFUL_MAPS = "flush.dedicated.stateful.maps";
+    public static final String FLUSH_REUSE_OPS_BYTES = "flush.reuse.ops.bytes";
     public static final String MAPS_HOLDER = "maps.holder";
     public static final String MAPS_CHECK_PRECONDITION = "maps.check.precondition";
+    public static final String MAPS_SEGMENTED = "maps.segmented";
+    public static final String MAPS_PARTITIONS = "maps.partitions";
+    public static final String MAPS_PARTITIONS_HASHED = "maps.partitions.hashed";
+    public static final String MAPS_ID_HEADER = "maps.id.header";
+    public static final String MAPS_SERVE_READY_PARTITIONS = "maps.serve.ready.partitions";
+    public static final String VALUE_COMPRESSION_OPS = "value.compression.ops";
+    public static final String VALUE_COMPRESSION_DATA = "value.compression.data";
+    public static final String VALUE_COMPRESSION_DICTIONARIES = "value.compression.dictionaries";
+    public static final String VALUE_COMPRESSION_DICTIONARY_ID = "value.compression.dictionary.id";
+    public static final String VALUE_COMPRESSION_MIN_BYTES = "value.compression.min.bytes";
+
+    // Flush roles.
+    public static final String FLUSH_ROLE_SHARED = "shared";
+    public static final String FLUSH_ROLE_NONE = "none";
+    public static final String FLUSH_ROLE_DEDICATED = "dedicated";
 
     // Defaults.
     public static final String DEFAULT_DATA_TOPIC = "replicamap";
+
     public static final String DEFAULT_OPS_TOPIC_SUFFIX = "_ops";
     public static final String DEFAULT_FLUSH_TOPIC_SUFFIX = "_flush";
+    public static final String DEFAULT_MEMBERS_TOPIC_SUFFIX = "_members";
 
     private static final ConfigDef CONFIG = new ConfigDef()
         .define(CLIENT_ID, LONG, null, HIGH,
@@ -73,14 +117,93 @@ public class KReplicaMapManagerConfig extends AbstractConfig {
             "Timeout in milliseconds after which operation will fail if it was not sent yet.")
         .define(OPS_WORKERS, INT, Math.max(1, Utils.cpus() / 3), HIGH,
             "Number of worker threads processing operations from Kafka operations topic.")
+        .define(OPS_FORMAT_VERSION, INT, 1, HIGH,
+            "Wire format version for the messages sent to the operations and flush topics: 1 or 2. " +
+                "Version 2 is more compact but can be read only by the clients supporting it, " +
+                "thus it must be enabled only after all the clients are upgraded.")
+        .define(OPS_PATCH_MIN_BYTES, INT, 0, HIGH,
+            "If positive, then a put of a value with at least this serialized size will be sent as a binary patch " +
+                "against the current value when the patch is at least twice smaller than the value. " +
+                "The replicas apply the patch only if their current value has the same digest, otherwise the full value " +
+                "is resent. Requires " + OPS_FORMAT_VERSION + " 2 and deterministic value serialization. " +
+                "Zero disables patches.")
         .define(FLUSH_TOPIC, STRING, null, HIGH,
             "Kafka topic for flush requests.")
         .define(FLUSH_PERIOD_OPS, INT, 3000, HIGH,
             "A number of operations after which a client should issue a flush request.")
+        .define(FLUSH_PERIOD_MS, LONG, 0L, HIGH,
+            "If positive, then a client should issue a flush request when the oldest unflushed update " +
+                "in the partition is older than this number of milliseconds, idle partitions get flushed as well.")
+        .define(FLUSH_PERIOD_BYTES, LONG, 0L, HIGH,
+            "If positive, then a client should issue a flush request when the serialized size of the updates " +
+                "since the last flush in the partition reaches this number of bytes.")
+        .define(FLUSH_MAX_REPLAY_MS, LONG, 0L, HIGH,
+            "If positive, then a client should issue a flush request when replaying the unflushed updates " +
+                "in the partition on restart would take longer than this number of milliseconds, " +
+                "estimated from the observed rate of applying the updates.")
         .define(FLUSH_MAX_POLL_TIMEOUT_MS, LONG, 50L, HIGH,
             "Max poll timeout for a flusher in milliseconds.")
         .define(FLUSH_WORKERS, INT, Math.max(1, Utils.cpus() / 6), HIGH,
             "Number of workers periodically flushing the updated key-value pairs to the data topic.")
+        .define(FLUSH_PARALLELISM, INT, 1, HIGH,
+            "Max number of partitions each flush worker flushes concurrently, partitions with larger and older " +
+                "backlogs are flushed first. If 1, then the flush worker flushes all of its partitions by itself.")
+        .define(FLUSH_TX_PARTITIONS, INT, 1, HIGH,
+            "Number of consecutive partitions sharing a single transactional data producer. Such a group of partitions " +
+                "is always assigned to a single flush worker and flushed in a single transaction, this reduces " +
+                "the number of producers and transactions. Must be the same for all the clients. " +
+                "The allowed partitions of a flushing client must consist of whole groups.")
+        .define(FLUSH_COALESCE_MS, LONG, 0L, HIGH,
+            "If positive, then flush requests and flush notifications are delayed up to this number of milliseconds " +
+                "and only the latest one for each partition is sent, the superseded ones are dropped. " +
+                "This reduces the control traffic in the ops and flush topics with short flush periods.")
+        .define(FLUSH_SKIP_UNCHANGED, BOOLEAN, false, HIGH,
+            "If true, then the flush worker remembers the last flushed value for each key of the partitions " +
+                "it flushes and does not write the keys with the values equal to the last flushed ones again. " +
+                "The values are compared using \"equals\" method while the last flushed value object is still " +
+                "alive (it is referenced weakly), the reused serialized values are compared by a 64-bit hash. " +
+                "This reduces the number of records in the data topic for oscillating values at the cost " +
+                "of a fixed size entry for each flushed key.")
+        .define(FLUSH_MAX_TX_RECORDS, INT, 0, HIGH,
+            "If positive, then a large flush backlog is flushed as a chain of transactions, each one ending " +
+                "at a flush request and having at most this number of updates (divided between the partitions " +
+                "sharing the transaction), unless a single flush request exceeds the limit. This bounds " +
+                "the transaction size and the producer buffers after a long flush outage.")
+        .define(FLUSH_GROUP_INSTANCE_ID, STRING, null, HIGH,
+            "If set, then the flush consumers use static group membership (requires Kafka 2.3 or newer) " +
+                "with \"group.instance.id\" made of this value and the flush worker id. It must be stable " +
+                "across restarts of the client and unique in the cluster, then rolling restarts within " +
+                "the session timeout do not cause rebalancing of the flush partitions.")
+        .define(FLUSH_LOAD_AWARE, BOOLEAN, false, HIGH,
+            "If true, then the flush workers report the recent flush load of their partitions " +
+                "on rebalancing and the flush partitions are assigned balancing the load instead of the number " +
+                "of partitions. The partitions stay with their owners until the load is far enough from balance.")
+        .define(FLUSH_CAPACITY, INT, 1, HIGH,
+            "Relative flush capacity of each flush worker of this client for the load aware assignment, " +
+                "the clients with larger capacity get proportionally more flush load.")
+        .define(FLUSH_QUEUE_LAZY, BOOLEAN, false, HIGH,
+            "If true, then the flush queue of a partition keeps the updated values only while the partition " +
+                "is flushed by this client, for other partitions only the offsets are tracked. When the partition " +
+                "is assigned for flushing, the ops worker replays the keys from the ops topic since the last flush " +
+                "and the current values of these keys are flushed. This saves memory on the clients " +
+                "that do not flush, but the first flush after the assignment is delayed by the replay.")
+        .define(FLUSH_ROLE, STRING, FLUSH_ROLE_SHARED, HIGH,
+            "The role of this client in flushing: \"" + FLUSH_ROLE_SHARED + "\" - the client keeps the maps and " +
+                "flushes its share of the partitions, \"" + FLUSH_ROLE_NONE + "\" - the client keeps the maps " +
+                "but never flushes and does not join the flush consumer group, \"" + FLUSH_ROLE_DEDICATED + "\" - " +
+                "the client only flushes: it does not keep the maps and writes the serialized values " +
+                "from the ops topic as is, any update operation on this client fails. The dedicated flusher " +
+                "can only resolve unconditional puts and removes, for other operations the map must be " +
+                "listed in " + FLUSH_DEDICATED_STATEFUL_MAPS + ", otherwise they are logged as errors and the flushing " +
+                "of their partitions is held until the key is put or removed unconditionally.")
+        .define(FLUSH_DEDICATED_STATEFUL_MAPS, LIST, "", HIGH,
+            "Ids of the maps (as strings) for which the dedicated flusher keeps the local map " +
+                "to resolve conditional, compute and patch operations.")
+        .define(FLUSH_REUSE_OPS_BYTES, BOOLEAN, false, HIGH,
+            "If true, then the values received from the ops topic are kept in the flush queue serialized as they were " +
+                "received and written to the data topic as is, without the second serialization. " +
+                "Requires the value serializer to produce the same bytes for the ops and data topics. " +
+                "Values produced by functions are still serialized on flush.")
         .define(MAPS_HOLDER, CLASS, MapsHolderSingle.class, HIGH,
             "Responsible for creating and holding all the replica maps for the manager and also mapping keys to their maps.")
         .define(KEY_SERIALIZER_CLASS, CLASS, StringSerializer.class, HIGH,
@@ -100,11 +223,87 @@ public class KReplicaMapManagerConfig extends AbstractConfig {
         .define(PARTITIONER_CLASS, CLASS, KeyBytesPartitioner.class, HIGH,
             "Partitioner class that implements the `org.apache.kafka.clients.producer.Partitioner` interface.")
         .define(ALLOWED_PARTITIONS, LIST, null, HIGH,
-            "Set of allowed partition numbers for sharding. By default all the partitions available.")
+            "Set of allowed partition numbers for sharding. By default all the partitions available. " +
+                "Can be changed at runtime with `KReplicaMapManager.setAllowedPartitions`.")
         .define(ALLOWED_PARTITIONS_RESOLVER, CLASS, null, HIGH,
-            "`Supplier<Set<Integer>>` function that resolves the set of allowed partitions.")
+            "`Supplier<Set<Integer>>` function that resolves the set of allowed partitions. " +
+                "`RendezvousPartitionsResolver` assigns each partition to " + ALLOWED_PARTITIONS_REPLICATION_FACTOR +
+                " live members by rendezvous hashing and changes the allowed partitions at runtime " +
+                "when the members join or leave. A partition moving to another member is kept until the new " +
+                "holders have loaded it. Changing at runtime requires " + MAPS_HOLDER + " listing all the existing " +
+                "maps. If the resolved set is empty, the error is logged and the current partitions are kept.")
+        .define(ALLOWED_MAPS, LIST, null, HIGH,
+            "Set of the map ids to resolve the allowed partitions for sharding: the allowed partitions are " +
+                "all the partitions of these maps. Requires " + PARTITIONER_CLASS + " `MapIdPartitioner` " +
+                "and the partitions for each of the maps.")
+        .define(ALLOWED_PARTITIONS_REPLICATION_FACTOR, INT, 1, HIGH,
+            "The number of members to hold each partition for `RendezvousPartitionsResolver`.")
+        .define(ALLOWED_PARTITIONS_MEMBER_ID, STRING, null, HIGH,
+            "Stable member id for `RendezvousPartitionsResolver`, by default the client id is used. " +
+                "With a stable id the member gets the same partitions after restart.")
+        .define(ALLOWED_PARTITIONS_MEMBERS, LIST, null, HIGH,
+            "Static list of the member ids for `RendezvousPartitionsResolver`. " +
+                "If not set, the live members are discovered through the members topic.")
+        .define(ALLOWED_PARTITIONS_MEMBERS_TOPIC, STRING, null, HIGH,
+            "Kafka topic for the member heartbeats of `RendezvousPartitionsResolver`, by default it is the data topic " +
+                "name with the suffix `" + DEFAULT_MEMBERS_TOPIC_SUFFIX + "`. A single partition and a short retention " +
+                "are enough.")
+        .define(ALLOWED_PARTITIONS_MEMBERS_HEARTBEAT_MS, LONG, 3000L, HIGH,
+            "Interval in milliseconds between the member heartbeats.")
+        .define(ALLOWED_PARTITIONS_MEMBERS_TIMEOUT_MS, LONG, 15000L, HIGH,
+            "Timeout in milliseconds after the last heartbeat when the member is considered dead, " +
+                "must be greater than the heartbeat interval plus the clock skew between the members.")
+        .define(REPLICATION_FILTER, CLASS, null, HIGH,
+            "`Predicate<byte[]>` function over the serialized keys to replicate only a subset of the keys to " +
+                "this client. The records of the other keys are skipped without deserialization and the reads " +
+                "and updates of these keys by this client fail. Requires " + FLUSH_ROLE + " `" + FLUSH_ROLE_NONE + "` or " +
+                READ_ONLY + ".")
+        .define(REPLICATION_FILTER_KEY_PREFIXES, LIST, null, HIGH,
+            "List of the key prefixes encoded in UTF-8 to replicate only the keys with the serialized bytes " +
+                "starting with any of them, the shortcut for " + REPLICATION_FILTER + " `KeyPrefixFilter`.")
+        .define(READ_ONLY, BOOLEAN, false, HIGH,
+            "If true, then this client only reads the maps: it creates only the data and ops consumers, " +
+                "does not have any producers and flush workers and does not join the flush consumer group. " +
+                "Any update operation fails.")
         .define(MAPS_CHECK_PRECONDITION, BOOLEAN, true, HIGH,
             "If true map will check preconditions locally before sending out any operations. By default is true.")
+        .define(MAPS_SEGMENTED, BOOLEAN, false, HIGH,
+            "If true, then each map keeps a separate inner map segment for each partition and the keys are routed " +
+                "to the segments with the same partitioner as the operations. The received updates go directly " +
+                "to the segment of their partition, while the local reads have to serialize the key to find " +
+                "its segment. Applies only to the default inner maps, custom inner maps are kept as is.")
+        .define(MAPS_PARTITIONS, LIST, emptyList(), HIGH,
+            "List of the partition ranges in the format `mapId:first-last` to co-locate the keys of each map " +
+                "with " + PARTITIONER_CLASS + " `MapIdPartitioner`. The map ids are compared as strings. " +
+                "Must be the same on all the clients and must not change for the existing data.")
+        .define(MAPS_PARTITIONS_HASHED, INT, 0, HIGH,
+            "If positive, then `MapIdPartitioner` co-locates the keys of each map without the configured partitions " +
+                "in this number of consecutive partitions starting from the hash of the map id. " +
+                "Must be the same on all the clients and must not change for the existing data.")
+        .define(MAPS_ID_HEADER, BOOLEAN, false, HIGH,
+            "If true, then the ops and data records are marked with the map id header, so that the clients " +
+                "materializing only some of the maps (see `MapsHolder.getMaterializedMaps`) skip the records of " +
+                "the other maps without deserialization. Must be enabled on all the clients writing to the maps. " +
+                "Each map loaded later with `KReplicaMapManager.openMap` or `getMap` gets its own ops worker " +
+                "with a pair of consumers over all the allowed partitions of the map.")
+        .define(MAPS_SERVE_READY_PARTITIONS, BOOLEAN, false, HIGH,
+            "If true, then while the manager is starting, the maps serve the reads and updates of the keys " +
+                "from the partitions that are already steady (see `KReplicaMapManager.getPartitionReadyFuture`), " +
+                "the operations on the other keys and on the whole maps fail until the manager is running.")
+        .define(VALUE_COMPRESSION_OPS, BOOLEAN, false, HIGH,
+            "If true the serialized values in the operations topic will be compressed, requires " +
+                OPS_FORMAT_VERSION + " 2.")
+        .define(VALUE_COMPRESSION_DATA, BOOLEAN, false, HIGH,
+            "If true the serialized values in the data topic will be compressed, " +
+                "the compressed records are marked with a header. Can be enabled only after all the clients are upgraded.")
+        .define(VALUE_COMPRESSION_DICTIONARIES, LIST, emptyList(), HIGH,
+            "List of the known compression dictionaries in the format `id:path`, where id is a positive integer. " +
+                "All the dictionaries ever used for compression must be listed to be able to read the old records. " +
+                "The dictionaries can be trained with `KReplicaMapTools trainDictionary` command.")
+        .define(VALUE_COMPRESSION_DICTIONARY_ID, INT, 0, HIGH,
+            "Id of the dictionary to compress values with, 0 means no dictionary.")
+        .define(VALUE_COMPRESSION_MIN_BYTES, INT, 256, HIGH,
+            "Serialized values smaller than this size will not be compressed.")
         ;
 
     public KReplicaMapManagerConfig(Map<?,?> originals) {
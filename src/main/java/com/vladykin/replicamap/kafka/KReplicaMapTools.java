@@ -1,7 +1,11 @@
 package com.vladykin.replicamap.kafka;
 
+import com.vladykin.replicamap.kafka.impl.compress.CompressingSerializer;
+import com.vladykin.replicamap.kafka.impl.compress.DictionaryTrainer;
 import com.vladykin.replicamap.kafka.impl.util.Utils;
 import com.vladykin.replicamap.kafka.impl.worker.flush.FlushWorker;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -30,10 +34,13 @@ import static java.util.Collections.singleton;
  *
  * @author Sergi Vladykin http://vladykin.com
  */
-@SuppressWarnings({"ArraysAsListWithZeroOrOneArgument", "SwitchStatementWithTooFewBranches"})
 public class KReplicaMapTools {
     public static final String CMD_INIT_EXISTING = "initExisting";
-    protected static final List<String> CMDS = Arrays.asList(CMD_INIT_EXISTING);
+    public static final String CMD_TRAIN_DICTIONARY = "trainDictionary";
+    protected static final List<String> CMDS = Arrays.asList(CMD_INIT_EXISTING, CMD_TRAIN_DICTIONARY);
+
+    public static final int DEFAULT_DICTIONARY_SIZE = 16 * 1024;
+    public static final int MAX_DICTIONARY_SAMPLES = 10_000;
 
     protected final Iterator<String> args;
 
@@ -57,6 +64,13 @@ public class KReplicaMapTools {
                     nextArg("dataTopic"),
                     nextArg("opsTopic")
                 );
+            case CMD_TRAIN_DICTIONARY:
+                return trainDictionary(
+                    nextArg("bootstrapServers"),
+                    nextArg("dataTopic"),
+                    nextArg("dictionaryFile"),
+                    args.hasNext() ? Integer.parseInt(args.next()) : DEFAULT_DICTIONARY_SIZE
+                );
             default:
                 throw new IllegalArgumentException("Unsupported command: " + cmd + ", supported commands: " + CMDS);
         }
@@ -145,6 +159,56 @@ public class KReplicaMapTools {
         return "Found data topic partitions with data: " + lastDataRecords.keySet();
     }
 
+    public String trainDictionary(
+        String bootstrapServers,
+        String dataTopic,
+        String dictFile,
+        int dictSize
+    ) throws Exception {
+        System.out.println("Training compression dictionary on data topic: " + dataTopic);
+
+        Map<String, Object> cfg = new HashMap<>();
+
+        cfg.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        cfg.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class);
+        cfg.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class);
+        cfg.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+        cfg.put("allow.auto.create.topics", false); // ConsumerConfig.ALLOW_AUTO_CREATE_TOPICS_CONFIG
+        cfg.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+        cfg.put(ConsumerConfig.ISOLATION_LEVEL_CONFIG, "read_committed");
+
+        DictionaryTrainer trainer = new DictionaryTrainer();
+        int samples = 0;
+
+        try (Consumer<byte[], byte[]> consumer = new KafkaConsumer<>(cfg)) {
+            Map<TopicPartition,Long> endOffsets = Utils.endOffsets(consumer, dataTopic);
+
+            consumer.assign(endOffsets.keySet());
+            consumer.seekToBeginning(endOffsets.keySet());
+
+            while (samples < MAX_DICTIONARY_SAMPLES && !endOffsets.isEmpty()) {
+                for (ConsumerRecord<byte[],byte[]> rec : Utils.poll(consumer, MIN_POLL_TIMEOUT_MS)) {
+                    // Already compressed values are useless for training.
+                    if (rec.value() != null && rec.headers().lastHeader(CompressingSerializer.COMPRESSION_HEADER) == null) {
+                        trainer.addSample(rec.value());
+                        samples++;
+                    }
+                }
+
+                endOffsets.entrySet().removeIf(e -> consumer.position(e.getKey()) >= e.getValue());
+            }
+        }
+
+        byte[] dict = trainer.train(dictSize);
+
+        if (dict.length == 0)
+            throw new IllegalArgumentException("Not enough data to train a dictionary: " + dataTopic);
+
+        Files.write(Paths.get(dictFile), dict);
+
+        return "Trained dictionary of " + dict.length + " bytes on " + samples + " samples: " + dictFile;
+    }
+
     protected ConsumerRecord<byte[],byte[]> findLastDataRecord(
         Consumer<byte[], byte[]> consumer,
         TopicPartition dataPart,
@@ -0,0 +1,60 @@
+package com.vladykin.replicamap.kafka.impl.compress;
+
+import com.vladykin.replicamap.kafka.impl.util.Utils;
+import java.util.Map;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.ExtendedSerializer;
+import org.apache.kafka.common.serialization.Serializer;
+
+/**
+ * Serializer wrapper that compresses the serialized values and marks the compressed
+ * records with the {@link #COMPRESSION_HEADER} containing the dictionary id.
+ *
+ * @author Sergi Vladykin http://vladykin.com
+ */
+public class CompressingSerializer<V> implements ExtendedSerializer<V> {
+    public static final String COMPRESSION_HEADER = "replicamap.dict";
+
+    protected final Serializer<V> ser;
+    protected final ValueCompressor compressor;
+    protected final byte[] dictIdBytes;
+
+    public CompressingSerializer(Serializer<V> ser, ValueCompressor compressor) {
+        this.ser = Utils.requireNonNull(ser, "ser");
+        this.compressor = Utils.requireNonNull(compressor, "compressor");
+        this.dictIdBytes = Utils.serializeVarlong(compressor.getDictionaryId());
+    }
+
+    @Override
+    public void configure(Map<String,?> configs, boolean isKey) {
+        ser.configure(configs, isKey);
+    }
+
+    @Override
+    public byte[] serialize(String topic, Headers headers, V data) {
+        byte[] raw = ser instanceof ExtendedSerializer ?
+            ((ExtendedSerializer<V>)ser).serialize(topic, headers, data) :
+            ser.serialize(topic, data);
+
+        if (headers == null)
+            return raw;
+
+        byte[] compressed = compressor.compress(raw);
+
+        if (compressed == null)
+            return raw;
+
+        headers.add(COMPRESSION_HEADER, dictIdBytes);
+        return compressed;
+    }
+
+    @Override
+    public byte[] serialize(String topic, V data) {
+        return ser.serialize(topic, data);
+    }
+
+    @Override
+    public void close() {
+        Utils.close(ser);
+    }
+}
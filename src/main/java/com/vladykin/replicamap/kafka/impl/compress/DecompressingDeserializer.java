@@ -0,0 +1,54 @@
+package com.vladykin.replicamap.kafka.impl.compress;
+
+import com.vladykin.replicamap.kafka.impl.util.Utils;
+import java.util.Map;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.ExtendedDeserializer;
+
+import static com.vladykin.replicamap.kafka.impl.compress.CompressingSerializer.COMPRESSION_HEADER;
+
+/**
+ * Deserializer wrapper that decompresses the values written by {@link CompressingSerializer}.
+ * Records without the {@link CompressingSerializer#COMPRESSION_HEADER} are passed to the
+ * underlying deserializer as is.
+ *
+ * @author Sergi Vladykin http://vladykin.com
+ */
+public class DecompressingDeserializer<V> implements ExtendedDeserializer<V> {
+    protected final Deserializer<V> des;
+    protected final ValueCompressor compressor;
+
+    public DecompressingDeserializer(Deserializer<V> des, ValueCompressor compressor) {
+        this.des = Utils.requireNonNull(des, "des");
+        this.compressor = Utils.requireNonNull(compressor, "compressor");
+    }
+
+    @Override
+    public void configure(Map<String,?> configs, boolean isKey) {
+        des.configure(configs, isKey);
+    }
+
+    @Override
+    public V deserialize(String topic, Headers headers, byte[] data) {
+        Header dictHeader = data == null || headers == null ? null : headers.lastHeader(COMPRESSION_HEADER);
+
+        if (dictHeader != null)
+            data = compressor.decompress((int)Utils.deserializeVarlong(dictHeader.value()), data);
+
+        return des instanceof ExtendedDeserializer ?
+            ((ExtendedDeserializer<V>)des).deserialize(topic, headers, data) :
+            des.deserialize(topic, data);
+    }
+
+    @Override
+    public V deserialize(String topic, byte[] data) {
+        return des.deserialize(topic, data);
+    }
+
+    @Override
+    public void close() {
+        Utils.close(des);
+    }
+}
@@ -0,0 +1,181 @@
+package com.vladykin.replicamap.kafka.impl.compress;
+
+import com.vladykin.replicamap.kafka.impl.util.Utils;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Trains a compression dictionary on the sampled values.
+ * It is a simplified version of the COVER algorithm: the most frequent (in terms of
+ * the number of samples they occur in) k-grams are covered greedily by the sample segments.
+ * The best segments are placed at the end of the dictionary because they are cheaper to reference.
+ *
+ * @author Sergi Vladykin http://vladykin.com
+ */
+public class DictionaryTrainer {
+    /** Max dictionary size usable by deflate. */
+    public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+    protected static final int K = 8;
+    protected static final int SEGMENT_SIZE = 64;
+    protected static final int SEGMENT_STEP = 16;
+
+    protected final Map<Long,int[]> frequencies = new HashMap<>();
+    protected final List<byte[]> samples = new ArrayList<>();
+
+    /**
+     * @param sample Sample value.
+     */
+    public void addSample(byte[] sample) {
+        Utils.requireNonNull(sample, "sample");
+
+        if (sample.length < SEGMENT_SIZE)
+            return;
+
+        int sampleId = samples.size();
+        samples.add(sample);
+
+        for (int i = 0, end = sample.length - K; i <= end; i++) {
+            int[] freq = frequencies.computeIfAbsent(hash(sample, i), h -> new int[]{0, -1});
+
+            if (freq[1] != sampleId) { // Count each k-gram only once per sample.
+                freq[0]++;
+                freq[1] = sampleId;
+            }
+        }
+    }
+
+    /**
+     * @param samples Samples.
+     * @param dictSize Max dictionary size.
+     * @return Trained dictionary.
+     */
+    public static byte[] train(Collection<byte[]> samples, int dictSize) {
+        DictionaryTrainer trainer = new DictionaryTrainer();
+
+        for (byte[] sample : samples)
+            trainer.addSample(sample);
+
+        return trainer.train(dictSize);
+    }
+
+    /**
+     * @param dictSize Max dictionary size.
+     * @return Trained dictionary, may be empty if there are not enough samples.
+     */
+    public byte[] train(int dictSize) {
+        if (dictSize <= 0 || dictSize > MAX_DICTIONARY_SIZE)
+            throw new IllegalArgumentException("Dictionary size must be in range (0, " + MAX_DICTIONARY_SIZE + "].");
+
+        PriorityQueue<Segment> candidates = new PriorityQueue<>();
+
+        for (int sampleId = 0; sampleId < samples.size(); sampleId++) {
+            byte[] sample = samples.get(sampleId);
+
+            for (int start = 0; start + SEGMENT_SIZE <= sample.length; start += SEGMENT_STEP) {
+                Segment seg = new Segment(sampleId, start);
+
+                if (score(seg) > 0)
+                    candidates.add(seg);
+            }
+        }
+
+        List<Segment> selected = new ArrayList<>();
+        int size = 0;
+
+        while (size < dictSize) {
+            Segment seg = candidates.poll();
+
+            if (seg == null)
+                break;
+
+            // Lazy greedy: the score could only decrease since the segment was queued.
+            int oldScore = seg.score;
+
+            if (score(seg) == 0)
+                continue;
+
+            if (seg.score < oldScore) {
+                candidates.add(seg);
+                continue;
+            }
+
+            selected.add(seg);
+            size += SEGMENT_SIZE;
+
+            // The k-grams of the selected segment are covered now.
+            byte[] sample = samples.get(seg.sampleId);
+            for (int i = seg.start, end = seg.start + SEGMENT_SIZE - K; i <= end; i++)
+                frequencies.get(hash(sample, i))[0] = 0;
+        }
+
+        ByteArrayOutputStream dict = new ByteArrayOutputStream(size);
+
+        for (int i = selected.size() - 1; i >= 0; i--) {
+            Segment seg = selected.get(i);
+            dict.write(samples.get(seg.sampleId), seg.start, SEGMENT_SIZE);
+        }
+
+        byte[] result = dict.toByteArray();
+
+        if (result.length > dictSize) { // Drop the worst segment prefix.
+            byte[] truncated = new byte[dictSize];
+            System.arraycopy(result, result.length - dictSize, truncated, 0, dictSize);
+            result = truncated;
+        }
+
+        return result;
+    }
+
+    protected int score(Segment seg) {
+        byte[] sample = samples.get(seg.sampleId);
+        Set<Long> seen = new HashSet<>();
+        int score = 0;
+
+        for (int i = seg.start, end = seg.start + SEGMENT_SIZE - K; i <= end; i++) {
+            Long h = hash(sample, i);
+
+            if (seen.add(h)) {
+                int freq = frequencies.get(h)[0];
+
+                if (freq > 1) // Unique k-grams are useless for other values.
+                    score += freq;
+            }
+        }
+
+        seg.score = score;
+        return score;
+    }
+
+    protected static long hash(byte[] arr, int off) {
+        long h = 0;
+
+        for (int i = off, end = off + K; i < end; i++)
+            h = (h << 8) | (arr[i] & 0xFF);
+
+        return h;
+    }
+
+    protected static class Segment implements Comparable<Segment> {
+        protected final int sampleId;
+        protected final int start;
+        protected int score;
+
+        protected Segment(int sampleId, int start) {
+            this.sampleId = sampleId;
+            this.start = start;
+        }
+
+        @Override
+        public int compareTo(Segment o) {
+            return Integer.compare(o.score, score); // Max score first.
+        }
+    }
+}
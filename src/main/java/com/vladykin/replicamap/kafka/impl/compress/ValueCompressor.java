@@ -0,0 +1,174 @@
+package com.vladykin.replicamap.kafka.impl.compress;
+
+import com.vladykin.replicamap.ReplicaMapException;
+import com.vladykin.replicamap.kafka.impl.util.Utils;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses serialized values with preset dictionaries.
+ * Each compressed block has the following format: {@code [rawLength (unsigned varint)][deflated bytes]},
+ * the dictionary id must be stored separately by the caller.
+ *
+ * @author Sergi Vladykin http://vladykin.com
+ */
+public class ValueCompressor implements AutoCloseable {
+    public static final int NO_DICTIONARY = 0;
+
+    /** Smaller values can not be compressed efficiently in any case. */
+    protected static final int MIN_COMPRESSIBLE_SIZE = 16;
+
+    protected final Map<Integer,byte[]> dictionaries;
+    protected final int dictionaryId;
+    protected final byte[] dictionary;
+    protected final int minSize;
+
+    protected final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    protected final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param dictionaries All the known dictionaries by their ids.
+     * @param dictionaryId Id of the dictionary to use for compression or {@link #NO_DICTIONARY}.
+     * @param minSize Min size of the value to compress, smaller values are not compressed.
+     */
+    public ValueCompressor(Map<Integer,byte[]> dictionaries, int dictionaryId, int minSize) {
+        this.dictionaries = new HashMap<>(Utils.requireNonNull(dictionaries, "dictionaries"));
+
+        if (this.dictionaries.containsKey(NO_DICTIONARY))
+            throw new IllegalArgumentException("Dictionary id must not be " + NO_DICTIONARY);
+
+        for (Integer id : this.dictionaries.keySet()) {
+            if (id < 0)
+                throw new IllegalArgumentException("Negative dictionary id: " + id);
+        }
+
+        if (dictionaryId != NO_DICTIONARY && !this.dictionaries.containsKey(dictionaryId))
+            throw new IllegalArgumentException("Unknown dictionary id: " + dictionaryId);
+
+        this.dictionaryId = dictionaryId;
+        this.dictionary = this.dictionaries.get(dictionaryId);
+        this.minSize = Math.max(minSize, MIN_COMPRESSIBLE_SIZE);
+    }
+
+    /**
+     * @return Id of the dictionary used for compression.
+     */
+    public int getDictionaryId() {
+        return dictionaryId;
+    }
+
+    /**
+     * @param raw Raw bytes.
+     * @return Compressed block or {@code null} if the compression is not beneficial.
+     */
+    public byte[] compress(byte[] raw) {
+        if (raw == null || raw.length < minSize)
+            return null;
+
+        Deflater deflater = deflaters.poll();
+
+        if (deflater == null)
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+
+        try {
+            if (dictionary != null)
+                deflater.setDictionary(dictionary);
+
+            deflater.setInput(raw);
+            deflater.finish();
+
+            int rawLenSize = Utils.sizeOfUnsignedVarlong(raw.length);
+            byte[] out = new byte[raw.length - 1]; // We need to save at least 1 byte.
+            int len = deflater.deflate(out, rawLenSize, out.length - rawLenSize);
+
+            if (!deflater.finished())
+                return null;
+
+            Utils.writeUnsignedVarlong(raw.length, ByteBuffer.wrap(out));
+            return Arrays.copyOf(out, rawLenSize + len);
+        }
+        finally {
+            deflater.reset();
+            deflaters.add(deflater);
+        }
+    }
+
+    /**
+     * @param dictId Dictionary id that was used for compression.
+     * @param block Compressed block.
+     * @return Raw bytes.
+     */
+    public byte[] decompress(int dictId, byte[] block) {
+        byte[] dict = null;
+
+        if (dictId != NO_DICTIONARY) {
+            dict = dictionaries.get(dictId);
+
+            if (dict == null)
+                throw new ReplicaMapException("Unknown compression dictionary id: " + dictId);
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(block);
+        long rawLen = Utils.readUnsignedVarlong(buf);
+
+        if (rawLen > Integer.MAX_VALUE)
+            throw new ReplicaMapException("Invalid compressed block length: " + rawLen);
+
+        Inflater inflater = inflaters.poll();
+
+        if (inflater == null)
+            inflater = new Inflater();
+
+        try {
+            inflater.setInput(block, buf.position(), buf.remaining());
+
+            byte[] raw = new byte[(int)rawLen];
+            int len = inflater.inflate(raw);
+
+            if (inflater.needsDictionary()) {
+                if (dict == null)
+                    throw new ReplicaMapException("Compression dictionary is required.");
+
+                inflater.setDictionary(dict);
+                len += inflater.inflate(raw, len, raw.length - len);
+            }
+
+            if (len != raw.length || !inflater.finished())
+                throw new ReplicaMapException("Failed to decompress block, dictionary id: " + dictId);
+
+            return raw;
+        }
+        catch (DataFormatException e) {
+            throw new ReplicaMapException("Failed to decompress block, dictionary id: " + dictId, e);
+        }
+        finally {
+            inflater.reset();
+            inflaters.add(inflater);
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Deflater d; (d = deflaters.poll()) != null;)
+            d.end();
+
+        for (Inflater i; (i = inflaters.poll()) != null;)
+            i.end();
+    }
+
+    @Override
+    public String toString() {
+        return "ValueCompressor{" +
+            "dictionaryId=" + dictionaryId +
+            ", dictionaries=" + dictionaries.keySet() +
+            ", minSize=" + minSize +
+            '}';
+    }
+}
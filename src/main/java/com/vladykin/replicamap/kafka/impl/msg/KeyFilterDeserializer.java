@@ -0,0 +1,72 @@
+package com.vladykin.replicamap.kafka.impl.msg;
+
+import com.vladykin.replicamap.kafka.impl.util.Utils;
+import java.util.Map;
+import java.util.function.Predicate;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.ExtendedDeserializer;
+
+/**
+ * Deserializer wrapper that skips the records with the serialized keys not accepted by the filter.
+ * The key deserializer returns {@code null} for such a record and marks it with the local
+ * {@link #SKIPPED_HEADER}, the value deserializer returns {@code null} for the marked records,
+ * thus neither the key nor the value of the skipped record is deserialized.
+ * <p>
+ * The consumer deserializes the key of the record before its value with the same headers.
+ *
+ * @author Sergi Vladykin http://vladykin.com
+ */
+public class KeyFilterDeserializer<T> implements ExtendedDeserializer<T> {
+    public static final String SKIPPED_HEADER = "replicamap.skipped";
+
+    protected static final byte[] EMPTY = new byte[0];
+
+    protected final Deserializer<T> des;
+    protected final Predicate<byte[]> keyFilter;
+    protected final boolean isKey;
+
+    /**
+     * @param des Deserializer.
+     * @param keyFilter Filter for the serialized keys.
+     * @param isKey If the deserializer is for the keys or for the values.
+     */
+    public KeyFilterDeserializer(Deserializer<T> des, Predicate<byte[]> keyFilter, boolean isKey) {
+        this.des = Utils.requireNonNull(des, "des");
+        this.keyFilter = Utils.requireNonNull(keyFilter, "keyFilter");
+        this.isKey = isKey;
+    }
+
+    @Override
+    public void configure(Map<String,?> configs, boolean isKey) {
+        des.configure(configs, isKey);
+    }
+
+    @Override
+    public T deserialize(String topic, Headers headers, byte[] data) {
+        if (headers != null) {
+            if (isKey) {
+                if (data != null && !keyFilter.test(data)) {
+                    headers.add(SKIPPED_HEADER, EMPTY);
+                    return null;
+                }
+            }
+            else if (headers.lastHeader(SKIPPED_HEADER) != null)
+                return null;
+        }
+
+        return des instanceof ExtendedDeserializer ?
+            ((ExtendedDeserializer<T>)des).deserialize(topic, headers, data) :
+            des.deserialize(topic, data);
+    }
+
+    @Override
+    public T deserialize(String topic, byte[] data) {
+        return des.deserialize(topic, data);
+    }
+
+    @Override
+    public void close() {
+        Utils.close(des);
+    }
+}
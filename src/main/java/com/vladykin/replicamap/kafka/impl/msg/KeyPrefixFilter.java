@@ -0,0 +1,47 @@
+package com.vladykin.replicamap.kafka.impl.msg;
+
+import com.vladykin.replicamap.kafka.impl.util.Utils;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.function.Predicate;
+
+/**
+ * Accepts the serialized keys starting with any of the given prefixes,
+ * the prefixes are encoded in UTF-8.
+ *
+ * @author Sergi Vladykin http://vladykin.com
+ */
+public class KeyPrefixFilter implements Predicate<byte[]> {
+    protected final byte[][] prefixes;
+
+    public KeyPrefixFilter(Collection<String> prefixes) {
+        Utils.requireNonNull(prefixes, "prefixes");
+        Utils.check(!prefixes.isEmpty(), () -> "Key prefixes list is empty.");
+
+        this.prefixes = prefixes.stream()
+            .map(prefix -> prefix.getBytes(StandardCharsets.UTF_8))
+            .toArray(byte[][]::new);
+    }
+
+    @Override
+    public boolean test(byte[] keyBytes) {
+        for (byte[] prefix : prefixes) {
+            if (startsWith(keyBytes, prefix))
+                return true;
+        }
+
+        return false;
+    }
+
+    protected static boolean startsWith(byte[] bytes, byte[] prefix) {
+        if (bytes.length < prefix.length)
+            return false;
+
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i])
+                return false;
+        }
+
+        return true;
+    }
+}
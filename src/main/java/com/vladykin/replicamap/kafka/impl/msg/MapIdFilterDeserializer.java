@@ -0,0 +1,58 @@
+package com.vladykin.replicamap.kafka.impl.msg;
+
+import com.vladykin.replicamap.kafka.impl.util.Utils;
+import java.util.Map;
+import java.util.function.Predicate;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.ExtendedDeserializer;
+
+import static com.vladykin.replicamap.kafka.impl.msg.MapIdHeaderSerializer.MAP_ID_HEADER;
+
+/**
+ * Deserializer wrapper that returns {@code null} without calling the underlying deserializer
+ * for the records marked by {@link MapIdHeaderSerializer} with the ids of the maps not accepted
+ * by the filter. Records without the {@link MapIdHeaderSerializer#MAP_ID_HEADER} are always deserialized.
+ * <p>
+ * Both the key and the value deserializers must be wrapped, the skipped record then has a {@code null}
+ * key with a non-negative serialized key size.
+ *
+ * @author Sergi Vladykin http://vladykin.com
+ */
+public class MapIdFilterDeserializer<T> implements ExtendedDeserializer<T> {
+    protected final Deserializer<T> des;
+    protected final Predicate<String> mapsFilter;
+
+    public MapIdFilterDeserializer(Deserializer<T> des, Predicate<String> mapsFilter) {
+        this.des = Utils.requireNonNull(des, "des");
+        this.mapsFilter = Utils.requireNonNull(mapsFilter, "mapsFilter");
+    }
+
+    @Override
+    public void configure(Map<String,?> configs, boolean isKey) {
+        des.configure(configs, isKey);
+    }
+
+    @Override
+    public T deserialize(String topic, Headers headers, byte[] data) {
+        Header mapIdHeader = headers == null ? null : headers.lastHeader(MAP_ID_HEADER);
+
+        if (mapIdHeader != null && !mapsFilter.test(MapIdHeaderSerializer.decodeMapId(mapIdHeader.value())))
+            return null;
+
+        return des instanceof ExtendedDeserializer ?
+            ((ExtendedDeserializer<T>)des).deserialize(topic, headers, data) :
+            des.deserialize(topic, data);
+    }
+
+    @Override
+    public T deserialize(String topic, byte[] data) {
+        return des.deserialize(topic, data);
+    }
+
+    @Override
+    public void close() {
+        Utils.close(des);
+    }
+}
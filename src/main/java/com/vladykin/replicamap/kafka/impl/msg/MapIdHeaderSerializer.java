@@ -0,0 +1,75 @@
+package com.vladykin.replicamap.kafka.impl.msg;
+
+import com.vladykin.replicamap.holder.MapsHolder;
+import com.vladykin.replicamap.kafka.impl.util.Utils;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.ExtendedSerializer;
+import org.apache.kafka.common.serialization.Serializer;
+
+/**
+ * Key serializer wrapper that marks the records with the {@link #MAP_ID_HEADER} containing
+ * the id of the map the key belongs to, so that the clients not interested in the map
+ * could skip the record without deserializing it (see {@link MapIdFilterDeserializer}).
+ *
+ * @author Sergi Vladykin http://vladykin.com
+ */
+public class MapIdHeaderSerializer<K> implements ExtendedSerializer<K> {
+    public static final String MAP_ID_HEADER = "replicamap.map";
+
+    protected final Serializer<K> ser;
+    protected final MapsHolder maps;
+
+    /** The encoded map ids, there are normally just a few maps. */
+    protected final ConcurrentMap<Object,byte[]> mapIds = new ConcurrentHashMap<>();
+
+    public MapIdHeaderSerializer(Serializer<K> ser, MapsHolder maps) {
+        this.ser = Utils.requireNonNull(ser, "ser");
+        this.maps = Utils.requireNonNull(maps, "maps");
+    }
+
+    /**
+     * @param mapId Map id.
+     * @return The header value for the given map id.
+     */
+    public static byte[] encodeMapId(Object mapId) {
+        return String.valueOf(mapId).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param value The header value.
+     * @return Map id in the form of {@link String#valueOf(Object)}.
+     */
+    public static String decodeMapId(byte[] value) {
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void configure(Map<String,?> configs, boolean isKey) {
+        ser.configure(configs, isKey);
+    }
+
+    @Override
+    public byte[] serialize(String topic, Headers headers, K key) {
+        if (key != null && headers != null)
+            headers.add(MAP_ID_HEADER, mapIds.computeIfAbsent(maps.getMapId(key), MapIdHeaderSerializer::encodeMapId));
+
+        return ser instanceof ExtendedSerializer ?
+            ((ExtendedSerializer<K>)ser).serialize(topic, headers, key) :
+            ser.serialize(topic, key);
+    }
+
+    @Override
+    public byte[] serialize(String topic, K key) {
+        return ser.serialize(topic, key);
+    }
+
+    @Override
+    public void close() {
+        mapIds.clear();
+        Utils.close(ser);
+    }
+}
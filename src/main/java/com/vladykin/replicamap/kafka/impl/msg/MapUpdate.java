@@ -14,6 +14,7 @@ public class MapUpdate extends OpMessage {
     protected final Object expValue;
     protected final Object updValue;
     protected final BiFunction<?,?,?> function;
+    protected final byte[] updValueBytes;
 
     public MapUpdate(
         byte opType,
@@ -22,6 +23,27 @@ public class MapUpdate extends OpMessage {
         Object expValue,
         Object updValue,
         BiFunction<?,?,?> function
+    ) {
+        this(opType, clientId, opId, expValue, updValue, function, null);
+    }
+
+    /**
+     * @param opType Operation type.
+     * @param clientId Client id.
+     * @param opId Operation id.
+     * @param expValue Expected value.
+     * @param updValue Updated value.
+     * @param function Function.
+     * @param updValueBytes Serialized updated value as it was received or {@code null}.
+     */
+    public MapUpdate(
+        byte opType,
+        long clientId,
+        long opId,
+        Object expValue,
+        Object updValue,
+        BiFunction<?,?,?> function,
+        byte[] updValueBytes
     ) {
         super(opType, clientId);
 
@@ -29,6 +51,7 @@ public class MapUpdate extends OpMessage {
         this.expValue = expValue;
         this.updValue = updValue;
         this.function = function;
+        this.updValueBytes = updValueBytes;
     }
 
     public long getOpId() {
@@ -47,6 +70,13 @@ public class MapUpdate extends OpMessage {
         return function;
     }
 
+    /**
+     * @return Serialized updated value as it was received or {@code null} if it was not kept.
+     */
+    public byte[] getUpdatedValueBytes() {
+        return updValueBytes;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -21,6 +21,8 @@ public abstract class OpMessage {
 
     public static final byte OP_MERGE = 'm';
 
+    public static final byte OP_PATCH = 'd';
+
     public static final byte OP_FLUSH_REQUEST = 'f';
     public static final byte OP_FLUSH_NOTIFICATION = 'F';
 
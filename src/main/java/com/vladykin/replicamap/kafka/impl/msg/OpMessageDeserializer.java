@@ -1,8 +1,11 @@
 package com.vladykin.replicamap.kafka.impl.msg;
 
+import com.vladykin.replicamap.ReplicaMapException;
 import com.vladykin.replicamap.kafka.compute.ComputeDeserializer;
+import com.vladykin.replicamap.kafka.impl.compress.ValueCompressor;
 import com.vladykin.replicamap.kafka.impl.util.Utils;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.function.BiFunction;
 import org.apache.kafka.common.serialization.Deserializer;
@@ -10,10 +13,18 @@ import org.apache.kafka.common.utils.ByteUtils;
 
 import static com.vladykin.replicamap.kafka.impl.msg.OpMessage.OP_FLUSH_NOTIFICATION;
 import static com.vladykin.replicamap.kafka.impl.msg.OpMessage.OP_FLUSH_REQUEST;
+import static com.vladykin.replicamap.kafka.impl.msg.OpMessage.OP_PATCH;
+import static com.vladykin.replicamap.kafka.impl.msg.OpMessageSerializer.FLAG_COMPRESSED;
+import static com.vladykin.replicamap.kafka.impl.msg.OpMessageSerializer.FLAG_EXP_VALUE;
+import static com.vladykin.replicamap.kafka.impl.msg.OpMessageSerializer.FLAG_FUNCTION;
+import static com.vladykin.replicamap.kafka.impl.msg.OpMessageSerializer.FLAG_UPD_VALUE;
+import static com.vladykin.replicamap.kafka.impl.msg.OpMessageSerializer.FORMAT_V2_MARKER;
 import static com.vladykin.replicamap.kafka.impl.msg.OpMessageSerializer.NULL_ARRAY_LENGTH;
 
 /**
  * Operation message deserializer.
+ * Supports all the wire format versions at the same time to be able to read the topics
+ * written by the clients of mixed versions.
  *
  * @author Sergi Vladykin http://vladykin.com
  */
@@ -21,9 +32,33 @@ public class OpMessageDeserializer<V> implements Deserializer<OpMessage> {
     protected final Deserializer<V> valDes;
     protected final ComputeDeserializer funDes;
 
+    protected final ValueCompressor compressor;
+    protected final boolean keepUpdatedValueBytes;
+
     public OpMessageDeserializer(Deserializer<V> valDes, ComputeDeserializer funDes) {
+        this(valDes, funDes, null);
+    }
+
+    public OpMessageDeserializer(Deserializer<V> valDes, ComputeDeserializer funDes, ValueCompressor compressor) {
+        this(valDes, funDes, compressor, false);
+    }
+
+    /**
+     * @param valDes Value deserializer.
+     * @param funDes Function deserializer.
+     * @param compressor Values compressor to read compressed format v2 messages or {@code null}.
+     * @param keepUpdatedValueBytes Keep the serialized updated value in {@link MapUpdate#getUpdatedValueBytes()}.
+     */
+    public OpMessageDeserializer(
+        Deserializer<V> valDes,
+        ComputeDeserializer funDes,
+        ValueCompressor compressor,
+        boolean keepUpdatedValueBytes
+    ) {
         this.valDes = Utils.requireNonNull(valDes, "valDes");
         this.funDes = funDes;
+        this.compressor = compressor;
+        this.keepUpdatedValueBytes = keepUpdatedValueBytes;
     }
 
     @Override
@@ -71,11 +106,54 @@ public class OpMessageDeserializer<V> implements Deserializer<OpMessage> {
         return des.deserialize(topic, arr);
     }
 
+    protected <Z> Z readNonNull(String topic, ByteBuffer buf, Deserializer<Z> des, byte flags, byte flag) {
+        if ((flags & flag) == 0)
+            return null;
+
+        byte[] arr = new byte[ByteUtils.readVarint(buf)];
+        buf.get(arr);
+
+        if (des == null)
+            throw new NullPointerException("Deserializer is not provided.");
+
+        return des.deserialize(topic, arr);
+    }
+
+    /**
+     * @param buf Buffer.
+     * @param dictId Compression dictionary id or negative value if the message is not compressed.
+     * @param flags Flags.
+     * @param flag Flag of the value to read.
+     * @return Serialized value or {@code null} if the value flag is not set.
+     */
+    protected byte[] readValueBytes(ByteBuffer buf, int dictId, byte flags, byte flag) {
+        if ((flags & flag) == 0)
+            return null;
+
+        byte[] arr = new byte[ByteUtils.readVarint(buf)];
+        buf.get(arr);
+
+        if (dictId < 0)
+            return arr;
+
+        if (arr[0] == 0) // Stored as is.
+            arr = Arrays.copyOfRange(arr, 1, arr.length);
+        else if (compressor == null)
+            throw new ReplicaMapException("Values compressor is not provided.");
+        else
+            arr = compressor.decompress(dictId, arr);
+
+        return arr;
+    }
+
     @Override
     public OpMessage deserialize(String topic, byte[] opMsgBytes) {
         ByteBuffer buf = ByteBuffer.wrap(opMsgBytes);
         byte opType = buf.get();
 
+        if ((opType & FORMAT_V2_MARKER) != 0)
+            return deserializeV2(topic, buf, (byte)(opType & ~FORMAT_V2_MARKER));
+
         switch (opType) {
             case OP_FLUSH_REQUEST:
                 return new FlushRequest(
@@ -92,13 +170,53 @@ public class OpMessageDeserializer<V> implements Deserializer<OpMessage> {
                     ByteUtils.readVarlong(buf));
         }
 
+        long msgClientId = ByteUtils.readVarlong(buf);
+        long opId = ByteUtils.readVarlong(buf);
+        V exp = readValue(topic, buf);
+        byte[] upd = readByteArray(buf);
+
+        return new MapUpdate(
+            opType,
+            msgClientId,
+            opId,
+            exp,
+            upd == null ? null : valDes.deserialize(topic, upd),
+            readFunction(topic, buf),
+            keepUpdatedValueBytes ? upd : null
+        );
+    }
+
+    protected OpMessage deserializeV2(String topic, ByteBuffer buf, byte opType) {
+        switch (opType) {
+            case OP_FLUSH_REQUEST:
+                return new FlushRequest(
+                    buf.getLong(),
+                    ByteUtils.readVarlong(buf),
+                    ByteUtils.readVarlong(buf));
+
+            case OP_FLUSH_NOTIFICATION:
+                return new FlushNotification(
+                    buf.getLong(),
+                    ByteUtils.readVarlong(buf),
+                    ByteUtils.readVarlong(buf));
+        }
+
+        byte flags = buf.get();
+        long msgClientId = buf.getLong();
+        long opId = Utils.readUnsignedVarlong(buf);
+        int dictId = (flags & FLAG_COMPRESSED) == 0 ? -1 : (int)Utils.readUnsignedVarlong(buf);
+
+        byte[] exp = readValueBytes(buf, dictId, flags, FLAG_EXP_VALUE);
+        byte[] upd = readValueBytes(buf, dictId, flags, FLAG_UPD_VALUE);
+
         return new MapUpdate(
             opType,
-            ByteUtils.readVarlong(buf),
-            ByteUtils.readVarlong(buf),
-            readValue(topic, buf),
-            readValue(topic, buf),
-            readFunction(topic, buf)
+            msgClientId,
+            opId,
+            exp == null ? null : valDes.deserialize(topic, exp),
+            upd == null ? null : opType == OP_PATCH ? ValuePatch.fromBytes(upd) : valDes.deserialize(topic, upd),
+            readNonNull(topic, buf, funDes, flags, FLAG_FUNCTION),
+            keepUpdatedValueBytes && opType != OP_PATCH ? upd : null
         );
     }
 
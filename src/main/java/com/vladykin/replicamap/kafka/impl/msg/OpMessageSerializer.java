@@ -1,6 +1,7 @@
 package com.vladykin.replicamap.kafka.impl.msg;
 
 import com.vladykin.replicamap.kafka.compute.ComputeSerializer;
+import com.vladykin.replicamap.kafka.impl.compress.ValueCompressor;
 import com.vladykin.replicamap.kafka.impl.util.Utils;
 import java.nio.ByteBuffer;
 import java.util.Map;
@@ -10,6 +11,8 @@ import org.apache.kafka.common.utils.ByteUtils;
 
 import static com.vladykin.replicamap.kafka.impl.msg.OpMessage.OP_FLUSH_NOTIFICATION;
 import static com.vladykin.replicamap.kafka.impl.msg.OpMessage.OP_FLUSH_REQUEST;
+import static com.vladykin.replicamap.kafka.impl.msg.OpMessage.OP_PATCH;
+import static com.vladykin.replicamap.kafka.impl.msg.OpMessage.OP_PUT;
 
 /**
  * Operation message serializer.
@@ -19,12 +22,67 @@ import static com.vladykin.replicamap.kafka.impl.msg.OpMessage.OP_FLUSH_REQUEST;
 public class OpMessageSerializer<V> implements Serializer<OpMessage> {
     public static final int NULL_ARRAY_LENGTH = -1;
 
+    // Wire format versions.
+    public static final int FORMAT_V1 = 1;
+    public static final int FORMAT_V2 = 2;
+
+    // Format v2 is marked with the high bit of the op type byte, all the op types are ASCII.
+    public static final byte FORMAT_V2_MARKER = (byte)0x80;
+
+    // Format v2 writes the client id as fixed 8 bytes: the generated ids are large, a varlong would take 9-10 bytes.
+    public static final int CLIENT_ID_SIZE_V2 = 8;
+
+    // Format v2 flags for the map update message.
+    public static final byte FLAG_EXP_VALUE = 1;
+    public static final byte FLAG_UPD_VALUE = 1 << 1;
+    public static final byte FLAG_FUNCTION = 1 << 2;
+    public static final byte FLAG_COMPRESSED = 1 << 3;
+
     protected final Serializer<V> valSer;
     protected final ComputeSerializer funSer;
 
+    protected final int format;
+    protected final ValueCompressor compressor;
+    protected final int patchMinSize;
+
     public OpMessageSerializer(Serializer<V> valSer, ComputeSerializer funSer) {
+        this(valSer, funSer, FORMAT_V1);
+    }
+
+    public OpMessageSerializer(Serializer<V> valSer, ComputeSerializer funSer, int format) {
+        this(valSer, funSer, format, null, 0);
+    }
+
+    /**
+     * @param valSer Value serializer.
+     * @param funSer Function serializer.
+     * @param format Wire format version.
+     * @param compressor Values compressor for format v2 or {@code null}.
+     * @param patchMinSize Min serialized value size to send {@link OpMessage#OP_PATCH} as a binary patch
+     *                     in format v2, smaller values are sent as {@link OpMessage#OP_PUT}.
+     *                     Zero disables patches at all.
+     */
+    public OpMessageSerializer(
+        Serializer<V> valSer,
+        ComputeSerializer funSer,
+        int format,
+        ValueCompressor compressor,
+        int patchMinSize
+    ) {
+        if (format != FORMAT_V1 && format != FORMAT_V2)
+            throw new IllegalArgumentException("Unsupported format: " + format);
+
+        if (compressor != null && format != FORMAT_V2)
+            throw new IllegalArgumentException("Compression requires format v2.");
+
+        if (patchMinSize < 0 || (patchMinSize > 0 && format != FORMAT_V2))
+            throw new IllegalArgumentException("Patches require format v2, patchMinSize: " + patchMinSize);
+
         this.valSer = Utils.requireNonNull(valSer, "valSer");
         this.funSer = funSer;
+        this.format = format;
+        this.compressor = compressor;
+        this.patchMinSize = patchMinSize;
     }
 
     @Override
@@ -37,6 +95,18 @@ public class OpMessageSerializer<V> implements Serializer<OpMessage> {
 
     @Override
     public byte[] serialize(String topic, OpMessage opMsg) {
+        if (format == FORMAT_V2) {
+            switch (opMsg.getOpType()) {
+                case OP_FLUSH_REQUEST:
+                    return serializeFlushRequestV2((FlushRequest)opMsg);
+
+                case OP_FLUSH_NOTIFICATION:
+                    return serializeFlushNotificationV2((FlushNotification)opMsg);
+            }
+
+            return serializeMapUpdateMessageV2((MapUpdate)opMsg, topic);
+        }
+
         switch (opMsg.getOpType()) {
             case OP_FLUSH_REQUEST:
                 return serializeFlushRequest((FlushRequest)opMsg);
@@ -50,7 +120,14 @@ public class OpMessageSerializer<V> implements Serializer<OpMessage> {
 
     @SuppressWarnings("unchecked")
     protected byte[] serializeMapUpdateMessage(MapUpdate opMsg, String topic) {
+        byte opType = opMsg.getOpType();
         V expVal = (V)opMsg.getExpectedValue();
+
+        if (opType == OP_PATCH) { // The expected value is just the patch base here.
+            opType = OP_PUT;
+            expVal = null;
+        }
+
         byte[] exp = expVal == null ? null : valSer.serialize(topic, expVal);
 
         V updVal = (V)opMsg.getUpdatedValue();
@@ -81,7 +158,7 @@ public class OpMessageSerializer<V> implements Serializer<OpMessage> {
         byte[] result = new byte[resultLen];
         ByteBuffer buf = ByteBuffer.wrap(result);
 
-        buf.put(opMsg.getOpType());
+        buf.put(opType);
         ByteUtils.writeVarlong(opMsg.getClientId(), buf);
         ByteUtils.writeVarlong(opMsg.getOpId(), buf);
         writeByteArray(buf, exp);
@@ -93,6 +170,124 @@ public class OpMessageSerializer<V> implements Serializer<OpMessage> {
         return result;
     }
 
+    @SuppressWarnings("unchecked")
+    protected byte[] serializeMapUpdateMessageV2(MapUpdate opMsg, String topic) {
+        V expVal = (V)opMsg.getExpectedValue();
+        byte[] exp = expVal == null ? null : valSer.serialize(topic, expVal);
+
+        V updVal = (V)opMsg.getUpdatedValue();
+        byte[] upd = updVal == null ? null : valSer.serialize(topic, updVal);
+
+        BiFunction<?,?,?> funVal = opMsg.getFunction();
+        byte[] fun = funVal == null ? null : funSer.serialize(topic, funVal);
+
+        byte opType = opMsg.getOpType();
+
+        if (opType == OP_PATCH) {
+            opType = OP_PUT;
+
+            if (patchMinSize > 0 && upd.length >= patchMinSize && exp != null) {
+                byte[] patch = ValuePatch.create(exp, upd).toBytes();
+
+                // The patch must be worth the CPU spent on applying it on every replica.
+                if (patch.length <= upd.length >>> 1) {
+                    opType = OP_PATCH;
+                    upd = patch;
+                }
+            }
+
+            exp = null;
+        }
+
+        return serializeMapUpdateMessageV2(opType, opMsg.getClientId(), opMsg.getOpId(), exp, upd, fun);
+    }
+
+    protected byte[] serializeMapUpdateMessageV2(byte opType, long clientId, long opId, byte[] exp, byte[] upd, byte[] fun) {
+        byte flags = 0;
+        int resultLen = 1 + 1 + // op type and flags
+            CLIENT_ID_SIZE_V2 +
+            Utils.sizeOfUnsignedVarlong(opId);
+
+        byte[] expCompressed = null;
+        byte[] updCompressed = null;
+
+        if (compressor != null) {
+            expCompressed = compressor.compress(exp);
+            updCompressed = compressor.compress(upd);
+
+            if (expCompressed != null || updCompressed != null) {
+                flags |= FLAG_COMPRESSED;
+                resultLen += Utils.sizeOfUnsignedVarlong(compressor.getDictionaryId());
+            }
+        }
+
+        if (exp != null) {
+            flags |= FLAG_EXP_VALUE;
+            resultLen += compressedArraySize(flags, exp, expCompressed);
+        }
+        if (upd != null) {
+            flags |= FLAG_UPD_VALUE;
+            resultLen += compressedArraySize(flags, upd, updCompressed);
+        }
+        if (fun != null) {
+            flags |= FLAG_FUNCTION;
+            resultLen += ByteUtils.sizeOfVarint(fun.length) + fun.length;
+        }
+
+        byte[] result = new byte[resultLen];
+        ByteBuffer buf = ByteBuffer.wrap(result);
+
+        buf.put((byte)(opType | FORMAT_V2_MARKER));
+        buf.put(flags);
+        buf.putLong(clientId);
+        Utils.writeUnsignedVarlong(opId, buf);
+
+        if ((flags & FLAG_COMPRESSED) != 0)
+            Utils.writeUnsignedVarlong(compressor.getDictionaryId(), buf);
+
+        writeCompressedByteArray(buf, flags, exp, expCompressed);
+        writeCompressedByteArray(buf, flags, upd, updCompressed);
+        writeNonNullByteArray(buf, fun);
+
+        assert buf.remaining() == 0;
+
+        return result;
+    }
+
+    protected byte[] serializeFlushRequestV2(FlushRequest flushMsg) {
+        int flushOffsetOpsSize = ByteUtils.sizeOfVarlong(flushMsg.getFlushOffsetOps());
+        int cleanOffsetOpsSize = ByteUtils.sizeOfVarlong(flushMsg.getCleanOffsetOps());
+
+        byte[] result = new byte[1 + CLIENT_ID_SIZE_V2 + flushOffsetOpsSize + cleanOffsetOpsSize];
+        ByteBuffer buf = ByteBuffer.wrap(result);
+
+        buf.put((byte)(flushMsg.getOpType() | FORMAT_V2_MARKER));
+        buf.putLong(flushMsg.getClientId());
+        ByteUtils.writeVarlong(flushMsg.getFlushOffsetOps(), buf);
+        ByteUtils.writeVarlong(flushMsg.getCleanOffsetOps(), buf);
+
+        assert buf.remaining() == 0;
+
+        return result;
+    }
+
+    protected byte[] serializeFlushNotificationV2(FlushNotification flushMsg) {
+        int flushOffsetDataSize = ByteUtils.sizeOfVarlong(flushMsg.getFlushOffsetData());
+        int flushOffsetOpsSize = ByteUtils.sizeOfVarlong(flushMsg.getFlushOffsetOps());
+
+        byte[] result = new byte[1 + CLIENT_ID_SIZE_V2 + flushOffsetDataSize + flushOffsetOpsSize];
+        ByteBuffer buf = ByteBuffer.wrap(result);
+
+        buf.put((byte)(flushMsg.getOpType() | FORMAT_V2_MARKER));
+        buf.putLong(flushMsg.getClientId());
+        ByteUtils.writeVarlong(flushMsg.getFlushOffsetData(), buf);
+        ByteUtils.writeVarlong(flushMsg.getFlushOffsetOps(), buf);
+
+        assert buf.remaining() == 0;
+
+        return result;
+    }
+
     protected byte[] serializeFlushRequest(FlushRequest flushMsg) {
         int opTypeSize = 1;
         int clientIdSize = ByteUtils.sizeOfVarlong(flushMsg.getClientId());
@@ -146,6 +341,43 @@ public class OpMessageSerializer<V> implements Serializer<OpMessage> {
         }
     }
 
+    protected void writeNonNullByteArray(ByteBuffer buf, byte[] arr) {
+        if (arr != null) {
+            ByteUtils.writeVarint(arr.length, buf);
+            buf.put(arr);
+        }
+    }
+
+    protected int compressedArraySize(byte flags, byte[] raw, byte[] compressed) {
+        int len;
+
+        if ((flags & FLAG_COMPRESSED) == 0)
+            len = raw.length;
+        else if (compressed != null)
+            len = compressed.length;
+        else
+            len = 1 + raw.length; // Zero raw length marker.
+
+        return ByteUtils.sizeOfVarint(len) + len;
+    }
+
+    protected void writeCompressedByteArray(ByteBuffer buf, byte flags, byte[] raw, byte[] compressed) {
+        if (raw == null)
+            return;
+
+        if ((flags & FLAG_COMPRESSED) == 0)
+            writeNonNullByteArray(buf, raw);
+        else if (compressed != null)
+            writeNonNullByteArray(buf, compressed);
+        else {
+            // The compressed block always starts with a positive raw length,
+            // zero means that the value is stored as is.
+            ByteUtils.writeVarint(1 + raw.length, buf);
+            buf.put((byte)0);
+            buf.put(raw);
+        }
+    }
+
     @Override
     public void close() {
         Utils.close(valSer);
@@ -0,0 +1,66 @@
+package com.vladykin.replicamap.kafka.impl.msg;
+
+import com.vladykin.replicamap.kafka.impl.util.Utils;
+import java.util.Arrays;
+
+/**
+ * Already serialized value kept in the flush queue instead of the value object,
+ * it is written to the data topic as is by {@link SerializedValueSerializer}.
+ *
+ * @author Sergi Vladykin http://vladykin.com
+ */
+public final class SerializedValue {
+    private final byte[] bytes;
+
+    public SerializedValue(byte[] bytes) {
+        this.bytes = Utils.requireNonNull(bytes, "bytes");
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return 64-bit hash of the bytes (FNV-1a with the final mix of MurmurHash3),
+     *         collisions are negligible to compare the values by it.
+     */
+    public long fingerprint() {
+        long h = 0xcbf29ce484222325L;
+
+        for (byte b : bytes) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+
+        h ^= bytes.length;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof SerializedValue)) return false;
+
+        SerializedValue that = (SerializedValue)o;
+
+        return Arrays.equals(bytes, that.bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(bytes);
+    }
+
+    @Override
+    public String toString() {
+        return "SerializedValue{" +
+            "length=" + bytes.length +
+            '}';
+    }
+}
@@ -0,0 +1,51 @@
+package com.vladykin.replicamap.kafka.impl.msg;
+
+import com.vladykin.replicamap.kafka.impl.util.Utils;
+import java.util.Map;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.ExtendedSerializer;
+import org.apache.kafka.common.serialization.Serializer;
+
+/**
+ * Serializer wrapper that writes {@link SerializedValue} as is
+ * and delegates all the other values to the underlying serializer.
+ *
+ * @author Sergi Vladykin http://vladykin.com
+ */
+public class SerializedValueSerializer<V> implements ExtendedSerializer<Object> {
+    protected final Serializer<V> ser;
+
+    public SerializedValueSerializer(Serializer<V> ser) {
+        this.ser = Utils.requireNonNull(ser, "ser");
+    }
+
+    @Override
+    public void configure(Map<String,?> configs, boolean isKey) {
+        ser.configure(configs, isKey);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public byte[] serialize(String topic, Headers headers, Object data) {
+        if (data instanceof SerializedValue)
+            return ((SerializedValue)data).getBytes();
+
+        return ser instanceof ExtendedSerializer ?
+            ((ExtendedSerializer<V>)ser).serialize(topic, headers, (V)data) :
+            ser.serialize(topic, (V)data);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public byte[] serialize(String topic, Object data) {
+        if (data instanceof SerializedValue)
+            return ((SerializedValue)data).getBytes();
+
+        return ser.serialize(topic, (V)data);
+    }
+
+    @Override
+    public void close() {
+        Utils.close(ser);
+    }
+}
@@ -0,0 +1,94 @@
+package com.vladykin.replicamap.kafka.impl.msg;
+
+import com.vladykin.replicamap.kafka.impl.util.BinaryDiff;
+import com.vladykin.replicamap.kafka.impl.util.Utils;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Binary patch of the serialized value received in {@link OpMessage#OP_PATCH} message.
+ * The patch can only be applied to the base value with the matching digest.
+ *
+ * @author Sergi Vladykin http://vladykin.com
+ */
+public class ValuePatch {
+    protected final long baseDigest;
+    protected final byte[] diff;
+
+    public ValuePatch(long baseDigest, byte[] diff) {
+        this.baseDigest = baseDigest;
+        this.diff = Utils.requireNonNull(diff, "diff");
+    }
+
+    /**
+     * @param base Serialized base value.
+     * @param target Serialized target value.
+     * @return Patch.
+     */
+    public static ValuePatch create(byte[] base, byte[] target) {
+        return new ValuePatch(BinaryDiff.digest(base), BinaryDiff.diff(base, target));
+    }
+
+    /**
+     * @param bytes Serialized patch.
+     * @return Patch.
+     */
+    public static ValuePatch fromBytes(byte[] bytes) {
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        long baseDigest = buf.getLong();
+
+        return new ValuePatch(baseDigest, Arrays.copyOfRange(bytes, buf.position(), bytes.length));
+    }
+
+    /**
+     * @return Serialized patch.
+     */
+    public byte[] toBytes() {
+        return ByteBuffer.allocate(8 + diff.length)
+            .putLong(baseDigest)
+            .put(diff)
+            .array();
+    }
+
+    /**
+     * @param base Serialized base value.
+     * @return Serialized patched value or {@code null} if the base digest does not match.
+     */
+    public byte[] apply(byte[] base) {
+        if (base == null || BinaryDiff.digest(base) != baseDigest)
+            return null;
+
+        return BinaryDiff.apply(base, diff);
+    }
+
+    public long getBaseDigest() {
+        return baseDigest;
+    }
+
+    public int size() {
+        return 8 + diff.length;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        ValuePatch that = (ValuePatch)o;
+
+        return baseDigest == that.baseDigest && Arrays.equals(diff, that.diff);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Long.hashCode(baseDigest) + Arrays.hashCode(diff);
+    }
+
+    @Override
+    public String toString() {
+        return "ValuePatch{" +
+            "baseDigest=" + Long.toHexString(baseDigest) +
+            ", diffLength=" + diff.length +
+            '}';
+    }
+}
@@ -33,6 +33,9 @@ public class AllowedOnlyPartitionAssignor extends AbstractPartitionAssignor impl
     public static final String ALLOWED_PARTS =
         AllowedOnlyPartitionAssignor.class.getSimpleName() + ".allowedParts";
 
+    /** Owned partition is kept by the member until its load exceeds the fair load by this fraction. */
+    protected static final double LOAD_HYSTERESIS = 0.25;
+
     protected short[] allowedParts;
     protected byte[] allowedPartsBytes;
 
@@ -182,16 +185,51 @@ public class AllowedOnlyPartitionAssignor extends AbstractPartitionAssignor impl
         int parts = partitionsPerTopic.values().iterator().next();
         List<Member> members = new ArrayList<>(subscriptionsPerMember.size());
 
-        for (Map.Entry<String,Subscription> entry : subscriptionsPerMember.entrySet()) {
-            short[] allowed = Utils.deserializeShortArray(entry.getValue().userData());
+        for (Map.Entry<String,Subscription> entry : subscriptionsPerMember.entrySet())
+            members.add(newMember(entry.getKey(), parts, entry.getValue().userData()));
 
-            members.add(new Member(entry.getKey(), parts, allowed));
-        }
+        assign(parts, members);
+
+        Set<String> topics = partitionsPerTopic.keySet();
+        Map<String,List<TopicPartition>> result = new HashMap<>(members.size());
+
+        for (Member member : members)
+            result.put(member.id, member.fullAssignments(topics));
 
-        // To have stable results, maybe in the future it will be useful for incremental rebalancing.
+        return result;
+    }
+
+    /**
+     * @param id Member id.
+     * @param parts Total number of partitions.
+     * @param userData Subscription user data.
+     * @return Member.
+     */
+    protected Member newMember(String id, int parts, ByteBuffer userData) {
+        short[] allowed = Utils.deserializeShortArray(userData == null ? null : userData.duplicate());
+
+        return new Member(id, parts, allowed, null, null, 1);
+    }
+
+    /**
+     * @param parts Total number of partitions.
+     * @param members Members.
+     */
+    protected void assign(int parts, List<Member> members) {
+        // To have stable results, it is also important for the sticky assignments.
         members.sort(Comparator.comparing(Member::id));
 
+        if (members.stream().anyMatch(m -> m.ownedLoads != null)) {
+            assignByLoad(parts, members);
+            return;
+        }
+
+        boolean[] assigned = assignOwned(parts, members);
+
         for (short part = 0; part < parts; part++) {
+            if (assigned[part])
+                continue;
+
             Member best = null;
             int bestScore = 0;
 
@@ -218,25 +256,157 @@ public class AllowedOnlyPartitionAssignor extends AbstractPartitionAssignor impl
             else
                 log.warn("Partition was not assigned: {}", part);
         }
+    }
 
-        Set<String> topics = partitionsPerTopic.keySet();
-        Map<String,List<TopicPartition>> result = new HashMap<>(members.size());
+    /**
+     * Keeps the allowed partitions already owned by the members, but not more than a fair share
+     * for each member, thus only the partitions that need to move for balance are reassigned.
+     *
+     * @param parts Total number of partitions.
+     * @param members Sorted members.
+     * @return Flags of the assigned partitions.
+     */
+    protected boolean[] assignOwned(int parts, List<Member> members) {
+        boolean[] assigned = new boolean[parts];
+
+        if (members.isEmpty())
+            return assigned;
+
+        int fairShare = (parts + members.size() - 1) / members.size();
+
+        for (Member member : members) {
+            if (member.ownedParts == null)
+                continue;
+
+            for (short part : member.ownedParts) {
+                if (member.assignments() == fairShare)
+                    break;
+
+                if (!assigned[part] && member.assignable(part, parts) != 0) {
+                    member.assign(part);
+                    assigned[part] = true;
+                }
+            }
+        }
 
-        for (Member member : members)
-            result.put(member.id, member.fullAssignments(topics));
+        return assigned;
+    }
 
-        return result;
+    /**
+     * Assigns the partitions balancing the estimated load proportionally to the member capacities.
+     * The load of the partition is the max of the loads reported by its owners, the partitions
+     * without reported load get the average one. The owned partitions are kept while the member
+     * load is within the hysteresis above the fair one, the rest are assigned from the heaviest one
+     * to the least loaded relatively to its capacity member.
+     *
+     * @param parts Total number of partitions.
+     * @param members Sorted members.
+     */
+    protected void assignByLoad(int parts, List<Member> members) {
+        double[] loads = partitionLoads(parts, members);
+        double totalLoad = Arrays.stream(loads).sum();
+        long totalCapacity = members.stream().mapToLong(m -> m.capacity).sum();
+
+        boolean[] assigned = new boolean[parts];
+
+        for (Member member : members) {
+            if (member.ownedParts == null)
+                continue;
+
+            double maxLoad = totalLoad * member.capacity / totalCapacity * (1 + LOAD_HYSTERESIS);
+
+            // Keep the heaviest owned partitions first to move less load.
+            List<Short> owned = new ArrayList<>();
+            for (short part : member.ownedParts)
+                owned.add(part);
+            owned.sort(Comparator.comparingDouble((Short part) -> loads[part]).reversed());
+
+            for (short part : owned) {
+                if (!assigned[part] && member.assignable(part, parts) != 0 && member.load + loads[part] <= maxLoad) {
+                    member.assign(part, loads[part]);
+                    assigned[part] = true;
+                }
+            }
+        }
+
+        List<Short> rest = new ArrayList<>();
+        for (short part = 0; part < parts; part++) {
+            if (!assigned[part])
+                rest.add(part);
+        }
+        rest.sort(Comparator.comparingDouble((Short part) -> loads[part]).reversed());
+
+        for (short part : rest) {
+            Member best = null;
+            double bestScore = 0;
+
+            for (Member member : members) {
+                if (member.assignable(part, parts) == 0)
+                    continue;
+
+                double score = (member.load + loads[part]) / member.capacity;
+
+                if (best == null || score < bestScore) {
+                    best = member;
+                    bestScore = score;
+                }
+            }
+
+            if (best != null)
+                best.assign(part, loads[part]);
+            else
+                log.warn("Partition was not assigned: {}", part);
+        }
+    }
+
+    /**
+     * @param parts Total number of partitions.
+     * @param members Members.
+     * @return Estimated loads of the partitions, always positive.
+     */
+    protected double[] partitionLoads(int parts, List<Member> members) {
+        double[] loads = new double[parts];
+        Arrays.fill(loads, -1);
+
+        for (Member member : members) {
+            if (member.ownedLoads == null)
+                continue;
+
+            for (int i = 0; i < member.ownedParts.length; i++) {
+                short part = member.ownedParts[i];
+                loads[part] = Math.max(loads[part], 1 + member.ownedLoads[i]); // Every partition has some cost.
+            }
+        }
+
+        double avgLoad = Arrays.stream(loads).filter(load -> load > 0).average().orElse(1);
+
+        for (int part = 0; part < parts; part++) {
+            if (loads[part] < 0)
+                loads[part] = avgLoad;
+        }
+
+        return loads;
     }
 
     static class Member {
         final String id;
         final short[] allowedParts; // sorted
+        final short[] ownedParts; // sorted
+        final long[] ownedLoads; // the loads of the owned partitions
+        final int capacity;
 
         final List<Short> assignments = new ArrayList<>();
+        double load;
+
+        Member(String id, int totalParts, short[] allowedParts, short[] ownedParts, long[] ownedLoads, int capacity) {
+            if (ownedLoads != null && (ownedParts == null || ownedLoads.length != ownedParts.length))
+                throw new IllegalArgumentException("Owned loads do not match owned partitions.");
 
-        Member(String id, int totalParts, short[] allowedParts) {
             this.id = id;
             this.allowedParts = dropExtraParts(allowedParts, totalParts); // fix misconfiguration
+            this.ownedParts = dropExtraParts(ownedParts, totalParts); // the number of partitions may change
+            this.ownedLoads = ownedLoads == null ? null : Arrays.copyOf(ownedLoads, this.ownedParts.length);
+            this.capacity = Math.max(1, capacity);
         }
 
         short[] dropExtraParts(short[] allowedParts, int totalParts) {
@@ -288,5 +458,10 @@ public class AllowedOnlyPartitionAssignor extends AbstractPartitionAssignor impl
         void assign(short part) {
             assignments.add(part);
         }
+
+        void assign(short part, double partLoad) {
+            assign(part);
+            load += partLoad;
+        }
     }
 }
@@ -4,12 +4,14 @@ import com.vladykin.replicamap.ReplicaMapException;
 import com.vladykin.replicamap.kafka.impl.util.Utils;
 import java.util.Arrays;
 import java.util.Map;
+import java.util.function.Supplier;
 import org.apache.kafka.clients.producer.Partitioner;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.common.Cluster;
 
 /**
  * {@link Partitioner} that checks for having only allowed partitions.
+ * The allowed partitions can be either fixed or supplied by a function if they may change at runtime.
  *
  * @author Sergi Vladykin http://vladykin.com
  */
@@ -19,6 +21,7 @@ public class AllowedOnlyPartitioner implements Partitioner {
 
     protected Partitioner delegate;
     protected short[] allowedParts;
+    protected Supplier<short[]> allowedPartsSupplier;
 
     public static void setupProducerConfig(
         Map<String,Object> configs,
@@ -34,10 +37,35 @@ public class AllowedOnlyPartitioner implements Partitioner {
         configs.putIfAbsent(AllowedOnlyPartitioner.DELEGATE, partitionerClass);
     }
 
+    /**
+     * @param configs Producer config.
+     * @param allowedPartitions Supplier of the current allowed partitions, it may return {@code null}
+     *                          if all the partitions are allowed.
+     * @param partitionerClass Delegate partitioner class.
+     */
+    public static void setupProducerConfig(
+        Map<String,Object> configs,
+        Supplier<short[]> allowedPartitions,
+        Class<? extends Partitioner> partitionerClass
+    ) {
+        Utils.requireNonNull(allowedPartitions, "allowedPartitions");
+        Utils.requireNonNull(partitionerClass, "partitionerClass");
+
+        configs.putIfAbsent(ProducerConfig.PARTITIONER_CLASS_CONFIG, AllowedOnlyPartitioner.class);
+
+        configs.putIfAbsent(AllowedOnlyPartitioner.ALLOWED_PARTS, allowedPartitions);
+        configs.putIfAbsent(AllowedOnlyPartitioner.DELEGATE, partitionerClass);
+    }
+
     @SuppressWarnings("unchecked")
     @Override
     public void configure(Map<String,?> configs) {
-        allowedParts = Utils.requireNonNull((short[])configs.get(ALLOWED_PARTS), "allowedParts");
+        Object parts = Utils.requireNonNull(configs.get(ALLOWED_PARTS), "allowedParts");
+
+        if (parts instanceof Supplier)
+            allowedPartsSupplier = (Supplier<short[]>)parts;
+        else
+            allowedParts = (short[])parts;
 
         Class<? extends Partitioner> delegateClass = (Class<? extends Partitioner>)configs.get(DELEGATE);
         delegate = Utils.getConfiguredInstance(delegateClass, configs);
@@ -56,10 +84,12 @@ public class AllowedOnlyPartitioner implements Partitioner {
     }
 
     protected int checkAllowed(int part, String topic) {
-        if (part >= 0 && part <= Short.MAX_VALUE && Utils.contains(allowedParts, (short)part))
+        short[] allowed = allowedPartsSupplier == null ? allowedParts : allowedPartsSupplier.get();
+
+        if (allowed == null || (part >= 0 && part <= Short.MAX_VALUE && Utils.contains(allowed, (short)part)))
             return part;
 
         throw new ReplicaMapException("Partition " + part + " is not allowed for the topic [" + topic +
-            "], allowed partitions: " + Arrays.toString(allowedParts));
+            "], allowed partitions: " + Arrays.toString(allowed));
     }
 }
@@ -1,23 +1,34 @@
 package com.vladykin.replicamap.kafka.impl.part;
 
 import com.vladykin.replicamap.kafka.impl.util.Utils;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.ToLongFunction;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.clients.consumer.RangeAssignor;
 import org.apache.kafka.common.TopicPartition;
 
 /**
  * Partition assignor that assigns only allowed partitions.
+ * If the transactional data producer is shared by a group of partitions,
+ * then the whole group is always assigned to the same consumer.
  *
  * @author Sergi Vladykin http://vladykin.com
  */
 public class FlushPartitionAssignor extends AllowedOnlyPartitionAssignor {
 
     protected static final String FLUSH_TOPIC = FlushPartitionAssignor.class.getSimpleName() + ".flushTopic";
+    protected static final String TX_PARTITIONS = FlushPartitionAssignor.class.getSimpleName() + ".txPartitions";
+    protected static final String OWNED_PARTS = FlushPartitionAssignor.class.getSimpleName() + ".ownedParts";
+    protected static final String FLUSH_LOAD = FlushPartitionAssignor.class.getSimpleName() + ".flushLoad";
+    protected static final String CAPACITY = FlushPartitionAssignor.class.getSimpleName() + ".capacity";
 
     protected String flushTopic;
+    protected int txPartitions = 1;
 
     @Override
     public String name() {
@@ -27,16 +38,49 @@ public class FlushPartitionAssignor extends AllowedOnlyPartitionAssignor {
     public static void setupConsumerConfig(
         Map<String,Object> configs,
         short[] allowedPartitions,
-        String flushTopic
+        String flushTopic,
+        int txPartitions
+    ) {
+        setupConsumerConfig(configs, allowedPartitions, flushTopic, txPartitions, null, null, 1);
+    }
+
+    /**
+     * @param configs Consumer configs.
+     * @param allowedPartitions Allowed partitions or {@code null} if all are allowed.
+     * @param flushTopic Flush topic.
+     * @param txPartitions Number of partitions sharing a transactional data producer.
+     * @param ownedPartitions Live collection of the partitions owned by the consumer for sticky assignment
+     *                        or {@code null}.
+     * @param flushLoad Estimated load of the owned partition for load aware assignment or {@code null}.
+     * @param capacity Relative capacity of the consumer for load aware assignment.
+     */
+    public static void setupConsumerConfig(
+        Map<String,Object> configs,
+        short[] allowedPartitions,
+        String flushTopic,
+        int txPartitions,
+        Collection<TopicPartition> ownedPartitions,
+        ToLongFunction<TopicPartition> flushLoad,
+        int capacity
     ) {
         Utils.requireNonNull(flushTopic, "flushTopic");
         configs.put(FLUSH_TOPIC, flushTopic);
+        configs.put(TX_PARTITIONS, txPartitions);
 
         if (allowedPartitions != null)
             configs.putIfAbsent(ALLOWED_PARTS, allowedPartitions);
 
+        if (ownedPartitions != null)
+            configs.put(OWNED_PARTS, ownedPartitions);
+
+        if (flushLoad != null)
+            configs.put(FLUSH_LOAD, flushLoad);
+
+        configs.put(CAPACITY, capacity);
+
         configs.putIfAbsent(ConsumerConfig.PARTITION_ASSIGNMENT_STRATEGY_CONFIG, Arrays.asList(
-            FlushPartitionAssignor.class, // This one must go first to have higher priority.
+            StickyFlushPartitionAssignor.class, // This one must go first to have higher priority.
+            FlushPartitionAssignor.class, // This is for the mixed versions with the non-sticky assignor.
             RangeAssignor.class // This is for backward compatibility with previous versions.
         ));
     }
@@ -45,6 +89,12 @@ public class FlushPartitionAssignor extends AllowedOnlyPartitionAssignor {
     public void configure(Map<String,?> configs) {
         flushTopic = (String)Utils.requireNonNull(configs.get(FLUSH_TOPIC), FLUSH_TOPIC);
 
+        Object txParts = configs.get(TX_PARTITIONS);
+        if (txParts != null) {
+            txPartitions = ((Number)txParts).intValue();
+            Utils.checkPositive(txPartitions, TX_PARTITIONS);
+        }
+
         super.configure(configs);
     }
 
@@ -56,6 +106,104 @@ public class FlushPartitionAssignor extends AllowedOnlyPartitionAssignor {
         if (partitionsPerTopic.size() != 1 && !partitionsPerTopic.containsKey(flushTopic))
             throw new IllegalStateException("Flush topic expected: " + flushTopic + ", actual: " + partitionsPerTopic.keySet());
 
-        return super.assign(partitionsPerTopic, subscriptionsPerMember);
+        if (txPartitions == 1 || partitionsPerTopic.size() != 1)
+            return super.assign(partitionsPerTopic, subscriptionsPerMember);
+
+        // Assign the groups of partitions as if they were partitions and then expand them back.
+        int parts = partitionsPerTopic.get(flushTopic);
+        int groups = (parts + txPartitions - 1) / txPartitions;
+
+        List<Member> groupMembers = new ArrayList<>(subscriptionsPerMember.size());
+        for (Map.Entry<String,Subscription> entry : subscriptionsPerMember.entrySet()) {
+            Member member = newMember(entry.getKey(), parts, entry.getValue().userData());
+
+            groupMembers.add(new Member(member.id, groups,
+                member.allowedParts == null ? null : allowedGroups(member.allowedParts, parts),
+                member.ownedParts == null ? null : ownedGroups(member.ownedParts),
+                member.ownedLoads == null ? null : ownedGroupLoads(member.ownedParts, member.ownedLoads),
+                member.capacity));
+        }
+
+        assign(groups, groupMembers);
+
+        Map<String,List<TopicPartition>> result = new HashMap<>(groupMembers.size());
+        for (Member member : groupMembers) {
+            List<TopicPartition> assignments = new ArrayList<>();
+
+            for (short group : member.assignments) {
+                int first = group * txPartitions;
+                int last = Math.min(parts, first + txPartitions);
+
+                for (int part = first; part < last; part++)
+                    assignments.add(new TopicPartition(flushTopic, part));
+            }
+
+            result.put(member.id, assignments);
+        }
+
+        return result;
+    }
+
+    /**
+     * @param ownedParts Sorted owned partitions.
+     * @return Sorted groups having owned partitions.
+     */
+    protected short[] ownedGroups(short[] ownedParts) {
+        short[] groups = new short[ownedParts.length];
+
+        for (int i = 0; i < groups.length; i++)
+            groups[i] = (short)(ownedParts[i] / txPartitions);
+
+        return copySortedUnique(groups);
+    }
+
+    /**
+     * @param ownedParts Sorted owned partitions.
+     * @param ownedLoads Loads of the owned partitions.
+     * @return Loads of the groups returned by {@link #ownedGroups}.
+     */
+    protected long[] ownedGroupLoads(short[] ownedParts, long[] ownedLoads) {
+        long[] loads = new long[ownedGroups(ownedParts).length];
+        int i = -1;
+        int lastGroup = -1;
+
+        for (int p = 0; p < ownedParts.length; p++) {
+            int group = ownedParts[p] / txPartitions;
+
+            if (group != lastGroup) {
+                lastGroup = group;
+                i++;
+            }
+
+            loads[i] += ownedLoads[p];
+        }
+
+        return loads;
+    }
+
+    /**
+     * @param allowedParts Sorted allowed partitions.
+     * @param parts Total number of partitions.
+     * @return Sorted groups where all the partitions are allowed.
+     */
+    protected short[] allowedGroups(short[] allowedParts, int parts) {
+        List<Short> allowedGroups = new ArrayList<>();
+
+        for (int first = 0; first < parts; first += txPartitions) {
+            int last = Math.min(parts, first + txPartitions);
+            boolean allowed = true;
+
+            for (int part = first; part < last && allowed; part++)
+                allowed = Utils.contains(allowedParts, (short)part);
+
+            if (allowed)
+                allowedGroups.add((short)(first / txPartitions));
+        }
+
+        short[] result = new short[allowedGroups.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = allowedGroups.get(i);
+
+        return result;
     }
 }
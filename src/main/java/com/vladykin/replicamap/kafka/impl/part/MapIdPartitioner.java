@@ -0,0 +1,186 @@
+package com.vladykin.replicamap.kafka.impl.part;
+
+import com.vladykin.replicamap.ReplicaMapException;
+import com.vladykin.replicamap.holder.MapsHolder;
+import com.vladykin.replicamap.kafka.impl.util.Utils;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.kafka.clients.producer.Partitioner;
+import org.apache.kafka.common.Cluster;
+
+import static org.apache.kafka.common.utils.Utils.murmur2;
+import static org.apache.kafka.common.utils.Utils.toPositive;
+
+/**
+ * {@link Partitioner} that co-locates the keys of each map in a subset of partitions, the map
+ * is resolved by {@link MapsHolder#getMapId(Object)}. The partitions of the map are either configured
+ * explicitly as a range, or provided by {@link MapsHolder#getMapPartitions(Object, int)}, or
+ * are a number of consecutive partitions starting from the hash of the map id. Within the subset
+ * the keys are partitioned by the key bytes, the keys of the maps without partitions are spread
+ * across all the partitions the same way as {@link KeyBytesPartitioner} does.
+ * <p>
+ * Since the key placement depends on it, the configuration must be the same on all the clients
+ * and must not change for the existing data.
+ *
+ * @author Sergi Vladykin http://vladykin.com
+ */
+public class MapIdPartitioner implements Partitioner {
+    public static final String MAPS_HOLDER = MapIdPartitioner.class.getName() + ".mapsHolder";
+    public static final String MAPS_PARTITIONS = MapIdPartitioner.class.getName() + ".mapsPartitions";
+    public static final String HASHED_PARTITIONS = MapIdPartitioner.class.getName() + ".hashedPartitions";
+
+    /** Marker for the maps spread across all the partitions. */
+    protected static final int[] ALL_PARTITIONS = new int[0];
+
+    protected MapsHolder maps;
+    protected Map<String,int[]> mapsPartitions;
+    protected int hashedPartitions;
+
+    protected final ConcurrentMap<Object,ResolvedPartitions> resolved = new ConcurrentHashMap<>();
+
+    /**
+     * @param configs Producer config.
+     * @param maps Maps holder.
+     * @param mapsPartitions Partition ranges for the maps in the format {@code mapId:first-last}.
+     * @param hashedPartitions Number of partitions for the maps without explicit partitions or 0.
+     */
+    public static void setupProducerConfig(
+        Map<String,Object> configs,
+        MapsHolder maps,
+        List<String> mapsPartitions,
+        int hashedPartitions
+    ) {
+        configs.putIfAbsent(MAPS_HOLDER, maps);
+        configs.putIfAbsent(MAPS_PARTITIONS, mapsPartitions);
+        configs.putIfAbsent(HASHED_PARTITIONS, hashedPartitions);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void configure(Map<String,?> configs) {
+        maps = (MapsHolder)Utils.requireNonNull(configs.get(MAPS_HOLDER), "mapsHolder");
+        mapsPartitions = parseMapsPartitions((List<String>)configs.get(MAPS_PARTITIONS));
+
+        Object hashed = configs.get(HASHED_PARTITIONS);
+        hashedPartitions = hashed == null ? 0 : ((Number)hashed).intValue();
+        Utils.check(hashedPartitions >= 0, () -> "Hashed partitions must not be negative: " + hashed);
+    }
+
+    protected static Map<String,int[]> parseMapsPartitions(List<String> list) {
+        if (list == null || list.isEmpty())
+            return Collections.emptyMap();
+
+        Map<String,int[]> result = new HashMap<>();
+
+        for (String entry : list) {
+            int sep = entry.lastIndexOf(':');
+            Utils.check(sep > 0, () -> "Invalid map partitions entry: " + entry);
+
+            String mapId = entry.substring(0, sep).trim();
+            String range = entry.substring(sep + 1).trim();
+            int dash = range.indexOf('-');
+
+            int first, last;
+            try {
+                first = Integer.parseInt((dash == -1 ? range : range.substring(0, dash)).trim());
+                last = dash == -1 ? first : Integer.parseInt(range.substring(dash + 1).trim());
+            }
+            catch (NumberFormatException e) {
+                throw new ReplicaMapException("Invalid map partitions entry: " + entry, e);
+            }
+
+            Utils.check(first >= 0 && last >= first, () -> "Invalid map partitions entry: " + entry);
+
+            int[] parts = new int[last - first + 1];
+            for (int i = 0; i < parts.length; i++)
+                parts[i] = first + i;
+
+            if (result.put(mapId, parts) != null)
+                throw new ReplicaMapException("Duplicate map partitions entry for map: " + mapId);
+        }
+
+        return result;
+    }
+
+    @Override
+    public int partition(String topic, Object key, byte[] keyBytes, Object value, byte[] valueBytes, Cluster cluster) {
+        Utils.requireNonNull(keyBytes, "keyBytes");
+
+        int numParts = cluster.partitionsForTopic(topic).size();
+        int[] parts = getMapPartitions(maps.getMapId(key), numParts);
+        int hash = toPositive(murmur2(keyBytes));
+
+        return parts == null ? hash % numParts : parts[hash % parts.length];
+    }
+
+    /**
+     * @param mapId Map id.
+     * @param numParts Total number of partitions.
+     * @return Partitions of the map or {@code null} if the keys of the map are spread across all the partitions.
+     */
+    public int[] getMapPartitions(Object mapId, int numParts) {
+        ResolvedPartitions res = mapId == null ? null : resolved.get(mapId);
+        int[] parts;
+
+        // The number of partitions may be increased for the topic.
+        if (res != null && res.numParts == numParts)
+            parts = res.parts;
+        else {
+            parts = resolveMapPartitions(mapId, numParts);
+
+            if (mapId != null)
+                resolved.put(mapId, new ResolvedPartitions(numParts, parts));
+        }
+
+        return parts == ALL_PARTITIONS ? null : parts;
+    }
+
+    protected int[] resolveMapPartitions(Object mapId, int numParts) {
+        // The map ids in the config are strings, the hash must be the same on all the clients.
+        String id = String.valueOf(mapId);
+        int[] parts = mapsPartitions.get(id);
+
+        if (parts == null)
+            parts = maps.getMapPartitions(mapId, numParts);
+
+        if (parts == null && hashedPartitions > 0) {
+            parts = new int[Math.min(hashedPartitions, numParts)];
+            int first = toPositive(murmur2(id.getBytes(StandardCharsets.UTF_8))) % numParts;
+
+            for (int i = 0; i < parts.length; i++)
+                parts[i] = (first + i) % numParts;
+        }
+
+        if (parts == null)
+            return ALL_PARTITIONS;
+
+        Utils.check(parts.length > 0, () -> "No partitions for map: " + id);
+        for (int part : parts)
+            Utils.check(part >= 0 && part < numParts, () -> "Invalid partition " + part + " for map: " + id);
+
+        return parts;
+    }
+
+    @Override
+    public void close() {
+        resolved.clear();
+    }
+
+    /**
+     * Partitions of the map resolved for the given number of partitions.
+     */
+    protected static class ResolvedPartitions {
+        protected final int numParts;
+        protected final int[] parts;
+
+        protected ResolvedPartitions(int numParts, int[] parts) {
+            this.numParts = numParts;
+            this.parts = parts;
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.vladykin.replicamap.kafka.impl.part;
+
+import com.vladykin.replicamap.kafka.impl.util.Utils;
+import com.vladykin.replicamap.kafka.impl.worker.Worker;
+import com.vladykin.replicamap.kafka.impl.worker.members.MembersWorker;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.common.Configurable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.ALLOWED_PARTITIONS_MEMBERS;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.ALLOWED_PARTITIONS_MEMBERS_HEARTBEAT_MS;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.ALLOWED_PARTITIONS_MEMBERS_TIMEOUT_MS;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.ALLOWED_PARTITIONS_MEMBERS_TOPIC;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.ALLOWED_PARTITIONS_MEMBER_ID;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.ALLOWED_PARTITIONS_REPLICATION_FACTOR;
+import static java.util.Collections.singletonList;
+
+/**
+ * Resolves the allowed partitions by rendezvous hashing of the partitions to the live members:
+ * each partition is held by the members with the highest hash scores for it, thus when a member
+ * joins or leaves only the partitions it gains or loses move and the rest stay where they are.
+ * <p>
+ * The members are either listed statically in {@code allowed.partitions.members} or discovered
+ * through the heartbeats in the members topic (see {@link MembersWorker}). When the live members change
+ * the new allowed partitions are passed to the listener, the manager applies them at runtime.
+ * <p>
+ * A partition moving to another member is kept until all its new holders are steady (have loaded
+ * their partitions), thus with the replication factor 1 it is not left unserved while the new holder
+ * is loading. The static members are always considered steady.
+ *
+ * @author Sergi Vladykin http://vladykin.com
+ */
+public class RendezvousPartitionsResolver implements Supplier<Set<Integer>>, Configurable, AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(RendezvousPartitionsResolver.class);
+
+    public static final String TOTAL_PARTS = RendezvousPartitionsResolver.class.getName() + ".totalParts";
+    public static final String LISTENER = RendezvousPartitionsResolver.class.getName() + ".listener";
+    public static final String STEADY = RendezvousPartitionsResolver.class.getName() + ".steady";
+    public static final String MEMBERS_PRODUCER = RendezvousPartitionsResolver.class.getName() + ".membersProducer";
+    public static final String MEMBERS_CONSUMER = RendezvousPartitionsResolver.class.getName() + ".membersConsumer";
+
+    protected int totalParts;
+    protected int replicationFactor;
+    protected String memberId;
+    protected Consumer<Set<Integer>> listener;
+    protected BooleanSupplier steady;
+
+    protected MembersWorker membersWorker;
+    protected volatile Set<String> members;
+    protected volatile Set<Integer> parts;
+
+    /**
+     * @param configs Resolver config.
+     * @param totalParts Total number of partitions.
+     * @param listener Listener for the allowed partitions changes.
+     * @param steady Whether this member is steady: all its allowed partitions are loaded.
+     * @param membersProducer Factory for the members topic producer.
+     * @param membersConsumer Factory for the members topic consumer.
+     */
+    public static void setupResolverConfig(
+        Map<String,Object> configs,
+        int totalParts,
+        Consumer<Set<Integer>> listener,
+        BooleanSupplier steady,
+        Supplier<Producer<String,Long>> membersProducer,
+        Supplier<org.apache.kafka.clients.consumer.Consumer<String,Long>> membersConsumer
+    ) {
+        configs.putIfAbsent(TOTAL_PARTS, totalParts);
+        configs.putIfAbsent(LISTENER, listener);
+        configs.putIfAbsent(STEADY, steady);
+        configs.putIfAbsent(MEMBERS_PRODUCER, membersProducer);
+        configs.putIfAbsent(MEMBERS_CONSUMER, membersConsumer);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void configure(Map<String,?> configs) {
+        totalParts = ((Number)Utils.requireNonNull(configs.get(TOTAL_PARTS), "totalParts")).intValue();
+        Utils.checkPositive(totalParts, "totalParts");
+
+        replicationFactor = ((Number)configs.get(ALLOWED_PARTITIONS_REPLICATION_FACTOR)).intValue();
+        Utils.checkPositive(replicationFactor, ALLOWED_PARTITIONS_REPLICATION_FACTOR);
+
+        memberId = Utils.requireNonNull((String)configs.get(ALLOWED_PARTITIONS_MEMBER_ID), ALLOWED_PARTITIONS_MEMBER_ID);
+        listener = (Consumer<Set<Integer>>)configs.get(LISTENER);
+        steady = (BooleanSupplier)configs.get(STEADY);
+
+        List<String> staticMembers = (List<String>)configs.get(ALLOWED_PARTITIONS_MEMBERS);
+
+        if (staticMembers != null) {
+            Set<String> ms = new TreeSet<>(staticMembers);
+            ms.add(memberId);
+            members = Collections.unmodifiableSet(ms);
+            parts = assignPartitions(memberId, members, totalParts, replicationFactor);
+        }
+        else {
+            String membersTopic = Utils.requireNonNull((String)configs.get(ALLOWED_PARTITIONS_MEMBERS_TOPIC),
+                ALLOWED_PARTITIONS_MEMBERS_TOPIC);
+
+            membersWorker = newMembersWorker(membersTopic,
+                ((Number)configs.get(ALLOWED_PARTITIONS_MEMBERS_HEARTBEAT_MS)).longValue(),
+                ((Number)configs.get(ALLOWED_PARTITIONS_MEMBERS_TIMEOUT_MS)).longValue(),
+                (Supplier<Producer<String,Long>>)Utils.requireNonNull(configs.get(MEMBERS_PRODUCER), "membersProducer"),
+                (Supplier<org.apache.kafka.clients.consumer.Consumer<String,Long>>)
+                    Utils.requireNonNull(configs.get(MEMBERS_CONSUMER), "membersConsumer"));
+
+            try {
+                members = membersWorker.join();
+                parts = assignPartitions(memberId, members, totalParts, replicationFactor);
+                membersWorker.start(); // Now the members changes may come.
+            }
+            catch (Exception e) {
+                Utils.close(membersWorker);
+                throw e;
+            }
+        }
+    }
+
+    protected MembersWorker newMembersWorker(
+        String membersTopic,
+        long heartbeatMs,
+        long timeoutMs,
+        Supplier<Producer<String,Long>> producer,
+        Supplier<org.apache.kafka.clients.consumer.Consumer<String,Long>> consumer
+    ) {
+        Producer<String,Long> p = producer.get();
+        try {
+            return new MembersWorker(memberId, membersTopic, heartbeatMs, timeoutMs,
+                p, consumer.get(), steady == null ? () -> true : steady, this::onMembersChanged);
+        }
+        catch (Exception e) {
+            Utils.close(p);
+            throw e;
+        }
+    }
+
+    /**
+     * Recalculates the allowed partitions for the new live members, all of them are considered steady.
+     *
+     * @param liveMembers Live members.
+     */
+    public void onMembersChanged(Collection<String> liveMembers) {
+        onMembersChanged(liveMembers, liveMembers);
+    }
+
+    /**
+     * Recalculates the allowed partitions for the new live members and notifies the listener if they changed.
+     *
+     * @param liveMembers Live members.
+     * @param steadyMembers Live members that are steady.
+     */
+    public synchronized void onMembersChanged(Collection<String> liveMembers, Collection<String> steadyMembers) {
+        Set<String> ms = new TreeSet<>(liveMembers);
+        ms.add(memberId);
+        members = Collections.unmodifiableSet(ms);
+
+        Set<Integer> newParts = keepUntilSteady(assignPartitions(memberId, ms, totalParts, replicationFactor),
+            ms, steadyMembers);
+
+        if (newParts.equals(parts))
+            return;
+
+        if (log.isDebugEnabled())
+            log.debug("Allowed partitions for member {} changed from {} to {}, live members: {}",
+                memberId, parts, newParts, ms);
+
+        parts = newParts;
+
+        if (listener != null)
+            listener.accept(newParts);
+    }
+
+    /**
+     * Adds back the currently held partitions that move to the members which are not steady yet.
+     *
+     * @param newParts Newly assigned partitions.
+     * @param members All the live members.
+     * @param steadyMembers Steady members.
+     * @return Partitions to hold.
+     */
+    protected Set<Integer> keepUntilSteady(Set<Integer> newParts, Set<String> members, Collection<String> steadyMembers) {
+        Set<Integer> kept = null;
+
+        for (String member : members) {
+            if (member.equals(memberId) || steadyMembers.contains(member))
+                continue;
+
+            Set<Integer> memberParts = assignPartitions(member, members, totalParts, replicationFactor);
+
+            for (Integer part : parts) {
+                if (!newParts.contains(part) && memberParts.contains(part)) {
+                    if (kept == null)
+                        kept = new TreeSet<>(newParts);
+
+                    kept.add(part);
+                }
+            }
+        }
+
+        if (kept == null)
+            return newParts;
+
+        if (log.isDebugEnabled())
+            log.debug("Member {} keeps partitions {} until their new holders are steady, steady members: {}",
+                memberId, kept, steadyMembers);
+
+        return Collections.unmodifiableSet(kept);
+    }
+
+    @Override
+    public Set<Integer> get() {
+        return parts;
+    }
+
+    /**
+     * @return Live members.
+     */
+    public Set<String> getMembers() {
+        return members;
+    }
+
+    @Override
+    public void close() {
+        if (membersWorker != null) {
+            membersWorker.interrupt();
+            Worker.joinAll(singletonList(membersWorker));
+            membersWorker.close();
+        }
+    }
+
+    /**
+     * Assigns each partition to the given number of the members with the highest rendezvous hash scores.
+     *
+     * @param memberId Member id to find the partitions for.
+     * @param members All the live members.
+     * @param totalParts Total number of partitions.
+     * @param replicationFactor The number of members to hold each partition.
+     * @return Partitions held by the given member, may be empty if there are more members than needed.
+     */
+    public static Set<Integer> assignPartitions(
+        String memberId,
+        Collection<String> members,
+        int totalParts,
+        int replicationFactor
+    ) {
+        int memberHash = hash(memberId);
+        Set<Integer> assigned = new TreeSet<>();
+
+        for (int part = 0; part < totalParts; part++) {
+            long score = score(memberHash, part);
+            int higher = 0;
+
+            for (String other : members) {
+                if (other.equals(memberId))
+                    continue;
+
+                long otherScore = score(hash(other), part);
+
+                // The ties are broken by the member ids to have the same result on all the members.
+                if (otherScore > score || (otherScore == score && other.compareTo(memberId) > 0))
+                    higher++;
+            }
+
+            if (higher < replicationFactor)
+                assigned.add(part);
+        }
+
+        return Collections.unmodifiableSet(assigned);
+    }
+
+    protected static int hash(String memberId) {
+        return org.apache.kafka.common.utils.Utils.murmur2(memberId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    protected static long score(int memberHash, int part) {
+        // The finalization mix from MurmurHash3.
+        long x = ((long)memberHash << 32) | (part & 0xFFFFFFFFL);
+
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb9fe1a85ec53L;
+        x ^= x >>> 33;
+
+        return x;
+    }
+}
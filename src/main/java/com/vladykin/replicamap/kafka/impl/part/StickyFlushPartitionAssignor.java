@@ -0,0 +1,129 @@
+package com.vladykin.replicamap.kafka.impl.part;
+
+import com.vladykin.replicamap.kafka.impl.util.Utils;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.ToLongFunction;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.utils.ByteUtils;
+
+/**
+ * Flush partition assignor that keeps the partitions owned by the consumers where possible,
+ * thus on rebalancing only the partitions that need to move are moved and the flush workers
+ * keep their state for the rest of the partitions.
+ * <p>
+ * The owned partitions are sent in the subscription user data after the allowed partitions,
+ * since the format is different from {@link FlushPartitionAssignor}, this assignor has a different name
+ * and the non-sticky one is used when the group has members of older versions.
+ * <p>
+ * If the flush load is configured, then the estimated loads of the owned partitions and the capacity
+ * of the member are sent as well and the partitions are assigned balancing the load.
+ *
+ * @author Sergi Vladykin http://vladykin.com
+ */
+public class StickyFlushPartitionAssignor extends FlushPartitionAssignor {
+    protected Collection<TopicPartition> ownedPartitions;
+    protected ToLongFunction<TopicPartition> flushLoad;
+    protected int capacity = 1;
+
+    @Override
+    public String name() {
+        return "replicamap-flush-sticky";
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void configure(Map<String,?> configs) {
+        ownedPartitions = (Collection<TopicPartition>)configs.get(OWNED_PARTS);
+        flushLoad = (ToLongFunction<TopicPartition>)configs.get(FLUSH_LOAD);
+
+        Object cap = configs.get(CAPACITY);
+        if (cap != null) {
+            capacity = ((Number)cap).intValue();
+            Utils.checkPositive(capacity, CAPACITY);
+        }
+
+        super.configure(configs);
+    }
+
+    @Override
+    public ByteBuffer subscriptionUserData(Set<String> topics) {
+        short[] ownedParts = ownedParts();
+        byte[] ownedPartsBytes = Utils.serializeShortArray(ownedParts);
+        int allowedLen = allowedPartsBytes == null ? 0 : allowedPartsBytes.length;
+
+        long[] ownedLoads = null;
+        int loadsLen = 0;
+
+        if (flushLoad != null) {
+            ownedLoads = new long[ownedParts.length];
+            loadsLen = ByteUtils.sizeOfVarint(capacity) + ByteUtils.sizeOfVarint(ownedLoads.length);
+
+            for (int i = 0; i < ownedParts.length; i++) {
+                ownedLoads[i] = Math.max(0L, flushLoad.applyAsLong(new TopicPartition(flushTopic, ownedParts[i])));
+                loadsLen += ByteUtils.sizeOfVarlong(ownedLoads[i]);
+            }
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(1 + allowedLen + ownedPartsBytes.length + loadsLen);
+
+        buf.put((byte)(allowedPartsBytes == null ? 0 : 1));
+        if (allowedPartsBytes != null)
+            buf.put(allowedPartsBytes);
+        buf.put(ownedPartsBytes);
+
+        if (ownedLoads != null) {
+            ByteUtils.writeVarint(capacity, buf);
+            ByteUtils.writeVarint(ownedLoads.length, buf);
+
+            for (long load : ownedLoads)
+                ByteUtils.writeVarlong(load, buf);
+        }
+
+        buf.flip();
+        return buf;
+    }
+
+    protected short[] ownedParts() {
+        if (ownedPartitions == null)
+            return new short[0];
+
+        List<TopicPartition> parts = new ArrayList<>(ownedPartitions); // The collection may be modified concurrently.
+        short[] owned = new short[parts.size()];
+        int len = 0;
+
+        for (TopicPartition part : parts) {
+            if (part.topic().equals(flushTopic))
+                owned[len++] = castAsShort(part.partition());
+        }
+
+        return copySortedUnique(Arrays.copyOf(owned, len));
+    }
+
+    @Override
+    protected Member newMember(String id, int parts, ByteBuffer userData) {
+        if (userData == null || userData.remaining() == 0)
+            return new Member(id, parts, null, null, null, 1);
+
+        ByteBuffer buf = userData.duplicate();
+
+        short[] allowed = buf.get() == 0 ? null : Utils.deserializeShortArray(buf);
+        short[] owned = Utils.deserializeShortArray(buf); // Sorted and unique.
+
+        if (!buf.hasRemaining())
+            return new Member(id, parts, allowed, owned, null, 1);
+
+        int cap = ByteUtils.readVarint(buf);
+        long[] loads = new long[ByteUtils.readVarint(buf)];
+
+        for (int i = 0; i < loads.length; i++)
+            loads[i] = ByteUtils.readVarlong(buf);
+
+        return new Member(id, parts, allowed, owned, loads, cap);
+    }
+}
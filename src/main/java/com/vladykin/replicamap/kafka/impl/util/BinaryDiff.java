@@ -0,0 +1,167 @@
+package com.vladykin.replicamap.kafka.impl.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import org.apache.kafka.common.utils.Crc32C;
+
+/**
+ * Binary diff of two byte arrays. The diff is a sequence of instructions,
+ * each instruction starts with an unsigned varint header {@code (length << 1) | type}:
+ * type {@code 0} is a copy of {@code length} bytes from the base array at the offset
+ * given by the next unsigned varint, type {@code 1} is an insert of the following
+ * {@code length} literal bytes.
+ *
+ * @author Sergi Vladykin http://vladykin.com
+ */
+public final class BinaryDiff {
+    static final int BLOCK = 16;
+
+    static final int COPY = 0;
+    static final int INSERT = 1;
+
+    private BinaryDiff() {
+        // no-op
+    }
+
+    /**
+     * @param base Base bytes.
+     * @param target Target bytes.
+     * @return Diff to build the target from the base.
+     */
+    public static byte[] diff(byte[] base, byte[] target) {
+        Utils.requireNonNull(base, "base");
+        Utils.requireNonNull(target, "target");
+
+        Map<Long,Integer> blocks = new HashMap<>();
+
+        for (int off = 0; off + BLOCK <= base.length; off += BLOCK)
+            blocks.putIfAbsent(blockHash(base, off), off);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer header = ByteBuffer.allocate(20);
+
+        int literalStart = 0;
+        int i = 0;
+
+        while (i + BLOCK <= target.length) {
+            Integer baseOff = blocks.get(blockHash(target, i));
+
+            if (baseOff == null || !regionEquals(base, baseOff, target, i, BLOCK)) {
+                i++;
+                continue;
+            }
+
+            int start = i;
+            int from = baseOff;
+
+            // Extend the match backward into the pending literal and forward as long as possible.
+            while (start > literalStart && from > 0 && base[from - 1] == target[start - 1]) {
+                start--;
+                from--;
+            }
+
+            int end = i + BLOCK;
+            int baseEnd = baseOff + BLOCK;
+
+            while (end < target.length && baseEnd < base.length && base[baseEnd] == target[end]) {
+                end++;
+                baseEnd++;
+            }
+
+            writeInsert(out, header, target, literalStart, start - literalStart);
+            writeCopy(out, header, from, end - start);
+
+            i = literalStart = end;
+        }
+
+        writeInsert(out, header, target, literalStart, target.length - literalStart);
+
+        return out.toByteArray();
+    }
+
+    /**
+     * @param base Base bytes.
+     * @param diff Diff.
+     * @return Target bytes.
+     * @throws IllegalArgumentException If the diff is malformed or does not fit the base.
+     */
+    public static byte[] apply(byte[] base, byte[] diff) {
+        Utils.requireNonNull(base, "base");
+        Utils.requireNonNull(diff, "diff");
+
+        ByteBuffer in = ByteBuffer.wrap(diff);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(base.length);
+
+        while (in.hasRemaining()) {
+            long h = Utils.readUnsignedVarlong(in);
+            long len = h >>> 1;
+
+            if ((h & 1) == COPY) {
+                long off = Utils.readUnsignedVarlong(in);
+
+                if (off + len > base.length)
+                    throw new IllegalArgumentException("Copy out of base bounds: " + off + " + " + len);
+
+                out.write(base, (int)off, (int)len);
+            }
+            else {
+                if (len > in.remaining())
+                    throw new IllegalArgumentException("Insert out of diff bounds: " + len);
+
+                out.write(diff, in.position(), (int)len);
+                in.position(in.position() + (int)len);
+            }
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * @param bytes Bytes.
+     * @return 64 bit digest of the given bytes.
+     */
+    public static long digest(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+
+        return (crc.getValue() << 32) | Crc32C.compute(bytes, 0, bytes.length);
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, ByteBuffer header, byte[] target, int off, int len) {
+        if (len == 0)
+            return;
+
+        header.clear();
+        Utils.writeUnsignedVarlong(((long)len << 1) | INSERT, header);
+        out.write(header.array(), 0, header.position());
+        out.write(target, off, len);
+    }
+
+    private static void writeCopy(ByteArrayOutputStream out, ByteBuffer header, int off, int len) {
+        header.clear();
+        Utils.writeUnsignedVarlong(((long)len << 1) | COPY, header);
+        Utils.writeUnsignedVarlong(off, header);
+        out.write(header.array(), 0, header.position());
+    }
+
+    private static long blockHash(byte[] arr, int off) {
+        long h = 0;
+
+        for (int i = off, end = off + BLOCK; i < end; i++)
+            h = h * 0x100000001B3L + (arr[i] & 0xFF);
+
+        return h;
+    }
+
+    private static boolean regionEquals(byte[] a, int aOff, byte[] b, int bOff, int len) {
+        for (int i = 0; i < len; i++) {
+            if (a[aOff + i] != b[bOff + i])
+                return false;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,124 @@
+package com.vladykin.replicamap.kafka.impl.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Delays sending of the values per partition for a short window and sends only the latest one,
+ * the values superseded within the window are never sent. The window starts with the first
+ * pending value for the partition, thus no value is delayed longer than the window.
+ * If the window is zero, then all the values are sent immediately.
+ * <p>
+ * Thread safe, the values are sent outside of the lock.
+ *
+ * @author Sergi Vladykin http://vladykin.com
+ */
+public class Coalescer<V> {
+    protected final long windowNanos;
+    protected final BiConsumer<Integer,V> sender;
+    protected final Map<Integer,Pending<V>> pending = new HashMap<>();
+
+    protected long coalesced;
+
+    /**
+     * @param windowMs Window in milliseconds or {@code 0} to send immediately.
+     * @param sender Sender accepting the partition and the value.
+     */
+    public Coalescer(long windowMs, BiConsumer<Integer,V> sender) {
+        if (windowMs < 0)
+            throw new IllegalArgumentException("Negative window: " + windowMs);
+
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+        this.sender = Utils.requireNonNull(sender, "sender");
+    }
+
+    /**
+     * @param part Partition.
+     * @param value Value superseding the pending value for the partition.
+     * @param nowNanos Current time.
+     */
+    public void send(int part, V value, long nowNanos) {
+        if (windowNanos == 0L) {
+            sender.accept(part, value);
+            return;
+        }
+
+        synchronized (this) {
+            Pending<V> p = pending.get(part);
+
+            if (p == null)
+                pending.put(part, new Pending<>(value, nowNanos + windowNanos));
+            else {
+                p.value = value;
+                coalesced++;
+            }
+        }
+    }
+
+    /**
+     * Sends the values with expired windows.
+     *
+     * @param nowNanos Current time.
+     * @return Number of sent values.
+     */
+    public int flush(long nowNanos) {
+        List<Map.Entry<Integer,V>> expired;
+
+        synchronized (this) {
+            if (pending.isEmpty())
+                return 0;
+
+            expired = new ArrayList<>();
+
+            for (Iterator<Map.Entry<Integer,Pending<V>>> it = pending.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<Integer,Pending<V>> entry = it.next();
+                Pending<V> p = entry.getValue();
+
+                if (nowNanos - p.deadlineNanos >= 0) {
+                    expired.add(new HashMap.SimpleImmutableEntry<>(entry.getKey(), p.value));
+                    it.remove();
+                }
+            }
+        }
+
+        for (Map.Entry<Integer,V> entry : expired)
+            sender.accept(entry.getKey(), entry.getValue());
+
+        return expired.size();
+    }
+
+    /**
+     * @param nowNanos Current time.
+     * @return Time in milliseconds until the nearest window expires or {@link Long#MAX_VALUE} if nothing is pending.
+     */
+    public synchronized long getDelayMs(long nowNanos) {
+        long delayMs = Long.MAX_VALUE;
+
+        for (Pending<V> p : pending.values())
+            delayMs = Math.min(delayMs, Math.max(0L, TimeUnit.NANOSECONDS.toMillis(p.deadlineNanos - nowNanos)));
+
+        return delayMs;
+    }
+
+    /**
+     * @return Number of values superseded without sending.
+     */
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    protected static class Pending<V> {
+        protected V value;
+        protected final long deadlineNanos;
+
+        protected Pending(V value, long deadlineNanos) {
+            this.value = value;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.vladykin.replicamap.kafka.impl.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counter which value exponentially decays with the given half-life,
+ * thus it estimates the recent rate of the events.
+ * <p>
+ * Thread safe.
+ *
+ * @author Sergi Vladykin http://vladykin.com
+ */
+public class DecayingCounter {
+    protected final double halfLifeNanos;
+
+    protected double value;
+    protected long lastNanos;
+
+    /**
+     * @param halfLifeMs Half-life in milliseconds.
+     */
+    public DecayingCounter(long halfLifeMs) {
+        if (halfLifeMs <= 0)
+            throw new IllegalArgumentException("Half-life must be positive: " + halfLifeMs);
+
+        this.halfLifeNanos = TimeUnit.MILLISECONDS.toNanos(halfLifeMs);
+    }
+
+    /**
+     * @param x Value to add.
+     * @param nowNanos Current time.
+     */
+    public synchronized void add(long x, long nowNanos) {
+        value = decayed(nowNanos) + x;
+        lastNanos = nowNanos;
+    }
+
+    /**
+     * @param nowNanos Current time.
+     * @return Current value.
+     */
+    public synchronized long get(long nowNanos) {
+        return Math.round(decayed(nowNanos));
+    }
+
+    protected double decayed(long nowNanos) {
+        if (value == 0.0)
+            return 0.0;
+
+        long elapsed = Math.max(0L, nowNanos - lastNanos);
+        return value * Math.pow(0.5, elapsed / halfLifeNanos);
+    }
+}
@@ -0,0 +1,254 @@
+package com.vladykin.replicamap.kafka.impl.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * Concurrent map that keeps a separate segment for each partition and routes the keys
+ * to the segments with the given function. All the single key operations are executed
+ * on the segment of the key, thus they are as atomic as in the segment itself,
+ * the bulk operations and the iteration are combined over all the segments and are weakly consistent.
+ * <p>
+ * Allows to access, iterate and clear a single partition without scanning the others.
+ *
+ * @author Sergi Vladykin http://vladykin.com
+ */
+public class SegmentedMap<K,V> extends AbstractMap<K,V> implements ConcurrentMap<K,V> {
+    protected final ConcurrentMap<K,V>[] segments;
+    protected final ToIntFunction<Object> router;
+
+    protected Set<Entry<K,V>> entrySet;
+
+    /**
+     * @param segments Number of segments.
+     * @param segmentFactory Segment factory.
+     * @param router Function to resolve segment for a key.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public SegmentedMap(
+        int segments,
+        IntFunction<ConcurrentMap<K,V>> segmentFactory,
+        ToIntFunction<Object> router
+    ) {
+        Utils.checkPositive(segments, "segments");
+        Utils.requireNonNull(segmentFactory, "segmentFactory");
+
+        this.router = Utils.requireNonNull(router, "router");
+        this.segments = new ConcurrentMap[segments];
+
+        for (int i = 0; i < segments; i++)
+            this.segments[i] = Utils.requireNonNull(segmentFactory.apply(i), "segment");
+    }
+
+    /**
+     * @return Number of segments.
+     */
+    public int getSegments() {
+        return segments.length;
+    }
+
+    /**
+     * @param part Partition.
+     * @return Segment for the partition.
+     */
+    public ConcurrentMap<K,V> getSegment(int part) {
+        return segments[part];
+    }
+
+    /**
+     * @param key Key.
+     * @return Segment for the key.
+     */
+    public ConcurrentMap<K,V> getSegmentForKey(Object key) {
+        int part = router.applyAsInt(key);
+
+        if (part < 0 || part >= segments.length)
+            throw new IllegalStateException("Invalid partition " + part + " for key: " + key);
+
+        return segments[part];
+    }
+
+    @Override
+    public int size() {
+        long size = 0;
+
+        for (ConcurrentMap<K,V> segment : segments)
+            size += segment.size();
+
+        return (int)Math.min(size, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (ConcurrentMap<K,V> segment : segments) {
+            if (!segment.isEmpty())
+                return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return getSegmentForKey(key).containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        for (ConcurrentMap<K,V> segment : segments) {
+            if (segment.containsValue(value))
+                return true;
+        }
+
+        return false;
+    }
+
+    @Override
+    public V get(Object key) {
+        return getSegmentForKey(key).get(key);
+    }
+
+    @Override
+    public V getOrDefault(Object key, V defaultValue) {
+        return getSegmentForKey(key).getOrDefault(key, defaultValue);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        return getSegmentForKey(key).put(key, value);
+    }
+
+    @Override
+    public V remove(Object key) {
+        return getSegmentForKey(key).remove(key);
+    }
+
+    @Override
+    public void clear() {
+        for (ConcurrentMap<K,V> segment : segments)
+            segment.clear();
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        return getSegmentForKey(key).putIfAbsent(key, value);
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        return getSegmentForKey(key).remove(key, value);
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        return getSegmentForKey(key).replace(key, oldValue, newValue);
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        return getSegmentForKey(key).replace(key, value);
+    }
+
+    @Override
+    public V computeIfAbsent(K key, Function<? super K,? extends V> mappingFunction) {
+        return getSegmentForKey(key).computeIfAbsent(key, mappingFunction);
+    }
+
+    @Override
+    public V computeIfPresent(K key, BiFunction<? super K,? super V,? extends V> remappingFunction) {
+        return getSegmentForKey(key).computeIfPresent(key, remappingFunction);
+    }
+
+    @Override
+    public V compute(K key, BiFunction<? super K,? super V,? extends V> remappingFunction) {
+        return getSegmentForKey(key).compute(key, remappingFunction);
+    }
+
+    @Override
+    public V merge(K key, V value, BiFunction<? super V,? super V,? extends V> remappingFunction) {
+        return getSegmentForKey(key).merge(key, value, remappingFunction);
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super K,? super V> action) {
+        for (ConcurrentMap<K,V> segment : segments)
+            segment.forEach(action);
+    }
+
+    @Override
+    public Set<Entry<K,V>> entrySet() {
+        Set<Entry<K,V>> es = entrySet;
+
+        if (es == null)
+            entrySet = es = new EntrySet();
+
+        return es;
+    }
+
+    protected class EntrySet extends AbstractSet<Entry<K,V>> {
+        @Override
+        public Iterator<Entry<K,V>> iterator() {
+            return new EntryIterator();
+        }
+
+        @Override
+        public int size() {
+            return SegmentedMap.this.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return SegmentedMap.this.isEmpty();
+        }
+
+        @Override
+        public void clear() {
+            SegmentedMap.this.clear();
+        }
+    }
+
+    protected class EntryIterator implements Iterator<Entry<K,V>> {
+        protected int segment;
+        protected Iterator<Entry<K,V>> it = segments[0].entrySet().iterator();
+        protected Iterator<Entry<K,V>> last;
+
+        @Override
+        public boolean hasNext() {
+            while (!it.hasNext()) {
+                if (segment + 1 == segments.length)
+                    return false;
+
+                it = segments[++segment].entrySet().iterator();
+            }
+
+            return true;
+        }
+
+        @Override
+        public Entry<K,V> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            last = it;
+            return it.next();
+        }
+
+        @Override
+        public void remove() {
+            if (last == null)
+                throw new IllegalStateException();
+
+            last.remove();
+            last = null;
+        }
+    }
+}
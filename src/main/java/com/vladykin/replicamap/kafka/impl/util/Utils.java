@@ -416,6 +416,47 @@ public final class Utils {
         return ByteUtils.readVarlong(ByteBuffer.wrap(bytes));
     }
 
+    /**
+     * Unlike {@link ByteUtils#sizeOfVarlong(long)} does not use zig-zag encoding,
+     * thus non-negative values take less space.
+     *
+     * @param x Value.
+     * @return Size of unsigned varlong.
+     */
+    public static int sizeOfUnsignedVarlong(long x) {
+        int bytes = 1;
+
+        while ((x & 0xFFFFFFFFFFFFFF80L) != 0L) {
+            bytes++;
+            x >>>= 7;
+        }
+
+        return bytes;
+    }
+
+    public static void writeUnsignedVarlong(long x, ByteBuffer buf) {
+        while ((x & 0xFFFFFFFFFFFFFF80L) != 0L) {
+            buf.put((byte)((x & 0x7F) | 0x80));
+            x >>>= 7;
+        }
+
+        buf.put((byte)x);
+    }
+
+    public static long readUnsignedVarlong(ByteBuffer buf) {
+        long x = 0L;
+
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf.get();
+            x |= (long)(b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0)
+                return x;
+        }
+
+        throw new IllegalArgumentException("Malformed unsigned varlong.");
+    }
+
     public static Iterable<Header> concat(Iterable<Header> a, Iterable<Header> b) {
         if (a == null)
             return b;
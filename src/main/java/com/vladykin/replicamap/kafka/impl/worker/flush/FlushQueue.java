@@ -1,9 +1,14 @@
 package com.vladykin.replicamap.kafka.impl.worker.flush;
 
-import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.OptionalLong;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.function.Function;
 import java.util.stream.LongStream;
 import org.apache.kafka.common.TopicPartition;
 import org.slf4j.Logger;
@@ -11,25 +16,93 @@ import org.slf4j.LoggerFactory;
 
 /**
  * The queue that collects all the updated keys and values to be flushed.
+ * <p>
+ * The records are added by a single producer (the ops worker owning the partition)
+ * into a ring of primitive offsets and key-value slots. The producer never waits for locks
+ * and never allocates per record: it only publishes the new tail (and reallocates
+ * the ring twice larger when it is full). The flush workers read the queue through
+ * a snapshot cursor {@code [head, tail)}: {@link #collect} and {@link #clean} only serialize
+ * with each other, the slots of the snapshot can not be reused by the producer until
+ * the head is moved by {@link #clean} or {@link #collect}.
+ * <p>
+ * The records collected for a flush are compacted to the latest value per key,
+ * so that while the flushes are falling behind, the memory is bounded by the number
+ * of distinct dirty keys plus the records after the last collected offset.
+ * If nothing is collected for long, the producer compacts the full ring itself
+ * when it reaches {@link #COMPACT_RING_CAPACITY} instead of growing it further.
+ * The compacted batch is merged in place unless it is still used by a flush (see {@link #release}).
+ * <p>
+ * The lazy queue keeps only the offsets until some flush worker of this client owns the partition.
+ * Then the producer materializes it from the keys updated since the last flush
+ * and their current values (see {@link #materialize}) and keeps the records as usual
+ * until the partition is not owned anymore (see {@link #dematerialize}).
  *
  * @author Sergi Vladykin http://vladykin.com
  */
 public class FlushQueue {
     private static final Logger log = LoggerFactory.getLogger(FlushQueue.class);
 
+    protected static final int INITIAL_CAPACITY = 256;
+
+    /** The ring capacity at which the producer tries to compact the ring instead of growing it. */
+    protected static final int COMPACT_RING_CAPACITY = 1 << 16;
+
+    protected static final AtomicLongFieldUpdater<FlushQueue> MAX_ADD_OFFSET =
+        AtomicLongFieldUpdater.newUpdater(FlushQueue.class, "maxAddOffset");
+
+    /** Serializes the readers, the producer never takes it. */
     protected final Semaphore lock = new Semaphore(1);
-    protected final ArrayDeque<MiniRecord> queue = new ArrayDeque<>();
 
     protected final TopicPartition dataPart;
 
-    protected long maxAddOffset = Long.MIN_VALUE;
-    protected long maxCleanOffset = -1;
+    /** Current values of the keys for the lazy queue or {@code null} if the queue is always materialized. */
+    protected final Function<Object,Object> currentValues;
+
+    /** The number of flush workers owning the partition. */
+    protected final AtomicInteger flushOwners = new AtomicInteger();
+
+    /** Whether the records are kept, modified only by the producer. */
+    protected volatile boolean materialized;
+
+    /** The max offset of the batch created by the last materialization. */
+    protected volatile long materializedOffset = -1;
+
+    protected volatile Ring ring = new Ring(INITIAL_CAPACITY);
+
+    /** The index of the first live slot, moved only by {@link #clean}. */
+    protected volatile long head;
+
+    /** The index of the next slot to write, moved only by the producer. */
+    protected volatile long tail;
+
+    /** The latest values of the keys collected from the ring, guarded by the lock. */
+    protected volatile Batch compacted;
+
+    /** The compacted batch returned by {@link #collect} and not released yet, guarded by the lock. */
+    protected Batch collected;
+
+    protected volatile long maxAddOffset = Long.MIN_VALUE;
+    protected volatile long maxCleanOffset = -1;
+
+    /** The keys with unknown values to the offsets of the updates that made them unknown. */
+    protected final Map<Object,Long> heldKeys = new ConcurrentHashMap<>();
 
-    protected final ThreadLocal<ArrayDeque<MiniRecord>> threadLocalQueue =
-        ThreadLocal.withInitial(ArrayDeque::new);
+    /** The min offset of the held keys, the records starting from it can not be flushed. */
+    protected volatile long holdOffset = Long.MAX_VALUE;
 
     public FlushQueue(TopicPartition dataPart) {
+        this(dataPart, null);
+    }
+
+    /**
+     * @param dataPart Data partition.
+     * @param currentValues Current values of the keys if the queue is lazy or {@code null}.
+     */
+    public FlushQueue(TopicPartition dataPart, Function<Object,Object> currentValues) {
         this.dataPart = dataPart;
+        this.currentValues = currentValues;
+
+        materialized = currentValues == null;
     }
 
     public TopicPartition getDataPartition() {
@@ -40,17 +113,172 @@ public class FlushQueue {
     public String toString() {
         return "FlushQueue{" +
             "dataPart=" + dataPart +
-            ", locked=" + (lock.availablePermits() == 0) +
+            ", size=" + size() +
+            ", capacity=" + ring.capacity() +
+            ", maxAddOffset=" + maxAddOffset +
+            ", maxCleanOffset=" + maxCleanOffset +
+            ", materialized=" + materialized +
             '}';
     }
 
+    public long getMaxAddOffset() {
+        return maxAddOffset;
+    }
+
+    public long getMaxCleanOffset() {
+        return maxCleanOffset;
+    }
+
     /**
-     * @return Size of the internal queue.
+     * @return The max offset of the compacted batch or {@code -1} if there is none.
      */
-    public int size() {
+    public long getCompactedOffset() {
+        Batch c = compacted;
+        return c == null ? -1 : c.getMaxOffset();
+    }
+
+    /**
+     * @return The offset starting from which the records can not be flushed
+     *         or {@link Long#MAX_VALUE} if nothing is held.
+     * @see #holdKey(Object, long)
+     */
+    public long getHoldOffset() {
+        return holdOffset;
+    }
+
+    /**
+     * Holds the flushing at the given offset, since the update at this offset could not be resolved
+     * and the value of the key is unknown. Flushing beyond it would lose the update forever, since
+     * the loading replays the ops only after the flushed offset. The hold is released when the value
+     * of the key becomes known again or when someone else flushes beyond it.
+     * Must be called only by the single producer thread.
+     *
+     * @param key Key.
+     * @param offset Offset of the unresolved update.
+     */
+    public void holdKey(Object key, long offset) {
+        if (heldKeys.putIfAbsent(key, offset) == null)
+            updateHoldOffset();
+    }
+
+    /**
+     * Releases the hold of the key after the update that sets its value unconditionally.
+     * Must be called only by the single producer thread.
+     *
+     * @param key Key.
+     */
+    public void releaseKey(Object key) {
+        if (!heldKeys.isEmpty() && heldKeys.remove(key) != null)
+            updateHoldOffset();
+    }
+
+    protected synchronized void updateHoldOffset() {
+        // Synchronized to never overwrite the offset computed after a concurrent change of the held keys.
+        long min = Long.MAX_VALUE;
+
+        for (long offset : heldKeys.values())
+            min = Math.min(min, offset);
+
+        if (holdOffset != min) {
+            log.debug("For partition {} hold offset: {} -> {}", dataPart, holdOffset, min);
+            holdOffset = min;
+        }
+    }
+
+    /**
+     * @return {@code true} If the records are kept in the queue.
+     */
+    public boolean isMaterialized() {
+        return materialized;
+    }
+
+    /**
+     * @return The max offset of the batch created by the last materialization or {@code -1}.
+     */
+    public long getMaterializedOffset() {
+        return materializedOffset;
+    }
+
+    /**
+     * Called by the flush worker when it starts owning the partition.
+     */
+    public void addFlushOwner() {
+        flushOwners.incrementAndGet();
+    }
+
+    /**
+     * Called by the flush worker when it stops owning the partition.
+     */
+    public void removeFlushOwner() {
+        int owners = flushOwners.decrementAndGet();
+        assert owners >= 0: owners;
+    }
+
+    /**
+     * @return {@code true} If the lazy queue must be materialized or dematerialized by the producer.
+     */
+    public boolean isMaterializeNeeded() {
+        return currentValues != null && materialized != (flushOwners.get() > 0);
+    }
+
+    /**
+     * Materializes the lazy queue at the current max offset.
+     * Must be called only by the single producer thread, the current values must be
+     * consistent with the max offset.
+     *
+     * @param updatedKeys All the keys updated after the max clean offset (may contain extra keys).
+     * @return {@code true} If there are records to flush up to the current max offset.
+     */
+    public boolean materialize(Collection<Object> updatedKeys) {
+        if (currentValues == null || materialized)
+            throw new IllegalStateException("Queue is materialized: " + this);
+
         lock.acquireUninterruptibly();
         try {
-            return queue.size();
+            long maxAdd = maxAddOffset;
+            long maxClean = maxCleanOffset;
+
+            if (maxClean < maxAdd && !updatedKeys.isEmpty()) {
+                Batch c = new Batch(maxClean + 1, maxAdd, maxClean);
+
+                for (Object key : updatedKeys)
+                    c.put(key, currentValues.apply(key));
+
+                compacted = c;
+                materializedOffset = maxAdd;
+            }
+
+            if (log.isDebugEnabled()) {
+                log.debug("For partition {} materialized flush queue at offset {} with {} keys",
+                    dataPart, maxAdd, updatedKeys.size());
+            }
+
+            materialized = true;
+
+            return compacted != null;
+        }
+        finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Drops all the records from the lazy queue and keeps only the offsets.
+     * Must be called only by the single producer thread.
+     */
+    public void dematerialize() {
+        if (currentValues == null || !materialized)
+            throw new IllegalStateException("Queue is not materialized: " + this);
+
+        lock.acquireUninterruptibly();
+        try {
+            materialized = false;
+            compacted = null;
+            collected = null;
+            ring = new Ring(INITIAL_CAPACITY);
+            head = tail;
+
+            log.debug("For partition {} dematerialized flush queue", dataPart);
         }
         finally {
             lock.release();
@@ -58,32 +286,98 @@ public class FlushQueue {
     }
 
     /**
+     * @return Size of the internal queue.
+     */
+    public int size() {
+        Batch c = compacted;
+        long h = head; // Read the head first to never get a negative size.
+        return (int)(tail - h) + (c == null ? 0 : c.size());
+    }
+
+    /**
+     * Must be called only by the single producer thread.
+     *
      * @param key Key or {@code null} if it is not an update or unsuccessful update attempt.
      * @param value Value.
      * @param offset Offset.
-     * @param waitLock If {@code true} then current thread will wait for the lock acquisition,
-     *                 if {@code false} and lock acquisition failed, then operation is allowed
-     *                 to store the record into thread local buffer.
      */
-    public void add(Object key, Object value, long offset, boolean waitLock) {
-        ArrayDeque<MiniRecord> tlq = threadLocalQueue.get();
+    public void add(Object key, Object value, long offset) {
+        long maxAdd = maxAddOffset;
+
+        if (maxAdd == Long.MIN_VALUE)
+            throw new IllegalStateException("Need to setup max offset: " + maxAdd);
+
+        long nextOffset = maxAdd + 1;
+
+        if (nextOffset != offset) // check that we do not miss any records
+            throw new IllegalStateException("Expected record offset " + nextOffset + ", actual " + offset);
+
+        if (key != null && materialized) { // non-update records are not stored
+            if (log.isTraceEnabled())
+                log.trace("For partition {} add record with offset {}: {} -> {}", dataPart, offset, key, value);
+
+            long t = tail;
+            long h = head;
+            Ring r = ring;
 
-        if (!lock(waitLock)) {
-            tlq.add(new MiniRecord(key, value, offset));
-            return;
+            if (t - h == r.capacity() && (r.capacity() < COMPACT_RING_CAPACITY || !compactRing(t)))
+                ring = r = r.grow(h, t);
+
+            r.set(t, key, value, offset);
+            tail = t + 1; // Publish the slot before the offset.
         }
 
-        try {
-            for (;;) {
-                MiniRecord r = tlq.poll();
+        // Clean can move the max offset forward concurrently, then the next offset is not the expected one.
+        if (!MAX_ADD_OFFSET.compareAndSet(this, maxAdd, nextOffset))
+            throw new IllegalStateException("Expected record offset " + (maxAddOffset + 1) + ", actual " + offset);
+    }
 
-                if (r == null)
-                    break;
+    /**
+     * Moves all the records from the ring to the compacted batch, if no flush worker is collecting
+     * or using the compacted batch at the moment. Must be called only by the single producer thread.
+     * The compacted batch then ends beyond the flush requests, it will be collected
+     * by the next flush request with a larger offset.
+     *
+     * @param t Tail.
+     * @return {@code true} If the ring was compacted.
+     */
+    protected boolean compactRing(long t) {
+        if (!lock.tryAcquire())
+            return false;
 
-                addRecord(r);
+        try {
+            Batch c = compacted;
+
+            if (c != null && c == collected)
+                return false;
+
+            long maxAdd = maxAddOffset;
+            long maxClean = maxCleanOffset;
+            long h = head;
+            Ring r = ring;
+
+            while (h < t && r.offset(h) <= maxClean)
+                h++;
+
+            if (h < t) {
+                if (c == null)
+                    c = new Batch(r.offset(h), maxAdd, maxClean);
+                else
+                    c.update(maxAdd, maxClean);
+
+                for (; h < t; h++) {
+                    c.put(r.key(h), r.value(h));
+                    r.clear(h);
+                }
+                compacted = c;
             }
 
-            addRecord(new MiniRecord(key, value, offset));
+            head = h;
+
+            if (log.isDebugEnabled())
+                log.debug("For partition {} compacted flush queue ring at offset {}: {}", dataPart, maxAdd, c);
+
+            return true;
         }
         finally {
             lock.release();
@@ -99,88 +393,192 @@ public class FlushQueue {
         if (offset < -1)
             throw new IllegalArgumentException("Illegal offset: " + offset);
 
+        if (!MAX_ADD_OFFSET.compareAndSet(this, Long.MIN_VALUE, offset))
+            throw new IllegalStateException("Max offset is already set: " + maxAddOffset);
+    }
+
+    /**
+     * Drops all the records and sets up the max offset again, when the partition is removed
+     * or loaded again after being removed. Must be called only by the single producer thread
+     * and only when no flush worker of this client owns the partition.
+     *
+     * @param offset Offset.
+     */
+    public void reset(long offset) {
+        if (offset < -1)
+            throw new IllegalArgumentException("Illegal offset: " + offset);
+
         lock.acquireUninterruptibly();
         try {
-            if (maxAddOffset != Long.MIN_VALUE)
-                throw new IllegalStateException("Max offset is already set: " + maxAddOffset);
-
+            compacted = null;
+            collected = null;
+            ring = new Ring(INITIAL_CAPACITY);
+            head = tail;
+            maxCleanOffset = offset;
             maxAddOffset = offset;
+
+            heldKeys.clear();
+            updateHoldOffset();
+
+            log.debug("For partition {} reset flush queue at offset {}", dataPart, offset);
         }
         finally {
             lock.release();
         }
     }
 
-    protected void addRecord(MiniRecord rec) {
-        if (maxAddOffset == Long.MIN_VALUE)
-            throw new IllegalStateException("Need to setup max offset: " + maxAddOffset);
-
-        long nextOffset = maxAddOffset + 1;
-
-        if (nextOffset != rec.offset()) // check that we do not miss any records
-            throw new IllegalStateException("Expected record offset " + nextOffset + ", actual " + rec.offset());
-
-        maxAddOffset = nextOffset;
-
-        if (rec.key() == null) // non-update record
-            return;
-
-        if (log.isTraceEnabled())
-            log.trace("For partition {} add record: {}", dataPart, rec);
-
-        queue.add(rec);
-    }
-
-    protected boolean lock(boolean waitLock) {
-        if (waitLock) {
-            lock.acquireUninterruptibly();
-            return true;
-        }
-        return lock.tryAcquire();
+    /**
+     * Collects records to the given batch. The records up to the collected max offset
+     * are moved from the ring to the compacted batch keeping only the latest value for each key,
+     * thus the next attempt only needs to merge the records added after that.
+     * The returned batch is not modified until it is passed to {@link #release},
+     * after that the next attempt merges the new records into it in place.
+     *
+     * @param maxOffsets Max offsets to collect (inclusive). The stream is expected to be sorted.
+     * @return Collected batch.
+     */
+    public Batch collect(LongStream maxOffsets) {
+        return collect(maxOffsets, Integer.MAX_VALUE);
     }
 
     /**
-     * Collects records to the given batch.
-     * Does not modify the state.
+     * Collects records to the given batch like {@link #collect(LongStream)}, but picks the max offset
+     * to keep the number of collected records within the given limit if possible. If even the smallest
+     * max offset with some records exceeds the limit, it is collected anyway to make progress.
      *
      * @param maxOffsets Max offsets to collect (inclusive). The stream is expected to be sorted.
+     * @param maxRecords Max number of records to collect.
      * @return Collected batch.
      */
-    public Batch collect(LongStream maxOffsets) {
+    public Batch collect(LongStream maxOffsets, int maxRecords) {
+        if (maxRecords <= 0)
+            throw new IllegalArgumentException("Illegal max records: " + maxRecords);
+
         lock.acquireUninterruptibly();
         try {
-            if (queue.isEmpty())
+            // The max offset is published after the slot, read it first to see all the slots up to it.
+            long maxAdd = maxAddOffset;
+            long maxClean = maxCleanOffset;
+            long t = tail;
+            long h = head;
+            Ring r = ring;
+            Batch c = compacted;
+
+            if (h == t && c == null)
                 return null;
 
-            OptionalLong maxOffsetOptional = maxOffsets
-                .filter(offset -> offset <= maxAddOffset)
-                .max();
+            long[] offsets = maxOffsets
+                .filter(offset -> offset <= maxAdd)
+                .toArray();
 
-            if (!maxOffsetOptional.isPresent())
+            if (offsets.length == 0)
                 return null;
 
-            long maxOffset = maxOffsetOptional.getAsLong();
-            long minOffset = queue.peek().offset();
+            Arrays.sort(offsets);
+            long maxOffset = offsets[offsets.length - 1];
+
+            if (c != null && c.getMaxOffset() > maxOffset) {
+                // Flush requests only grow, thus we should never need to go back,
+                // but the ring compacted by the producer must wait for the next flush request.
+                log.debug("For partition {} unable to collect max offset {} below compacted: {}",
+                    dataPart, maxOffset, c.getMaxOffset());
 
-            if (minOffset > maxOffset)
                 return null;
+            }
 
-            Batch dataBatch = new Batch(minOffset, maxOffset, maxCleanOffset);
+            // Skip the slots left by the producer racing with the clean beyond the max offset.
+            while (h < t && r.offset(h) <= maxClean)
+                h++;
 
-            for (MiniRecord rec : queue) {
-                if (rec.offset() > maxOffset)
-                    break;
+            if (maxRecords != Integer.MAX_VALUE)
+                maxOffset = limitMaxOffset(offsets, r, h, t, c, maxRecords);
 
-                dataBatch.put(rec.key(), rec.value());
+            boolean hasNew = h < t && r.offset(h) <= maxOffset;
+
+            if (c == null) {
+                if (!hasNew)
+                    return null;
+
+                c = new Batch(r.offset(h), maxOffset, maxClean);
+            }
+            else if (c.getMaxOffset() != maxOffset || c.getMaxCleanOffset() != maxClean) {
+                if (c == collected) {
+                    // The previous batch is still in use, copy it.
+                    Batch old = c;
+                    c = new Batch(old.getMinOffset(), maxOffset, maxClean);
+                    c.putAll(old);
+                }
+                else
+                    c.update(maxOffset, maxClean);
             }
 
-            return dataBatch;
+            // Release the slots before moving the head, after that the producer is free to reuse them.
+            for (; h < t && r.offset(h) <= maxOffset; h++) {
+                c.put(r.key(h), r.value(h));
+                r.clear(h);
+            }
+
+            head = h;
+            compacted = c;
+            collected = c;
+
+            return c;
         }
         finally {
             lock.release();
         }
     }
 
+    /**
+     * Called by the flush worker when the batch returned by {@link #collect} is not used anymore.
+     *
+     * @param batch Batch.
+     */
+    public void release(Batch batch) {
+        lock.acquireUninterruptibly();
+        try {
+            if (collected == batch)
+                collected = null;
+        }
+        finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * @param offsets Sorted max offsets to choose from.
+     * @param r Ring.
+     * @param h Head.
+     * @param t Tail.
+     * @param c Compacted batch or {@code null}.
+     * @param maxRecords Max number of records.
+     * @return The largest max offset not exceeding the records limit or the smallest one with some records.
+     */
+    protected static long limitMaxOffset(long[] offsets, Ring r, long h, long t, Batch c, int maxRecords) {
+        long minOffset = c == null ? Long.MIN_VALUE : c.getMaxOffset();
+        long records = c == null ? 0 : c.size();
+        long limitedRecords = 0;
+        long limitedOffset = offsets[offsets.length - 1];
+
+        for (long offset : offsets) {
+            while (h < t && r.offset(h) <= offset) {
+                records++;
+                h++;
+            }
+
+            if (offset < minOffset) // We can not go back below the compacted batch.
+                continue;
+
+            if (limitedRecords != 0 && records > maxRecords)
+                break;
+
+            limitedOffset = offset;
+            limitedRecords = records;
+        }
+
+        return limitedOffset;
+    }
+
     /**
      * Cleans the flush queue until the given max offset.
      * @param maxOffset Max offset.
@@ -196,14 +594,25 @@ public class FlushQueue {
 //            trace.trace("clean {} {} maxOffset={}, maxCleanOffset={}, maxAddOffset={}",
 //                reason, dataPart, maxOffset, maxCleanOffset, maxAddOffset);
 
-            for (;;) {
-                MiniRecord rec = queue.peek();
+            // If the compacted batch is cleaned partially, we keep its records: it still has
+            // the correct latest values for its max offset, some of them will be just flushed twice.
+            Batch c = compacted;
+            if (c != null) {
+                if (c.getMaxOffset() <= maxOffset)
+                    compacted = collected = null;
+                else if (c != collected)
+                    c.update(c.getMaxOffset(), maxOffset);
+            }
 
-                if (rec == null || rec.offset() > maxOffset)
-                    break;
+            long t = tail;
+            long h = head;
+            Ring r = ring;
 
-                queue.poll();
-            }
+            // Release the slots before moving the head, after that the producer is free to reuse them.
+            for (; h < t && r.offset(h) <= maxOffset; h++)
+                r.clear(h);
+
+            head = h;
 
             long cleanedCnt = maxOffset - maxCleanOffset;
 
@@ -214,13 +623,22 @@ public class FlushQueue {
 
             maxCleanOffset = maxOffset;
 
-            if (maxCleanOffset > maxAddOffset) {
-                assert queue.isEmpty();
+            // Someone else has flushed the values of the held keys.
+            if (holdOffset <= maxOffset && heldKeys.values().removeIf(offset -> offset <= maxOffset))
+                updateHoldOffset();
+
+            for (;;) {
+                long maxAdd = maxAddOffset;
 
-                if (log.isDebugEnabled())
-                    log.debug("For partition {} clean maxAddOffset: {} -> {}", dataPart, maxAddOffset, maxCleanOffset);
+                if (maxCleanOffset <= maxAdd)
+                    break;
 
-                maxAddOffset = maxCleanOffset;
+                if (MAX_ADD_OFFSET.compareAndSet(this, maxAdd, maxCleanOffset)) {
+                    if (log.isDebugEnabled())
+                        log.debug("For partition {} clean maxAddOffset: {} -> {}", dataPart, maxAdd, maxCleanOffset);
+
+                    break;
+                }
             }
 
             return cleanedCnt;
@@ -232,8 +650,8 @@ public class FlushQueue {
 
     public static class Batch extends HashMap<Object,Object> {
         protected final long minOffset;
-        protected final long maxOffset;
-        protected final long maxCleanOffset;
+        protected long maxOffset;
+        protected long maxCleanOffset;
 
         public Batch(long minOffset, long maxOffset, long maxCleanOffset) {
             this.minOffset = minOffset;
@@ -241,6 +659,19 @@ public class FlushQueue {
             this.maxCleanOffset = maxCleanOffset;
         }
 
+        /**
+         * Moves the offsets of the compacted batch which is not used by any flush.
+         *
+         * @param maxOffset Max offset.
+         * @param maxCleanOffset Max clean offset.
+         */
+        protected void update(long maxOffset, long maxCleanOffset) {
+            assert maxOffset >= this.maxOffset && maxCleanOffset >= this.maxCleanOffset;
+
+            this.maxOffset = maxOffset;
+            this.maxCleanOffset = maxCleanOffset;
+        }
+
         public int getCollectedAll() {
             return (int)Math.max(0, maxOffset - maxCleanOffset);
         }
@@ -270,36 +701,67 @@ public class FlushQueue {
         }
     }
 
-    protected static class MiniRecord {
-        protected final Object key;
-        protected final Object value;
-        protected final long offset;
+    /**
+     * Fixed capacity ring of slots addressed by the ever growing index.
+     */
+    protected static class Ring {
+        protected final long[] offsets;
+        protected final Object[] keys;
+        protected final Object[] values;
+        protected final int mask;
+
+        public Ring(int capacity) {
+            assert Integer.bitCount(capacity) == 1: capacity;
+
+            offsets = new long[capacity];
+            keys = new Object[capacity];
+            values = new Object[capacity];
+            mask = capacity - 1;
+        }
 
-        public MiniRecord(Object key, Object value, long offset) {
-            this.key = key;
-            this.value = value;
-            this.offset = offset;
+        public int capacity() {
+            return mask + 1;
         }
 
-        public Object key() {
-            return key;
+        public long offset(long index) {
+            return offsets[(int)index & mask];
         }
 
-        public Object value() {
-            return value;
+        public Object key(long index) {
+            return keys[(int)index & mask];
         }
 
-        public long offset() {
-            return offset;
+        public Object value(long index) {
+            return values[(int)index & mask];
         }
 
-        @Override
-        public String toString() {
-            return "MiniRecord{" +
-                "key=" + key +
-                ", value=" + value +
-                ", offset=" + offset +
-                '}';
+        public void set(long index, Object key, Object value, long offset) {
+            int i = (int)index & mask;
+
+            offsets[i] = offset;
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        public void clear(long index) {
+            int i = (int)index & mask;
+
+            keys[i] = null;
+            values[i] = null;
+        }
+
+        /**
+         * @param head The first index to copy.
+         * @param tail The last index to copy (exclusive).
+         * @return New ring of twice larger capacity.
+         */
+        public Ring grow(long head, long tail) {
+            Ring r = new Ring(capacity() << 1);
+
+            for (long index = head; index < tail; index++)
+                r.set(index, key(index), value(index), offset(index));
+
+            return r;
         }
     }
 }
@@ -5,25 +5,39 @@ import com.vladykin.replicamap.ReplicaMapManager;
 import com.vladykin.replicamap.kafka.impl.msg.FlushNotification;
 import com.vladykin.replicamap.kafka.impl.msg.FlushRequest;
 import com.vladykin.replicamap.kafka.impl.msg.OpMessage;
+import com.vladykin.replicamap.kafka.impl.msg.SerializedValue;
+import com.vladykin.replicamap.kafka.impl.util.Coalescer;
+import com.vladykin.replicamap.kafka.impl.util.DecayingCounter;
 import com.vladykin.replicamap.kafka.impl.util.LazyList;
 import com.vladykin.replicamap.kafka.impl.util.Utils;
 import com.vladykin.replicamap.kafka.impl.worker.Worker;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Queue;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
 import java.util.function.IntFunction;
-import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
 import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
@@ -43,7 +57,6 @@ import org.slf4j.LoggerFactory;
 import static com.vladykin.replicamap.kafka.impl.msg.OpMessage.OP_FLUSH_NOTIFICATION;
 import static com.vladykin.replicamap.kafka.impl.util.Utils.MIN_POLL_TIMEOUT_MS;
 import static java.util.Collections.singleton;
-import static java.util.Collections.singletonMap;
 import static java.util.stream.Collectors.toList;
 
 /**
@@ -57,6 +70,8 @@ public class FlushWorker extends Worker implements AutoCloseable {
 
     public static final String OPS_OFFSET_HEADER = "replicamap.ops";
 
+    protected static final long FLUSH_LOAD_HALF_LIFE_MS = 5 * 60_000;
+
     protected final long clientId;
 
     protected final String dataTopic;
@@ -65,7 +80,8 @@ public class FlushWorker extends Worker implements AutoCloseable {
 
     protected final String flushConsumerGroupId;
     protected final LazyList<Consumer<Object,FlushRequest>> flushConsumers;
-    protected final Supplier<Consumer<Object,FlushRequest>> flushConsumerFactory;
+    protected final BiFunction<Collection<TopicPartition>,ToLongFunction<TopicPartition>,
+        Consumer<Object,FlushRequest>> flushConsumerFactory;
 
     protected final LazyList<Producer<Object,Object>> dataProducers;
     protected final IntFunction<Producer<Object,Object>> dataProducerFactory;
@@ -78,11 +94,32 @@ public class FlushWorker extends Worker implements AutoCloseable {
     protected final CompletableFuture<ReplicaMapManager> opsSteadyFut;
 
     protected final long maxPollTimeout;
+    protected final ExecutorService flushExecutor;
+    protected final int txPartitions;
+    protected final Coalescer<FlushNotification> flushNotifications;
+
+    /**
+     * The fingerprints of the last flushed values for each partition (see {@link #flushedFingerprint})
+     * or {@code null} if unchanged values are flushed as well.
+     */
+    protected final Map<Integer,Map<Object,Object>> lastFlushedValues;
+
+    /** Max number of records to collect for a single partition in a transaction. */
+    protected final int maxPartitionTxRecords;
 
-    protected final Map<TopicPartition,UnprocessedFlushRequests> unprocessedFlushRequests = new HashMap<>();
-    protected final short[] allowedPartitions;
+    protected final Map<TopicPartition,UnprocessedFlushRequests> unprocessedFlushRequests = new ConcurrentHashMap<>();
+    protected volatile short[] allowedPartitions;
+
+    /** Completed when the flush consumer is reset after the allowed partitions were changed. */
+    protected volatile CompletableFuture<Void> allowedPartitionsChange;
     protected final Set<TopicPartition> assignedPartitions = Collections.newSetFromMap(new ConcurrentHashMap<>());
 
+    /** The partitions we keep the state for, on rebalancing they stay owned until the next assignment. */
+    protected final Set<TopicPartition> ownedPartitions = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    /** The recent number of flushed updates for the partitions. */
+    protected final Map<TopicPartition,DecayingCounter> flushedUpdates = new ConcurrentHashMap<>();
+
     protected final LongAdder receivedFlushRequests;
     protected final LongAdder successfulFlushes;
 
@@ -100,11 +137,17 @@ public class FlushWorker extends Worker implements AutoCloseable {
         LongAdder receivedFlushRequests,
         LongAdder successfulFlushes,
         long maxPollTimeout,
+        int flushParallelism,
+        int txPartitions,
+        long flushCoalesceMs,
+        boolean skipUnchanged,
+        int maxTxRecords,
         short[] allowedPartitions,
         LazyList<Producer<Object,Object>> dataProducers,
         IntFunction<Producer<Object,Object>> dataProducerFactory,
         LazyList<Consumer<Object,FlushRequest>> flushConsumers,
-        Supplier<Consumer<Object,FlushRequest>> flushConsumerFactory
+        BiFunction<Collection<TopicPartition>,ToLongFunction<TopicPartition>,
+            Consumer<Object,FlushRequest>> flushConsumerFactory
     ) {
         super("replicamap-flush-" + dataTopic + "-" +
             Long.toHexString(clientId), workerId);
@@ -126,12 +169,54 @@ public class FlushWorker extends Worker implements AutoCloseable {
         this.dataProducerFactory = dataProducerFactory;
         this.flushConsumers = flushConsumers;
         this.flushConsumerFactory = flushConsumerFactory;
+
+        if (flushParallelism <= 0)
+            throw new IllegalArgumentException("Invalid flush parallelism: " + flushParallelism);
+
+        this.flushExecutor = flushParallelism == 1 ? null : newFlushExecutor(flushParallelism);
+
+        if (txPartitions <= 0)
+            throw new IllegalArgumentException("Invalid tx partitions: " + txPartitions);
+
+        this.txPartitions = txPartitions;
+        this.flushNotifications = new Coalescer<>(flushCoalesceMs, this::doSendFlushNotification);
+        this.lastFlushedValues = skipUnchanged ? new ConcurrentHashMap<>() : null;
+
+        if (maxTxRecords <= 0)
+            throw new IllegalArgumentException("Invalid max tx records: " + maxTxRecords);
+
+        this.maxPartitionTxRecords = maxTxRecords == Integer.MAX_VALUE ?
+            Integer.MAX_VALUE : Math.max(1, maxTxRecords / txPartitions);
+    }
+
+    protected ExecutorService newFlushExecutor(int flushParallelism) {
+        AtomicInteger threadId = new AtomicInteger();
+
+        return Executors.newFixedThreadPool(flushParallelism, r -> {
+            Thread th = new Thread(r, getName() + "-tx-" + threadId.getAndIncrement());
+            th.setDaemon(true);
+            return th;
+        });
     }
 
     @Override
     public void close() {
+        if (flushExecutor != null) {
+            flushExecutor.shutdownNow();
+            try {
+                flushExecutor.awaitTermination(maxPollTimeout, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
         Utils.close(dataProducers);
         Utils.close(flushConsumers);
+
+        CompletableFuture<Void> fut = allowedPartitionsChange;
+        if (fut != null) // The consumer is closed, thus nothing is flushed anymore.
+            fut.complete(null);
     }
 
     @Override
@@ -139,9 +224,12 @@ public class FlushWorker extends Worker implements AutoCloseable {
         long pollTimeoutMs = MIN_POLL_TIMEOUT_MS;
 
         while (!isInterrupted()) {
-            boolean flushed = processFlushRequests(pollTimeoutMs);
+            long notifyDelayMs = flushNotifications.getDelayMs(System.nanoTime());
+            boolean flushed = processFlushRequests(Math.max(MIN_POLL_TIMEOUT_MS, Math.min(pollTimeoutMs, notifyDelayMs)));
             boolean cleaned = processCleanRequests();
 
+            flushNotifications.flush(System.nanoTime());
+
             pollTimeoutMs = updatePollTimeout(pollTimeoutMs, flushed, cleaned);
         }
     }
@@ -198,7 +286,50 @@ public class FlushWorker extends Worker implements AutoCloseable {
         }
     }
 
+    /**
+     * Changes the allowed partitions, the flush consumer will rejoin the group
+     * with the new allowed partitions and the state for all the partitions will be reset.
+     *
+     * @param allowedPartitions Allowed partitions or {@code null} if all are allowed.
+     * @return Future completed when this worker does not flush the partitions that are not allowed anymore.
+     */
+    public synchronized CompletableFuture<Void> setAllowedPartitions(short[] allowedPartitions) {
+        CompletableFuture<Void> fut = allowedPartitionsChange;
+
+        if (fut == null)
+            allowedPartitionsChange = fut = new CompletableFuture<>();
+
+        this.allowedPartitions = allowedPartitions;
+
+        return fut;
+    }
+
+    protected void processAllowedPartitionsChange() {
+        CompletableFuture<Void> fut;
+
+        synchronized (this) {
+            fut = allowedPartitionsChange;
+            allowedPartitionsChange = null;
+        }
+
+        if (fut == null)
+            return;
+
+        Consumer<Object,FlushRequest> flushConsumer = flushConsumers.get(0, null);
+
+        if (flushConsumer != null) {
+            log.debug("Resetting flush consumer, allowed partitions: {}", Arrays.toString(allowedPartitions));
+            resetAll(flushConsumer);
+        }
+
+        fut.complete(null);
+    }
+
     protected boolean processFlushRequests(long pollTimeoutMs) throws InterruptedException, ExecutionException {
+        // The change must be processed even if the ops workers are not steady yet.
+        if (allowedPartitionsChange != null)
+            processAllowedPartitionsChange();
+
         // We start consuming flush requests only when the ops workers are steady,
         // because otherwise we may have not enough data to flush.
         if (!awaitOpsWorkersSteady(pollTimeoutMs))
@@ -240,15 +371,167 @@ public class FlushWorker extends Worker implements AutoCloseable {
             return false;
         }
 
+        List<Map.Entry<TopicPartition,UnprocessedFlushRequests>> flushes = prioritizeFlushes();
+
+        if (flushes.isEmpty())
+            return false;
+
+        Collection<List<Map.Entry<TopicPartition,UnprocessedFlushRequests>>> txGroups = groupFlushes(flushes);
+
+        return flushExecutor == null ?
+            flushPipelined(flushConsumer, txGroups) :
+            flushParallel(flushConsumer, txGroups);
+    }
+
+    /**
+     * Orders the partitions having unprocessed flush requests by priority: the product of the flush queue size
+     * and the age of the oldest unprocessed flush request. Thus the largest backlogs go first, but small
+     * backlogs are not starving because their age grows.
+     *
+     * @return Partitions to flush in order of priority.
+     */
+    protected List<Map.Entry<TopicPartition,UnprocessedFlushRequests>> prioritizeFlushes() {
+        long now = System.currentTimeMillis();
+        Map<TopicPartition,Double> priorities = new HashMap<>();
+        List<Map.Entry<TopicPartition,UnprocessedFlushRequests>> flushes = new ArrayList<>();
+
+        for (Map.Entry<TopicPartition,UnprocessedFlushRequests> entry : unprocessedFlushRequests.entrySet()) {
+            UnprocessedFlushRequests flushReqs = entry.getValue();
+
+            if (flushReqs.isEmpty())
+                continue;
+
+            TopicPartition flushPart = entry.getKey();
+            long backlog = flushQueues.get(flushPart.partition()).size();
+            long ageMs = Math.max(0L, now - flushReqs.getOldestTimestamp());
+
+            priorities.put(flushPart, (double)backlog * (1 + ageMs));
+            flushes.add(entry);
+        }
+
+        flushes.sort((e1, e2) -> Double.compare(priorities.get(e2.getKey()), priorities.get(e1.getKey())));
+        return flushes;
+    }
+
+    /**
+     * Groups the partitions to flush by the transactional data producer they share.
+     *
+     * @param flushes Partitions to flush in order of priority.
+     * @return Groups of partitions to flush in a single transaction in order of priority.
+     */
+    protected Collection<List<Map.Entry<TopicPartition,UnprocessedFlushRequests>>> groupFlushes(
+        List<Map.Entry<TopicPartition,UnprocessedFlushRequests>> flushes
+    ) {
+        Map<Integer,List<Map.Entry<TopicPartition,UnprocessedFlushRequests>>> txGroups = new LinkedHashMap<>();
+
+        for (Map.Entry<TopicPartition,UnprocessedFlushRequests> entry : flushes)
+            txGroups.computeIfAbsent(txGroup(entry.getKey().partition()), g -> new ArrayList<>()).add(entry);
+
+        return txGroups.values();
+    }
+
+    /**
+     * @param part Partition.
+     * @return Index of the transactional data producer for the partition.
+     */
+    protected int txGroup(int part) {
+        return part / txPartitions;
+    }
+
+    /**
+     * Flushes the partitions in the worker thread: begins transactions for all the groups first,
+     * so that the records of each group are being sent by its own data producer
+     * while we are committing the previous ones. The commits themselves are blocking
+     * and run one after another, to commit the groups concurrently use the flush parallelism.
+     *
+     * @param flushConsumer Flush consumer.
+     * @param txGroups Groups of partitions to flush in order of priority.
+     * @return {@code true} If at least one partition was flushed.
+     */
+    protected boolean flushPipelined(
+        Consumer<Object,FlushRequest> flushConsumer,
+        Collection<List<Map.Entry<TopicPartition,UnprocessedFlushRequests>>> txGroups
+    ) {
+        List<FlushTx> flushTxs = new ArrayList<>();
+
+        for (List<Map.Entry<TopicPartition,UnprocessedFlushRequests>> txGroup : txGroups) {
+            FlushTx flushTx;
+            try {
+                flushTx = beginFlush(txGroup);
+            }
+            catch (ResetAllException e) {
+                resetAll(flushConsumer);
+                return false; // All the pending transactions are aborted with their producers.
+            }
+
+            if (flushTx != null)
+                flushTxs.add(flushTx);
+        }
+
         boolean flushed = false;
 
-        // Try process the unprocessed set.
-        for (Map.Entry<TopicPartition,UnprocessedFlushRequests> entry : unprocessedFlushRequests.entrySet())
-             flushed |= flushPartition(flushConsumer, entry.getKey(), entry.getValue());
+        for (FlushTx flushTx : flushTxs) {
+            try {
+                flushed |= commitFlush(flushTx);
+            }
+            catch (ResetAllException e) {
+                resetAll(flushConsumer);
+                return false;
+            }
+        }
 
         return flushed;
     }
 
+    /**
+     * Flushes the groups of partitions concurrently in the flush executor, one transaction per group at a time.
+     * We wait for all the flushes to complete before the next poll, thus the rebalance listener
+     * never runs concurrently with the flushes.
+     *
+     * @param flushConsumer Flush consumer.
+     * @param txGroups Groups of partitions to flush in order of priority.
+     * @return {@code true} If at least one partition was flushed.
+     * @throws InterruptedException If interrupted.
+     */
+    protected boolean flushParallel(
+        Consumer<Object,FlushRequest> flushConsumer,
+        Collection<List<Map.Entry<TopicPartition,UnprocessedFlushRequests>>> txGroups
+    ) throws InterruptedException {
+        List<Future<Boolean>> futs = new ArrayList<>(txGroups.size());
+
+        for (List<Map.Entry<TopicPartition,UnprocessedFlushRequests>> txGroup : txGroups)
+            futs.add(flushExecutor.submit(() -> flushTxGroup(txGroup)));
+
+        boolean flushed = false;
+        boolean reset = false;
+
+        for (Future<Boolean> fut : futs) {
+            try {
+                flushed |= fut.get();
+            }
+            catch (ExecutionException e) {
+                if (!(e.getCause() instanceof ResetAllException))
+                    log.error("Failed to flush partitions for topic: " + flushTopic, e.getCause());
+
+                reset = true;
+            }
+        }
+
+        if (reset) {
+            resetAll(flushConsumer);
+            return false;
+        }
+
+        return flushed;
+    }
+
+    protected boolean flushTxGroup(
+        List<Map.Entry<TopicPartition,UnprocessedFlushRequests>> txGroup
+    ) throws ResetAllException {
+        FlushTx flushTx = beginFlush(txGroup);
+        return flushTx != null && commitFlush(flushTx);
+    }
+
     protected boolean isAllowedPartition(TopicPartition part) {
         return allowedPartitions == null || Utils.contains(allowedPartitions, (short)part.partition());
     }
@@ -303,130 +586,353 @@ public class FlushWorker extends Worker implements AutoCloseable {
 
     protected void resetAll(Consumer<Object,FlushRequest> flushConsumer) {
         assignedPartitions.clear();
+
+        for (TopicPartition flushPart : ownedPartitions)
+            flushQueues.get(flushPart.partition()).removeFlushOwner();
+        ownedPartitions.clear();
         unprocessedFlushRequests.clear();
 
-        for (int part = 0; part < dataProducers.size(); part++)
-            resetDataProducer(new TopicPartition(flushTopic, part));
+        for (int txGroup = 0; txGroup < dataProducers.size(); txGroup++)
+            resetDataProducer(txGroup);
 
         flushConsumers.reset(0, flushConsumer);
     }
 
-    protected boolean flushPartition(
-        Consumer<Object,FlushRequest> flushConsumer,
+    /**
+     * Collects the batches for the group of partitions and sends them to the `data` topic in a new transaction.
+     * Here we must not modify any local state until transaction is successfully committed.
+     *
+     * @param txGroup Group of partitions sharing the data producer.
+     * @return Flush transaction to commit or {@code null} if there is nothing to flush.
+     * @throws ResetAllException If all the partitions must be reset.
+     */
+    protected FlushTx beginFlush(
+        List<Map.Entry<TopicPartition,UnprocessedFlushRequests>> txGroup
+    ) throws ResetAllException {
+        List<PendingFlush> pendingFlushes = new ArrayList<>(txGroup.size());
+
+        for (Map.Entry<TopicPartition,UnprocessedFlushRequests> entry : txGroup) {
+            PendingFlush pendingFlush = collectFlush(entry.getKey(), entry.getValue());
+
+            if (pendingFlush != null)
+                pendingFlushes.add(pendingFlush);
+        }
+
+        if (pendingFlushes.isEmpty())
+            return null;
+
+        FlushTx flushTx = new FlushTx(txGroup(pendingFlushes.get(0).flushPart.partition()), pendingFlushes);
+
+        try {
+            flushTx.dataProducer = dataProducers.get(flushTx.txGroup, null);
+            sendTx(flushTx);
+        }
+        catch (Exception e) {
+            onFlushFailed(flushTx, e);
+            return null;
+        }
+
+        return flushTx;
+    }
+
+    /**
+     * Collects the batch for the partition.
+     *
+     * @param flushPart Flush partition.
+     * @param flushReqs Unprocessed flush requests.
+     * @return Pending flush or {@code null} if there is nothing to flush.
+     * @throws ResetAllException If all the partitions must be reset.
+     */
+    protected PendingFlush collectFlush(
         TopicPartition flushPart,
         UnprocessedFlushRequests flushReqs
-    ) {
+    ) throws ResetAllException {
         if (flushReqs.isEmpty())
-            return false;
+            return null;
 
-        // Here we must not modify any local state until transaction is successfully committed.
         int part = flushPart.partition();
         FlushQueue flushQueue = flushQueues.get(part);
         TopicPartition dataPart = flushQueue.getDataPartition();
 
         log.debug("Processing flush requests for partition {}: {}", dataPart, flushReqs);
 
-        flushQueue.clean(flushReqs.getMaxCleanOffsetOps(), "flushPartitionBegin");
-        FlushQueue.Batch dataBatch = flushQueue.collect(flushReqs.getFlushOffsetOpsStream());
+        if (flushQueue.clean(flushReqs.getMaxCleanOffsetOps(), "flushPartitionBegin") > 0 && lastFlushedValues != null) {
+            // Someone else has flushed the partition after us, the last flushed values are not known anymore.
+            lastFlushedValues.remove(part);
+        }
+        // With a large backlog the batch may end at some earlier flush request,
+        // the rest will be collected for the next transaction.
+        if (!flushQueue.isMaterialized() ||
+            flushReqs.getFlushOffsetOpsStream().max().orElse(-1L) < flushQueue.getMaterializedOffset()
+        ) {
+            // Wait for the flush request sent by the ops worker after the materialization.
+            log.debug("Flush queue for partition {} is not materialized yet.", dataPart);
+            return null;
+        }
+        if (flushReqs.getFlushOffsetOpsStream().max().orElse(-1L) < flushQueue.getCompactedOffset()) {
+            // The ring was compacted beyond the flush requests, wait for the next one.
+            log.debug("Flush queue for partition {} is compacted beyond the flush requests.", dataPart);
+            return null;
+        }
+
+        long holdOffset = flushQueue.getHoldOffset();
+
+        if (flushReqs.getFlushOffsetOpsStream().min().orElse(-1L) >= holdOffset) {
+            // The update at the hold offset is unresolved, flushing beyond it would lose it.
+            log.debug("Flush queue for partition {} is held at offset {}.", dataPart, holdOffset);
+            return null;
+        }
+
+        FlushQueue.Batch dataBatch = flushQueue.collect(
+            flushReqs.getFlushOffsetOpsStream().filter(offset -> offset < holdOffset), maxPartitionTxRecords);
 
         if (dataBatch == null || dataBatch.isEmpty()) {
             // Check if we are too far behind.
-            if (flushReqs.size() > 1) // TODO add to config
-                resetAll(flushConsumer);
+            if (flushReqs.size() > 1 && holdOffset == Long.MAX_VALUE) // TODO add to config
+                throw new ResetAllException();
+
+            return null; // Not enough data.
+        }
+
+        if (lastFlushedValues != null) {
+            FlushQueue.Batch collected = dataBatch;
+            dataBatch = skipUnchanged(part, collected);
 
-            return false; // Not enough data.
+            if (dataBatch != collected)
+                flushQueue.release(collected);
         }
 
         long flushOffsetOps = dataBatch.getMaxOffset();
         OffsetAndMetadata flushConsumerOffset = flushReqs.getFlushConsumerOffsetToCommit(flushOffsetOps);
 
-        int dataBatchSize = dataBatch.size();
-        int collectedAll = dataBatch.getCollectedAll();
-
         if (log.isDebugEnabled()) {
             log.debug("Collected batch for partition {}, dataBatchSize: {}, collectedAll: {}" +
                     ", flushConsumerOffset: {}, flushOffsetOps: {}",
-                dataPart, dataBatchSize, collectedAll, flushConsumerOffset, flushOffsetOps);
+                dataPart, dataBatch.size(), dataBatch.getCollectedAll(), flushConsumerOffset, flushOffsetOps);
         }
 
-        Producer<Object,Object> dataProducer;
-        long flushOffsetData;
+        return new PendingFlush(flushPart, flushQueue, dataBatch, flushConsumerOffset);
+    }
 
-        try {
-            dataProducer = dataProducers.get(part, null);
-            flushOffsetData = flushTx(dataProducer, dataBatch, flushPart, flushConsumerOffset, flushOffsetOps);
+    /**
+     * Removes from the batch the entries with the values equal to the last flushed ones.
+     * At least one entry is always kept to carry the ops offset header.
+     * Tombstones are always flushed, since we do not know if the key was flushed by someone else.
+     *
+     * @param part Partition.
+     * @param dataBatch Collected batch.
+     * @return Batch to flush.
+     */
+    protected FlushQueue.Batch skipUnchanged(int part, FlushQueue.Batch dataBatch) {
+        Map<Object,Object> lastFlushed = lastFlushedValues.get(part);
+
+        if (lastFlushed == null || lastFlushed.isEmpty())
+            return dataBatch;
+
+        // The collected batch is shared with the flush queue and must not be modified.
+        FlushQueue.Batch changed = new FlushQueue.Batch(
+            dataBatch.getMinOffset(), dataBatch.getMaxOffset(), dataBatch.getMaxCleanOffset());
+        Map.Entry<Object,Object> unchanged = null;
+
+        for (Map.Entry<Object,Object> entry : dataBatch.entrySet()) {
+            Object value = entry.getValue();
+
+            if (value != null && isUnchanged(value, lastFlushed.get(entry.getKey())))
+                unchanged = entry;
+            else
+                changed.put(entry.getKey(), value);
         }
-        catch (Exception e) {
-            boolean fenced = e instanceof ProducerFencedException;
 
-            if (fenced || Utils.isInterrupted(e)) {
-                log.warn("Failed to flush data for partition {}, flushConsumerOffset: {}" +
-                        ", flushOffsetOps: {}, flushQueueSize: {}, reason: {}",
-                    dataPart, flushConsumerOffset, flushOffsetOps, flushQueue.size(), Utils.getMessage(e));
-            }
-            else {
-                log.error("Failed to flush data for partition " + dataPart + ", flushConsumerOffset: " + flushConsumerOffset +
-                    ", flushOffsetOps: " + flushOffsetOps + ", exception:", e);
-            }
+        if (unchanged == null)
+            return dataBatch;
+
+        if (changed.isEmpty())
+            changed.put(unchanged.getKey(), unchanged.getValue());
+
+        if (log.isDebugEnabled()) {
+            log.debug("For partition {} skipped {} unchanged data records of {}",
+                flushQueues.get(part).getDataPartition(), dataBatch.size() - changed.size(), dataBatch.size());
+        }
+
+        return changed;
+    }
 
-            if (fenced)
-                resetDataProducer(flushPart);
+    protected void rememberFlushed(int part, FlushQueue.Batch dataBatch) {
+        Map<Object,Object> lastFlushed = lastFlushedValues.computeIfAbsent(part, p -> new HashMap<>());
+
+        for (Map.Entry<Object,Object> entry : dataBatch.entrySet()) {
+            if (entry.getValue() == null)
+                lastFlushed.remove(entry.getKey());
             else
-                resetAll(flushConsumer);
+                lastFlushed.put(entry.getKey(), flushedFingerprint(entry.getValue()));
+        }
+    }
+
+    /**
+     * The last flushed values must not keep the memory: the serialized values are remembered
+     * by a fixed size hash, the value objects are referenced weakly and compared only while
+     * they are still alive, usually as the current values in the map.
+     *
+     * @param value Flushed value.
+     * @return Fingerprint of the value.
+     */
+    protected static Object flushedFingerprint(Object value) {
+        if (value instanceof SerializedValue)
+            return ((SerializedValue)value).fingerprint();
+
+        return new WeakReference<>(value);
+    }
+
+    /**
+     * @param value Value to flush.
+     * @param fingerprint Fingerprint of the last flushed value or {@code null}.
+     * @return {@code true} If the value is equal to the last flushed one.
+     */
+    protected static boolean isUnchanged(Object value, Object fingerprint) {
+        if (fingerprint instanceof Long)
+            return value instanceof SerializedValue && ((SerializedValue)value).fingerprint() == (Long)fingerprint;
+
+        if (fingerprint instanceof WeakReference) {
+            Object flushed = ((WeakReference<?>)fingerprint).get();
+            return flushed != null && Objects.deepEquals(value, flushed);
+        }
+
+        return false;
+    }
+
+    /**
+     * Commits the transaction started by {@link #beginFlush}, then updates the local state
+     * and sends the flush notifications.
+     *
+     * @param flushTx Flush transaction.
+     * @return {@code true} If the flush was successful.
+     * @throws ResetAllException If all the partitions must be reset.
+     */
+    protected boolean commitFlush(FlushTx flushTx) throws ResetAllException {
+        long[] flushOffsetsData;
 
-            return false; // No other handling, the next flush will be our retry.
+        try {
+            flushOffsetsData = commitTx(flushTx);
+        }
+        catch (Exception e) {
+            onFlushFailed(flushTx, e);
+            return false;
         }
 
+        for (int i = 0; i < flushTx.pendingFlushes.size(); i++)
+            onFlushCommitted(flushTx, flushTx.pendingFlushes.get(i), flushOffsetsData[i]);
+
+        return true;
+    }
+
+    protected void onFlushCommitted(FlushTx flushTx, PendingFlush pendingFlush, long flushOffsetData) {
+        TopicPartition flushPart = pendingFlush.flushPart;
+        FlushQueue flushQueue = pendingFlush.flushQueue;
+        TopicPartition dataPart = flushQueue.getDataPartition();
+        long flushOffsetOps = pendingFlush.getFlushOffsetOps();
+
         if (log.isDebugEnabled()) {
             log.debug("Committed tx for partition {}, flushOffsetData: {}, flushOffsetOps: {}, dataProducer: {}, dataBatch: {}",
-                dataPart, flushOffsetData, flushOffsetOps, dataProducer, dataBatch);
+                dataPart, flushOffsetData, flushOffsetOps, flushTx.dataProducer, pendingFlush.dataBatch);
         }
 
         clearUnprocessedFlushRequestsUntil(flushPart, flushOffsetOps);
 
+        flushedUpdates.computeIfAbsent(flushPart, p -> new DecayingCounter(FLUSH_LOAD_HALF_LIFE_MS))
+            .add(pendingFlush.dataBatch.getCollectedAll(), System.nanoTime());
+
+        if (lastFlushedValues != null)
+            rememberFlushed(flushPart.partition(), pendingFlush.dataBatch);
+
+        flushQueue.release(pendingFlush.dataBatch);
+
         if (flushQueue.clean(flushOffsetOps, "flushPartitionEnd") > 0) {
             sendFlushNotification(dataPart, flushOffsetData, flushOffsetOps);
 
             if (log.isDebugEnabled()) {
                 log.debug("Successfully flushed {} data records for partition {}, flushOffsetOps: {}" +
                         ", flushOffsetData: {}, flushQueueSize: {}",
-                    dataBatchSize, dataPart, flushOffsetOps, flushOffsetData, flushQueue.size());
+                    pendingFlush.dataBatch.size(), dataPart, flushOffsetOps, flushOffsetData, flushQueue.size());
             }
         }
 
         successfulFlushes.increment();
-        return true;
     }
 
-    protected long flushTx(
-        Producer<Object,Object> dataProducer,
-        FlushQueue.Batch dataBatch,
-        TopicPartition flushPart,
-        OffsetAndMetadata flushConsumerOffset,
-        long flushOffsetOps
-    ) throws ExecutionException, InterruptedException {
-        assert !dataBatch.isEmpty();
+    protected void onFlushFailed(FlushTx flushTx, Exception e) throws ResetAllException {
+        boolean fenced = e instanceof ProducerFencedException;
 
-        int part = flushPart.partition();
-        Future<RecordMetadata> lastDataRecMetaFut = null;
+        for (PendingFlush pendingFlush : flushTx.pendingFlushes) {
+            pendingFlush.flushQueue.release(pendingFlush.dataBatch);
 
-        int i = 0;
+            TopicPartition dataPart = pendingFlush.flushQueue.getDataPartition();
+            OffsetAndMetadata flushConsumerOffset = pendingFlush.flushConsumerOffset;
+            long flushOffsetOps = pendingFlush.getFlushOffsetOps();
+
+            if (fenced || Utils.isInterrupted(e)) {
+                log.warn("Failed to flush data for partition {}, flushConsumerOffset: {}" +
+                        ", flushOffsetOps: {}, flushQueueSize: {}, reason: {}",
+                    dataPart, flushConsumerOffset, flushOffsetOps, pendingFlush.flushQueue.size(), Utils.getMessage(e));
+            }
+            else {
+                log.error("Failed to flush data for partition " + dataPart + ", flushConsumerOffset: " + flushConsumerOffset +
+                    ", flushOffsetOps: " + flushOffsetOps + ", exception:", e);
+            }
+        }
+
+        if (!fenced)
+            throw new ResetAllException();
+
+        resetDataProducer(flushTx.txGroup);
+        // No other handling, the next flush will be our retry.
+    }
+
+    protected void sendTx(FlushTx flushTx) {
+        Producer<Object,Object> dataProducer = flushTx.dataProducer;
+        Map<TopicPartition,OffsetAndMetadata> flushConsumerOffsets = new HashMap<>();
 
         dataProducer.beginTransaction();
-        for (Map.Entry<Object,Object> entry : dataBatch.entrySet()) {
-            lastDataRecMetaFut = dataProducer.send(new ProducerRecord<>(
-                dataTopic, part, entry.getKey(), entry.getValue(),
-                ++i != dataBatch.size() ? null : newOpsOffsetHeader(flushOffsetOps)));
+        for (PendingFlush pendingFlush : flushTx.pendingFlushes) {
+            FlushQueue.Batch dataBatch = pendingFlush.dataBatch;
+            assert !dataBatch.isEmpty();
+
+            int part = pendingFlush.flushPart.partition();
+            long flushOffsetOps = pendingFlush.getFlushOffsetOps();
+            int i = 0;
+
+            for (Map.Entry<Object,Object> entry : dataBatch.entrySet()) {
+                pendingFlush.lastDataRecMetaFut = dataProducer.send(new ProducerRecord<>(
+                    dataTopic, part, entry.getKey(), entry.getValue(),
+                    ++i != dataBatch.size() ? null : newOpsOffsetHeader(flushOffsetOps)));
+            }
+
+            // We check that the batch is not empty, thus we have to have the last record non-null here.
+            // Since ReplicaMap checks preconditions locally before sending anything to Kafka,
+            // it is impossible to have a large number of failed update attempts,
+            // there must always be a winner, so we will be able to commit periodically.
+            assert pendingFlush.lastDataRecMetaFut != null;
+
+            flushConsumerOffsets.put(pendingFlush.flushPart, pendingFlush.flushConsumerOffset);
         }
-        dataProducer.sendOffsetsToTransaction(singletonMap(flushPart, flushConsumerOffset), flushConsumerGroupId);
-        dataProducer.commitTransaction();
+        dataProducer.sendOffsetsToTransaction(flushConsumerOffsets, flushConsumerGroupId);
+    }
 
-        // We check that the batch is not empty, thus we have to have the last record non-null here.
-        // Since ReplicaMap checks preconditions locally before sending anything to Kafka,
-        // it is impossible to have a large number of failed update attempts,
-        // there must always be a winner, so we will be able to commit periodically.
-        assert lastDataRecMetaFut != null;
-        return lastDataRecMetaFut.get().offset();
+    /**
+     * @param flushTx Flush transaction.
+     * @return The offsets of the last data records for each pending flush.
+     * @throws ExecutionException If failed.
+     * @throws InterruptedException If interrupted.
+     */
+    protected long[] commitTx(FlushTx flushTx) throws ExecutionException, InterruptedException {
+        flushTx.dataProducer.commitTransaction();
+
+        // Commit flushes all the sent records, thus the futures are already completed after that.
+        long[] flushOffsetsData = new long[flushTx.pendingFlushes.size()];
+
+        for (int i = 0; i < flushOffsetsData.length; i++)
+            flushOffsetsData[i] = flushTx.pendingFlushes.get(i).lastDataRecMetaFut.get().offset();
+
+        return flushOffsetsData;
     }
 
     public static Iterable<Header> newOpsOffsetHeader(long offset) {
@@ -434,18 +940,23 @@ public class FlushWorker extends Worker implements AutoCloseable {
     }
 
     protected void sendFlushNotification(TopicPartition dataPart, long flushOffsetData, long flushOffsetOps) {
-        ProducerRecord<Object,OpMessage> flushNotification = new ProducerRecord<>(opsTopic, dataPart.partition(), null,
-            newFlushNotification(flushOffsetData, flushOffsetOps));
+        // The flush notification supersedes the previous ones for the partition, thus they can be coalesced.
+        flushNotifications.send(dataPart.partition(), newFlushNotification(flushOffsetData, flushOffsetOps),
+            System.nanoTime());
+    }
+
+    protected void doSendFlushNotification(int part, FlushNotification flushNotification) {
+        ProducerRecord<Object,OpMessage> rec = new ProducerRecord<>(opsTopic, part, null, flushNotification);
 
         if (log.isDebugEnabled())
-            log.debug("Sending flush notification for partition {}: {}", dataPart, flushNotification);
+            log.debug("Sending flush notification for partition {}: {}", part, rec);
 
         try {
-            opsProducer.send(flushNotification);
+            opsProducer.send(rec);
         }
         catch (Exception e) {
             if (!Utils.isInterrupted(e))
-                log.error("Failed to send flush notification for partition " + dataPart + ": " + flushNotification, e);
+                log.error("Failed to send flush notification for partition " + part + ": " + rec, e);
         }
     }
 
@@ -453,14 +964,14 @@ public class FlushWorker extends Worker implements AutoCloseable {
         return new FlushNotification(clientId, flushOffsetData, flushOffsetOps);
     }
 
-    protected Producer<Object,Object> newDataProducer(int part) {
-        Producer<Object,Object> p = dataProducerFactory.apply(part);
+    protected Producer<Object,Object> newDataProducer(int txGroup) {
+        Producer<Object,Object> p = dataProducerFactory.apply(txGroup);
         p.initTransactions();
         return p;
     }
 
     protected Consumer<Object,FlushRequest> newFlushConsumer(int ignore) {
-        Consumer<Object,FlushRequest> c = flushConsumerFactory.get();
+        Consumer<Object,FlushRequest> c = flushConsumerFactory.apply(ownedPartitions, this::getFlushLoad);
         c.subscribe(singleton(flushTopic), new PartitionRebalanceListener());
         return c;
     }
@@ -472,20 +983,74 @@ public class FlushWorker extends Worker implements AutoCloseable {
             unprocessedFlushRequests.remove(part);
     }
 
+    /**
+     * Seeks the flush consumer to continue from the last received flush requests for the partitions
+     * that were assigned back to us, since the consumer resets the positions of all the assigned partitions.
+     *
+     * @param flushPartitions Partitions to keep.
+     */
+    protected void keepPartitions(Collection<TopicPartition> flushPartitions) {
+        if (log.isDebugEnabled())
+            log.debug("Keeping the state for partitions: {}", convert(flushPartitions, dataTopic));
+
+        Consumer<Object,FlushRequest> flushConsumer = flushConsumers.get(0, null);
+
+        for (TopicPartition flushPart : flushPartitions) {
+            UnprocessedFlushRequests flushReqs = unprocessedFlushRequests.get(flushPart);
+
+            if (flushReqs == null)
+                continue;
+
+            if (flushConsumer != null)
+                flushConsumer.seek(flushPart, flushReqs.getNextFlushReqOffset());
+            else
+                unprocessedFlushRequests.remove(flushPart); // Reload the flush history.
+        }
+    }
+
+    protected Map<Integer,Set<TopicPartition>> groupPartitions(Collection<TopicPartition> flushPartitions) {
+        Map<Integer,Set<TopicPartition>> groups = new HashMap<>();
+
+        for (TopicPartition flushPart : flushPartitions)
+            groups.computeIfAbsent(txGroup(flushPart.partition()), g -> new HashSet<>()).add(flushPart);
+
+        return groups;
+    }
+
     protected void initDataProducers(Collection<TopicPartition> flushPartitions) {
         if (log.isDebugEnabled())
             log.debug("Initializing data producers for partitions: {}", convert(flushPartitions, dataTopic));
 
-        for (TopicPartition partition : flushPartitions) {
-            int part = partition.partition();
-
-            if (dataProducers.get(part, null) != null)
-                throw new IllegalStateException("Producer exists for partition: " + new TopicPartition(dataTopic, part));
+        for (int txGroup : txGroups(flushPartitions)) {
+            if (dataProducers.get(txGroup, null) != null) {
+                throw new IllegalStateException("Producer exists for partition: " +
+                    new TopicPartition(dataTopic, txGroup * txPartitions));
+            }
 
-            dataProducers.get(part, this::newDataProducer);
+            dataProducers.get(txGroup, this::newDataProducer);
         }
     }
 
+    protected Set<Integer> txGroups(Collection<TopicPartition> flushPartitions) {
+        Set<Integer> txGroups = new TreeSet<>();
+
+        for (TopicPartition flushPart : flushPartitions)
+            txGroups.add(txGroup(flushPart.partition()));
+
+        return txGroups;
+    }
+
+    /**
+     * @param flushPart Flush partition.
+     * @return Estimated flush load of the partition: the recent number of flushed updates and the current backlog.
+     */
+    public long getFlushLoad(TopicPartition flushPart) {
+        DecayingCounter flushed = flushedUpdates.get(flushPart);
+
+        return (flushed == null ? 0 : flushed.get(System.nanoTime())) +
+            flushQueues.get(flushPart.partition()).size();
+    }
+
     public Set<TopicPartition> getAssignedPartitions() {
         return assignedPartitions;
     }
@@ -500,33 +1065,127 @@ public class FlushWorker extends Worker implements AutoCloseable {
         if (log.isDebugEnabled())
             log.debug("Resetting data producers for partitions: {}", convert(flushPartitions, dataTopic));
 
-        for (TopicPartition flushPart : flushPartitions)
-            resetDataProducer(flushPart);
+        for (int txGroup : txGroups(flushPartitions))
+            resetDataProducer(txGroup);
     }
 
-    protected void resetDataProducer(TopicPartition flushPart) {
-        int part = flushPart.partition();
-        Producer<Object,Object> dataProducer = dataProducers.get(part, null);
+    protected void resetDataProducer(int txGroup) {
+        Producer<Object,Object> dataProducer = dataProducers.get(txGroup, null);
 
         if (dataProducer != null)
-            dataProducers.reset(part, dataProducer);
+            dataProducers.reset(txGroup, dataProducer);
 
-        unprocessedFlushRequests.remove(flushPart);
+        // All the partitions of the group must reload the flush history,
+        // someone else may flush them meanwhile, thus the last flushed values are not known anymore.
+        int first = txGroup * txPartitions;
+        for (int part = first; part < first + txPartitions; part++) {
+            unprocessedFlushRequests.remove(new TopicPartition(flushTopic, part));
+
+            if (lastFlushedValues != null)
+                lastFlushedValues.remove(part);
+        }
+    }
+
+    /**
+     * The collected flush of a single partition.
+     */
+    protected static class PendingFlush {
+        protected final TopicPartition flushPart;
+        protected final FlushQueue flushQueue;
+        protected final FlushQueue.Batch dataBatch;
+        protected final OffsetAndMetadata flushConsumerOffset;
+
+        protected Future<RecordMetadata> lastDataRecMetaFut;
+
+        protected PendingFlush(
+            TopicPartition flushPart,
+            FlushQueue flushQueue,
+            FlushQueue.Batch dataBatch,
+            OffsetAndMetadata flushConsumerOffset
+        ) {
+            this.flushPart = flushPart;
+            this.flushQueue = flushQueue;
+            this.dataBatch = dataBatch;
+            this.flushConsumerOffset = flushConsumerOffset;
+        }
+
+        public long getFlushOffsetOps() {
+            return dataBatch.getMaxOffset();
+        }
+    }
+
+    /**
+     * The flush transaction of a group of partitions which is sent but not committed yet.
+     */
+    protected static class FlushTx {
+        protected final int txGroup;
+        protected final List<PendingFlush> pendingFlushes;
+
+        protected Producer<Object,Object> dataProducer;
+
+        protected FlushTx(int txGroup, List<PendingFlush> pendingFlushes) {
+            this.txGroup = txGroup;
+            this.pendingFlushes = pendingFlushes;
+        }
+    }
+
+    /**
+     * Thrown when the flush consumer and all the data producers must be reset.
+     */
+    protected static class ResetAllException extends Exception {
+        static final long serialVersionUID = 1L;
+
+        protected ResetAllException() {
+            super(null, null, false, false);
+        }
     }
 
     /**
      * We initialize transactional data producer in the listener to make sure
      * it happens before the fetch, otherwise races are possible on rebalancing.
+     * <p>
+     * On rebalancing all the partitions are revoked first, but we keep the state until the new assignment
+     * and reset only the groups of partitions that actually moved, the rest are assigned back
+     * to us by the sticky assignor and continue from where they were.
      */
     protected class PartitionRebalanceListener implements ConsumerRebalanceListener {
         @Override
         public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
-            if (partitions.isEmpty())
-                return;
-
             log.debug("Flush partitions assigned: {}", partitions);
-            clearUnprocessedFlushRequests(partitions);
-            initDataProducers(partitions);
+
+            Map<Integer,Set<TopicPartition>> assignedGroups = groupPartitions(partitions);
+            Set<TopicPartition> kept = new HashSet<>();
+
+            for (Map.Entry<Integer,Set<TopicPartition>> entry : groupPartitions(ownedPartitions).entrySet()) {
+                if (entry.getValue().equals(assignedGroups.get(entry.getKey())))
+                    kept.addAll(entry.getValue());
+                else
+                    resetDataProducer(entry.getKey());
+            }
+
+            List<TopicPartition> added = partitions.stream()
+                .filter(p -> !kept.contains(p))
+                .collect(toList());
+
+            keepPartitions(kept);
+
+            if (!added.isEmpty()) {
+                clearUnprocessedFlushRequests(added);
+                initDataProducers(added);
+            }
+
+            for (TopicPartition flushPart : ownedPartitions) {
+                if (!partitions.contains(flushPart))
+                    flushQueues.get(flushPart.partition()).removeFlushOwner();
+            }
+
+            for (TopicPartition flushPart : partitions) {
+                if (!ownedPartitions.contains(flushPart))
+                    flushQueues.get(flushPart.partition()).addFlushOwner();
+            }
+
+            ownedPartitions.retainAll(kept);
+            ownedPartitions.addAll(partitions);
             assignedPartitions.addAll(partitions);
         }
 
@@ -535,9 +1194,8 @@ public class FlushWorker extends Worker implements AutoCloseable {
             if (partitions.isEmpty())
                 return;
 
+            // Do not reset anything here, most of the partitions may be assigned back.
             log.debug("Flush partitions revoked: {}", partitions);
-            clearUnprocessedFlushRequests(partitions);
-            resetDataProducers(partitions);
             assignedPartitions.removeAll(partitions);
         }
     }
@@ -47,6 +47,13 @@ public class UnprocessedFlushRequests {
         return initialized;
     }
 
+    /**
+     * @return The offset of the next flush request record to add.
+     */
+    public long getNextFlushReqOffset() {
+        return maxFlushReqOffset + 1;
+    }
+
     @Override
     public String toString() {
         return "UnprocessedFlushRequests{" +
@@ -105,6 +112,14 @@ public class UnprocessedFlushRequests {
                 .max().getAsLong();
     }
 
+    /**
+     * @return Timestamp of the oldest unprocessed flush request or {@link Long#MAX_VALUE} if there are none.
+     */
+    public long getOldestTimestamp() {
+        ConsumerRecord<Object,FlushRequest> flushReq = flushReqs.peek();
+        return flushReq == null ? Long.MAX_VALUE : flushReq.timestamp();
+    }
+
     public LongStream getFlushOffsetOpsStream() {
         return flushReqs.stream().mapToLong(rec -> rec.value().getFlushOffsetOps());
     }
@@ -0,0 +1,256 @@
+package com.vladykin.replicamap.kafka.impl.worker.members;
+
+import com.vladykin.replicamap.ReplicaMapException;
+import com.vladykin.replicamap.kafka.impl.util.Utils;
+import com.vladykin.replicamap.kafka.impl.worker.Worker;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndTimestamp;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.vladykin.replicamap.kafka.impl.util.Utils.MIN_POLL_TIMEOUT_MS;
+
+/**
+ * Tracks the live members through the `members` topic: each member periodically sends a heartbeat
+ * record with its member id as the key and its timeout as the value, the member is considered
+ * alive until the timeout passes after its last heartbeat. On close the member sends a tombstone
+ * to leave without waiting for the timeout.
+ * <p>
+ * The timeout is negative while the member is not steady (e.g. still loading its partitions),
+ * thus the others may keep serving the partitions it takes over until it becomes steady.
+ * <p>
+ * On start the heartbeats are read from the time of the timeout ago, thus the topic may have
+ * a short retention and only needs a single partition.
+ *
+ * @author Sergi Vladykin http://vladykin.com
+ */
+public class MembersWorker extends Worker implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(MembersWorker.class);
+
+    protected final String memberId;
+    protected final String membersTopic;
+    protected final long heartbeatMs;
+    protected final long timeoutMs;
+
+    protected final Producer<String,Long> producer;
+    protected final org.apache.kafka.clients.consumer.Consumer<String,Long> consumer;
+    protected final BooleanSupplier steady;
+    protected final BiConsumer<Set<String>,Set<String>> listener;
+
+    /** The expiration time for each known member. */
+    protected final Map<String,Long> deadlines = new HashMap<>();
+    /** The known members that are not steady yet. */
+    protected final Set<String> unsteady = new HashSet<>();
+    protected volatile Set<String> members = Collections.emptySet();
+    protected volatile Set<String> steadyMembers = Collections.emptySet();
+    protected long lastHeartbeat;
+    protected boolean lastHeartbeatSteady;
+
+    public MembersWorker(
+        String memberId,
+        String membersTopic,
+        long heartbeatMs,
+        long timeoutMs,
+        Producer<String,Long> producer,
+        org.apache.kafka.clients.consumer.Consumer<String,Long> consumer,
+        BooleanSupplier steady,
+        BiConsumer<Set<String>,Set<String>> listener
+    ) {
+        super("replicamap-members-" + membersTopic + "-" + memberId, 0);
+
+        Utils.check(heartbeatMs >= MIN_POLL_TIMEOUT_MS, () -> "Heartbeat interval is too small: " + heartbeatMs);
+        Utils.check(timeoutMs > heartbeatMs, () -> "Members timeout must be greater than the heartbeat interval.");
+
+        this.memberId = Utils.requireNonNull(memberId, "memberId");
+        this.membersTopic = Utils.requireNonNull(membersTopic, "membersTopic");
+        this.heartbeatMs = heartbeatMs;
+        this.timeoutMs = timeoutMs;
+        this.producer = Utils.requireNonNull(producer, "producer");
+        this.consumer = Utils.requireNonNull(consumer, "consumer");
+        this.steady = Utils.requireNonNull(steady, "steady");
+        this.listener = Utils.requireNonNull(listener, "listener");
+    }
+
+    /**
+     * Joins the members and reads the recent heartbeats of the others, must be called before the worker is started.
+     *
+     * @return Live members including this one.
+     */
+    public Set<String> join() {
+        List<TopicPartition> parts = Utils.partitions(consumer, membersTopic);
+        consumer.assign(parts);
+
+        long now = currentTimeMillis();
+        Map<TopicPartition,Long> times = new HashMap<>();
+        for (TopicPartition part : parts)
+            times.put(part, now - timeoutMs);
+
+        Map<TopicPartition,OffsetAndTimestamp> offsets = consumer.offsetsForTimes(times);
+        Map<TopicPartition,Long> endOffsets = consumer.endOffsets(parts);
+
+        for (TopicPartition part : parts) {
+            OffsetAndTimestamp offset = offsets == null ? null : offsets.get(part);
+            consumer.seek(part, offset == null ? endOffsets.get(part) : offset.offset());
+        }
+
+        sendHeartbeat(now);
+
+        while (!isReadUpTo(endOffsets)) {
+            if (currentTimeMillis() - now > timeoutMs)
+                throw new ReplicaMapException("Failed to read the members topic: " + membersTopic);
+
+            processHeartbeats(Utils.poll(consumer, heartbeatMs));
+        }
+
+        updateMembers(false);
+
+        if (log.isDebugEnabled())
+            log.debug("Member {} joined, live members: {}", memberId, members);
+
+        return members;
+    }
+
+    protected boolean isReadUpTo(Map<TopicPartition,Long> endOffsets) {
+        for (Map.Entry<TopicPartition,Long> entry : endOffsets.entrySet()) {
+            if (consumer.position(entry.getKey()) < entry.getValue())
+                return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    protected void doRun() {
+        while (!isInterrupted()) {
+            long sinceHeartbeat = currentTimeMillis() - lastHeartbeat;
+
+            // The change of the steady state is sent right away to release the kept partitions faster.
+            if (sinceHeartbeat >= heartbeatMs || steady.getAsBoolean() != lastHeartbeatSteady) {
+                sendHeartbeat(currentTimeMillis());
+                sinceHeartbeat = 0;
+            }
+
+            processHeartbeats(Utils.poll(consumer, Math.max(MIN_POLL_TIMEOUT_MS, heartbeatMs - sinceHeartbeat)));
+            updateMembers(true);
+        }
+    }
+
+    protected void sendHeartbeat(long now) {
+        lastHeartbeat = now;
+        lastHeartbeatSteady = steady.getAsBoolean();
+        long timeout = lastHeartbeatSteady ? timeoutMs : -timeoutMs;
+
+        producer.send(new ProducerRecord<>(membersTopic, memberId, timeout), (meta, err) -> {
+            if (err != null && !isInterrupted())
+                log.warn("Failed to send heartbeat for member {}: {}", memberId, Utils.getMessage(err));
+        });
+    }
+
+    protected void processHeartbeats(Iterable<ConsumerRecord<String,Long>> recs) {
+        long now = currentTimeMillis();
+
+        for (ConsumerRecord<String,Long> rec : recs) {
+            String member = rec.key();
+
+            if (member == null)
+                continue;
+
+            if (rec.value() == null) { // The member left.
+                deadlines.remove(member);
+                unsteady.remove(member);
+            }
+            else {
+                // The heartbeat timestamp is used only to expire the old records
+                // read on join, thus the clock skew is capped with the local time.
+                long ts = rec.timestamp() < 0 ? now : Math.min(rec.timestamp(), now);
+                long timeout = rec.value();
+                deadlines.put(member, ts + Math.abs(timeout));
+
+                if (timeout < 0)
+                    unsteady.add(member);
+                else
+                    unsteady.remove(member);
+            }
+        }
+    }
+
+    protected void updateMembers(boolean notify) {
+        long now = currentTimeMillis();
+        deadlines.values().removeIf(deadline -> deadline < now);
+        unsteady.retainAll(deadlines.keySet());
+
+        Set<String> live = new TreeSet<>(deadlines.keySet());
+        live.add(memberId); // This member is always alive for itself.
+
+        Set<String> liveSteady = new TreeSet<>(live);
+        liveSteady.removeAll(unsteady);
+
+        if (!steady.getAsBoolean())
+            liveSteady.remove(memberId);
+
+        if (live.equals(members) && liveSteady.equals(steadyMembers))
+            return;
+
+        if (notify && !live.equals(members))
+            log.info("Live members changed for member {}: {}", memberId, live);
+
+        members = Collections.unmodifiableSet(live);
+        steadyMembers = Collections.unmodifiableSet(liveSteady);
+
+        if (notify) {
+            if (log.isDebugEnabled())
+                log.debug("Steady members for member {}: {}", memberId, steadyMembers);
+
+            try {
+                listener.accept(members, steadyMembers);
+            }
+            catch (Exception e) {
+                log.error("Failed to process members change for member " + memberId, e);
+            }
+        }
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * @return The last known live members.
+     */
+    public Set<String> getMembers() {
+        return members;
+    }
+
+    /**
+     * @return The last known live members that are steady.
+     */
+    public Set<String> getSteadyMembers() {
+        return steadyMembers;
+    }
+
+    @Override
+    public void close() {
+        try {
+            // Leave without waiting for the timeout, so that the others take our partitions faster.
+            producer.send(new ProducerRecord<>(membersTopic, memberId, null));
+        }
+        catch (Exception e) {
+            log.warn("Failed to send leave record for member {}: {}", memberId, Utils.getMessage(e));
+        }
+
+        Utils.close(producer);
+        Utils.close(consumer);
+    }
+}
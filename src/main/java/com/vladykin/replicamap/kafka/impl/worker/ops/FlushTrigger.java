@@ -0,0 +1,191 @@
+package com.vladykin.replicamap.kafka.impl.worker.ops;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the ops worker must issue a flush request for a partition.
+ * <p>
+ * A flush is requested on the local record when any of the following is true:
+ * <ul>
+ *     <li>the record offset is a multiple of the period in operations,</li>
+ *     <li>the accumulated serialized size of the updates since the last flush reached the period in bytes,</li>
+ *     <li>the oldest update since the last flush is older than the period in milliseconds,</li>
+ *     <li>replaying the updates since the last flush would take longer than the max replay time,
+ *         estimated from the observed apply rate of the partition.</li>
+ * </ul>
+ * Partitions with unflushed updates that stay idle for the period in milliseconds after the last update
+ * are flushed by the client of the last update, like the other triggers only the local records can fire.
+ * <p>
+ * Not thread safe, must be used only by the owning ops worker.
+ *
+ * @author Sergi Vladykin http://vladykin.com
+ */
+public class FlushTrigger {
+    protected static final double RATE_WEIGHT = 0.1;
+
+    protected final int periodOps;
+    protected final long periodNanos;
+    protected final long periodBytes;
+    protected final long maxReplayNanos;
+
+    protected final Map<Integer,PartitionState> states = new HashMap<>();
+
+    /**
+     * @param periodOps Period in operations.
+     * @param periodMs Period in milliseconds or {@code 0} to disable.
+     * @param periodBytes Period in bytes or {@code 0} to disable.
+     * @param maxReplayMs Max replay time in milliseconds or {@code 0} to disable.
+     */
+    public FlushTrigger(int periodOps, long periodMs, long periodBytes, long maxReplayMs) {
+        if (periodOps <= 0 || periodMs < 0 || periodBytes < 0 || maxReplayMs < 0) {
+            throw new IllegalArgumentException("Invalid flush periods: " + periodOps + ", " +
+                periodMs + ", " + periodBytes + ", " + maxReplayMs);
+        }
+
+        this.periodOps = periodOps;
+        this.periodNanos = TimeUnit.MILLISECONDS.toNanos(periodMs);
+        this.periodBytes = periodBytes;
+        this.maxReplayNanos = TimeUnit.MILLISECONDS.toNanos(maxReplayMs);
+    }
+
+    public int getPeriodOps() {
+        return periodOps;
+    }
+
+    protected PartitionState state(int part) {
+        return states.computeIfAbsent(part, p -> new PartitionState(-1L));
+    }
+
+    /**
+     * Sets up the last flushed offset before processing the records.
+     *
+     * @param part Partition.
+     * @param flushOffsetOps Last flushed offset.
+     */
+    public void init(int part, long flushOffsetOps) {
+        states.put(part, new PartitionState(flushOffsetOps));
+    }
+
+    /**
+     * @param part Partition.
+     * @param offset Record offset.
+     * @param local If the record was sent by the local client.
+     * @param update If the record is a map update.
+     * @param bytes Serialized record size.
+     * @param nowNanos Current time.
+     * @return {@code true} If the flush request must be sent for this record offset.
+     */
+    public boolean onRecord(int part, long offset, boolean local, boolean update, long bytes, long nowNanos) {
+        PartitionState st = state(part);
+
+        if (update) {
+            if (!st.pending) {
+                st.pending = true;
+                st.firstPendingNanos = nowNanos;
+            }
+
+            st.pendingBytes += Math.max(0L, bytes);
+            st.lastUpdateOffset = offset;
+            st.lastUpdateNanos = nowNanos;
+            st.lastUpdateLocal = local;
+        }
+
+        if (!local || offset <= 0 || offset <= st.flushOffset)
+            return false;
+
+        if (offset % periodOps == 0 ||
+            (update && (isBytesExceeded(st) || isTimeExceeded(st, nowNanos, periodNanos) || isReplayExceeded(st, offset)))
+        ) {
+            st.flushed(offset, false);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @param part Partition.
+     * @param nowNanos Current time.
+     * @return The offset to flush the idle partition at or {@code -1} if not needed.
+     */
+    public long onIdle(int part, long nowNanos) {
+        PartitionState st = states.get(part);
+
+        if (st == null || !st.pending || !st.lastUpdateLocal || st.lastUpdateOffset <= st.flushOffset)
+            return -1L;
+
+        if (periodNanos <= 0 || nowNanos - st.lastUpdateNanos < periodNanos)
+            return -1L;
+
+        long offset = st.lastUpdateOffset;
+        st.flushed(offset, false);
+        return offset;
+    }
+
+    /**
+     * @param part Partition.
+     * @param flushOffsetOps Flushed offset from the received flush notification.
+     */
+    public void onFlushNotification(int part, long flushOffsetOps) {
+        PartitionState st = state(part);
+
+        if (flushOffsetOps > st.flushOffset)
+            st.flushed(flushOffsetOps, st.lastUpdateOffset > flushOffsetOps);
+    }
+
+    /**
+     * Updates the observed apply rate of the partition.
+     *
+     * @param part Partition.
+     * @param ops Number of applied operations.
+     * @param nanos Time spent.
+     */
+    public void onApplied(int part, int ops, long nanos) {
+        if (ops <= 0 || nanos <= 0)
+            return;
+
+        PartitionState st = state(part);
+        double x = (double)nanos / ops;
+        st.nanosPerOp = st.nanosPerOp == 0.0 ? x : st.nanosPerOp + RATE_WEIGHT * (x - st.nanosPerOp);
+    }
+
+    protected boolean isBytesExceeded(PartitionState st) {
+        return periodBytes > 0 && st.pendingBytes >= periodBytes;
+    }
+
+    protected boolean isTimeExceeded(PartitionState st, long nowNanos, long period) {
+        return period > 0 && st.pending && nowNanos - st.firstPendingNanos >= period;
+    }
+
+    protected boolean isReplayExceeded(PartitionState st, long offset) {
+        return maxReplayNanos > 0 && (offset - st.flushOffset) * st.nanosPerOp >= maxReplayNanos;
+    }
+
+    protected static class PartitionState {
+        protected long flushOffset;
+        protected long pendingBytes;
+        protected long firstPendingNanos;
+        protected boolean pending;
+        protected long lastUpdateOffset = -1L;
+        protected long lastUpdateNanos;
+        protected boolean lastUpdateLocal;
+        protected double nanosPerOp;
+
+        protected PartitionState(long flushOffset) {
+            this.flushOffset = flushOffset;
+        }
+
+        /**
+         * @param offset Flushed offset.
+         * @param hasPending If there are updates after the flushed offset.
+         */
+        protected void flushed(long offset, boolean hasPending) {
+            flushOffset = offset;
+            pendingBytes = 0L;
+
+            pending = hasPending;
+        }
+    }
+}
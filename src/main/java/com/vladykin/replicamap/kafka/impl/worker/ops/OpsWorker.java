@@ -3,18 +3,26 @@ package com.vladykin.replicamap.kafka.impl.worker.ops;
 import com.vladykin.replicamap.ReplicaMapException;
 import com.vladykin.replicamap.kafka.impl.msg.FlushNotification;
 import com.vladykin.replicamap.kafka.impl.msg.FlushRequest;
+import com.vladykin.replicamap.kafka.impl.msg.KeyFilterDeserializer;
 import com.vladykin.replicamap.kafka.impl.msg.MapUpdate;
 import com.vladykin.replicamap.kafka.impl.msg.OpMessage;
+import com.vladykin.replicamap.kafka.impl.msg.SerializedValue;
 import com.vladykin.replicamap.kafka.impl.util.Box;
+import com.vladykin.replicamap.kafka.impl.util.Coalescer;
 import com.vladykin.replicamap.kafka.impl.util.Utils;
 import com.vladykin.replicamap.kafka.impl.worker.Worker;
 import com.vladykin.replicamap.kafka.impl.worker.flush.FlushQueue;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 import org.apache.kafka.clients.consumer.Consumer;
@@ -34,11 +42,23 @@ import static com.vladykin.replicamap.kafka.impl.msg.OpMessage.OP_PUT;
 import static com.vladykin.replicamap.kafka.impl.msg.OpMessage.OP_REMOVE_ANY;
 import static com.vladykin.replicamap.kafka.impl.util.Utils.MIN_POLL_TIMEOUT_MS;
 import static com.vladykin.replicamap.kafka.impl.worker.flush.FlushWorker.OPS_OFFSET_HEADER;
+import static java.util.Collections.emptySet;
 import static java.util.Collections.singleton;
 
 /**
  * Loads the initial state from the `data` topic and then
  * polls the `ops` topic and applies the updates to the inner map.
+ * <p>
+ * The worker without flush queues does not keep the updates for flushing by this client,
+ * but still sends flush requests for the local updates. The read-only worker
+ * has no flush producer either, it only applies the updates.
+ * <p>
+ * The partitions can be removed at runtime (see {@link #removePartitions}), the worker
+ * without partitions closes its consumers and stops. The new partitions are loaded by new workers.
+ * <p>
+ * The records of the maps not materialized by this client or of the keys not replicated to it
+ * (see {@link KeyFilterDeserializer}) may be skipped by the consumers
+ * without deserialization (see {@link #isSkipped}), such records are not applied.
  *
  * @author Sergi Vladykin http://vladykin.com
  */
@@ -53,11 +73,16 @@ public class OpsWorker extends Worker implements AutoCloseable {
 
     protected final List<TopicPartition> assignedOpsParts;
 
+    /** The requests to remove partitions, processed by the worker thread. */
+    protected final Queue<RemovePartitions> removeRequests = new ConcurrentLinkedQueue<>();
+    protected volatile boolean stopped;
+
     protected Consumer<Object,Object> dataConsumer;
     protected final Consumer<Object,OpMessage> opsConsumer;
     protected final Producer<Object,FlushRequest> flushProducer;
 
-    protected final int flushPeriodOps;
+    protected final FlushTrigger flushTrigger;
+    protected final Coalescer<FlushRequest> flushRequests;
     protected final List<FlushQueue> flushQueues;
     protected final Queue<ConsumerRecord<Object,FlushNotification>> cleanQueue;
 
@@ -67,8 +92,16 @@ public class OpsWorker extends Worker implements AutoCloseable {
     protected Map<TopicPartition,Long> endOffsetsOps;
     protected int maxAllowedSteadyLag;
 
+    /** The futures completed when each of the assigned partitions becomes steady. */
+    protected final Map<Integer,CompletableFuture<Void>> partsSteadyFuts = new ConcurrentHashMap<>();
+    /** The end offsets the partitions must reach to become steady, fetched once when the first records are polled. */
+    protected Map<TopicPartition,Long> partsSteadyOffsets;
+
     protected final Map<TopicPartition,FlushNotification> lastFlushNotifications = new HashMap<>();
 
+    /** The partitions being replayed to materialize the lazy flush queues. */
+    protected final Map<TopicPartition,Replay> replays = new HashMap<>();
+
     protected final LongAdder sentFlushRequests;
     protected final LongAdder receivedUpdates;
     protected final LongAdder receivedDataRecords;
@@ -84,7 +117,8 @@ public class OpsWorker extends Worker implements AutoCloseable {
         Consumer<Object,Object> dataConsumer,
         Consumer<Object,OpMessage> opsConsumer,
         Producer<Object,FlushRequest> flushProducer,
-        int flushPeriodOps,
+        FlushTrigger flushTrigger,
+        long flushCoalesceMs,
         List<FlushQueue> flushQueues,
         Queue<ConsumerRecord<Object,FlushNotification>> cleanQueue,
         OpsUpdateHandler updateHandler,
@@ -101,7 +135,10 @@ public class OpsWorker extends Worker implements AutoCloseable {
 
         assignedOpsParts = assignedParts.stream()
             .map((part) -> new TopicPartition(opsTopic, part))
-            .collect(Collectors.toList());
+            .collect(Collectors.toCollection(CopyOnWriteArrayList::new));
+
+        for (int part : assignedParts)
+            partsSteadyFuts.put(part, new CompletableFuture<>());
 
         this.clientId = clientId;
         this.dataTopic = dataTopic;
@@ -110,7 +147,8 @@ public class OpsWorker extends Worker implements AutoCloseable {
         this.dataConsumer = dataConsumer;
         this.opsConsumer = opsConsumer;
         this.flushProducer = flushProducer;
-        this.flushPeriodOps = flushPeriodOps;
+        this.flushTrigger = Utils.requireNonNull(flushTrigger, "flushTrigger");
+        this.flushRequests = new Coalescer<>(flushCoalesceMs, this::doSendFlushRequest);
         this.flushQueues = flushQueues;
         this.cleanQueue = cleanQueue;
         this.updateHandler = updateHandler;
@@ -170,12 +208,24 @@ public class OpsWorker extends Worker implements AutoCloseable {
 
             for (ConsumerRecord<Object,Object> rec : recs.records(dataPart)) {
                 log.trace("Loading data partition {}, record: {}", dataPart, rec);
-                applyDataTopicRecord(rec);
+
+                if (!isSkipped(rec))
+                    applyDataTopicRecord(rec);
+
+                // The skipped record still has the ops offset header.
                 lastDataRec = rec;
             }
         }
     }
 
+    /**
+     * @param rec Record.
+     * @return {@code true} If the record filtered out by this client was not deserialized.
+     */
+    protected static boolean isSkipped(ConsumerRecord<?,?> rec) {
+        return rec.key() == null && rec.serializedKeySize() >= 0;
+    }
+
     protected void applyDataTopicRecord(ConsumerRecord<Object,Object> dataRec) {
         Object key = dataRec.key();
         Object val = dataRec.value();
@@ -187,18 +237,31 @@ public class OpsWorker extends Worker implements AutoCloseable {
     }
 
     protected void applyOpsTopicRecords(TopicPartition opsPart, List<ConsumerRecord<Object,OpMessage>> partRecs) {
-        FlushQueue flushQueue = flushQueues.get(opsPart.partition());
+        FlushQueue flushQueue = flushQueues == null ? null : flushQueues.get(opsPart.partition());
 
         int lastIndex = partRecs.size() - 1;
         Box<Object> updatedValueBox = new Box<>();
+        long startNanos = System.nanoTime();
+        int firstIndex = replay(opsPart, flushQueue, partRecs);
 
-        for (int i = 0; i <= lastIndex; i++) {
+        for (int i = firstIndex; i <= lastIndex; i++) {
             updatedValueBox.clear();
             ConsumerRecord<Object,OpMessage> rec = partRecs.get(i);
 
             if (log.isTraceEnabled())
                 log.trace("Applying op to partition {}, steady: {}, record: {}", opsPart, isSteady(), rec);
 
+            if (isSkipped(rec)) {
+                if (flushQueue != null)
+                    flushQueue.add(null, null, rec.offset());
+
+                // The skipped update is never local, but it is still pending for flush.
+                if (!isReadOnly())
+                    flushTrigger.onRecord(opsPart.partition(), rec.offset(), false, true, recordSize(rec), System.nanoTime());
+
+                continue;
+            }
+
             Object key = rec.key();
             OpMessage op = rec.value();
             long opClientId = op.getClientId();
@@ -206,7 +269,6 @@ public class OpsWorker extends Worker implements AutoCloseable {
 
             boolean updated = false;
             boolean needClean = false;
-            boolean needFlush = opClientId == clientId && rec.offset() > 0 && rec.offset() % flushPeriodOps == 0;
 
             if (key == null) {
                 if (opType == OP_FLUSH_NOTIFICATION) {
@@ -219,6 +281,7 @@ public class OpsWorker extends Worker implements AutoCloseable {
                         // If someone else has successfully flushed the data, we need to cleanup our flush queue.
                         needClean = opClientId != clientId;
                         lastFlushNotifications.put(opsPart, flush);
+                        flushTrigger.onFlushNotification(opsPart.partition(), flush.getFlushOffsetOps());
                         log.debug("Received flush notification for partition {}: {}", opsPart, rec);
                     }
                 }
@@ -246,20 +309,138 @@ public class OpsWorker extends Worker implements AutoCloseable {
 //                    updated, needFlush, key, updatedValueBox.get());
             }
 
-            flushQueue.add(
-                updated ? key : null,
-                updatedValueBox.get(),
-                rec.offset(),
-                needClean || needFlush || i == lastIndex);
-
-            if (needFlush) {
-                FlushNotification lastFlush = lastFlushNotifications.get(opsPart);
-                long lastCleanOffsetOps = lastFlush == null ? -1L : lastFlush.getFlushOffsetOps();
-                sendFlushRequest(opsPart, rec.offset(), lastCleanOffsetOps);
+            if (flushQueue != null) {
+                flushQueue.add(
+                    updated ? key : null,
+                    updated ? flushValue(op, updatedValueBox.get()) : null,
+                    rec.offset());
             }
-            else if (needClean)
+
+            if (isReadOnly())
+                continue;
+
+            boolean needFlush = flushTrigger.onRecord(opsPart.partition(), rec.offset(), opClientId == clientId,
+                key != null, recordSize(rec), System.nanoTime());
+
+            if (needFlush)
+                sendFlushRequest(opsPart, rec.offset(), lastCleanOffsetOps(opsPart));
+            else if (needClean && flushQueue != null)
                 sendCleanRequest(opsPart, Utils.cast(rec));
         }
+
+        flushTrigger.onApplied(opsPart.partition(), partRecs.size() - firstIndex, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Collects the keys from the replayed records that were already applied
+     * and materializes the flush queue when the replay is finished.
+     *
+     * @param opsPart Ops partition.
+     * @param flushQueue Flush queue.
+     * @param partRecs Records.
+     * @return Index of the first record to apply.
+     */
+    protected int replay(TopicPartition opsPart, FlushQueue flushQueue, List<ConsumerRecord<Object,OpMessage>> partRecs) {
+        Replay replay = replays.get(opsPart);
+
+        if (replay == null)
+            return 0;
+
+        int i = 0;
+
+        for (; i < partRecs.size(); i++) {
+            ConsumerRecord<Object,OpMessage> rec = partRecs.get(i);
+
+            if (rec.offset() > replay.maxOffset)
+                break;
+
+            if (rec.key() != null)
+                replay.keys.add(rec.key());
+        }
+
+        if (i < partRecs.size() || partRecs.get(i - 1).offset() == replay.maxOffset) {
+            replays.remove(opsPart);
+
+            log.debug("Replayed partition {} until offset {}, keys: {}", opsPart, replay.maxOffset, replay.keys.size());
+
+            // The ops worker could be asked to dematerialize while replaying.
+            // The earlier flush requests can not be collected from the materialized queue, send a new one.
+            if (flushQueue.isMaterializeNeeded() && flushQueue.materialize(replay.keys))
+                sendFlushRequest(opsPart, replay.maxOffset, lastCleanOffsetOps(opsPart));
+        }
+
+        return i;
+    }
+
+    /**
+     * Starts materializing the lazy flush queues owned by the flush workers
+     * and dematerializes the ones that are not owned anymore.
+     * To materialize the queue we seek back to the max clean offset and replay the keys
+     * of the already applied records, the current values of these keys are going to be flushed.
+     */
+    protected void materializeFlushQueues() {
+        for (TopicPartition opsPart : assignedOpsParts) {
+            FlushQueue flushQueue = flushQueues.get(opsPart.partition());
+
+            if (!flushQueue.isMaterializeNeeded() || replays.containsKey(opsPart))
+                continue;
+
+            if (flushQueue.isMaterialized()) {
+                flushQueue.dematerialize();
+                continue;
+            }
+
+            long maxOffset = flushQueue.getMaxAddOffset();
+            long cleanOffset = flushQueue.getMaxCleanOffset();
+
+            if (cleanOffset >= maxOffset) {
+                flushQueue.materialize(emptySet());
+                continue;
+            }
+
+            log.debug("Replaying partition {} from offset {} until {}", opsPart, cleanOffset + 1, maxOffset);
+
+            replays.put(opsPart, new Replay(maxOffset));
+            opsConsumer.seek(opsPart, cleanOffset + 1);
+        }
+    }
+
+    protected static long recordSize(ConsumerRecord<?,?> rec) {
+        return Math.max(0, rec.serializedKeySize()) + Math.max(0, rec.serializedValueSize());
+    }
+
+    protected void flushIdlePartitions() {
+        long nowNanos = System.nanoTime();
+
+        for (TopicPartition opsPart : assignedOpsParts) {
+            long flushOffsetOps = flushTrigger.onIdle(opsPart.partition(), nowNanos);
+
+            if (flushOffsetOps >= 0) {
+                log.debug("Flushing idle partition {} at offset {}", opsPart, flushOffsetOps);
+                sendFlushRequest(opsPart, flushOffsetOps, lastCleanOffsetOps(opsPart));
+            }
+        }
+    }
+
+    protected long lastCleanOffsetOps(TopicPartition opsPart) {
+        FlushNotification lastFlush = lastFlushNotifications.get(opsPart);
+        return lastFlush == null ? -1L : lastFlush.getFlushOffsetOps();
+    }
+
+    /**
+     * @param op Operation message.
+     * @param updatedValue Updated value.
+     * @return The value to keep in the flush queue: the received serialized value if it was
+     *         kept by the deserializer and the map got exactly that value, otherwise the value itself.
+     */
+    protected Object flushValue(OpMessage op, Object updatedValue) {
+        MapUpdate updateOp = (MapUpdate)op;
+        byte[] updBytes = updateOp.getUpdatedValueBytes();
+
+        if (updBytes != null && updatedValue != null && updatedValue == updateOp.getUpdatedValue())
+            return new SerializedValue(updBytes);
+
+        return updatedValue;
     }
 
     protected void sendCleanRequest(TopicPartition opsPart, ConsumerRecord<Object,FlushNotification> rec) {
@@ -268,10 +449,14 @@ public class OpsWorker extends Worker implements AutoCloseable {
     }
 
     protected void sendFlushRequest(TopicPartition opsPart, long flushOffsetOps, long lastCleanOffsetOps) {
-        ProducerRecord<Object,FlushRequest> rec = new ProducerRecord<>(flushTopic, opsPart.partition(),
-            null, newFlushRequest(flushOffsetOps, lastCleanOffsetOps));
+        // The flush request supersedes the previous ones for the partition, thus they can be coalesced.
+        flushRequests.send(opsPart.partition(), newFlushRequest(flushOffsetOps, lastCleanOffsetOps), System.nanoTime());
+    }
+
+    protected void doSendFlushRequest(int part, FlushRequest flushRequest) {
+        ProducerRecord<Object,FlushRequest> rec = new ProducerRecord<>(flushTopic, part, null, flushRequest);
 
-        log.debug("Sending flush request for partition {}: {}", opsPart, rec);
+        log.debug("Sending flush request for partition {}: {}", part, rec);
 
         flushProducer.send(rec, (meta, err) -> {
             if (err == null)
@@ -297,17 +482,112 @@ public class OpsWorker extends Worker implements AutoCloseable {
 //            trace.trace("seek offset={}, part={}", offset, part);
 
             opsConsumer.seek(part, offset);
-            flushQueues.get(part.partition()).setMaxOffset(offset - 1); // the last processed offset is expected here
+            if (flushQueues != null)
+                initFlushQueue(flushQueues.get(part.partition()), offset - 1); // the last processed offset is expected here
+            flushTrigger.init(part.partition(), offset - 1);
 
             checkInterrupted();
         }
     }
 
+    protected void initFlushQueue(FlushQueue flushQueue, long offset) {
+        // The queue is already used if the partition was removed and now it is loaded again.
+        if (flushQueue.getMaxAddOffset() == Long.MIN_VALUE)
+            flushQueue.setMaxOffset(offset);
+        else
+            flushQueue.reset(offset);
+    }
+
+    /**
+     * Requests to remove the given partitions from this worker, the returned future is completed
+     * by the worker thread when the updates for the partitions are not applied anymore.
+     *
+     * @param parts Partitions to remove.
+     * @return Future.
+     */
+    public CompletableFuture<Void> removePartitions(Set<Integer> parts) {
+        RemovePartitions req = new RemovePartitions(parts);
+        removeRequests.add(req);
+
+        if (stopped) // Nobody is going to process the request.
+            failRemoveRequests();
+
+        return req.fut;
+    }
+
+    /**
+     * @return Assigned partitions.
+     */
+    public Set<Integer> getAssignedPartitions() {
+        return assignedOpsParts.stream()
+            .map(TopicPartition::partition)
+            .collect(Collectors.toSet());
+    }
+
+    protected void processRemoveRequests() {
+        for (;;) {
+            RemovePartitions req = removeRequests.poll();
+
+            if (req == null)
+                return;
+
+            assignedOpsParts.removeIf(opsPart -> req.parts.contains(opsPart.partition()));
+            Set<TopicPartition> remaining = new HashSet<>(assignedOpsParts);
+
+            for (int part : req.parts) {
+                TopicPartition opsPart = new TopicPartition(opsTopic, part);
+
+                lastFlushNotifications.remove(opsPart);
+                replays.remove(opsPart);
+
+                if (partsSteadyOffsets != null)
+                    partsSteadyOffsets.remove(opsPart);
+
+                CompletableFuture<Void> partSteadyFut = partsSteadyFuts.remove(part);
+                if (partSteadyFut != null)
+                    partSteadyFut.completeExceptionally(new ReplicaMapException("Partition " + part + " was removed."));
+            }
+
+            if (remaining.isEmpty()) {
+                // The worker without partitions stops, the consumer is released before anyone is notified.
+                Utils.close(opsConsumer);
+            }
+            else
+                opsConsumer.assign(remaining);
+
+            endOffsetsOps = null;
+
+            log.debug("Removed partitions {}, remaining partitions: {}", req.parts, assignedOpsParts);
+
+            req.fut.complete(null);
+        }
+    }
+
+    protected void failRemoveRequests() {
+        for (;;) {
+            RemovePartitions req = removeRequests.poll();
+
+            if (req == null)
+                return;
+
+            req.fut.completeExceptionally(new ReplicaMapException("Ops worker is stopped: " + getName()));
+        }
+    }
+
     protected void processOps() {
         while (!isInterrupted()) {
+            processRemoveRequests();
+
+            if (assignedOpsParts.isEmpty()) {
+                log.debug("No partitions left, stopping.");
+                markSteady(); // Nobody must wait for this worker anymore.
+                return;
+            }
+
             ConsumerRecords<Object,OpMessage> recs;
             try {
-                recs = Utils.poll(opsConsumer, 1000);
+                long pollTimeoutMs = Math.min(1000, flushRequests.getDelayMs(System.nanoTime()));
+                recs = Utils.poll(opsConsumer, Math.max(MIN_POLL_TIMEOUT_MS, pollTimeoutMs));
             }
             catch (InterruptException | WakeupException e) {
                 if (log.isDebugEnabled())
@@ -320,6 +600,14 @@ public class OpsWorker extends Worker implements AutoCloseable {
                 if (log.isDebugEnabled())
                     log.debug("Steady for partitions: {}", assignedOpsParts);
             }
+
+            if (!isReadOnly() && isSteady())
+                flushIdlePartitions();
+
+            if (flushQueues != null)
+                materializeFlushQueues();
+
+            flushRequests.flush(System.nanoTime());
         }
     }
 
@@ -327,17 +615,60 @@ public class OpsWorker extends Worker implements AutoCloseable {
         for (TopicPartition part : recs.partitions())
             applyOpsTopicRecords(part, recs.records(part));
 
+        if (!isSteady())
+            markSteadyPartitions();
+
         return !isSteady() && isActuallySteady() && markSteady();
     }
 
+    /**
+     * @return {@code true} If this worker does not send flush requests.
+     */
+    protected boolean isReadOnly() {
+        return flushProducer == null;
+    }
+
     protected boolean isSteady() {
         return steadyFut.isDone();
     }
 
     protected boolean markSteady() {
+        // The worker is steady only when all the partitions have reached at least the first fetched end offsets.
+        for (CompletableFuture<Void> partSteadyFut : partsSteadyFuts.values())
+            partSteadyFut.complete(null);
+
         return steadyFut.complete(null);
     }
 
+    /**
+     * Marks steady the partitions that have reached the end offsets fetched on the first call,
+     * unlike the whole worker the partitions do not have to catch up with the later updates.
+     */
+    protected void markSteadyPartitions() {
+        if (partsSteadyOffsets == null) {
+            Set<TopicPartition> parts = new HashSet<>();
+
+            for (TopicPartition opsPart : assignedOpsParts) {
+                if (!partsSteadyFuts.get(opsPart.partition()).isDone())
+                    parts.add(opsPart);
+            }
+
+            partsSteadyOffsets = parts.isEmpty() ? new HashMap<>() : new HashMap<>(opsConsumer.endOffsets(parts));
+        }
+
+        for (Iterator<Map.Entry<TopicPartition,Long>> it = partsSteadyOffsets.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<TopicPartition,Long> entry = it.next();
+            TopicPartition opsPart = entry.getKey();
+
+            if (opsConsumer.position(opsPart) >= entry.getValue()) {
+                it.remove();
+
+                if (partsSteadyFuts.get(opsPart.partition()).complete(null))
+                    log.debug("Steady partition: {}", opsPart);
+            }
+        }
+    }
+
     protected boolean isActuallySteady() {
         boolean freshEndOffsetsFetched = false;
 
@@ -374,7 +705,7 @@ public class OpsWorker extends Worker implements AutoCloseable {
                 // This behavior looks counter-intuitive from the user perspective
                 // because it breaks program order. Thus, we must fetch all the
                 // operations we aware of at the moment of start to safely complete steadyFut.
-                maxAllowedSteadyLag = flushPeriodOps;
+                maxAllowedSteadyLag = flushTrigger.getPeriodOps();
                 continue;
             }
             return false;
@@ -392,15 +723,31 @@ public class OpsWorker extends Worker implements AutoCloseable {
             // If the future is completed already, nothing will happen.
             steadyFut.completeExceptionally(e);
 
+            for (CompletableFuture<Void> partSteadyFut : partsSteadyFuts.values())
+                partSteadyFut.completeExceptionally(e);
+
             if (!Utils.isInterrupted(e))
                 throw new ReplicaMapException(e);
         }
+        finally {
+            stopped = true;
+            failRemoveRequests();
+        }
     }
 
     public CompletableFuture<Void> getSteadyFuture() {
         return steadyFut;
     }
 
+    /**
+     * @param part Partition.
+     * @return Future completed when all the updates for the partition known at the moment of loading
+     *         are applied or {@code null} if the partition is not assigned to this worker.
+     */
+    public CompletableFuture<Void> getPartitionSteadyFuture(int part) {
+        return partsSteadyFuts.get(part);
+    }
+
     @Override
     protected void interruptThread() {
         Utils.wakeup(dataConsumer);
@@ -414,4 +761,28 @@ public class OpsWorker extends Worker implements AutoCloseable {
         Utils.close(dataConsumer);
         Utils.close(opsConsumer);
     }
+
+    /**
+     * Request to remove partitions.
+     */
+    protected static class RemovePartitions {
+        protected final Set<Integer> parts;
+        protected final CompletableFuture<Void> fut = new CompletableFuture<>();
+
+        protected RemovePartitions(Set<Integer> parts) {
+            this.parts = parts;
+        }
+    }
+
+    /**
+     * Replay of the already applied records.
+     */
+    protected static class Replay {
+        protected final long maxOffset;
+        protected final Set<Object> keys = new HashSet<>();
+
+        protected Replay(long maxOffset) {
+            this.maxOffset = maxOffset;
+        }
+    }
 }
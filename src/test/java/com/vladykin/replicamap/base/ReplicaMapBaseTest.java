@@ -18,6 +18,7 @@ import java.util.function.Consumer;
 import org.junit.jupiter.api.Test;
 
 import static com.vladykin.replicamap.base.ReplicaMapBase.interruptRunningOps;
+import static com.vladykin.replicamap.kafka.impl.msg.OpMessage.OP_PATCH;
 import static com.vladykin.replicamap.kafka.impl.msg.OpMessage.OP_PUT;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
@@ -28,6 +29,66 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 class ReplicaMapBaseTest {
+    @Test
+    void testPatch() {
+        Queue<TestReplicaMapUpdate<Integer,String>> queue = new ArrayDeque<>();
+        Map<Integer, String> map = new HashMap<>();
+        Semaphore maxActiveOps = new Semaphore(10);
+
+        TestReplicaMapBase<Integer, String> rmap = new TestReplicaMapBase<Integer, String>('x', map, maxActiveOps) {
+            @Override
+            protected void doSendUpdate(TestReplicaMapUpdate<Integer, String> update, Consumer<Throwable> callback) {
+                queue.add(update);
+            }
+
+            @Override
+            protected boolean canSendPatch() {
+                return true;
+            }
+        };
+
+        // No base value, full put.
+        CompletableFuture<?> fut = rmap.asyncPut(1, "one");
+        TestReplicaMapUpdate<Integer,String> u = queue.poll();
+        assertEquals(OP_PUT, u.updateType);
+        rmap.update(true, u);
+        assertTrue(fut.isDone());
+        assertEquals("one", rmap.get(1));
+
+        // Patch against the current value.
+        fut = rmap.asyncPut(1, "uno");
+        u = queue.poll();
+        assertEquals(OP_PATCH, u.updateType);
+        assertEquals("one", u.exp);
+        assertEquals("uno", u.upd);
+        rmap.update(true, u); // The patch is resolved to the full value by the receiver.
+        assertTrue(fut.isDone());
+        assertEquals("uno", rmap.get(1));
+        assertEquals(10, maxActiveOps.availablePermits());
+
+        // Patch base mismatch: nothing is updated and the full value is resent.
+        fut = rmap.asyncPut(1, "eins");
+        u = queue.poll();
+        assertEquals(OP_PATCH, u.updateType);
+        rmap.update(true, new TestReplicaMapUpdate<>(u.opId, OP_PATCH, 1, null, null, null, 'x'));
+        assertFalse(fut.isDone());
+        assertEquals("uno", rmap.get(1));
+        assertEquals(9, maxActiveOps.availablePermits());
+
+        u = queue.poll();
+        assertEquals(OP_PUT, u.updateType);
+        assertEquals("eins", u.upd);
+        rmap.update(true, u);
+        assertTrue(fut.isDone());
+        assertEquals("eins", rmap.get(1));
+        assertEquals(10, maxActiveOps.availablePermits());
+
+        // Remote patch mismatch is just ignored.
+        rmap.update(false, new TestReplicaMapUpdate<>(1, OP_PATCH, 1, null, null, null, 'y'));
+        assertEquals("eins", rmap.get(1));
+        assertTrue(queue.isEmpty());
+    }
+
     @SuppressWarnings("ConstantConditions")
     @Test
     void testSimple() throws TimeoutException, InterruptedException {
@@ -1,25 +1,37 @@
 package com.vladykin.replicamap.kafka;
 
+import com.vladykin.replicamap.ReplicaMap;
 import com.vladykin.replicamap.ReplicaMapException;
+import com.vladykin.replicamap.holder.MapsHolderMulti;
+import com.vladykin.replicamap.holder.MapsHolderSingle;
 import com.vladykin.replicamap.kafka.impl.msg.FlushRequest;
 import com.vladykin.replicamap.kafka.impl.msg.OpMessage;
+import com.vladykin.replicamap.kafka.impl.part.MapIdPartitioner;
+import com.vladykin.replicamap.kafka.impl.util.Box;
+import com.vladykin.replicamap.kafka.impl.util.SegmentedMap;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
 import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.consumer.MockConsumer;
 import org.apache.kafka.clients.consumer.OffsetResetStrategy;
 import org.apache.kafka.clients.producer.MockProducer;
 import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.internals.DefaultPartitioner;
 import org.apache.kafka.common.Cluster;
 import org.apache.kafka.common.KafkaException;
 import org.apache.kafka.common.PartitionInfo;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.Serializer;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -28,11 +40,31 @@ import static com.vladykin.replicamap.kafka.KReplicaMapManagerLeaksTest.Collecti
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerLeaksTest.CollectingMockProducer.producers;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerLeaksTest.MockReplicaMapManager.exception;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerLeaksTest.MockReplicaMapManager.failOnLoadData;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerLeaksTest.MockReplicaMapManager.opsConsumers;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.ALLOWED_MAPS;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.ALLOWED_PARTITIONS;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_ROLE;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_ROLE_DEDICATED;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_ROLE_NONE;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.MAPS_HOLDER;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.MAPS_PARTITIONS;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.MAPS_SEGMENTED;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.PARTITIONER_CLASS;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.READ_ONLY;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerSimpleTest.DATA_TOPIC;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerSimpleTest.FLUSH_TOPIC;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerSimpleTest.OPS_TOPIC;
+import static com.vladykin.replicamap.kafka.impl.msg.OpMessage.OP_PUT;
+import static com.vladykin.replicamap.kafka.impl.msg.OpMessage.OP_PUT_IF_ABSENT;
+import static com.vladykin.replicamap.kafka.impl.msg.OpMessage.OP_REMOVE_ANY;
 import static java.util.Arrays.asList;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonMap;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -60,6 +92,200 @@ class KReplicaMapManagerLeaksTest {
         m.close();
     }
 
+    @Test
+    void testReadOnly() throws Exception {
+        try (KReplicaMapManager m = new MockReplicaMapManager(singletonMap(READ_ONLY, true))) {
+            assertTrue(m.isReadOnly());
+            assertTrue(producers.isEmpty());
+            assertEquals(0, m.getFlushWorkers());
+
+            assertSame(m, m.start().get(3, TimeUnit.SECONDS));
+
+            KReplicaMap<String,String> map = m.getMap();
+
+            assertThrows(ReplicaMapException.class, () -> map.put("a", "A"));
+            assertThrows(ExecutionException.class, () -> map.asyncPut("b", "B").get(3, TimeUnit.SECONDS));
+            assertNull(map.get("a"));
+        }
+    }
+
+    @Test
+    void testFlushRoleNone() throws Exception {
+        try (KReplicaMapManager m = new MockReplicaMapManager(singletonMap(FLUSH_ROLE, FLUSH_ROLE_NONE))) {
+            assertFalse(m.isReadOnly());
+            assertEquals(0, m.getFlushWorkers());
+            assertEquals(2, producers.size()); // Ops and flush producers, the flush requests are still sent.
+
+            assertSame(m, m.start().get(3, TimeUnit.SECONDS));
+
+            m.<String,String>getMap().asyncPut("a", "A");
+        }
+    }
+
+    @Test
+    void testDedicatedFlusher() throws Exception {
+        try (KReplicaMapManager m = new MockReplicaMapManager(singletonMap(FLUSH_ROLE, FLUSH_ROLE_DEDICATED))) {
+            assertTrue(m.isDedicatedFlusher());
+            assertTrue(m.getFlushWorkers() > 0);
+
+            assertSame(m, m.start().get(3, TimeUnit.SECONDS));
+
+            KReplicaMap<String,String> map = m.getMap();
+            assertThrows(ReplicaMapException.class, () -> map.put("a", "A"));
+
+            Box<Object> box = new Box<>();
+            byte[] val = {1, 2, 3};
+
+            assertTrue(m.applyReceivedUpdateDedicated(OPS_TOPIC, 0, 1, 1, 1, OP_PUT, "a", null, val, null, box));
+            assertSame(val, box.get());
+            assertNull(map.get("a"));
+
+            assertTrue(m.applyReceivedUpdateDedicated(OPS_TOPIC, 0, 2, 1, 2, OP_REMOVE_ANY, "a", null, null, null, null));
+
+            assertEquals(Long.MAX_VALUE, m.flushQueues.get(0).getHoldOffset());
+
+            // Unresolvable operation is skipped without failing the ops worker, but holds the flushing.
+            box.set(null);
+            assertFalse(m.applyReceivedUpdateDedicated(OPS_TOPIC, 0, 3, 1, 3, OP_PUT_IF_ABSENT, "a", null, val, null, box));
+            assertNull(box.get());
+            assertEquals(3, m.flushQueues.get(0).getHoldOffset());
+
+            assertFalse(m.applyReceivedUpdateDedicated(OPS_TOPIC, 0, 4, 1, 4, OP_PUT_IF_ABSENT, "a", null, val, null, box));
+            assertEquals(3, m.flushQueues.get(0).getHoldOffset());
+
+            // The value is known again.
+            assertTrue(m.applyReceivedUpdateDedicated(OPS_TOPIC, 0, 5, 1, 5, OP_PUT, "a", null, val, null, box));
+            assertEquals(Long.MAX_VALUE, m.flushQueues.get(0).getHoldOffset());
+        }
+
+        Map<String,Object> cfg = new HashMap<>();
+        cfg.put(FLUSH_ROLE, FLUSH_ROLE_DEDICATED);
+        cfg.put(READ_ONLY, true);
+        assertThrows(ReplicaMapException.class, () -> new MockReplicaMapManager(cfg));
+    }
+
+    @Test
+    void testSegmented() throws Exception {
+        try (KReplicaMapManager m = new MockReplicaMapManager(singletonMap(MAPS_SEGMENTED, true))) {
+            assertSame(m, m.start().get(3, TimeUnit.SECONDS));
+
+            KReplicaMap<String,String> map = m.getMap();
+            SegmentedMap<String,String> inner = (SegmentedMap<String,String>)map.unwrap();
+
+            assertEquals(2, inner.getSegments());
+
+            int part = m.resolveKeyPartition("a");
+            assertTrue(map.onReceiveUpdate(part, false, 1, OP_PUT, "a", null, "A", null, null));
+
+            assertEquals("A", map.get("a"));
+            assertEquals("A", inner.getSegment(part).get("a"));
+            assertTrue(inner.getSegment(1 - part).isEmpty());
+        }
+    }
+
+    @Test
+    void testChangeAllowedPartitions() throws Exception {
+        try (KReplicaMapManager m = new MockReplicaMapManager(singletonMap(ALLOWED_PARTITIONS, "0"))) {
+            assertSame(m, m.start().get(3, TimeUnit.SECONDS));
+
+            KReplicaMap<String,String> map = m.getMap();
+            String key0 = null;
+
+            for (int i = 0; key0 == null; i++) {
+                if (m.resolveKeyPartition("k" + i) == 0)
+                    key0 = "k" + i;
+            }
+
+            map.onReceiveUpdate(0, false, 1, OP_PUT, key0, null, "v", null, null);
+            assertEquals("v", map.get(key0));
+
+            // The update is never received back by the mock.
+            int permits = m.opsSemaphore.availablePermits();
+            CompletableFuture<String> fut = map.asyncPut(key0, "x");
+            assertFalse(fut.isDone());
+
+            m.setAllowedPartitions(singleton(1)).get(10, TimeUnit.SECONDS);
+
+            assertTrue(fut.isCompletedExceptionally());
+            assertEquals(permits, m.opsSemaphore.availablePermits());
+
+            // The worker without partitions is stopped and removed.
+            assertEquals(1, m.getAllowedPartitions());
+            assertEquals(1, m.getOpsWorkers());
+            assertEquals(singleton(1), m.opsWorkers.get(0).getAssignedPartitions());
+            assertNull(map.get(key0)); // Evicted.
+
+            m.setAllowedPartitions(null).get(10, TimeUnit.SECONDS);
+
+            assertEquals(2, m.getAllowedPartitions());
+            assertEquals(2, m.getOpsWorkers());
+            assertEquals(singleton(0), m.opsWorkers.get(1).getAssignedPartitions());
+
+            // The number of workers and open consumers does not grow with the partition changes.
+            for (int i = 0; i < 10; i++) {
+                m.setAllowedPartitions(singleton(1)).get(10, TimeUnit.SECONDS);
+                assertEquals(1, m.getOpsWorkers());
+                assertEquals(1, opsConsumers.stream().filter(c -> !c.closed()).count());
+
+                m.setAllowedPartitions(null).get(10, TimeUnit.SECONDS);
+                assertEquals(2, m.getOpsWorkers());
+                assertEquals(2, opsConsumers.stream().filter(c -> !c.closed()).count());
+            }
+
+            // The ids of the removed workers are not reused.
+            assertEquals(13, m.opsWorkerIds.get());
+
+            assertThrows(ReplicaMapException.class, () -> m.setAllowedPartitions(singleton(2)));
+            assertThrows(ReplicaMapException.class, () -> m.setAllowedPartitions(emptySet()));
+        }
+
+        Map<String,Object> cfg = new HashMap<>();
+        cfg.put(ALLOWED_PARTITIONS, "0");
+        cfg.put(MAPS_HOLDER, UnlistedMapsHolder.class);
+
+        try (KReplicaMapManager m = new MockReplicaMapManager(cfg)) {
+            assertSame(m, m.start().get(3, TimeUnit.SECONDS));
+
+            // The keys of the removed partitions can not be evicted.
+            assertThrows(ReplicaMapException.class, () -> m.setAllowedPartitions(singleton(1)));
+        }
+    }
+
+    public static class UnlistedMapsHolder extends MapsHolderSingle {
+        @Override
+        public Collection<ReplicaMap<?,?>> getMaps() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Test
+    void testAllowedMaps() throws Exception {
+        Map<String,Object> cfg = new HashMap<>();
+        cfg.put(MAPS_HOLDER, PrefixMapsHolder.class);
+        cfg.put(PARTITIONER_CLASS, MapIdPartitioner.class);
+        cfg.put(MAPS_PARTITIONS, "a:1,b:0");
+        cfg.put(ALLOWED_MAPS, "a");
+
+        try (KReplicaMapManager m = new MockReplicaMapManager(cfg)) {
+            assertEquals(1, m.getAllowedPartitions());
+            assertEquals(singleton(1), m.opsWorkers.get(0).getAssignedPartitions());
+
+            assertSame(m, m.start().get(3, TimeUnit.SECONDS));
+
+            for (int i = 0; i < 10; i++) {
+                assertEquals(1, m.resolveKeyPartition("a:" + i));
+                assertEquals(0, m.resolveKeyPartition("b:" + i));
+            }
+        }
+
+        cfg.put(ALLOWED_MAPS, "c");
+        assertThrows(ReplicaMapException.class, () -> new MockReplicaMapManager(cfg));
+
+        cfg.remove(PARTITIONER_CLASS);
+        cfg.put(ALLOWED_MAPS, "a");
+        assertThrows(ReplicaMapException.class, () -> new MockReplicaMapManager(cfg));
+    }
+
     @Test
     void testNoStart() {
         MockReplicaMapManager m = new MockReplicaMapManager();
@@ -80,12 +306,50 @@ class KReplicaMapManagerLeaksTest {
         }
     }
 
+    @Test
+    void testFailLoadMap() throws Exception {
+        Map<String,Object> cfg = new HashMap<>();
+        cfg.put(READ_ONLY, true);
+        cfg.put(MAPS_HOLDER, MaterializedMapsHolder.class);
+
+        try (KReplicaMapManager m = new MockReplicaMapManager(cfg)) {
+            assertSame(m, m.start().get(3, TimeUnit.SECONDS));
+            assertEquals(1, m.getOpsWorkers());
+
+            failOnLoadData = true;
+            assertThrows(ReplicaMapException.class, () -> m.getMap("b"));
+
+            // The readiness of the other maps does not depend on the loading of this one.
+            assertTrue(m.getPartitionReadyFuture(0).isDone());
+            assertFalse(m.getPartitionReadyFuture(0).isCompletedExceptionally());
+
+            failOnLoadData = false;
+            assertNotNull(m.openMap("b").get(3, TimeUnit.SECONDS));
+            assertEquals(3, m.getOpsWorkers());
+
+            assertTrue(m.getPartitionReadyFuture("b", 0).isDone());
+            assertFalse(m.getPartitionReadyFuture("b", 0).isCompletedExceptionally());
+        }
+    }
+
+    public static class MaterializedMapsHolder extends MapsHolderMulti {
+        public MaterializedMapsHolder() {
+            super(singleton("a"));
+        }
+
+        @Override
+        public <K> Object getMapId(K key) {
+            return ((String)key).substring(0, 1);
+        }
+    }
+
     @BeforeEach
     void clearAll() {
         failOnLoadData = false;
         exception = null;
         producers.clear();
         consumers.clear();
+        opsConsumers.clear();
     }
 
     @AfterEach
@@ -99,6 +363,14 @@ class KReplicaMapManagerLeaksTest {
             assertTrue(consumer.closed());
     }
 
+    public static class PrefixMapsHolder extends MapsHolderMulti {
+        @Override
+        public <K> Object getMapId(K key) {
+            String k = (String)key;
+            return k.substring(0, k.indexOf(':'));
+        }
+    }
+
     static class CollectingMockConsumer<K,V> extends MockConsumer<K,V> {
         static final Set<CollectingMockConsumer<?,?>> consumers = Collections.newSetFromMap(new ConcurrentHashMap<>());
 
@@ -119,6 +391,12 @@ class KReplicaMapManagerLeaksTest {
             updateBeginningOffsets(m);
             updateEndOffsets(m);
 
+            for (String topic : asList(DATA_TOPIC, OPS_TOPIC, FLUSH_TOPIC)) {
+                updatePartitions(topic, asList(
+                    new PartitionInfo(topic, 0, null, null, null),
+                    new PartitionInfo(topic, 1, null, null, null)));
+            }
+
             consumers.add(this);
         }
     }
@@ -137,18 +415,40 @@ class KReplicaMapManagerLeaksTest {
                     new PartitionInfo(FLUSH_TOPIC, 0, null, null, null),
                     new PartitionInfo(FLUSH_TOPIC, 1, null, null, null)
                 ), Collections.emptySet(), Collections.emptySet(), null)
-                , false, null, null, null);
+                , false, new DefaultPartitioner(), new EmptySerializer<>(), new EmptySerializer<>());
 
             producers.add(this);
         }
     }
 
+    static class EmptySerializer<T> implements Serializer<T> {
+        @Override
+        public void configure(Map<String,?> configs, boolean isKey) {
+            // No-op.
+        }
+
+        @Override
+        public byte[] serialize(String topic, T data) {
+            return new byte[0];
+        }
+
+        @Override
+        public void close() {
+            // No-op.
+        }
+    }
+
     static class MockReplicaMapManager extends KReplicaMapManager {
+        static final Set<CollectingMockConsumer<?,?>> opsConsumers = Collections.newSetFromMap(new ConcurrentHashMap<>());
         static RuntimeException exception;
         static boolean failOnLoadData;
 
         public MockReplicaMapManager() {
-            super(new HashMap<>());
+            this(new HashMap<>());
+        }
+
+        public MockReplicaMapManager(Map<String,Object> config) {
+            super(config);
         }
 
         @Override
@@ -158,13 +458,16 @@ class KReplicaMapManagerLeaksTest {
         }
 
         @Override
-        protected Consumer<Object,Object> newKafkaConsumerData() {
-            return new CollectingMockConsumer<>();
+        protected Consumer<Object,Object> newKafkaConsumerData(Predicate<String> mapsFilter) {
+            CollectingMockConsumer<Object,Object> c = new CollectingMockConsumer<>();
+            opsConsumers.add(c);
+            return c;
         }
 
         @Override
-        protected Consumer<Object,OpMessage> newKafkaConsumerOps() {
+        protected Consumer<Object,OpMessage> newKafkaConsumerOps(Predicate<String> mapsFilter) {
             CollectingMockConsumer<Object,OpMessage> c = new CollectingMockConsumer<>();
+            opsConsumers.add(c);
 
             if (failOnLoadData)
                 c.setException(new KafkaException("ops"));
@@ -173,7 +476,11 @@ class KReplicaMapManagerLeaksTest {
         }
 
         @Override
-        protected Consumer<Object,FlushRequest> newKafkaConsumerFlush() {
+        protected Consumer<Object,FlushRequest> newKafkaConsumerFlush(
+            int workerId,
+            Collection<TopicPartition> ownedParts,
+            ToLongFunction<TopicPartition> flushLoad
+        ) {
             return new CollectingMockConsumer<>();
         }
 
@@ -2,48 +2,75 @@ package com.vladykin.replicamap.kafka;
 
 import com.salesforce.kafka.test.junit5.SharedKafkaTestResource;
 import com.vladykin.replicamap.ReplicaMapException;
+import com.vladykin.replicamap.ReplicaMapManager;
+import com.vladykin.replicamap.holder.MapsHolderMulti;
+import com.vladykin.replicamap.kafka.impl.part.RendezvousPartitionsResolver;
+import com.vladykin.replicamap.kafka.impl.worker.ops.OpsWorker;
 import java.time.Duration;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
 import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
 import org.apache.kafka.clients.producer.Partitioner;
 import org.apache.kafka.common.Cluster;
 import org.apache.kafka.common.Configurable;
+import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.serialization.IntegerDeserializer;
 import org.apache.kafka.common.serialization.IntegerSerializer;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.RegisterExtension;
 
+import static com.vladykin.replicamap.kafka.KReplicaMapManager.State.STARTING;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.ALLOWED_PARTITIONS;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.ALLOWED_PARTITIONS_MEMBERS_HEARTBEAT_MS;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.ALLOWED_PARTITIONS_MEMBERS_TIMEOUT_MS;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.ALLOWED_PARTITIONS_MEMBER_ID;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.ALLOWED_PARTITIONS_REPLICATION_FACTOR;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.ALLOWED_PARTITIONS_RESOLVER;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.BOOTSTRAP_SERVERS;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.DATA_TOPIC;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.DEFAULT_DATA_TOPIC;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.DEFAULT_FLUSH_TOPIC_SUFFIX;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.DEFAULT_MEMBERS_TOPIC_SUFFIX;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.DEFAULT_OPS_TOPIC_SUFFIX;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_MAX_POLL_TIMEOUT_MS;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_PERIOD_OPS;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_ROLE;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_ROLE_DEDICATED;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_ROLE_NONE;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_TX_PARTITIONS;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_WORKERS;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.KEY_DESERIALIZER_CLASS;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.KEY_SERIALIZER_CLASS;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.MAPS_HOLDER;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.MAPS_ID_HEADER;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.MAPS_SERVE_READY_PARTITIONS;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.OPS_WORKERS;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.PARTITIONER_CLASS;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.REPLICATION_FILTER;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.VALUE_DESERIALIZER_CLASS;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.VALUE_SERIALIZER_CLASS;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerSimpleTest.createTopics;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerSimpleTest.kafkaClusterWith3Brokers;
 import static java.util.Arrays.asList;
 import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -175,6 +202,415 @@ class KReplicaMapManagerSimpleShardingTest {
         }
     }
 
+    @Test
+    void testWholeTxGroups() throws Exception {
+        String dataTopic = "whole_tx_groups";
+
+        createTopics(sharedKafkaTestResource,
+            dataTopic,
+            dataTopic + DEFAULT_OPS_TOPIC_SUFFIX,
+            dataTopic + DEFAULT_FLUSH_TOPIC_SUFFIX,
+            PARTS);
+
+        Map<String,Object> cfg = getShardedConfig("0,1,2", false);
+        cfg.put(DATA_TOPIC, dataTopic);
+        cfg.put(FLUSH_TX_PARTITIONS, 2);
+
+        // The group of partitions 2 and 3 is allowed partly.
+        assertThrows(ReplicaMapException.class, () -> new KReplicaMapManager(cfg));
+
+        cfg.put(ALLOWED_PARTITIONS, parseAllowedParts("0,1,3,2"));
+        new KReplicaMapManager(cfg).close();
+
+        // The clients without the flush role are not affected.
+        cfg.put(ALLOWED_PARTITIONS, parseAllowedParts("0,1,2"));
+        cfg.put(FLUSH_ROLE, FLUSH_ROLE_NONE);
+        new KReplicaMapManager(cfg).close();
+    }
+
+    @Test
+    void testMembersSharding() throws Exception {
+        String dataTopic = "members_sharding";
+
+        createTopics(sharedKafkaTestResource,
+            dataTopic,
+            dataTopic + DEFAULT_OPS_TOPIC_SUFFIX,
+            dataTopic + DEFAULT_FLUSH_TOPIC_SUFFIX,
+            PARTS);
+        sharedKafkaTestResource.getKafkaTestUtils().createTopic(dataTopic + DEFAULT_MEMBERS_TOPIC_SUFFIX, 1, (short)1);
+
+        List<String> members = asList("m1", "m2", "m3");
+
+        Function<String,Map<String,Object>> cfg = (memberId) -> {
+            Map<String,Object> c = getShardedConfig(null, false);
+            c.put(DATA_TOPIC, dataTopic);
+            c.put(ALLOWED_PARTITIONS_RESOLVER, RendezvousPartitionsResolver.class);
+            c.put(ALLOWED_PARTITIONS_REPLICATION_FACTOR, 2);
+            c.put(ALLOWED_PARTITIONS_MEMBER_ID, memberId);
+            c.put(ALLOWED_PARTITIONS_MEMBERS_HEARTBEAT_MS, 300L);
+            c.put(ALLOWED_PARTITIONS_MEMBERS_TIMEOUT_MS, 5000L);
+            return c;
+        };
+
+        try (KReplicaMapManager m1 = new KReplicaMapManager(cfg.apply("m1"))) {
+            m1.start(Duration.ofSeconds(START_TIMEOUT));
+            assertEquals(PARTS, m1.getAllowedPartitions());
+
+            for (int i = 0; i < 12; i++)
+                m1.getMap().put(i, i);
+
+            try (
+                KReplicaMapManager m2 = new KReplicaMapManager(cfg.apply("m2"));
+                KReplicaMapManager m3 = new KReplicaMapManager(cfg.apply("m3"))
+            ) {
+                m2.start(Duration.ofSeconds(START_TIMEOUT));
+                m3.start(Duration.ofSeconds(START_TIMEOUT));
+
+                // Each partition is held by 2 members out of 3.
+                awaitFor(2 * PARTS, KReplicaMapManager::getAllowedPartitions, m1, m2, m3);
+
+                List<KReplicaMapManager> ms = asList(m1, m2, m3);
+                for (int i = 0; i < ms.size(); i++) {
+                    Set<Integer> parts = RendezvousPartitionsResolver.assignPartitions(
+                        members.get(i), members, PARTS, 2);
+
+                    Set<Integer> keys = new HashSet<>();
+                    for (int k = 0; k < 12; k++) {
+                        if (parts.contains(k % PARTS))
+                            keys.add(k);
+                    }
+
+                    awaitFor(1, m -> m.getMap().keySet().equals(keys) ? 1 : 0, ms.get(i));
+
+                    for (int k : keys)
+                        assertEquals(k, ms.get(i).getMap().get(k));
+                }
+            }
+
+            // The others left, thus all the partitions are back.
+            awaitFor(PARTS, KReplicaMapManager::getAllowedPartitions, m1);
+            assertEquals(12, m1.getMap().size());
+
+            for (int i = 0; i < 12; i++)
+                assertEquals(i, m1.getMap().put(i, i + 1));
+        }
+    }
+
+    @Test
+    void testMaterializedMaps() throws Exception {
+        String dataTopic = "materialized_maps";
+
+        createTopics(sharedKafkaTestResource,
+            dataTopic,
+            dataTopic + DEFAULT_OPS_TOPIC_SUFFIX,
+            dataTopic + DEFAULT_FLUSH_TOPIC_SUFFIX,
+            PARTS);
+
+        Map<String,Object> writerCfg = getShardedConfig(null, false);
+        writerCfg.put(DATA_TOPIC, dataTopic);
+        writerCfg.put(MAPS_HOLDER, ModMapsHolder.class);
+        writerCfg.put(MAPS_ID_HEADER, true);
+
+        Map<String,Object> readerCfg = new HashMap<>(writerCfg);
+        readerCfg.put(MAPS_HOLDER, ModMapsHolder0.class);
+        readerCfg.put(FLUSH_ROLE, FLUSH_ROLE_NONE);
+
+        try (KReplicaMapManager writer = new KReplicaMapManager(writerCfg)) {
+            writer.start(Duration.ofSeconds(START_TIMEOUT));
+
+            for (int i = 0; i < 30; i++)
+                writer.getMap(i % 3).put(i, i);
+
+            awaitFor(1, m -> m.getSuccessfulFlushes() > 0 ? 1 : 0, writer);
+
+            try (KReplicaMapManager reader = new KReplicaMapManager(readerCfg)) {
+                reader.start(Duration.ofSeconds(START_TIMEOUT));
+
+                // Only the records of the materialized map are deserialized and applied.
+                assertEquals(10, reader.getReceivedDataRecords() + reader.getReceivedUpdates());
+                assertNull(((ModMapsHolder)reader.maps).get(1));
+                assertNull(((ModMapsHolder)reader.maps).get(2));
+                assertEquals(10, reader.getMap(0).size());
+                assertEquals(3, reader.getOpsWorkers());
+
+                // The map is loaded on the first access.
+                assertEquals(10, reader.getMap(1).size());
+                assertEquals(4, reader.getOpsWorkers());
+
+                for (int i = 0; i < 30; i++) {
+                    if (i % 3 != 2)
+                        assertEquals(i, reader.getMap(i % 3).get(i));
+                }
+
+                assertNull(((ModMapsHolder)reader.maps).get(2));
+
+                for (int i = 0; i < 30; i++)
+                    writer.getMap(i % 3).put(i, i + 1);
+
+                awaitFor(1, m -> Integer.valueOf(29).equals(m.getMap(1).get(28)) ? 1 : 0, reader);
+                awaitFor(1, m -> Integer.valueOf(28).equals(m.getMap(0).get(27)) ? 1 : 0, reader);
+
+                assertEquals(29, reader.getMap(1).put(28, 30));
+                awaitFor(1, m -> Integer.valueOf(30).equals(m.getMap(1).get(28)) ? 1 : 0, writer);
+
+                assertNull(((ModMapsHolder)reader.maps).get(2));
+            }
+        }
+    }
+
+    @Test
+    void testReplicationFilter() throws Exception {
+        String dataTopic = "replication_filter";
+
+        createTopics(sharedKafkaTestResource,
+            dataTopic,
+            dataTopic + DEFAULT_OPS_TOPIC_SUFFIX,
+            dataTopic + DEFAULT_FLUSH_TOPIC_SUFFIX,
+            PARTS);
+
+        Map<String,Object> writerCfg = getShardedConfig(null, false);
+        writerCfg.put(DATA_TOPIC, dataTopic);
+
+        Map<String,Object> readerCfg = new HashMap<>(writerCfg);
+        readerCfg.put(REPLICATION_FILTER, EvenKeysFilter.class);
+        readerCfg.put(FLUSH_ROLE, FLUSH_ROLE_NONE);
+
+        try (KReplicaMapManager writer = new KReplicaMapManager(writerCfg)) {
+            writer.start(Duration.ofSeconds(START_TIMEOUT));
+
+            for (int i = 0; i < 20; i++)
+                writer.getMap().put(i, i);
+
+            awaitFor(1, m -> m.getSuccessfulFlushes() > 0 ? 1 : 0, writer);
+
+            try (KReplicaMapManager reader = new KReplicaMapManager(readerCfg)) {
+                reader.start(Duration.ofSeconds(START_TIMEOUT));
+
+                // Only the records of the even keys are deserialized and applied.
+                assertEquals(10, reader.getReceivedDataRecords() + reader.getReceivedUpdates());
+
+                Set<Integer> evenKeys = new HashSet<>();
+                for (int i = 0; i < 20; i += 2)
+                    evenKeys.add(i);
+                assertEquals(evenKeys, reader.getMap().keySet());
+
+                for (int i = 0; i < 20; i++)
+                    writer.getMap().put(i, i + 1);
+
+                awaitFor(1, m -> Integer.valueOf(19).equals(m.getMap().get(18)) ? 1 : 0, reader);
+                assertEquals(evenKeys, reader.getMap().keySet());
+
+                // The updates of the filtered out keys are rejected even if the precondition fails locally.
+                assertThrows(ReplicaMapException.class, () -> reader.getMap().put(1, 1));
+                assertThrows(ReplicaMapException.class, () -> reader.getMap().remove(1, 100));
+
+                // The reads of the filtered out keys are rejected as well.
+                assertThrows(ReplicaMapException.class, () -> reader.getMap().get(1));
+                assertThrows(ReplicaMapException.class, () -> reader.getMap().containsKey(1));
+                assertTrue(reader.getMap().containsKey(2));
+
+                assertEquals(3, reader.getMap().put(2, 100));
+                awaitFor(1, m -> Integer.valueOf(100).equals(m.getMap().get(2)) ? 1 : 0, writer);
+            }
+        }
+    }
+
+    @Test
+    void testDedicatedFlusherHoldsUnresolvedUpdates() throws Exception {
+        String dataTopic = "dedicated_flusher_hold";
+
+        createTopics(sharedKafkaTestResource,
+            dataTopic,
+            dataTopic + DEFAULT_OPS_TOPIC_SUFFIX,
+            dataTopic + DEFAULT_FLUSH_TOPIC_SUFFIX,
+            PARTS);
+
+        Map<String,Object> writerCfg = getShardedConfig(null, false);
+        writerCfg.put(DATA_TOPIC, dataTopic);
+        writerCfg.put(FLUSH_ROLE, FLUSH_ROLE_NONE);
+
+        Map<String,Object> flusherCfg = new HashMap<>(writerCfg);
+        flusherCfg.put(FLUSH_ROLE, FLUSH_ROLE_DEDICATED);
+
+        try (
+            KReplicaMapManager flusher = new KReplicaMapManager(flusherCfg);
+            KReplicaMapManager writer = new KReplicaMapManager(writerCfg)
+        ) {
+            flusher.start(Duration.ofSeconds(START_TIMEOUT));
+            writer.start(Duration.ofSeconds(START_TIMEOUT));
+
+            KReplicaMap<Integer,Integer> map = writer.getMap();
+
+            map.put(0, 1);
+            map.put(4, 4);
+            map.put(8, 8);
+
+            awaitFor(1, m -> m.getSuccessfulFlushes() > 0 ? 1 : 0, flusher);
+
+            // The flusher does not keep the values, thus it can not resolve the conditional update.
+            assertTrue(map.replace(0, 1, 2));
+            awaitFor(1, m -> m.flushQueues.get(0).getHoldOffset() != Long.MAX_VALUE ? 1 : 0, flusher);
+
+            long flushReqs = flusher.getReceivedFlushRequests();
+
+            map.put(4, 5);
+            map.put(8, 9);
+            map.put(4, 6);
+
+            awaitFor(1, m -> m.getReceivedFlushRequests() > flushReqs ? 1 : 0, flusher);
+        }
+
+        try (KReplicaMapManager reader = new KReplicaMapManager(writerCfg)) {
+            reader.start(Duration.ofSeconds(START_TIMEOUT));
+
+            // The held update is replayed from the ops topic.
+            assertEquals(2, reader.getMap().get(0));
+            assertEquals(6, reader.getMap().get(4));
+            assertEquals(9, reader.getMap().get(8));
+        }
+    }
+
+    @Test
+    void testServeReadyPartitions() throws Exception {
+        String dataTopic = "serve_ready_partitions";
+
+        createTopics(sharedKafkaTestResource,
+            dataTopic,
+            dataTopic + DEFAULT_OPS_TOPIC_SUFFIX,
+            dataTopic + DEFAULT_FLUSH_TOPIC_SUFFIX,
+            PARTS);
+
+        Map<String,Object> writerCfg = getShardedConfig(null, false);
+        writerCfg.put(DATA_TOPIC, dataTopic);
+
+        CountDownLatch slowLatch = new CountDownLatch(1);
+
+        Map<String,Object> readerCfg = getShardedConfig("0,1,2", false);
+        readerCfg.put(DATA_TOPIC, dataTopic);
+        readerCfg.put(MAPS_SERVE_READY_PARTITIONS, true);
+        readerCfg.put(SlowPartitionManager.SLOW_PARTITION_LATCH, slowLatch);
+
+        try (KReplicaMapManager writer = new KReplicaMapManager(writerCfg)) {
+            writer.start(Duration.ofSeconds(START_TIMEOUT));
+
+            for (int i = 0; i < 12; i++)
+                writer.getMap().put(i, i);
+
+            try (KReplicaMapManager reader = new SlowPartitionManager(readerCfg)) {
+                CompletableFuture<ReplicaMapManager> startFut = reader.start();
+
+                reader.getPartitionReadyFuture(0).get(START_TIMEOUT, SECONDS);
+                reader.getPartitionReadyFuture(1).get(START_TIMEOUT, SECONDS);
+
+                assertFalse(reader.getPartitionReadyFuture(2).isDone());
+                assertTrue(reader.getPartitionReadyFuture(3).isCompletedExceptionally());
+                assertEquals(STARTING, reader.getState());
+
+                KReplicaMap<Integer,Integer> map = reader.getMap();
+
+                assertEquals(4, map.get(4));
+                assertTrue(map.containsKey(5));
+                assertEquals(4, map.put(4, 40));
+                awaitFor(1, m -> Integer.valueOf(40).equals(m.getMap().get(4)) ? 1 : 0, writer);
+
+                // The keys of the partitions that are not ready and the whole map are not served until started.
+                assertThrows(ReplicaMapException.class, () -> map.get(6));
+                assertThrows(ReplicaMapException.class, () -> map.put(6, 60));
+                assertThrows(ReplicaMapException.class, () -> map.get(7));
+                assertThrows(ReplicaMapException.class, map::size);
+                assertThrows(ReplicaMapException.class, map::isEmpty);
+                assertThrows(ReplicaMapException.class, map::keySet);
+                assertThrows(ReplicaMapException.class, map::values);
+                assertThrows(ReplicaMapException.class, map::entrySet);
+                assertThrows(ReplicaMapException.class, () -> map.containsValue(4));
+
+                slowLatch.countDown();
+                startFut.get(START_TIMEOUT, SECONDS);
+
+                assertEquals(6, map.get(6));
+                assertEquals(9, map.size());
+            }
+        }
+    }
+
+    static class SlowPartitionManager extends KReplicaMapManager {
+        static final String SLOW_PARTITION_LATCH = "slow.partition.latch";
+
+        SlowPartitionManager(Map<String,Object> config) {
+            super(config);
+        }
+
+        @Override
+        protected OpsWorker newOpsWorker(int workerId, Set<Integer> assignedParts, Predicate<String> mapsFilter) {
+            CountDownLatch slowLatch = (CountDownLatch)cfg.originals().get(SLOW_PARTITION_LATCH);
+
+            return new OpsWorker(
+                clientId,
+                dataTopic,
+                opsTopic,
+                flushTopic,
+                workerId,
+                assignedParts,
+                newKafkaConsumerData(mapsFilter),
+                newKafkaConsumerOps(mapsFilter),
+                flushProducer,
+                newFlushTrigger(),
+                flushCoalesceMs,
+                flushQueues,
+                cleanQueue,
+                this::applyReceivedUpdate,
+                sentFlushRequests,
+                receivedUpdates,
+                receivedDataRecords,
+                receivedFlushNotifications
+            ) {
+                @Override
+                protected Map<TopicPartition,Long> loadData() {
+                    // Partition 2 is loaded only when allowed by the test.
+                    if (assignedParts.contains(2)) {
+                        try {
+                            slowLatch.await();
+                        }
+                        catch (InterruptedException e) {
+                            throw new ReplicaMapException(e);
+                        }
+                    }
+
+                    return super.loadData();
+                }
+            };
+        }
+    }
+
+    public static class EvenKeysFilter implements Predicate<byte[]> {
+        @Override
+        public boolean test(byte[] keyBytes) {
+            // The last byte of the big-endian integer.
+            return (keyBytes[keyBytes.length - 1] & 1) == 0;
+        }
+    }
+
+    public static class ModMapsHolder extends MapsHolderMulti {
+        public ModMapsHolder() {
+            // no-op
+        }
+
+        protected ModMapsHolder(Collection<String> materializedMaps) {
+            super(materializedMaps);
+        }
+
+        @Override
+        public <K> Object getMapId(K key) {
+            return (Integer)key % 3;
+        }
+    }
+
+    public static class ModMapsHolder0 extends ModMapsHolder {
+        public ModMapsHolder0() {
+            super(singletonList("0"));
+        }
+    }
+
     @SuppressWarnings("BusyWait")
     public static void awaitFor(long exp, ToLongFunction<KReplicaMapManager> metric, KReplicaMapManager... ms)
         throws InterruptedException, TimeoutException {
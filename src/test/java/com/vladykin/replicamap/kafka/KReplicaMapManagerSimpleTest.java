@@ -8,6 +8,7 @@ import com.vladykin.replicamap.ReplicaMapListener;
 import com.vladykin.replicamap.ReplicaMapManager;
 import com.vladykin.replicamap.kafka.compute.ComputeDeserializer;
 import com.vladykin.replicamap.kafka.compute.ComputeSerializer;
+import com.vladykin.replicamap.kafka.impl.msg.OpMessageSerializer;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
@@ -29,6 +30,11 @@ import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.DEFAULT_FLU
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.DEFAULT_OPS_TOPIC_SUFFIX;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_MAX_POLL_TIMEOUT_MS;
 import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_PERIOD_OPS;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.FLUSH_REUSE_OPS_BYTES;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.OPS_FORMAT_VERSION;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.OPS_PATCH_MIN_BYTES;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.VALUE_COMPRESSION_DATA;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.VALUE_COMPRESSION_OPS;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Arrays.asList;
 import static java.util.Collections.singletonList;
@@ -84,6 +90,15 @@ class KReplicaMapManagerSimpleTest {
         return cfg;
     }
 
+    Map<String,Object> getFormatV2Config() {
+        Map<String,Object> cfg = getDefaultConfig();
+        cfg.put(OPS_FORMAT_VERSION, OpMessageSerializer.FORMAT_V2);
+        cfg.put(VALUE_COMPRESSION_OPS, true);
+        cfg.put(VALUE_COMPRESSION_DATA, true);
+        cfg.put(FLUSH_REUSE_OPS_BYTES, true);
+        return cfg;
+    }
+
     static void createTopics(
         SharedKafkaTestResource sharedKafkaTestResource,
         String dataTopic,
@@ -225,7 +240,7 @@ class KReplicaMapManagerSimpleTest {
 
         m.close();
         m = new KReplicaMapManager(getDefaultConfig());
-        KReplicaMapManager w = new KReplicaMapManager(getDefaultConfig());
+        KReplicaMapManager w = new KReplicaMapManager(getFormatV2Config()); // Mixed wire format versions.
 
         assertSame(m, m.start().get(START_TIMEOUT, SECONDS));
         assertSame(w, w.start().get(START_TIMEOUT, SECONDS));
@@ -265,7 +280,7 @@ class KReplicaMapManagerSimpleTest {
         mMap.asyncPut("z", "Z");
 
         w.close();
-        w = new KReplicaMapManager(getDefaultConfig());
+        w = new KReplicaMapManager(getFormatV2Config());
         assertSame(w, w.start().get(START_TIMEOUT, SECONDS));
         wMap = w.getMap();
 
@@ -429,6 +444,39 @@ class KReplicaMapManagerSimpleTest {
         mMap.clear();
         awaitEqualMaps(mMap, wMap);
 
+        // Binary patches.
+        w.close();
+        Map<String,Object> patchCfg = getFormatV2Config();
+        patchCfg.put(OPS_PATCH_MIN_BYTES, 100);
+        w = new KReplicaMapManager(patchCfg);
+        assertSame(w, w.start().get(START_TIMEOUT, SECONDS));
+        wMap = w.getMap();
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++)
+            sb.append("value").append(i).append(';');
+        String big = sb.toString();
+        String big2 = big.replace("value50;", "value50X;");
+        String big3 = big2.replace("value70;", "value70Y;");
+
+        listen(mMap, wMap,
+            "p", null, big);
+        wMap.put("p", big);
+        awaitEqualMaps(mMap, wMap,
+            "p", big);
+
+        listen(mMap, wMap,
+            "p", big, big2);
+        wMap.put("p", big2);
+        awaitEqualMaps(mMap, wMap,
+            "p", big2);
+
+        listen(mMap, wMap,
+            "p", big2, big3);
+        mMap.put("p", big3); // Client in format v1 can apply patches but does not send them.
+        awaitEqualMaps(mMap, wMap,
+            "p", big3);
+
         m.close();
         w.close();
     }
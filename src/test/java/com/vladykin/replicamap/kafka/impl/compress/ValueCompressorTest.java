@@ -0,0 +1,129 @@
+package com.vladykin.replicamap.kafka.impl.compress;
+
+import com.vladykin.replicamap.ReplicaMapException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.Test;
+
+import static com.vladykin.replicamap.kafka.impl.compress.CompressingSerializer.COMPRESSION_HEADER;
+import static com.vladykin.replicamap.kafka.impl.compress.ValueCompressor.NO_DICTIONARY;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ValueCompressorTest {
+    static byte[] sample(Random rnd) {
+        return ("{\"id\":" + rnd.nextInt(1_000_000) +
+            ",\"type\":\"flower\",\"color\":\"" + (rnd.nextBoolean() ? "red" : "green") +
+            "\",\"description\":\"A beautiful flower which grows in the garden\",\"price\":" + rnd.nextInt(1000) +
+            ",\"tags\":[\"garden\",\"spring\",\"summer\"],\"available\":" + rnd.nextBoolean() + "}")
+            .getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void testCompressWithTrainedDictionary() {
+        Random rnd = new Random(1);
+        List<byte[]> samples = new ArrayList<>();
+
+        for (int i = 0; i < 1000; i++)
+            samples.add(sample(rnd));
+
+        byte[] dict = DictionaryTrainer.train(samples, 4 * 1024);
+        assertTrue(dict.length > 0 && dict.length <= 4 * 1024, "" + dict.length);
+
+        Map<Integer,byte[]> dicts = new HashMap<>();
+        dicts.put(1, dict);
+
+        ValueCompressor noDict = new ValueCompressor(dicts, NO_DICTIONARY, 0);
+        ValueCompressor withDict = new ValueCompressor(dicts, 1, 0);
+
+        int noDictTotal = 0;
+        int withDictTotal = 0;
+
+        for (int i = 0; i < 100; i++) {
+            byte[] raw = sample(rnd);
+
+            byte[] block = withDict.compress(raw);
+            assertNotNull(block);
+            assertArrayEquals(raw, noDict.decompress(1, block));
+            withDictTotal += block.length;
+
+            block = noDict.compress(raw);
+            if (block != null) {
+                assertArrayEquals(raw, withDict.decompress(NO_DICTIONARY, block));
+                noDictTotal += block.length;
+            }
+            else
+                noDictTotal += raw.length;
+        }
+
+        assertTrue(withDictTotal * 2 < noDictTotal, withDictTotal + " " + noDictTotal);
+
+        byte[] block = withDict.compress(sample(rnd));
+        assertThrows(ReplicaMapException.class, () -> withDict.decompress(2, block));
+        assertThrows(ReplicaMapException.class, () -> withDict.decompress(NO_DICTIONARY, block));
+
+        noDict.close();
+        withDict.close();
+    }
+
+    @Test
+    void testNotCompressible() {
+        ValueCompressor c = new ValueCompressor(Collections.emptyMap(), NO_DICTIONARY, 100);
+
+        assertNull(c.compress(null));
+        assertNull(c.compress(new byte[99]));
+        assertNotNull(c.compress(new byte[100]));
+
+        byte[] rnd = new byte[1000];
+        new Random().nextBytes(rnd);
+        assertNull(c.compress(rnd));
+
+        assertThrows(IllegalArgumentException.class, () -> new ValueCompressor(Collections.emptyMap(), 1, 0));
+        assertThrows(IllegalArgumentException.class, () ->
+            new ValueCompressor(Collections.singletonMap(NO_DICTIONARY, new byte[1]), NO_DICTIONARY, 0));
+
+        c.close();
+    }
+
+    @Test
+    void testSerializers() {
+        ValueCompressor c = new ValueCompressor(Collections.emptyMap(), NO_DICTIONARY, 0);
+
+        CompressingSerializer<String> ser = new CompressingSerializer<>(new StringSerializer(), c);
+        DecompressingDeserializer<String> des = new DecompressingDeserializer<>(new StringDeserializer(), c);
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++)
+            sb.append("abcdef").append(i);
+        String big = sb.toString();
+
+        RecordHeaders headers = new RecordHeaders();
+        byte[] data = ser.serialize("x", headers, big);
+        assertNotNull(headers.lastHeader(COMPRESSION_HEADER));
+        assertTrue(data.length < big.length());
+        assertEquals(big, des.deserialize("x", headers, data));
+
+        headers = new RecordHeaders();
+        data = ser.serialize("x", headers, "abc");
+        assertNull(headers.lastHeader(COMPRESSION_HEADER));
+        assertEquals("abc", des.deserialize("x", headers, data));
+
+        assertNull(des.deserialize("x", headers, null));
+
+        ser.close();
+        des.close();
+        c.close();
+    }
+}
@@ -0,0 +1,74 @@
+package com.vladykin.replicamap.kafka.impl.msg;
+
+import com.vladykin.replicamap.ReplicaMapException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.junit.jupiter.api.Test;
+
+import static com.vladykin.replicamap.kafka.impl.msg.KeyFilterDeserializer.SKIPPED_HEADER;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KeyFilterTest {
+    @Test
+    void testKeyPrefixFilter() {
+        KeyPrefixFilter f = new KeyPrefixFilter(asList("eu:", "us:"));
+
+        assertTrue(f.test(bytes("eu:1")));
+        assertTrue(f.test(bytes("us:")));
+        assertFalse(f.test(bytes("asia:1")));
+        assertFalse(f.test(bytes("eu")));
+        assertFalse(f.test(new byte[0]));
+
+        assertThrows(ReplicaMapException.class, () -> new KeyPrefixFilter(emptyList()));
+    }
+
+    @Test
+    void testKeyFilterDeserializer() {
+        CountingDeserializer keyCnt = new CountingDeserializer();
+        CountingDeserializer valCnt = new CountingDeserializer();
+
+        KeyPrefixFilter f = new KeyPrefixFilter(asList("eu:"));
+        KeyFilterDeserializer<String> keyDes = new KeyFilterDeserializer<>(keyCnt, f, true);
+        KeyFilterDeserializer<String> valDes = new KeyFilterDeserializer<>(valCnt, f, false);
+
+        Headers headers = new RecordHeaders();
+        assertEquals("eu:1", keyDes.deserialize("t", headers, bytes("eu:1")));
+        assertEquals("v1", valDes.deserialize("t", headers, bytes("v1")));
+        assertNull(headers.lastHeader(SKIPPED_HEADER));
+
+        headers = new RecordHeaders();
+        assertNull(keyDes.deserialize("t", headers, bytes("us:1")));
+        assertNotNull(headers.lastHeader(SKIPPED_HEADER));
+        assertNull(valDes.deserialize("t", headers, bytes("v2")));
+
+        assertEquals(1, keyCnt.cnt.get());
+        assertEquals(1, valCnt.cnt.get());
+
+        keyDes.close();
+        valDes.close();
+    }
+
+    static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static class CountingDeserializer extends StringDeserializer {
+        final AtomicInteger cnt = new AtomicInteger();
+
+        @Override
+        public String deserialize(String topic, byte[] data) {
+            cnt.incrementAndGet();
+            return super.deserialize(topic, data);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.vladykin.replicamap.kafka.impl.msg;
+
+import com.vladykin.replicamap.holder.MapsHolderMulti;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.Test;
+
+import static com.vladykin.replicamap.kafka.impl.msg.MapIdHeaderSerializer.MAP_ID_HEADER;
+import static java.util.Collections.singleton;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class MapIdHeaderTest {
+    @Test
+    void testMapIdHeader() {
+        MapIdHeaderSerializer<String> ser = new MapIdHeaderSerializer<>(new StringSerializer(), new PrefixMapsHolder());
+
+        Headers headers = new RecordHeaders();
+        byte[] keyBytes = ser.serialize("t", headers, "a:1");
+        assertEquals("a:1", new String(keyBytes, StandardCharsets.UTF_8));
+
+        Header header = headers.lastHeader(MAP_ID_HEADER);
+        assertArrayEquals("a".getBytes(StandardCharsets.UTF_8), header.value());
+        assertEquals("a", MapIdHeaderSerializer.decodeMapId(header.value()));
+
+        // The flush notifications and requests do not have keys.
+        Headers noKeyHeaders = new RecordHeaders();
+        assertNull(ser.serialize("t", noKeyHeaders, null));
+        assertNull(noKeyHeaders.lastHeader(MAP_ID_HEADER));
+
+        CountingDeserializer cnt = new CountingDeserializer();
+        MapIdFilterDeserializer<String> des = new MapIdFilterDeserializer<>(cnt, singleton("a")::contains);
+
+        assertEquals("a:1", des.deserialize("t", headers, keyBytes));
+        assertEquals(1, cnt.cnt.get());
+
+        Headers otherHeaders = new RecordHeaders();
+        byte[] otherKeyBytes = ser.serialize("t", otherHeaders, "b:1");
+        assertNull(des.deserialize("t", otherHeaders, otherKeyBytes));
+        assertEquals(1, cnt.cnt.get());
+
+        // The records without the header are always deserialized.
+        assertEquals("b:1", des.deserialize("t", new RecordHeaders(), otherKeyBytes));
+        assertEquals("b:1", des.deserialize("t", null, otherKeyBytes));
+        assertEquals(3, cnt.cnt.get());
+
+        ser.close();
+        des.close();
+    }
+
+    static class PrefixMapsHolder extends MapsHolderMulti {
+        @Override
+        public <K> Object getMapId(K key) {
+            String k = (String)key;
+            return k.substring(0, k.indexOf(':'));
+        }
+    }
+
+    static class CountingDeserializer extends StringDeserializer {
+        final AtomicInteger cnt = new AtomicInteger();
+
+        @Override
+        public String deserialize(String topic, byte[] data) {
+            cnt.incrementAndGet();
+            return super.deserialize(topic, data);
+        }
+    }
+}
@@ -1,21 +1,34 @@
 package com.vladykin.replicamap.kafka.impl.msg;
 
+import com.vladykin.replicamap.ReplicaMapException;
 import com.vladykin.replicamap.kafka.TestDeserializer;
 import com.vladykin.replicamap.kafka.TestSerializer;
 import com.vladykin.replicamap.kafka.compute.ComputeDeserializer;
 import com.vladykin.replicamap.kafka.compute.ComputeSerializer;
+import com.vladykin.replicamap.kafka.impl.compress.ValueCompressor;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Map;
 import java.util.function.BiFunction;
+import org.apache.kafka.common.header.internals.RecordHeaders;
 import org.apache.kafka.common.serialization.Deserializer;
 import org.apache.kafka.common.serialization.Serializer;
 import org.junit.jupiter.api.Test;
 
 import static com.vladykin.replicamap.kafka.impl.msg.OpMessage.OP_FLUSH_NOTIFICATION;
 import static com.vladykin.replicamap.kafka.impl.msg.OpMessage.OP_FLUSH_REQUEST;
+import static com.vladykin.replicamap.kafka.impl.msg.OpMessage.OP_PATCH;
+import static com.vladykin.replicamap.kafka.impl.msg.OpMessage.OP_PUT;
+import static com.vladykin.replicamap.kafka.impl.msg.OpMessageSerializer.FORMAT_V1;
+import static com.vladykin.replicamap.kafka.impl.msg.OpMessageSerializer.FORMAT_V2;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class OpMessageTest {
@@ -68,6 +81,221 @@ class OpMessageTest {
         assertTrue(funDes.closed);
     }
 
+    @SuppressWarnings("PointlessArithmeticExpression")
+    @Test
+    void testMapUpdateMessageV2() {
+        TestStringSerializer tvSer = new TestStringSerializer();
+        TestStringDeserializer tvDes = new TestStringDeserializer();
+
+        TestFuncSerializer funSer = new TestFuncSerializer();
+        TestFuncDeserializer funDes = new TestFuncDeserializer();
+
+        long clientId = 0x7FFFFFFFFFFFFFFFL;
+
+        OpMessageSerializer<String> ser = new OpMessageSerializer<>(tvSer, funSer, FORMAT_V2);
+        OpMessageDeserializer<String> des = new OpMessageDeserializer<>(tvDes, funDes);
+
+        ser.configure(null, false);
+        des.configure(null, false);
+
+        String v1 = "abcxyz";
+        String v2 = "qwerty";
+        BiFunction<?,?,?> function = new TestFunc(7);
+
+        OpMessage msg = new MapUpdate(OP_PUT, clientId, 1, v1, v2, function);
+        byte[] msgBytes = ser.serialize(null, msg);
+        assertEquals(1 + 1 + 8 + 1 + 1 + 6 + 1 + 6 + 1 + 1, msgBytes.length);
+        assertEqualsFull(msg, des.deserialize(null, msgBytes));
+
+        msg = new MapUpdate(OP_PUT, clientId, 200, null, v2, null);
+        msgBytes = ser.serialize(null, msg);
+        assertEquals(1 + 1 + 8 + 2 + 0 + 1 + 6 + 0, msgBytes.length);
+        assertEqualsFull(msg, des.deserialize(null, msgBytes));
+
+        msg = new MapUpdate(OP_PUT, clientId, 1, null, null, null);
+        msgBytes = ser.serialize(null, msg);
+        assertEquals(1 + 1 + 8 + 1, msgBytes.length);
+        assertEqualsFull(msg, des.deserialize(null, msgBytes));
+
+        // The same message in format v1 has the full client id.
+        msgBytes = new OpMessageSerializer<>(tvSer, funSer).serialize(null, msg);
+        assertEquals(1 + 10 + 1 + 1 + 1 + 1, msgBytes.length);
+        assertEqualsFull(msg, des.deserialize(null, msgBytes));
+
+        // Negative and small client ids.
+        for (long id : new long[]{-1L, 0L, 5L, Long.MIN_VALUE}) {
+            msg = new MapUpdate(OP_PUT, id, 1, v1, v2, function);
+            assertEqualsFull(msg, des.deserialize(null, ser.serialize(null, msg)));
+        }
+
+        assertThrows(IllegalArgumentException.class, () -> new OpMessageSerializer<>(tvSer, funSer, 3));
+
+        ser.close();
+        des.close();
+    }
+
+    @Test
+    void testClientIdsNeverClash() {
+        TestStringSerializer tvSer = new TestStringSerializer();
+        TestStringDeserializer tvDes = new TestStringDeserializer();
+
+        // These ids had the same 28 bits alias in the earlier draft of format v2.
+        long localClientId = 1L;
+        long remoteClientId = 1L << 28;
+
+        OpMessageSerializer<String> remoteSer = new OpMessageSerializer<>(tvSer, null, FORMAT_V2);
+        OpMessageDeserializer<String> localDes = new OpMessageDeserializer<>(tvDes, null);
+
+        remoteSer.configure(null, false);
+        localDes.configure(null, false);
+
+        OpMessage[] msgs = {
+            new MapUpdate(OP_PUT, remoteClientId, 1, "a", "b", null),
+            new FlushRequest(remoteClientId, 7, 5),
+            new FlushNotification(remoteClientId, 9, 7),
+        };
+
+        for (OpMessage msg : msgs) {
+            OpMessage remoteMsg = localDes.deserialize(null, remoteSer.serialize(null, msg));
+
+            assertEqualsFull(msg, remoteMsg);
+            assertNotEquals(localClientId, remoteMsg.getClientId());
+        }
+    }
+
+    @Test
+    void testMapUpdateMessageV2Compressed() {
+        TestStringSerializer tvSer = new TestStringSerializer();
+        TestStringDeserializer tvDes = new TestStringDeserializer();
+
+        TestFuncSerializer funSer = new TestFuncSerializer();
+        TestFuncDeserializer funDes = new TestFuncDeserializer();
+
+        byte[] dict = "{\"name\":\"flower\",\"color\":\"red\",\"price\":100}".getBytes(StandardCharsets.UTF_8);
+        ValueCompressor compressor = new ValueCompressor(Collections.singletonMap(7, dict), 7, 32);
+
+        OpMessageSerializer<String> ser = new OpMessageSerializer<>(tvSer, funSer, FORMAT_V2, compressor, 0);
+        OpMessageDeserializer<String> des = new OpMessageDeserializer<>(tvDes, funDes, compressor);
+
+        ser.configure(null, false);
+        des.configure(null, false);
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20; i++)
+            sb.append("{\"name\":\"flower\",\"color\":\"red\",\"price\":").append(i).append('}');
+        String big = sb.toString();
+        String small = "abc";
+
+        OpMessage msg = new MapUpdate(OP_PUT, 1, 1, small, small, null);
+        byte[] msgBytes = ser.serialize(null, msg);
+        assertEquals(1 + 1 + 8 + 1 + 1 + 3 + 1 + 3, msgBytes.length); // Not compressed at all.
+        assertEqualsFull(msg, des.deserialize(null, msgBytes));
+
+        msg = new MapUpdate(OP_PUT, 1, 1, small, big, new TestFunc(7));
+        msgBytes = ser.serialize(null, msg);
+        assertTrue(msgBytes.length < big.length() / 2, "" + msgBytes.length);
+        assertEqualsFull(msg, des.deserialize(null, msgBytes));
+
+        msg = new MapUpdate(OP_PUT, 1, 1, big, null, null);
+        msgBytes = ser.serialize(null, msg);
+        assertEqualsFull(msg, des.deserialize(null, msgBytes));
+
+        // Unknown dictionary.
+        ValueCompressor otherCompressor = new ValueCompressor(Collections.emptyMap(), 0, 32);
+        byte[] finalMsgBytes = msgBytes;
+        assertThrows(ReplicaMapException.class, () ->
+            new OpMessageDeserializer<>(tvDes, funDes, otherCompressor).deserialize(null, finalMsgBytes));
+
+        // Compressor without dictionary can read its own messages.
+        msgBytes = new OpMessageSerializer<>(tvSer, funSer, FORMAT_V2, otherCompressor, 0).serialize(null, msg);
+        assertEqualsFull(msg, des.deserialize(null, msgBytes));
+
+        assertThrows(IllegalArgumentException.class, () ->
+            new OpMessageSerializer<>(tvSer, funSer, FORMAT_V1, compressor, 0));
+
+        compressor.close();
+        otherCompressor.close();
+    }
+
+    @Test
+    void testMapUpdateMessagePatch() {
+        TestStringSerializer tvSer = new TestStringSerializer();
+        TestStringDeserializer tvDes = new TestStringDeserializer();
+
+        OpMessageSerializer<String> ser = new OpMessageSerializer<>(tvSer, null, FORMAT_V2, null, 100);
+        OpMessageDeserializer<String> des = new OpMessageDeserializer<>(tvDes, null);
+
+        ser.configure(null, false);
+        des.configure(null, false);
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++)
+            sb.append("value").append(i).append(';');
+        String base = sb.toString();
+        String upd = base.replace("value50;", "value50X;");
+
+        MapUpdate msg = (MapUpdate)des.deserialize(null, ser.serialize(null,
+            new MapUpdate(OP_PATCH, 1, 5, base, upd, null)));
+
+        assertEquals(OP_PATCH, msg.getOpType());
+        assertEquals(5, msg.getOpId());
+        assertNull(msg.getExpectedValue());
+
+        ValuePatch patch = (ValuePatch)msg.getUpdatedValue();
+        assertTrue(patch.size() < 50, "" + patch.size());
+        assertArrayEquals(upd.getBytes(StandardCharsets.UTF_8), patch.apply(base.getBytes(StandardCharsets.UTF_8)));
+        assertNull(patch.apply(upd.getBytes(StandardCharsets.UTF_8)));
+        assertNull(patch.apply(null));
+        assertEquals(patch, ValuePatch.fromBytes(patch.toBytes()));
+
+        // Small or unrelated values are sent in full.
+        assertEqualsFull(new MapUpdate(OP_PUT, 1, 5, null, "y", null), des.deserialize(null,
+            ser.serialize(null, new MapUpdate(OP_PATCH, 1, 5, "x", "y", null))));
+        assertEqualsFull(new MapUpdate(OP_PUT, 1, 5, null, base, null), des.deserialize(null,
+            ser.serialize(null, new MapUpdate(OP_PATCH, 1, 5, "x", base, null))));
+
+        // Format v1 never sends patches.
+        assertEqualsFull(new MapUpdate(OP_PUT, 1, 5, null, upd, null), des.deserialize(null,
+            new OpMessageSerializer<>(tvSer, null).serialize(null, new MapUpdate(OP_PATCH, 1, 5, base, upd, null))));
+
+        assertThrows(IllegalArgumentException.class, () ->
+            new OpMessageSerializer<>(tvSer, null, FORMAT_V1, null, 100));
+    }
+
+    @Test
+    void testKeepUpdatedValueBytes() {
+        TestStringSerializer tvSer = new TestStringSerializer();
+        TestStringDeserializer tvDes = new TestStringDeserializer();
+
+        OpMessageDeserializer<String> des = new OpMessageDeserializer<>(tvDes, null, null, true);
+        des.configure(null, false);
+
+        byte[] updBytes = "upd".getBytes(StandardCharsets.UTF_8);
+
+        for (int format : new int[]{FORMAT_V1, FORMAT_V2}) {
+            OpMessageSerializer<String> ser = new OpMessageSerializer<>(tvSer, null, format);
+            ser.configure(null, false);
+
+            MapUpdate msg = (MapUpdate)des.deserialize(null, ser.serialize(null,
+                new MapUpdate(OP_PUT, 1, 5, "exp", "upd", null)));
+
+            assertEquals("upd", msg.getUpdatedValue());
+            assertArrayEquals(updBytes, msg.getUpdatedValueBytes());
+
+            msg = (MapUpdate)new OpMessageDeserializer<>(tvDes, null).deserialize(null, ser.serialize(null,
+                new MapUpdate(OP_PUT, 1, 5, "exp", "upd", null)));
+
+            assertNull(msg.getUpdatedValueBytes());
+        }
+
+        SerializedValueSerializer<String> valSer = new SerializedValueSerializer<>(tvSer);
+        valSer.configure(null, false);
+
+        assertSame(updBytes, valSer.serialize(null, new SerializedValue(updBytes)));
+        assertSame(updBytes, valSer.serialize(null, new RecordHeaders(), new SerializedValue(updBytes)));
+        assertArrayEquals(updBytes, valSer.serialize(null, "upd"));
+    }
+
     static void assertEqualsFull(OpMessage m1, OpMessage m2) {
         assertEquals(m1, m2);
 
@@ -100,6 +328,27 @@ class OpMessageTest {
         assertEquals(cleanOffsetOps, msgx.getCleanOffsetOps());
     }
 
+    @Test
+    void testFlushRequestV2() {
+        long clientId = 0x7FFFFFFFFFFFFFFFL;
+
+        OpMessageSerializer<Void> ser = new OpMessageSerializer<>((TestSerializer<Void>)(topic, msg) -> null, null,
+            FORMAT_V2);
+        OpMessageDeserializer<Void> des = new OpMessageDeserializer<>((TestDeserializer<Void>)(topic, msgBytes) -> null, null);
+
+        FlushRequest msg = new FlushRequest(clientId, 7, -1);
+
+        byte[] msgBytes = ser.serialize(null, msg);
+        assertEquals(1 + 8 + 1 + 1, msgBytes.length);
+        assertEqualsFull(msg, des.deserialize(null, msgBytes));
+
+        FlushNotification notif = new FlushNotification(clientId, 9, 7);
+
+        msgBytes = ser.serialize(null, notif);
+        assertEquals(1 + 8 + 1 + 1, msgBytes.length);
+        assertEqualsFull(notif, des.deserialize(null, msgBytes));
+    }
+
     @Test
     void testFlushNotification() {
         OpMessageSerializer<Void> ser = new OpMessageSerializer<>((TestSerializer<Void>)(topic, msg) -> null, null);
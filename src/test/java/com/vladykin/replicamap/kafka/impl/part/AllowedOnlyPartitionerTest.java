@@ -4,6 +4,7 @@ import com.vladykin.replicamap.ReplicaMapException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.kafka.clients.producer.Partitioner;
 import org.apache.kafka.common.Cluster;
 import org.junit.jupiter.api.Test;
@@ -51,6 +52,27 @@ class AllowedOnlyPartitionerTest {
         assertEquals(1, IntPartitioner.closed.get());
     }
 
+    @Test
+    void testAllowedPartitionsSupplier() {
+        AtomicReference<short[]> allowedParts = new AtomicReference<>();
+
+        AllowedOnlyPartitioner p = new AllowedOnlyPartitioner();
+
+        Map<String,Object> cfg = new HashMap<>();
+        AllowedOnlyPartitioner.setupProducerConfig(cfg, allowedParts::get, KeyPartitioner.class);
+        p.configure(cfg);
+
+        // All the partitions are allowed.
+        assertEquals(0, p.partition(null, 0, null, null, null, null));
+        assertEquals(5, p.partition(null, 5, null, null, null, null));
+
+        allowedParts.set(new short[]{5});
+
+        assertThrows(ReplicaMapException.class, () ->
+            p.partition(null, 0, null, null, null, null));
+        assertEquals(5, p.partition(null, 5, null, null, null, null));
+    }
+
     public static class IntPartitioner implements Partitioner {
         static final AtomicInteger configured = new AtomicInteger();
         static final AtomicInteger closed = new AtomicInteger();
@@ -70,4 +92,21 @@ class AllowedOnlyPartitionerTest {
             configured.incrementAndGet();
         }
     }
-}
\ No newline at end of file
+
+    public static class KeyPartitioner implements Partitioner {
+        @Override
+        public int partition(String topic, Object key, byte[] keyBytes, Object value, byte[] valueBytes, Cluster cluster) {
+            return (int)key;
+        }
+
+        @Override
+        public void close() {
+            // no-op
+        }
+
+        @Override
+        public void configure(Map<String,?> configs) {
+            // no-op
+        }
+    }
+}
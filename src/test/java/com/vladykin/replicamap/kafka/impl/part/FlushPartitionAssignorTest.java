@@ -0,0 +1,155 @@
+package com.vladykin.replicamap.kafka.impl.part;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.Test;
+
+import static com.vladykin.replicamap.kafka.impl.part.AllowedOnlyPartitionAssignorTest.unwrap;
+import static com.vladykin.replicamap.kafka.impl.part.AllowedOnlyPartitionAssignorTest.wrap;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FlushPartitionAssignorTest {
+    static final String FLUSH_TOPIC = "flush";
+
+    @Test
+    void testTxPartitions() {
+        assertEquals(asList(asList(0, 2, 4), asList(1, 3)),
+            run(5, createAssignor(1, null), createAssignor(1, null)));
+
+        assertEquals(asList(asList(0, 1, 4), asList(2, 3)),
+            run(5, createAssignor(2, null), createAssignor(2, null)));
+
+        assertEquals(asList(asList(0, 1, 2), asList(3, 4, 5)),
+            run(6, createAssignor(3, null), createAssignor(3, null)));
+
+        // The group is assignable only if all of its partitions are allowed.
+        assertEquals(asList(asList(0, 1), asList(2, 3, 4)),
+            run(5, createAssignor(2, new short[]{0,1,2}), createAssignor(2, null)));
+
+        assertEquals(asList(asList(2, 3), singletonList(4)),
+            run(5, createAssignor(2, new short[]{1,2,3}), createAssignor(2, new short[]{4})));
+    }
+
+    @Test
+    void testSticky() {
+        // Only the fair share of the owned partitions is kept.
+        assertEquals(asList(asList(0, 1), asList(3, 4), asList(2, 5)),
+            run(6, createStickyAssignor(1, null, 0, 1, 2), createStickyAssignor(1, null, 3, 4, 5),
+                createStickyAssignor(1, null)));
+
+        assertEquals(asList(asList(5, 0, 4), asList(1, 2, 3)),
+            run(6, createStickyAssignor(1, null, 5), createStickyAssignor(1, null, 1, 2, 3, 4)));
+
+        // The owned partitions must still be allowed.
+        assertEquals(asList(asList(1, 2), asList(0, 3)),
+            run(4, createStickyAssignor(1, new short[]{1,2,3}, 0, 1, 2), createStickyAssignor(1, null)));
+
+        // The groups are kept as a whole.
+        assertEquals(asList(asList(0, 1, 2, 3), asList(4, 5, 6, 7)),
+            run(8, createStickyAssignor(2, null, 0, 1, 2, 3, 4, 5), createStickyAssignor(2, null)));
+
+        assertEquals(asList(asList(4, 5, 6, 7), asList(0, 1, 2, 3)),
+            run(8, createStickyAssignor(2, null, 4, 5, 6, 7), createStickyAssignor(2, null, 0, 1)));
+    }
+
+    @Test
+    void testLoad() {
+        // The heavy partition is moved to the idle member, the light ones stay.
+        assertEquals(asList(asList(1, 2, 3), singletonList(0)),
+            run(4, createLoadAssignor(1, 1, 0, 1000, 1, 10, 2, 10, 3, 10), createLoadAssignor(1, 1)));
+
+        // The load is balanced proportionally to the capacity.
+        assertEquals(asList(asList(0, 1, 2, 4, 5, 6), asList(3, 7)),
+            run(8, createLoadAssignor(1, 3), createLoadAssignor(1, 1)));
+
+        // Small imbalance does not move partitions.
+        assertEquals(asList(asList(0, 1), asList(2, 3)),
+            run(4, createLoadAssignor(1, 1, 0, 100, 1, 100), createLoadAssignor(1, 1, 2, 60, 3, 60)));
+
+        // The loads of the partitions in a group are summed up.
+        assertEquals(asList(asList(2, 3), asList(0, 1)),
+            run(4, createLoadAssignor(2, 1, 0, 500, 1, 500, 2, 1, 3, 1), createLoadAssignor(2, 1)));
+    }
+
+    static List<List<Integer>> run(int parts, FlushPartitionAssignor... assignors) {
+        Map<String,AllowedOnlyPartitionAssignor.Subscription> subs = new HashMap<>();
+
+        for (int i = 0; i < assignors.length; i++) {
+            subs.put(String.valueOf(i), new AllowedOnlyPartitionAssignor.Subscription(singletonList(FLUSH_TOPIC),
+                assignors[i].subscriptionUserData(singleton(FLUSH_TOPIC))));
+        }
+
+        List<PartitionInfo> partsInfo = new ArrayList<>();
+        for (int p = 0; p < parts; p++)
+            partsInfo.add(new PartitionInfo(FLUSH_TOPIC, p, null, null, null));
+
+        Cluster meta = new Cluster("testCluster", Collections.emptySet(), partsInfo,
+            Collections.emptySet(), Collections.emptySet());
+
+        Map<String,AllowedOnlyPartitionAssignor.Assignment> assigns = unwrap(
+            assignors[0].assign(meta, wrap(subs)));
+
+        List<List<Integer>> res = new ArrayList<>();
+
+        for (int i = 0; i < assignors.length; i++) {
+            List<Integer> assignedParts = new ArrayList<>();
+
+            for (TopicPartition part : assigns.get(String.valueOf(i)).partitions()) {
+                assertEquals(FLUSH_TOPIC, part.topic());
+                assignedParts.add(part.partition());
+            }
+
+            res.add(assignedParts);
+        }
+
+        return res;
+    }
+
+    static FlushPartitionAssignor createStickyAssignor(int txPartitions, short[] allowedParts, int... ownedParts) {
+        FlushPartitionAssignor assignor = new StickyFlushPartitionAssignor();
+
+        List<TopicPartition> owned = new ArrayList<>();
+        for (int part : ownedParts)
+            owned.add(new TopicPartition(FLUSH_TOPIC, part));
+
+        Map<String,Object> cfg = new HashMap<>();
+        FlushPartitionAssignor.setupConsumerConfig(cfg, allowedParts, FLUSH_TOPIC, txPartitions, owned, null, 1);
+        assignor.configure(cfg);
+
+        return assignor;
+    }
+
+    static FlushPartitionAssignor createLoadAssignor(int txPartitions, int capacity, long... ownedLoads) {
+        FlushPartitionAssignor assignor = new StickyFlushPartitionAssignor();
+
+        Map<TopicPartition,Long> loads = new HashMap<>();
+        for (int i = 0; i < ownedLoads.length; i += 2)
+            loads.put(new TopicPartition(FLUSH_TOPIC, (int)ownedLoads[i]), ownedLoads[i + 1]);
+
+        Map<String,Object> cfg = new HashMap<>();
+        FlushPartitionAssignor.setupConsumerConfig(cfg, null, FLUSH_TOPIC, txPartitions,
+            new ArrayList<>(loads.keySet()), part -> loads.getOrDefault(part, 0L), capacity);
+        assignor.configure(cfg);
+
+        return assignor;
+    }
+
+    static FlushPartitionAssignor createAssignor(int txPartitions, short[] allowedParts) {
+        FlushPartitionAssignor assignor = new FlushPartitionAssignor();
+
+        Map<String,Object> cfg = new HashMap<>();
+        FlushPartitionAssignor.setupConsumerConfig(cfg, allowedParts, FLUSH_TOPIC, txPartitions);
+        assignor.configure(cfg);
+
+        return assignor;
+    }
+}
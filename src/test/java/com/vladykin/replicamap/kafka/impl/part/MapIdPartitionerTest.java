@@ -0,0 +1,134 @@
+package com.vladykin.replicamap.kafka.impl.part;
+
+import com.vladykin.replicamap.ReplicaMapException;
+import com.vladykin.replicamap.holder.MapsHolderMulti;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.kafka.clients.producer.internals.DefaultPartitioner;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.PartitionInfo;
+import org.junit.jupiter.api.Test;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singletonList;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MapIdPartitionerTest {
+    static final String TOPIC = "ops";
+    static final int PARTS = 8;
+
+    static final Cluster CLUSTER = newCluster();
+
+    static Cluster newCluster() {
+        List<PartitionInfo> parts = new ArrayList<>();
+        for (int part = 0; part < PARTS; part++)
+            parts.add(new PartitionInfo(TOPIC, part, null, null, null));
+        return new Cluster(null, emptyList(), parts, emptySet(), emptySet());
+    }
+
+    static class PrefixMapsHolder extends MapsHolderMulti {
+        @Override
+        public <K> Object getMapId(K key) {
+            String k = (String)key;
+            return k.substring(0, k.indexOf(':'));
+        }
+
+        @Override
+        public int[] getMapPartitions(Object mapId, int totalPartitions) {
+            return "c".equals(mapId) ? new int[]{totalPartitions - 1} : null;
+        }
+    }
+
+    static MapIdPartitioner newPartitioner(List<String> mapsPartitions, int hashed) {
+        Map<String,Object> cfg = new HashMap<>();
+        MapIdPartitioner.setupProducerConfig(cfg, new PrefixMapsHolder(), mapsPartitions, hashed);
+
+        MapIdPartitioner p = new MapIdPartitioner();
+        p.configure(cfg);
+        return p;
+    }
+
+    static int partition(MapIdPartitioner p, String key) {
+        return p.partition(TOPIC, key, key.getBytes(StandardCharsets.UTF_8), null, null, CLUSTER);
+    }
+
+    static Set<Integer> partitions(MapIdPartitioner p, String mapId) {
+        Set<Integer> parts = new HashSet<>();
+        for (int i = 0; i < 1000; i++)
+            parts.add(partition(p, mapId + ":" + i));
+        return parts;
+    }
+
+    @Test
+    void testConfiguredPartitions() {
+        MapIdPartitioner p = newPartitioner(asList("a:2-4", "b:6"), 0);
+
+        assertEquals(new HashSet<>(asList(2, 3, 4)), partitions(p, "a"));
+        assertEquals(new HashSet<>(singletonList(6)), partitions(p, "b"));
+        assertEquals(new HashSet<>(singletonList(7)), partitions(p, "c")); // From the holder.
+        assertEquals(PARTS, partitions(p, "d").size());
+
+        assertArrayEquals(new int[]{2, 3, 4}, p.getMapPartitions("a", PARTS));
+        assertNull(p.getMapPartitions("d", PARTS));
+
+        // The maps without partitions are the same as with the default partitioner.
+        DefaultPartitioner dp = new DefaultPartitioner();
+        for (int i = 0; i < 100; i++) {
+            String key = "d:" + i;
+            assertEquals(dp.partition(TOPIC, key, key.getBytes(StandardCharsets.UTF_8), null, null, CLUSTER),
+                partition(p, key));
+        }
+
+        MapIdPartitioner invalid = newPartitioner(singletonList("a:7-8"), 0);
+        assertThrows(ReplicaMapException.class, () -> partition(invalid, "a:1"));
+
+        assertThrows(ReplicaMapException.class, () -> newPartitioner(singletonList("a"), 0));
+        assertThrows(ReplicaMapException.class, () -> newPartitioner(singletonList("a:x"), 0));
+        assertThrows(ReplicaMapException.class, () -> newPartitioner(singletonList("a:3-1"), 0));
+        assertThrows(ReplicaMapException.class, () -> newPartitioner(asList("a:1", "a:2"), 0));
+    }
+
+    @Test
+    void testHashedPartitions() {
+        MapIdPartitioner p = newPartitioner(singletonList("a:0"), 3);
+
+        assertEquals(new HashSet<>(singletonList(0)), partitions(p, "a"));
+
+        for (String mapId : asList("b", "d", "e", "f")) {
+            Set<Integer> parts = partitions(p, mapId);
+            assertEquals(3, parts.size());
+
+            int[] mapParts = p.getMapPartitions(mapId, PARTS);
+            assertEquals(3, mapParts.length);
+
+            for (int i = 0; i < mapParts.length; i++) {
+                assertTrue(parts.contains(mapParts[i]));
+                assertEquals((mapParts[0] + i) % PARTS, mapParts[i]); // Consecutive.
+            }
+        }
+
+        assertEquals(8, newPartitioner(emptyList(), 100).getMapPartitions("x", PARTS).length);
+    }
+
+    @Test
+    void testPartitionsIncreased() {
+        MapIdPartitioner p = newPartitioner(emptyList(), 100);
+
+        assertEquals(PARTS, p.getMapPartitions("a", PARTS).length);
+        assertEquals(PARTS * 2, p.getMapPartitions("a", PARTS * 2).length);
+
+        assertArrayEquals(new int[]{PARTS - 1}, p.getMapPartitions("c", PARTS));
+        assertArrayEquals(new int[]{PARTS * 2 - 1}, p.getMapPartitions("c", PARTS * 2));
+    }
+}
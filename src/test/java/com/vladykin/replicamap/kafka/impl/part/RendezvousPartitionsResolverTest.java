@@ -0,0 +1,127 @@
+package com.vladykin.replicamap.kafka.impl.part;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.Test;
+
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.ALLOWED_PARTITIONS_MEMBERS;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.ALLOWED_PARTITIONS_MEMBER_ID;
+import static com.vladykin.replicamap.kafka.KReplicaMapManagerConfig.ALLOWED_PARTITIONS_REPLICATION_FACTOR;
+import static com.vladykin.replicamap.kafka.impl.part.RendezvousPartitionsResolver.assignPartitions;
+import static java.util.Arrays.asList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RendezvousPartitionsResolverTest {
+    static final int PARTS = 32;
+
+    static List<String> members(int n) {
+        List<String> members = new ArrayList<>();
+        for (int i = 0; i < n; i++)
+            members.add("member-" + i);
+        return members;
+    }
+
+    @Test
+    void testAssignPartitions() {
+        for (int rf = 1; rf <= 3; rf++) {
+            Map<String,Set<Integer>> prev = null;
+
+            for (int n = 1; n <= 6; n++) {
+                List<String> members = members(n);
+                Map<String,Set<Integer>> assigned = new HashMap<>();
+                int[] holders = new int[PARTS];
+
+                for (String m : members) {
+                    Set<Integer> parts = assignPartitions(m, members, PARTS, rf);
+                    assigned.put(m, parts);
+
+                    for (int part : parts)
+                        holders[part]++;
+                }
+
+                for (int part = 0; part < PARTS; part++)
+                    assertEquals(Math.min(n, rf), holders[part]);
+
+                if (prev != null) {
+                    // The new member only takes partitions from the old ones, the rest do not move.
+                    for (Map.Entry<String,Set<Integer>> e : prev.entrySet())
+                        assertTrue(e.getValue().containsAll(assigned.get(e.getKey())));
+                }
+
+                prev = assigned;
+            }
+        }
+    }
+
+    @Test
+    void testStaticMembers() {
+        List<Set<Integer>> changes = new ArrayList<>();
+
+        Map<String,Object> cfg = new HashMap<>();
+        cfg.put(ALLOWED_PARTITIONS_REPLICATION_FACTOR, 2);
+        cfg.put(ALLOWED_PARTITIONS_MEMBER_ID, "member-0");
+        cfg.put(ALLOWED_PARTITIONS_MEMBERS, asList("member-1", "member-2"));
+        RendezvousPartitionsResolver.setupResolverConfig(cfg, PARTS, (Consumer<Set<Integer>>)changes::add,
+            null, null, null);
+
+        try (RendezvousPartitionsResolver resolver = new RendezvousPartitionsResolver()) {
+            resolver.configure(cfg);
+
+            assertEquals(new HashSet<>(members(3)), resolver.getMembers());
+            assertEquals(assignPartitions("member-0", members(3), PARTS, 2), resolver.get());
+
+            resolver.onMembersChanged(members(3));
+            assertTrue(changes.isEmpty());
+
+            resolver.onMembersChanged(members(5));
+            assertEquals(1, changes.size());
+            assertEquals(assignPartitions("member-0", members(5), PARTS, 2), changes.get(0));
+            assertEquals(changes.get(0), resolver.get());
+
+            resolver.onMembersChanged(asList("member-1")); // This member is always included.
+            assertEquals(2, changes.size());
+            assertEquals(PARTS, resolver.get().size());
+        }
+    }
+
+    @Test
+    void testKeepUntilSteady() {
+        List<Set<Integer>> changes = new ArrayList<>();
+
+        Map<String,Object> cfg = new HashMap<>();
+        cfg.put(ALLOWED_PARTITIONS_REPLICATION_FACTOR, 1);
+        cfg.put(ALLOWED_PARTITIONS_MEMBER_ID, "member-0");
+        cfg.put(ALLOWED_PARTITIONS_MEMBERS, asList("member-1"));
+        RendezvousPartitionsResolver.setupResolverConfig(cfg, PARTS, (Consumer<Set<Integer>>)changes::add,
+            null, null, null);
+
+        try (RendezvousPartitionsResolver resolver = new RendezvousPartitionsResolver()) {
+            resolver.configure(cfg);
+
+            Set<Integer> oldParts = assignPartitions("member-0", members(2), PARTS, 1);
+            Set<Integer> newParts = assignPartitions("member-0", members(3), PARTS, 1);
+            assertEquals(oldParts, resolver.get());
+            assertTrue(oldParts.size() > newParts.size());
+
+            // The partitions moving to the new member are kept while it is loading.
+            resolver.onMembersChanged(members(3), members(2));
+            assertTrue(changes.isEmpty());
+            assertEquals(oldParts, resolver.get());
+
+            resolver.onMembersChanged(members(3), members(3));
+            assertEquals(1, changes.size());
+            assertEquals(newParts, resolver.get());
+
+            // Nothing moves to the unsteady member when it leaves.
+            resolver.onMembersChanged(members(2), asList("member-0"));
+            assertEquals(2, changes.size());
+            assertEquals(oldParts, resolver.get());
+        }
+    }
+}
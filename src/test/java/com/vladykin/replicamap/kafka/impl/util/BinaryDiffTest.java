@@ -0,0 +1,96 @@
+package com.vladykin.replicamap.kafka.impl.util;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BinaryDiffTest {
+    @Test
+    void testDiff() {
+        Random rnd = new Random(7);
+
+        for (int i = 0; i < 200; i++) {
+            byte[] base = new byte[rnd.nextInt(5000)];
+            rnd.nextBytes(base);
+
+            byte[] target = mutate(rnd, base);
+            byte[] diff = BinaryDiff.diff(base, target);
+
+            assertArrayEquals(target, BinaryDiff.apply(base, diff));
+        }
+
+        assertArrayEquals(new byte[0], BinaryDiff.apply(new byte[10], BinaryDiff.diff(new byte[10], new byte[0])));
+        assertArrayEquals(new byte[]{1, 2}, BinaryDiff.apply(new byte[0], BinaryDiff.diff(new byte[0], new byte[]{1, 2})));
+    }
+
+    @Test
+    void testSmallChange() {
+        Random rnd = new Random(3);
+
+        byte[] base = new byte[10_000];
+        rnd.nextBytes(base);
+
+        byte[] target = base.clone();
+        target[5000]++;
+
+        byte[] diff = BinaryDiff.diff(base, target);
+        assertTrue(diff.length < 32, "" + diff.length);
+        assertArrayEquals(target, BinaryDiff.apply(base, diff));
+
+        // The same values give a single copy.
+        assertEquals(4, BinaryDiff.diff(base, base).length);
+
+        assertThrows(IllegalArgumentException.class, () -> BinaryDiff.apply(new byte[10], diff));
+    }
+
+    @Test
+    void testDigest() {
+        byte[] a = new byte[100];
+        byte[] b = a.clone();
+
+        assertEquals(BinaryDiff.digest(a), BinaryDiff.digest(b));
+
+        b[50] = 1;
+        assertNotEquals(BinaryDiff.digest(a), BinaryDiff.digest(b));
+        assertNotEquals(BinaryDiff.digest(a), BinaryDiff.digest(Arrays.copyOf(a, 99)));
+    }
+
+    static byte[] mutate(Random rnd, byte[] base) {
+        byte[] res = base.clone();
+
+        for (int j = rnd.nextInt(5); j > 0 && res.length > 0; j--) {
+            int pos = rnd.nextInt(res.length);
+
+            switch (rnd.nextInt(3)) {
+                case 0: // Change.
+                    res[pos]++;
+                    break;
+
+                case 1: // Insert.
+                    byte[] ins = new byte[rnd.nextInt(50)];
+                    rnd.nextBytes(ins);
+                    byte[] x = new byte[res.length + ins.length];
+                    System.arraycopy(res, 0, x, 0, pos);
+                    System.arraycopy(ins, 0, x, pos, ins.length);
+                    System.arraycopy(res, pos, x, pos + ins.length, res.length - pos);
+                    res = x;
+                    break;
+
+                default: // Remove.
+                    int len = Math.min(rnd.nextInt(50), res.length - pos);
+                    byte[] y = new byte[res.length - len];
+                    System.arraycopy(res, 0, y, 0, pos);
+                    System.arraycopy(res, pos + len, y, pos, res.length - pos - len);
+                    res = y;
+            }
+        }
+
+        return res;
+    }
+}
@@ -0,0 +1,64 @@
+package com.vladykin.replicamap.kafka.impl.util;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CoalescerTest {
+    static final long MS = MILLISECONDS.toNanos(1);
+
+    @Test
+    void testImmediate() {
+        List<String> sent = new ArrayList<>();
+        Coalescer<String> c = new Coalescer<>(0, (part, val) -> sent.add(part + ":" + val));
+
+        c.send(0, "a", 0);
+        c.send(0, "b", 0);
+        c.send(1, "c", 0);
+
+        assertEquals(asList("0:a", "0:b", "1:c"), sent);
+        assertEquals(Long.MAX_VALUE, c.getDelayMs(0));
+        assertEquals(0, c.flush(Long.MAX_VALUE));
+        assertEquals(0, c.getCoalesced());
+    }
+
+    @Test
+    void testWindow() {
+        List<String> sent = new ArrayList<>();
+        Coalescer<String> c = new Coalescer<>(10, (part, val) -> sent.add(part + ":" + val));
+
+        c.send(0, "a", 0);
+        c.send(0, "b", 5 * MS);
+        c.send(1, "c", 5 * MS);
+
+        assertEquals(emptyList(), sent);
+        assertEquals(5, c.getDelayMs(5 * MS));
+
+        assertEquals(0, c.flush(9 * MS));
+        assertEquals(1, c.flush(10 * MS)); // The window started with the first value.
+        assertEquals(asList("0:b"), sent);
+        assertEquals(5, c.getDelayMs(10 * MS));
+
+        c.send(0, "d", 12 * MS);
+        c.send(1, "e", 12 * MS);
+
+        assertEquals(2, c.flush(22 * MS));
+        assertEquals(3, sent.size());
+        assertEquals(new HashSet<>(asList("0:d", "1:e")), new HashSet<>(sent.subList(1, 3)));
+        assertEquals(2, c.getCoalesced());
+        assertEquals(Long.MAX_VALUE, c.getDelayMs(22 * MS));
+    }
+
+    @Test
+    void testChecks() {
+        assertThrows(IllegalArgumentException.class, () -> new Coalescer<>(-1, (part, val) -> {}));
+        assertThrows(NullPointerException.class, () -> new Coalescer<>(1, null));
+    }
+}
@@ -0,0 +1,35 @@
+package com.vladykin.replicamap.kafka.impl.util;
+
+import org.junit.jupiter.api.Test;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DecayingCounterTest {
+    static final long MS = MILLISECONDS.toNanos(1);
+
+    @Test
+    void testDecay() {
+        DecayingCounter c = new DecayingCounter(100);
+
+        assertEquals(0, c.get(0));
+
+        c.add(1000, 0);
+        assertEquals(1000, c.get(0));
+        assertEquals(500, c.get(100 * MS));
+        assertEquals(250, c.get(200 * MS));
+
+        c.add(250, 200 * MS);
+        assertEquals(500, c.get(200 * MS));
+        assertEquals(250, c.get(300 * MS));
+
+        // The time going back does not increase the value.
+        assertEquals(500, c.get(0));
+    }
+
+    @Test
+    void testChecks() {
+        assertThrows(IllegalArgumentException.class, () -> new DecayingCounter(0));
+    }
+}
@@ -0,0 +1,101 @@
+package com.vladykin.replicamap.kafka.impl.util;
+
+import com.vladykin.replicamap.ReplicaMapException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SegmentedMapTest {
+    static SegmentedMap<Integer,String> newMap() {
+        return new SegmentedMap<>(3, part -> new ConcurrentHashMap<>(), k -> (Integer)k % 3);
+    }
+
+    @Test
+    void testRouting() {
+        SegmentedMap<Integer,String> m = newMap();
+
+        assertTrue(m.isEmpty());
+
+        for (int i = 0; i < 10; i++)
+            assertNull(m.put(i, "v" + i));
+
+        assertEquals(10, m.size());
+        assertEquals(4, m.getSegment(0).size());
+        assertEquals(3, m.getSegment(1).size());
+        assertEquals(3, m.getSegment(2).size());
+        assertEquals("v4", m.getSegment(1).get(4));
+
+        assertEquals("v5", m.get(5));
+        assertTrue(m.containsKey(5));
+        assertTrue(m.containsValue("v5"));
+        assertEquals("x", m.getOrDefault(11, "x"));
+
+        assertEquals("v5", m.putIfAbsent(5, "x"));
+        assertTrue(m.replace(5, "v5", "w5"));
+        assertEquals("w5", m.replace(5, "v5"));
+        assertFalse(m.remove(5, "w5"));
+        assertTrue(m.remove(5, "v5"));
+        assertNull(m.getSegment(2).get(5));
+
+        assertEquals("v1!", m.compute(1, (k, v) -> v + "!"));
+        assertEquals("v1!?", m.computeIfPresent(1, (k, v) -> v + "?"));
+        assertEquals("new", m.computeIfAbsent(11, k -> "new"));
+        assertEquals("new+", m.merge(11, "+", String::concat));
+        assertEquals("new+", m.getSegment(2).get(11));
+
+        Map<Integer,String> exp = new HashMap<>(m.getSegment(0));
+        exp.putAll(m.getSegment(1));
+        exp.putAll(m.getSegment(2));
+        assertEquals(exp, m);
+        assertEquals(exp, new HashMap<>(m));
+
+        m.getSegment(1).clear();
+        assertEquals(7, m.size());
+        assertNull(m.get(4));
+
+        m.clear();
+        assertTrue(m.isEmpty());
+    }
+
+    @Test
+    void testIterator() {
+        SegmentedMap<Integer,String> m = newMap();
+
+        assertFalse(m.entrySet().iterator().hasNext());
+
+        m.put(0, "a");
+        m.put(2, "b");
+        m.put(5, "c");
+
+        Iterator<Integer> it = m.keySet().iterator();
+        int cnt = 0;
+
+        while (it.hasNext()) {
+            if (it.next() == 2)
+                it.remove();
+            cnt++;
+        }
+
+        assertEquals(3, cnt);
+        assertFalse(it.hasNext());
+        assertEquals(2, m.size());
+        assertFalse(m.containsKey(2));
+    }
+
+    @Test
+    void testChecks() {
+        assertThrows(ReplicaMapException.class, () -> new SegmentedMap<>(0, part -> new ConcurrentHashMap<>(), k -> 0));
+        assertThrows(NullPointerException.class, () -> new SegmentedMap<>(1, part -> new ConcurrentHashMap<>(), null));
+
+        SegmentedMap<Integer,String> m = newMap();
+        assertThrows(IllegalStateException.class, () -> m.get(-1));
+    }
+}
@@ -280,4 +280,38 @@ class UtilsTest {
         assertEquals(expLen, bytes.length);
         assertArrayEquals(arr, deserializeShortArray(ByteBuffer.wrap(bytes)));
     }
+
+    @Test
+    void testUnsignedVarlong() {
+        checkUnsignedVarlong(0, 1);
+        checkUnsignedVarlong(1, 1);
+        checkUnsignedVarlong(127, 1);
+        checkUnsignedVarlong(128, 2);
+        checkUnsignedVarlong(16383, 2);
+        checkUnsignedVarlong(16384, 3);
+        checkUnsignedVarlong(0x0FFFFFFF, 4);
+        checkUnsignedVarlong(Long.MAX_VALUE, 9);
+        checkUnsignedVarlong(-1, 10);
+        checkUnsignedVarlong(Long.MIN_VALUE, 10);
+
+        Random rnd = ThreadLocalRandom.current();
+
+        for (int i = 0; i < 1000; i++)
+            checkUnsignedVarlong(rnd.nextLong(), -1);
+    }
+
+    void checkUnsignedVarlong(long x, int expLen) {
+        int len = Utils.sizeOfUnsignedVarlong(x);
+
+        if (expLen != -1)
+            assertEquals(expLen, len);
+
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        Utils.writeUnsignedVarlong(x, buf);
+        assertEquals(0, buf.remaining());
+
+        buf.flip();
+        assertEquals(x, Utils.readUnsignedVarlong(buf));
+        assertEquals(0, buf.remaining());
+    }
 }
@@ -2,7 +2,9 @@ package com.vladykin.replicamap.kafka.impl.worker.flush;
 
 import com.vladykin.replicamap.kafka.impl.util.Utils;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CyclicBarrier;
@@ -15,8 +17,14 @@ import java.util.stream.LongStream;
 import org.junit.jupiter.api.Test;
 
 import static com.vladykin.replicamap.base.ReplicaMapBaseMultithreadedTest.executeThreads;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -28,13 +36,13 @@ class FlushQueueTest {
 
         assertEquals(-1, q.maxCleanOffset);
         assertEquals(-1, q.maxAddOffset);
-        assertEquals(0, q.queue.size());
+        assertEquals(0, q.size());
 
-        q.add(1,null, 0, false);
+        q.add(1,null, 0);
 
         assertEquals(-1, q.maxCleanOffset);
         assertEquals(0, q.maxAddOffset);
-        assertEquals(1, q.queue.size());
+        assertEquals(1, q.size());
 
         FlushQueue.Batch batch = q.collect(stream(1));
         assertNull(batch);
@@ -50,34 +58,34 @@ class FlushQueueTest {
 
         assertEquals(0, q.maxCleanOffset);
         assertEquals(0, q.maxAddOffset);
-        assertEquals(0, q.queue.size());
+        assertEquals(0, q.size());
 
-        q.add(1,null, 1, false);
-        q.add(2,null, 2, false);
-        q.add(3,null, 3, false);
-        q.add(4,null, 4, false);
+        q.add(1,null, 1);
+        q.add(2,null, 2);
+        q.add(3,null, 3);
+        q.add(4,null, 4);
 
         assertEquals(0, q.maxCleanOffset);
         assertEquals(4, q.maxAddOffset);
-        assertEquals(4, q.queue.size());
+        assertEquals(4, q.size());
 
-        q.add(null,null, 5, false);
+        q.add(null,null, 5);
 
         assertEquals(0, q.maxCleanOffset);
         assertEquals(5, q.maxAddOffset);
-        assertEquals(4, q.queue.size());
+        assertEquals(4, q.size());
 
-        q.add(null,null, 6, false);
+        q.add(null,null, 6);
 
         assertEquals(0, q.maxCleanOffset);
         assertEquals(6, q.maxAddOffset);
-        assertEquals(4, q.queue.size());
+        assertEquals(4, q.size());
 
-        q.add(7,null, 7, false);
+        q.add(7,null, 7);
 
         assertEquals(0, q.maxCleanOffset);
         assertEquals(7, q.maxAddOffset);
-        assertEquals(5, q.queue.size());
+        assertEquals(5, q.size());
 
         batch = q.collect(stream(7));
         collectedAll = batch.getCollectedAll();
@@ -88,32 +96,32 @@ class FlushQueueTest {
 
         assertEquals(0, q.maxCleanOffset);
         assertEquals(7, q.maxAddOffset);
-        assertEquals(5, q.queue.size());
+        assertEquals(5, q.size());
 
         q.clean(batch.getMaxOffset(), "");
 
         assertEquals(7, q.maxCleanOffset);
         assertEquals(7, q.maxAddOffset);
-        assertEquals(0, q.queue.size());
+        assertEquals(0, q.size());
 
         assertThrows(IllegalStateException.class, () ->
-            q.add(8,null, 7, true));
+            q.add(8,null, 7));
 
         assertEquals(7, q.maxCleanOffset);
         assertEquals(7, q.maxAddOffset);
-        assertEquals(0, q.queue.size());
+        assertEquals(0, q.size());
 
-        q.add(9,null, 8, true);
+        q.add(9,null, 8);
 
         assertEquals(7, q.maxCleanOffset);
         assertEquals(8, q.maxAddOffset);
-        assertEquals(1, q.queue.size());
+        assertEquals(1, q.size());
 
          q.clean(6, "");
 
         assertEquals(7, q.maxCleanOffset);
         assertEquals(8, q.maxAddOffset);
-        assertEquals(1, q.queue.size());
+        assertEquals(1, q.size());
 
         System.out.println(q);
 
@@ -121,7 +129,7 @@ class FlushQueueTest {
 
         assertEquals(10, q.maxCleanOffset);
         assertEquals(10, q.maxAddOffset);
-        assertEquals(0, q.queue.size());
+        assertEquals(0, q.size());
     }
 
     LongStream stream(long... x) {
@@ -129,28 +137,149 @@ class FlushQueueTest {
     }
 
     @Test
-    public void testThreadLocalBuffer() {
+    void testRing() {
         FlushQueue q = new FlushQueue(null);
+        q.setMaxOffset(-1);
 
-        q.setMaxOffset(0);
+        long offset = 0;
 
-        q.lock.acquireUninterruptibly();
+        // Wrap around the ring many times without growing.
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j < FlushQueue.INITIAL_CAPACITY; j++, offset++)
+                q.add(offset, offset, offset);
 
-        q.add(1,null, 1, false);
-        q.add(1,null, 2, false);
-        q.add(1,null, 3, false);
+            assertEquals(FlushQueue.INITIAL_CAPACITY, q.size());
 
-        assertEquals(-1, q.maxCleanOffset);
-        assertEquals(0, q.maxAddOffset);
-        assertEquals(0, q.queue.size());
+            FlushQueue.Batch batch = q.collect(stream(offset - 1));
+            assertEquals(FlushQueue.INITIAL_CAPACITY, batch.size());
+            assertEquals(offset - FlushQueue.INITIAL_CAPACITY, batch.getMinOffset());
+
+            q.clean(offset - 1, "");
+            assertEquals(0, q.size());
+        }
 
-        q.lock.release();
+        assertEquals(FlushQueue.INITIAL_CAPACITY, q.ring.capacity());
 
-        q.add(1,null, 4, true);
+        // Grow with the live records in the middle of the ring.
+        for (int j = 0; j < 10; j++, offset++)
+            q.add(offset, offset, offset);
 
-        assertEquals(-1, q.maxCleanOffset);
-        assertEquals(4, q.maxAddOffset);
-        assertEquals(4, q.queue.size());
+        q.clean(offset - 6, "");
+        assertEquals(5, q.size());
+
+        long minOffset = offset - 5;
+
+        for (int j = 0; j < 3 * FlushQueue.INITIAL_CAPACITY; j++, offset++)
+            q.add(offset, offset, offset);
+
+        assertEquals(4 * FlushQueue.INITIAL_CAPACITY, q.ring.capacity());
+
+        FlushQueue.Batch batch = q.collect(stream(offset - 1));
+
+        assertEquals(minOffset, batch.getMinOffset());
+        assertEquals(offset - minOffset, batch.size());
+
+        for (long x = minOffset; x < offset; x++)
+            assertEquals(x, batch.get(x));
+    }
+
+    @Test
+    void testCompaction() {
+        FlushQueue q = new FlushQueue(null);
+        q.setMaxOffset(-1);
+
+        for (int i = 0; i < 10_000; i++)
+            q.add(i % 10, i, i);
+
+        FlushQueue.Batch batch = q.collect(stream(4999));
+
+        assertEquals(10, batch.size());
+        assertEquals(0, batch.getMinOffset());
+        assertEquals(4999, batch.getMaxOffset());
+        assertEquals(5000, batch.getCollectedAll());
+        assertEquals(4999, batch.get(9));
+        assertEquals(4990, batch.get(0));
+
+        // The collected records are compacted.
+        assertEquals(10 + 5000, q.size());
+
+        // The flush failed, the next attempt collects the same batch.
+        assertSame(batch, q.collect(stream(4999)));
+
+        FlushQueue.Batch batch2 = q.collect(stream(4999, 9999));
+
+        assertEquals(10, batch2.size());
+        assertEquals(0, batch2.getMinOffset());
+        assertEquals(9999, batch2.getMaxOffset());
+        assertEquals(9999, batch2.get(9));
+        assertEquals(10, q.size());
+
+        // The previous batch is not modified.
+        assertEquals(4999, batch.get(9));
+        assertEquals(4999, batch.getMaxOffset());
+
+        // Can not go back below the compacted offset.
+        assertNull(q.collect(stream(4999)));
+
+        // Partial clean keeps the compacted records, but the batch in use is not modified.
+        q.clean(5000, "");
+        assertEquals(10, q.size());
+        assertEquals(10_000, batch2.getCollectedAll());
+
+        FlushQueue.Batch batch2a = q.collect(stream(9999));
+        assertNotSame(batch2, batch2a);
+        assertEquals(10, batch2a.size());
+        assertEquals(4999, batch2a.getCollectedAll());
+
+        // The released batch is merged in place.
+        q.release(batch2a);
+        q.add(1, -1, 10_000);
+
+        FlushQueue.Batch batch3 = q.collect(stream(10_000));
+        assertSame(batch2a, batch3);
+        assertEquals(10, batch3.size());
+        assertEquals(-1, batch3.get(1));
+        assertEquals(10_000, batch3.getMaxOffset());
+        assertEquals(5000, batch3.getCollectedAll());
+
+        q.clean(10_000, "");
+        assertEquals(0, q.size());
+        assertNull(q.collect(stream(10_000)));
+    }
+
+    @Test
+    void testRingCompaction() {
+        FlushQueue q = new FlushQueue(null);
+        q.setMaxOffset(-1);
+
+        int cnt = FlushQueue.COMPACT_RING_CAPACITY * 3 + 5;
+
+        for (int i = 0; i < cnt; i++)
+            q.add(i % 10, i, i);
+
+        // Nothing was collected, but the ring is not grown beyond the limit.
+        assertEquals(FlushQueue.COMPACT_RING_CAPACITY, q.ring.capacity());
+        assertEquals(FlushQueue.COMPACT_RING_CAPACITY * 3 - 1, q.getCompactedOffset());
+        assertEquals(10 + 5, q.size());
+
+        // The compacted batch is collected by the next flush request.
+        assertNull(q.collect(stream(1000)));
+
+        FlushQueue.Batch batch = q.collect(stream(1000, cnt - 1));
+        assertEquals(10, batch.size());
+        assertEquals(0, batch.getMinOffset());
+        assertEquals(cnt - 1, batch.getMaxOffset());
+        assertEquals(cnt, batch.getCollectedAll());
+
+        for (int k = 0; k < 10; k++)
+            assertEquals(cnt - 1 - Math.floorMod(cnt - 1 - k, 10), batch.get(k));
+
+        // The batch in use is not compacted into.
+        for (int i = cnt; i < cnt + FlushQueue.COMPACT_RING_CAPACITY + 1; i++)
+            q.add(i % 10, i, i);
+
+        assertEquals(FlushQueue.COMPACT_RING_CAPACITY * 2, q.ring.capacity());
+        assertEquals(cnt - 1, batch.getMaxOffset());
     }
 
     @Test
@@ -176,9 +305,8 @@ class FlushQueueTest {
                     int cnt = 500_000;
                     for (int i = 1; i <= cnt; i++) {
                         boolean update = i == cnt || rnd.nextInt(10) == 0;
-                        boolean waitLock = i == cnt || rnd.nextInt(20) == 0;
 
-                        q.add(update ? i : null,null, lastAddedOffset.incrementAndGet(), waitLock);
+                        q.add(update ? i : null,null, lastAddedOffset.incrementAndGet());
 
                         allAddedCnt.incrementAndGet();
                     }
@@ -211,7 +339,7 @@ class FlushQueueTest {
 
 //                assertEquals(updatesAddedCnt.get(), updatesCollectedCnt.get());
                 assertEquals(allAddedCnt.get(), allCleanedCnt.get());
-                assertTrue(q.queue.isEmpty());
+                assertEquals(0, q.size());
                 assertEquals(q.maxAddOffset, q.maxCleanOffset);
                 System.out.println("iteration " + j + " OK");
             }
@@ -231,11 +359,11 @@ class FlushQueueTest {
 
         assertNull(batch);
 
-        q.add(1, 0, 1001, true);
-        q.add(2, 0, 1002, true);
-        q.add(null, null, 1003, true);
-        q.add(3, 0, 1004, true);
-        q.add(4, 0, 1005, true);
+        q.add(1, 0, 1001);
+        q.add(2, 0, 1002);
+        q.add(null, null, 1003);
+        q.add(3, 0, 1004);
+        q.add(4, 0, 1005);
 
         batch = q.collect(stream(1000L));
 
@@ -290,11 +418,172 @@ class FlushQueueTest {
         assertNull(batch);
     }
 
+    @Test
+    void testCollectMaxRecords() {
+        FlushQueue q = new FlushQueue(null);
+        q.setMaxOffset(-1);
+
+        for (int i = 0; i < 10; i++)
+            q.add(i, i, i);
+
+        // The largest max offset within the limit.
+        FlushQueue.Batch batch = q.collect(stream(1, 3, 5, 9), 5);
+
+        assertEquals(3, batch.getMaxOffset());
+        assertEquals(4, batch.size());
+
+        // The compacted batch is counted and we can not go below it.
+        batch = q.collect(stream(1, 3, 5, 9), 5);
+
+        assertEquals(3, batch.getMaxOffset());
+
+        batch = q.collect(stream(1, 3, 5, 9), 6);
+
+        assertEquals(5, batch.getMaxOffset());
+        assertEquals(6, batch.size());
+
+        q.clean(5, "");
+
+        // The smallest max offset with some records exceeds the limit.
+        batch = q.collect(stream(5, 9), 1);
+
+        assertEquals(9, batch.getMaxOffset());
+        assertEquals(4, batch.size());
+
+        assertThrows(IllegalArgumentException.class, () -> q.collect(stream(9), 0));
+    }
+
+    @Test
+    void testLazy() {
+        Map<Object,Object> values = new HashMap<>();
+        values.put(1, "a");
+        values.put(2, "b");
+
+        FlushQueue q = new FlushQueue(null, values::get);
+        q.setMaxOffset(-1);
+
+        assertFalse(q.isMaterialized());
+        assertFalse(q.isMaterializeNeeded());
+
+        // Only the offsets are tracked.
+        q.add(1, "x", 0);
+        q.add(2, "y", 1);
+        q.add(null, null, 2);
+
+        assertEquals(0, q.size());
+        assertNull(q.collect(stream(2)));
+
+        q.addFlushOwner();
+        assertTrue(q.isMaterializeNeeded());
+
+        assertTrue(q.materialize(asList(1, 2, 3)));
+        assertEquals(2, q.getMaterializedOffset());
+        assertTrue(q.isMaterialized());
+        assertFalse(q.isMaterializeNeeded());
+        assertThrows(IllegalStateException.class, () -> q.materialize(emptyList()));
+
+        q.add(1, "z", 3);
+
+        FlushQueue.Batch batch = q.collect(stream(3));
+
+        assertEquals(0, batch.getMinOffset());
+        assertEquals(3, batch.getMaxOffset());
+        assertEquals(3, batch.size());
+        assertEquals("z", batch.get(1));
+        assertEquals("b", batch.get(2));
+        assertTrue(batch.containsKey(3)); // Removed.
+
+        q.removeFlushOwner();
+        assertTrue(q.isMaterializeNeeded());
+
+        q.dematerialize();
+        assertFalse(q.isMaterialized());
+        assertEquals(0, q.size());
+        assertThrows(IllegalStateException.class, q::dematerialize);
+
+        q.add(2, "w", 4);
+        assertEquals(0, q.size());
+
+        // Everything is flushed already.
+        q.clean(4, "");
+        q.addFlushOwner();
+        assertFalse(q.materialize(asList(1, 2)));
+
+        assertNull(q.collect(stream(4)));
+
+        // The eager queue is always materialized.
+        FlushQueue eager = new FlushQueue(null);
+        eager.addFlushOwner();
+
+        assertTrue(eager.isMaterialized());
+        assertFalse(eager.isMaterializeNeeded());
+    }
+
+    @Test
+    void testReset() {
+        FlushQueue q = new FlushQueue(null);
+        q.setMaxOffset(-1);
+
+        q.add(1, "a", 0);
+        q.add(2, "b", 1);
+        assertNotNull(q.collect(stream(0)));
+        assertEquals(2, q.size());
+
+        q.reset(10);
+
+        assertEquals(0, q.size());
+        assertEquals(10, q.getMaxAddOffset());
+        assertEquals(10, q.getMaxCleanOffset());
+        assertThrows(IllegalStateException.class, () -> q.add(3, "c", 2));
+        assertThrows(IllegalArgumentException.class, () -> q.reset(-2));
+
+        q.add(3, "c", 11);
+
+        FlushQueue.Batch batch = q.collect(stream(11));
+        assertEquals(1, batch.size());
+        assertEquals("c", batch.get(3));
+    }
+
+    @Test
+    void testHoldKeys() {
+        FlushQueue q = new FlushQueue(null);
+        q.setMaxOffset(-1);
+
+        assertEquals(Long.MAX_VALUE, q.getHoldOffset());
+
+        q.holdKey("a", 3);
+        q.holdKey("b", 5);
+        q.holdKey("a", 7); // The first unresolved offset is kept.
+        assertEquals(3, q.getHoldOffset());
+
+        q.releaseKey("c");
+        assertEquals(3, q.getHoldOffset());
+
+        q.releaseKey("a");
+        assertEquals(5, q.getHoldOffset());
+
+        for (int i = 0; i <= 6; i++)
+            q.add(i, "x", i);
+
+        q.clean(4, "");
+        assertEquals(5, q.getHoldOffset());
+
+        // Someone else has flushed beyond the held offset.
+        q.clean(6, "");
+        assertEquals(Long.MAX_VALUE, q.getHoldOffset());
+
+        q.holdKey("a", 8);
+        assertEquals(8, q.getHoldOffset());
+
+        q.reset(10);
+        assertEquals(Long.MAX_VALUE, q.getHoldOffset());
+    }
+
     @Test
     void testChecks() {
         FlushQueue q = new FlushQueue(null);
 
-        assertThrows(IllegalStateException.class, () -> q.add("key", "val", 7, true));
+        assertThrows(IllegalStateException.class, () -> q.add("key", "val", 7));
         assertThrows(IllegalArgumentException.class, () -> q.setMaxOffset(-2));
         q.setMaxOffset(-1);
         assertThrows(IllegalStateException.class, () -> q.setMaxOffset(5));
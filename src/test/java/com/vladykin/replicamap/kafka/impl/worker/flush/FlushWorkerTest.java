@@ -4,14 +4,19 @@ import com.vladykin.replicamap.ReplicaMapManager;
 import com.vladykin.replicamap.kafka.impl.msg.FlushNotification;
 import com.vladykin.replicamap.kafka.impl.msg.FlushRequest;
 import com.vladykin.replicamap.kafka.impl.msg.OpMessage;
+import com.vladykin.replicamap.kafka.impl.msg.SerializedValue;
 import com.vladykin.replicamap.kafka.impl.util.LazyList;
 import com.vladykin.replicamap.kafka.impl.util.Utils;
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
 import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.MockConsumer;
@@ -21,6 +26,7 @@ import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.common.KafkaException;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.record.TimestampType;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -31,10 +37,14 @@ import static com.vladykin.replicamap.kafka.impl.worker.ops.OpsWorkerTest.TOPIC_
 import static com.vladykin.replicamap.kafka.impl.worker.ops.OpsWorkerTest.TOPIC_FLUSH;
 import static com.vladykin.replicamap.kafka.impl.worker.ops.OpsWorkerTest.TOPIC_OPS;
 import static com.vladykin.replicamap.kafka.impl.worker.ops.OpsWorkerTest.newFlushNotification;
+import static java.util.Arrays.asList;
 import static java.util.Collections.singleton;
 import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
@@ -79,7 +89,23 @@ class FlushWorkerTest {
 
         opsSteadyFut = new CompletableFuture<>();
 
-        flushWorker = new FlushWorker(
+        flushWorker = newFlushWorker(1);
+    }
+
+    FlushWorker newFlushWorker(int flushParallelism) {
+        return newFlushWorker(flushParallelism, 1);
+    }
+
+    FlushWorker newFlushWorker(int flushParallelism, int txPartitions) {
+        return newFlushWorker(flushParallelism, txPartitions, false);
+    }
+
+    FlushWorker newFlushWorker(int flushParallelism, int txPartitions, boolean skipUnchanged) {
+        return newFlushWorker(flushParallelism, txPartitions, skipUnchanged, Integer.MAX_VALUE);
+    }
+
+    FlushWorker newFlushWorker(int flushParallelism, int txPartitions, boolean skipUnchanged, int maxTxRecords) {
+        return new FlushWorker(
             CLIENT1_ID, TOPIC_DATA, TOPIC_OPS, TOPIC_FLUSH,
             0,
             "flush-consumer-group-id",
@@ -90,6 +116,11 @@ class FlushWorkerTest {
             receivedFlushRequests,
             successfulFlushes,
             MAX_POLL_TIMEOUT,
+            flushParallelism,
+            txPartitions,
+            0,
+            skipUnchanged,
+            maxTxRecords,
             null,
             dataProducers,
             this::createDataProducer,
@@ -98,11 +129,14 @@ class FlushWorkerTest {
         );
     }
 
-    Producer<Object,Object> createDataProducer(int part) {
-        return dataProducer;
+    Producer<Object,Object> createDataProducer(int txGroup) {
+        return txGroup == 0 ? dataProducer : new MockProducer<>();
     }
 
-    Consumer<Object,FlushRequest> createFlushConsumer() {
+    Consumer<Object,FlushRequest> createFlushConsumer(
+        Collection<TopicPartition> ownedParts,
+        ToLongFunction<TopicPartition> flushLoad
+    ) {
         return flushConsumer;
     }
 
@@ -111,13 +145,13 @@ class FlushWorkerTest {
         FlushQueue flushQueue = flushQueues.get(0);
         flushQueue.setMaxOffset(99);
 
-        flushQueue.add(1, null, 100, false);
-        flushQueue.add(2, null, 101, false);
-        flushQueue.add(3, null, 102, false);
-        flushQueue.add(4, null, 103, false);
-        flushQueue.add(5, null, 104, false);
-        flushQueue.add(6, null, 105, false);
-        flushQueue.add(7, null, 106, false);
+        flushQueue.add(1, null, 100);
+        flushQueue.add(2, null, 101);
+        flushQueue.add(3, null, 102);
+        flushQueue.add(4, null, 103);
+        flushQueue.add(5, null, 104);
+        flushQueue.add(6, null, 105);
+        flushQueue.add(7, null, 106);
 
         assertEquals(7, flushQueue.size());
 
@@ -163,8 +197,304 @@ class FlushWorkerTest {
         assertTrue(flushWorker.awaitOpsWorkersSteady(1));
     }
 
+    @Test
+    void testPrioritizeFlushes() {
+        FlushQueue q0 = new FlushQueue(new TopicPartition(TOPIC_DATA, 0));
+        FlushQueue q1 = new FlushQueue(new TopicPartition(TOPIC_DATA, 1));
+        FlushQueue q2 = new FlushQueue(new TopicPartition(TOPIC_DATA, 2));
+
+        flushQueues = asList(q0, q1, q2);
+        flushWorker = newFlushWorker(1);
+
+        long now = System.currentTimeMillis();
+
+        addFlushRequest(0, now - 100_000, q0, 10); // Small old backlog.
+        addFlushRequest(1, now - 1000, q1, 20); // Large new backlog.
+        addFlushRequest(2, now - 1000, q2, 5); // Small new backlog.
+
+        assertEquals(asList(0, 1, 2), flushWorker.prioritizeFlushes().stream()
+            .map(e -> e.getKey().partition())
+            .collect(toList()));
+
+        flushWorker.unprocessedFlushRequests.get(new TopicPartition(TOPIC_FLUSH, 0)).clearUntil(Long.MAX_VALUE);
+
+        assertEquals(asList(1, 2), flushWorker.prioritizeFlushes().stream()
+            .map(e -> e.getKey().partition())
+            .collect(toList()));
+    }
+
+    @Test
+    void testSharedTx() {
+        FlushQueue q0 = new FlushQueue(new TopicPartition(TOPIC_DATA, 0));
+        FlushQueue q1 = new FlushQueue(new TopicPartition(TOPIC_DATA, 1));
+
+        flushQueues = asList(q0, q1);
+        flushWorker = newFlushWorker(1, 2);
+
+        long now = System.currentTimeMillis();
+
+        addFlushRequest(0, now, q0, 10);
+        addFlushRequest(1, now, q1, 20);
+
+        flushWorker.initDataProducers(asList(flushPart, new TopicPartition(TOPIC_FLUSH, 1)));
+        assertEquals(1, flushWorker.groupFlushes(flushWorker.prioritizeFlushes()).size());
+
+        assertTrue(flushWorker.flushPipelined(null, flushWorker.groupFlushes(flushWorker.prioritizeFlushes())));
+
+        assertEquals(1, dataProducer.commitCount());
+        assertEquals(30, dataProducer.history().size());
+        assertEquals(2, opsProducer.history().size());
+        assertEquals(2, successfulFlushes.sum());
+        assertEquals(0, q0.size());
+        assertEquals(0, q1.size());
+        assertTrue(flushWorker.prioritizeFlushes().isEmpty());
+
+        // Fencing resets all the partitions of the group.
+        for (int part = 0; part < 2; part++) {
+            TopicPartition p = new TopicPartition(TOPIC_FLUSH, part);
+            flushWorker.unprocessedFlushRequests.put(p, new UnprocessedFlushRequests(p, 0, true));
+        }
+
+        flushWorker.resetDataProducers(singleton(flushPart));
+        assertTrue(flushWorker.unprocessedFlushRequests.isEmpty());
+        assertNull(flushWorker.dataProducers.get(0, null));
+    }
+
+    @Test
+    void testSkipUnchanged() {
+        flushWorker = newFlushWorker(1, 1, true);
+        flushWorker.initDataProducers(singleton(flushPart));
+
+        FlushQueue q = flushQueues.get(0);
+        addFlushRequest(0, 0, q, 4); // 0 -> 0, 1 -> 1, 2 -> 2, 3 -> 3
+
+        assertTrue(flushWorker.flushPipelined(null, flushWorker.groupFlushes(flushWorker.prioritizeFlushes())));
+        assertEquals(4, dataProducer.history().size());
+
+        // Unchanged 0 and 1, changed 2, removed 3.
+        q.add(0, 0, 4);
+        q.add(1, 1, 5);
+        q.add(2, 7, 6);
+        q.add(3, null, 7);
+        addFlushRequest(0, 7);
+
+        assertTrue(flushWorker.flushPipelined(null, flushWorker.groupFlushes(flushWorker.prioritizeFlushes())));
+        assertEquals(6, dataProducer.history().size());
+        assertEquals(new HashSet<>(asList(2, 3)), dataProducer.history().subList(4, 6).stream()
+            .map(ProducerRecord::key).collect(toSet()));
+
+        // At least one record is flushed to carry the ops offset.
+        q.add(0, 0, 8);
+        q.add(2, 7, 9);
+        addFlushRequest(0, 9);
+
+        assertTrue(flushWorker.flushPipelined(null, flushWorker.groupFlushes(flushWorker.prioritizeFlushes())));
+        assertEquals(7, dataProducer.history().size());
+        assertEquals(3, successfulFlushes.sum());
+        assertEquals(0, q.size());
+
+        // After reset everything is flushed again.
+        flushWorker.resetDataProducers(singleton(flushPart));
+        assertTrue(flushWorker.lastFlushedValues.isEmpty());
+    }
+
+    @Test
+    void testSkipUnchangedFingerprints() {
+        byte[] bytes = {1, 2, 3};
+        Object serialized = FlushWorker.flushedFingerprint(new SerializedValue(bytes));
+
+        assertTrue(FlushWorker.isUnchanged(new SerializedValue(bytes.clone()), serialized));
+        assertFalse(FlushWorker.isUnchanged(new SerializedValue(new byte[]{1, 2, 4}), serialized));
+        assertFalse(FlushWorker.isUnchanged(new SerializedValue(new byte[]{1, 2, 3, 0}), serialized));
+
+        String value = new String("abc");
+        Object weak = FlushWorker.flushedFingerprint(value);
+
+        assertTrue(FlushWorker.isUnchanged(new String("abc"), weak));
+        assertFalse(FlushWorker.isUnchanged("abd", weak));
+        assertFalse(FlushWorker.isUnchanged(new SerializedValue(bytes), weak));
+
+        // The gone value is never equal.
+        ((WeakReference<?>)weak).clear();
+        assertFalse(FlushWorker.isUnchanged(value, weak));
+        assertFalse(FlushWorker.isUnchanged(value, null));
+    }
+
+    @Test
+    void testSkipUnchangedForgetsOnForeignFlush() {
+        flushWorker = newFlushWorker(1, 1, true);
+        flushWorker.initDataProducers(singleton(flushPart));
+
+        FlushQueue q = flushQueues.get(0);
+        addFlushRequest(0, 0, q, 2); // 0 -> 0, 1 -> 1
+
+        assertTrue(flushWorker.flushPipelined(null, flushWorker.groupFlushes(flushWorker.prioritizeFlushes())));
+        assertEquals(2, dataProducer.history().size());
+        assertFalse(flushWorker.lastFlushedValues.isEmpty());
+
+        // Someone else has flushed the partition, the same values must be flushed again.
+        q.add(0, 5, 2);
+        q.add(0, 0, 3);
+        q.add(1, 1, 4);
+        addFlushRequest(0, 4, 2);
+
+        assertTrue(flushWorker.flushPipelined(null, flushWorker.groupFlushes(flushWorker.prioritizeFlushes())));
+        assertEquals(4, dataProducer.history().size());
+    }
+
+    @Test
+    void testMaxTxRecords() {
+        flushWorker = newFlushWorker(1, 1, false, 4);
+        flushWorker.initDataProducers(singleton(flushPart));
+
+        FlushQueue q = flushQueues.get(0);
+        addFlushRequest(0, 0, q, 10);
+        addFlushRequest(0, 10);
+
+        for (int i = 10; i < 20; i++)
+            q.add(i, i, i);
+
+        addFlushRequest(0, 13);
+        addFlushRequest(0, 15);
+        addFlushRequest(0, 19);
+
+        // The first request exceeds the limit alone, the rest are split into bounded transactions.
+        int[] txSizes = {10, 4, 2, 4};
+        int sent = 0;
+
+        for (int i = 0; i < txSizes.length; i++) {
+            assertTrue(flushWorker.flushPipelined(null, flushWorker.groupFlushes(flushWorker.prioritizeFlushes())));
+
+            sent += txSizes[i];
+            assertEquals(i + 1, dataProducer.commitCount());
+            assertEquals(sent, dataProducer.history().size());
+            assertEquals(i + 1, opsProducer.history().size());
+        }
+
+        assertEquals(0, q.size());
+        assertTrue(flushWorker.prioritizeFlushes().isEmpty());
+    }
+
+    @Test
+    void testHoldFlush() {
+        flushWorker = newFlushWorker(1, 1);
+        flushWorker.initDataProducers(singleton(flushPart));
+
+        FlushQueue q = flushQueues.get(0);
+        addFlushRequest(0, 0, q, 10);
+
+        for (int i = 10; i < 20; i++)
+            q.add(i, i, i);
+
+        q.holdKey("k", 14);
+
+        addFlushRequest(0, 13);
+        addFlushRequest(0, 15);
+        addFlushRequest(0, 19);
+
+        // Only the records before the held offset are flushed.
+        assertTrue(flushWorker.flushPipelined(null, flushWorker.groupFlushes(flushWorker.prioritizeFlushes())));
+        assertEquals(1, dataProducer.commitCount());
+        assertEquals(14, dataProducer.history().size());
+        assertEquals(6, q.size());
+
+        assertFalse(flushWorker.flushPipelined(null, flushWorker.groupFlushes(flushWorker.prioritizeFlushes())));
+        assertEquals(1, dataProducer.commitCount());
+
+        // The value of the key is known again.
+        q.releaseKey("k");
+
+        assertTrue(flushWorker.flushPipelined(null, flushWorker.groupFlushes(flushWorker.prioritizeFlushes())));
+        assertEquals(2, dataProducer.commitCount());
+        assertEquals(20, dataProducer.history().size());
+        assertEquals(0, q.size());
+    }
+
+    @Test
+    void testRebalanceKeepsState() {
+        TopicPartition flushPart1 = new TopicPartition(TOPIC_FLUSH, 1);
+
+        flushQueues = asList(new FlushQueue(dataPart), new FlushQueue(new TopicPartition(TOPIC_DATA, 1)));
+        dataProducers = new LazyList<>(2);
+        flushWorker = newFlushWorker(1);
+        flushWorker.flushConsumers.get(0, x -> flushConsumer);
+
+        FlushWorker.PartitionRebalanceListener listener = flushWorker.new PartitionRebalanceListener();
+
+        flushConsumer.subscribe(singleton(TOPIC_FLUSH));
+        flushConsumer.rebalance(asList(flushPart, flushPart1));
+        listener.onPartitionsAssigned(asList(flushPart, flushPart1));
+
+        assertEquals(new HashSet<>(asList(flushPart, flushPart1)), flushWorker.ownedPartitions);
+
+        for (TopicPartition part : asList(flushPart, flushPart1)) {
+            UnprocessedFlushRequests flushReqs = new UnprocessedFlushRequests(part, 0, true);
+            flushWorker.unprocessedFlushRequests.put(part, flushReqs);
+            addFlushRequest(part.partition(), 10);
+            addFlushRequest(part.partition(), 20);
+        }
+
+        // The state is kept until the next assignment.
+        listener.onPartitionsRevoked(asList(flushPart, flushPart1));
+
+        assertTrue(flushWorker.getAssignedPartitions().isEmpty());
+        assertEquals(2, flushWorker.ownedPartitions.size());
+        assertEquals(2, flushWorker.unprocessedFlushRequests.size());
+
+        // Only the moved partition is reset, the kept one continues from the last received flush request.
+        flushConsumer.rebalance(singleton(flushPart));
+        listener.onPartitionsAssigned(singleton(flushPart));
+
+        assertEquals(singleton(flushPart), flushWorker.ownedPartitions);
+        assertEquals(singleton(flushPart), flushWorker.getAssignedPartitions());
+        assertEquals(singleton(flushPart), flushWorker.unprocessedFlushRequests.keySet());
+        assertEquals(2, flushConsumer.position(flushPart));
+        assertNotNull(flushWorker.dataProducers.get(0, null));
+        assertNull(flushWorker.dataProducers.get(1, null));
+    }
+
+    void addFlushRequest(int part, long flushOffsetOps) {
+        addFlushRequest(part, flushOffsetOps, -1L);
+    }
+
+    void addFlushRequest(int part, long flushOffsetOps, long cleanOffsetOps) {
+        TopicPartition flushPart = new TopicPartition(TOPIC_FLUSH, part);
+        UnprocessedFlushRequests flushReqs = flushWorker.unprocessedFlushRequests.get(flushPart);
+
+        flushReqs.addFlushRequests(singletonList(new ConsumerRecord<>(TOPIC_FLUSH, part, flushReqs.maxFlushReqOffset + 1,
+            0, TimestampType.CREATE_TIME, 0L, 0, 0, null, new FlushRequest(CLIENT1_ID, flushOffsetOps, cleanOffsetOps))));
+    }
+
+    void addFlushRequest(int part, long timestamp, FlushQueue flushQueue, int backlog) {
+        TopicPartition flushPart = new TopicPartition(TOPIC_FLUSH, part);
+        UnprocessedFlushRequests flushReqs = new UnprocessedFlushRequests(flushPart, 0, true);
+
+        flushReqs.addFlushRequests(singletonList(new ConsumerRecord<>(TOPIC_FLUSH, part, 0, timestamp,
+            TimestampType.CREATE_TIME, 0L, 0, 0, null, new FlushRequest(CLIENT1_ID, backlog - 1, -1L))));
+        flushWorker.unprocessedFlushRequests.put(flushPart, flushReqs);
+
+        flushQueue.setMaxOffset(-1);
+        for (int i = 0; i < backlog; i++)
+            flushQueue.add(i, i, i);
+    }
+
     @Test
     void testProcessFlushRequests() throws ExecutionException, InterruptedException {
+        checkProcessFlushRequests();
+    }
+
+    @Test
+    void testProcessFlushRequestsParallel() throws ExecutionException, InterruptedException {
+        flushWorker = newFlushWorker(2);
+        try {
+            checkProcessFlushRequests();
+        }
+        finally {
+            flushWorker.close();
+        }
+    }
+
+    void checkProcessFlushRequests() throws ExecutionException, InterruptedException {
         long pollTimeoutMs = 5;
 
         assertFalse(flushWorker.processFlushRequests(pollTimeoutMs)); // Not steady.
@@ -182,11 +512,11 @@ class FlushWorkerTest {
         FlushQueue flushQueue = flushQueues.get(0);
         flushQueue.setMaxOffset(97);
 
-        flushQueue.add("a", "a", 98, true);
-        flushQueue.add("b", "b", 99, true);
-        flushQueue.add("a", "x", 100, true);
-        flushQueue.add("b", "y", 101, true);
-        flushQueue.add("a", "z", 102, true);
+        flushQueue.add("a", "a", 98);
+        flushQueue.add("b", "b", 99);
+        flushQueue.add("a", "x", 100);
+        flushQueue.add("b", "y", 101);
+        flushQueue.add("a", "z", 102);
 
         assertEquals(5, flushQueue.size());
 
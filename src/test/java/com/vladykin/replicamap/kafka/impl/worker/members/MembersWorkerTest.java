@@ -0,0 +1,144 @@
+package com.vladykin.replicamap.kafka.impl.worker.members;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndTimestamp;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.common.serialization.LongSerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.Test;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static org.apache.kafka.clients.consumer.ConsumerRecord.NULL_SIZE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MembersWorkerTest {
+    static final String TOPIC = "members";
+    static final TopicPartition PART = new TopicPartition(TOPIC, 0);
+
+    static final long HEARTBEAT = 1000;
+    static final long TIMEOUT = 10_000;
+
+    long now = 1_000_000;
+
+    MockConsumer<String,Long> consumer = new MockConsumer<String,Long>(OffsetResetStrategy.NONE) {
+        @Override
+        public synchronized Map<TopicPartition,OffsetAndTimestamp> offsetsForTimes(Map<TopicPartition,Long> times) {
+            assertEquals(singletonMap(PART, now - TIMEOUT), times);
+            return singletonMap(PART, new OffsetAndTimestamp(1, now - TIMEOUT));
+        }
+    };
+
+    MockProducer<String,Long> producer = new MockProducer<>(true, new StringSerializer(), new LongSerializer());
+
+    List<Set<String>> changes = new ArrayList<>();
+    List<Set<String>> steadyChanges = new ArrayList<>();
+    boolean steady = true;
+
+    MembersWorker worker = new MembersWorker("self", TOPIC, HEARTBEAT, TIMEOUT, producer, consumer, () -> steady,
+        (live, steadyMembers) -> {
+            changes.add(live);
+            steadyChanges.add(steadyMembers);
+        }) {
+        @Override
+        protected long currentTimeMillis() {
+            return now;
+        }
+    };
+
+    ConsumerRecord<String,Long> newRecord(long offset, long timestamp, String member, Long timeout) {
+        return new ConsumerRecord<>(TOPIC, 0, offset, timestamp, TimestampType.CREATE_TIME, 0L,
+            NULL_SIZE, NULL_SIZE, member, timeout);
+    }
+
+    @Test
+    void testMembers() {
+        consumer.updatePartitions(TOPIC, singletonList(new PartitionInfo(TOPIC, 0, null, null, null)));
+        consumer.updateEndOffsets(singletonMap(PART, 5L));
+
+        consumer.schedulePollTask(() -> {
+            consumer.addRecord(newRecord(1, now - 9000, "a", TIMEOUT));
+            consumer.addRecord(newRecord(2, now - 12000, "b", 1000L)); // expired
+            consumer.addRecord(newRecord(3, now - 5000, "c", TIMEOUT));
+            consumer.addRecord(newRecord(4, now - 4000, "c", null)); // left
+        });
+
+        assertEquals(new HashSet<>(asList("self", "a")), worker.join());
+        assertTrue(changes.isEmpty());
+
+        assertEquals(1, producer.history().size());
+        assertEquals(new ProducerRecord<>(TOPIC, "self", TIMEOUT), producer.history().get(0));
+
+        now += 500;
+        worker.processHeartbeats(singletonList(newRecord(5, now + 3000, "d", TIMEOUT)));
+        worker.updateMembers(true);
+        assertEquals(singletonList(new HashSet<>(asList("self", "a", "d"))), changes);
+
+        worker.updateMembers(true);
+        assertEquals(1, changes.size());
+
+        now += 1000; // "a" expires
+        worker.updateMembers(true);
+        assertEquals(new HashSet<>(asList("self", "d")), changes.get(1));
+        assertEquals(changes.get(1), worker.getMembers());
+
+        worker.processHeartbeats(singletonList(newRecord(6, now, "d", null)));
+        worker.updateMembers(true);
+        assertEquals(new HashSet<>(singletonList("self")), changes.get(2));
+
+        worker.close();
+        assertEquals(2, producer.history().size());
+        assertNull(producer.history().get(1).value());
+        assertTrue(producer.closed());
+        assertTrue(consumer.closed());
+    }
+
+    @Test
+    void testSteadyMembers() {
+        consumer.updatePartitions(TOPIC, singletonList(new PartitionInfo(TOPIC, 0, null, null, null)));
+        consumer.updateEndOffsets(singletonMap(PART, 1L));
+
+        steady = false;
+        assertEquals(singleton("self"), worker.join());
+        assertEquals(emptySet(), worker.getSteadyMembers());
+        assertEquals(new ProducerRecord<>(TOPIC, "self", -TIMEOUT), producer.history().get(0));
+
+        steady = true;
+        worker.processHeartbeats(singletonList(newRecord(1, now, "a", -TIMEOUT))); // loading
+        worker.updateMembers(true);
+        assertEquals(singletonList(new HashSet<>(asList("self", "a"))), changes);
+        assertEquals(singletonList(singleton("self")), steadyChanges);
+
+        now += 500;
+        worker.processHeartbeats(singletonList(newRecord(2, now, "a", TIMEOUT)));
+        worker.updateMembers(true);
+        assertEquals(2, changes.size());
+        assertEquals(changes.get(0), changes.get(1));
+        assertEquals(new HashSet<>(asList("self", "a")), worker.getSteadyMembers());
+
+        now += TIMEOUT - 200; // "a" is still alive with the later heartbeat deadline
+        worker.updateMembers(true);
+        assertEquals(2, changes.size());
+
+        worker.sendHeartbeat(now);
+        assertEquals(new ProducerRecord<>(TOPIC, "self", TIMEOUT), producer.history().get(1));
+
+        worker.close();
+    }
+}
@@ -0,0 +1,107 @@
+package com.vladykin.replicamap.kafka.impl.worker.ops;
+
+import org.junit.jupiter.api.Test;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FlushTriggerTest {
+    static final long MS = MILLISECONDS.toNanos(1);
+
+    @Test
+    void testPeriodOps() {
+        FlushTrigger t = new FlushTrigger(10, 0, 0, 0);
+        t.init(0, 4);
+
+        for (long offset = 5; offset < 100; offset++) {
+            boolean local = offset % 3 != 0;
+            assertEquals(local && offset % 10 == 0, t.onRecord(0, offset, local, true, 100, offset * MS));
+        }
+
+        assertEquals(-1, t.onIdle(0, 1000_000 * MS));
+    }
+
+    @Test
+    void testPeriodBytes() {
+        FlushTrigger t = new FlushTrigger(1000, 0, 250, 0);
+        t.init(0, -1);
+
+        assertFalse(t.onRecord(0, 1, true, true, 100, 0));
+        assertFalse(t.onRecord(0, 2, false, true, 100, 0));
+        assertFalse(t.onRecord(0, 3, false, true, 100, 0)); // Not local.
+        assertTrue(t.onRecord(0, 4, true, true, 100, 0));
+        assertFalse(t.onRecord(0, 5, true, true, 100, 0));
+        assertFalse(t.onRecord(0, 6, true, false, 1000, 0)); // Not an update.
+    }
+
+    @Test
+    void testPeriodMs() {
+        FlushTrigger t = new FlushTrigger(1000, 100, 0, 0);
+        t.init(0, -1);
+        t.init(1, -1);
+
+        assertEquals(-1, t.onIdle(0, 1000 * MS)); // Nothing to flush.
+
+        assertFalse(t.onRecord(0, 1, true, true, 1, 10 * MS));
+        assertFalse(t.onRecord(0, 2, true, true, 1, 50 * MS));
+        assertTrue(t.onRecord(0, 3, true, true, 1, 110 * MS));
+        assertFalse(t.onRecord(0, 4, true, true, 1, 120 * MS));
+
+        // Idle partition is flushed by the client of the last update.
+        assertEquals(-1, t.onIdle(0, 200 * MS));
+        assertEquals(4, t.onIdle(0, 220 * MS));
+        assertEquals(-1, t.onIdle(0, 1000 * MS));
+
+        // Never by the other clients.
+        assertFalse(t.onRecord(1, 1, false, true, 1, 0));
+        assertEquals(-1, t.onIdle(1, 1000 * MS));
+        t.onFlushNotification(1, 1);
+
+        // The idle period starts at the last update.
+        assertFalse(t.onRecord(1, 2, true, true, 1, 1000 * MS));
+        assertFalse(t.onRecord(1, 3, true, true, 1, 1080 * MS));
+        assertEquals(-1, t.onIdle(1, 1150 * MS));
+        assertEquals(3, t.onIdle(1, 1180 * MS));
+
+        // Flush notification resets the state unless there are updates after the flushed offset.
+        assertFalse(t.onRecord(1, 4, true, true, 1, 1200 * MS));
+        assertFalse(t.onRecord(1, 5, true, true, 1, 1210 * MS));
+        t.onFlushNotification(1, 4);
+        assertEquals(-1, t.onIdle(1, 1300 * MS));
+        assertEquals(5, t.onIdle(1, 1310 * MS));
+
+        assertFalse(t.onRecord(1, 6, true, true, 1, 1400 * MS));
+        t.onFlushNotification(1, 6);
+        assertEquals(-1, t.onIdle(1, 2000 * MS));
+    }
+
+    @Test
+    void testMaxReplay() {
+        FlushTrigger t = new FlushTrigger(1000, 0, 0, 10);
+        t.init(0, -1);
+
+        assertFalse(t.onRecord(0, 1, true, true, 1, 0)); // The rate is unknown yet.
+
+        t.onApplied(0, 100, 100 * MS); // 1 ms per op
+
+        assertFalse(t.onRecord(0, 5, true, true, 1, 0));
+        assertTrue(t.onRecord(0, 9, true, true, 1, 0));
+        assertFalse(t.onRecord(0, 15, true, true, 1, 0));
+        assertTrue(t.onRecord(0, 19, true, true, 1, 0));
+
+        // The rate is tracked per partition.
+        t.init(1, -1);
+        assertFalse(t.onRecord(1, 19, true, true, 1, 0));
+    }
+
+    @Test
+    void testChecks() {
+        assertThrows(IllegalArgumentException.class, () -> new FlushTrigger(0, 0, 0, 0));
+        assertThrows(IllegalArgumentException.class, () -> new FlushTrigger(1, -1, 0, 0));
+        assertThrows(IllegalArgumentException.class, () -> new FlushTrigger(1, 0, -1, 0));
+        assertThrows(IllegalArgumentException.class, () -> new FlushTrigger(1, 0, 0, -1));
+    }
+}
@@ -6,12 +6,17 @@ import com.vladykin.replicamap.kafka.impl.msg.FlushRequest;
 import com.vladykin.replicamap.kafka.impl.msg.MapUpdate;
 import com.vladykin.replicamap.kafka.impl.msg.OpMessage;
 import com.vladykin.replicamap.kafka.impl.msg.OpMessageSerializer;
+import com.vladykin.replicamap.kafka.impl.msg.SerializedValue;
 import com.vladykin.replicamap.kafka.impl.util.Box;
 import com.vladykin.replicamap.kafka.impl.util.Utils;
 import com.vladykin.replicamap.kafka.impl.worker.flush.FlushQueue;
 import com.vladykin.replicamap.kafka.impl.worker.flush.FlushWorker;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Random;
 import java.util.Set;
@@ -21,6 +26,7 @@ import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiFunction;
+import java.util.stream.LongStream;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.MockConsumer;
@@ -49,6 +55,7 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -96,14 +103,19 @@ public class OpsWorkerTest {
         opsConsumer.assign(singleton(opsPart));
         dataConsumer.assign(singleton(dataPart));
 
-        opsWorker = new OpsWorker(
+        opsWorker = newOpsWorker();
+    }
+
+    OpsWorker newOpsWorker() {
+        return new OpsWorker(
             CLIENT1_ID, TOPIC_DATA, TOPIC_OPS, TOPIC_FLUSH,
             0,
             parts,
             dataConsumer,
             opsConsumer,
             flushProducer,
-            FLUSH_MAX_OPS,
+            new FlushTrigger(FLUSH_MAX_OPS, 0, 0, 0),
+            0,
             flushQueues,
             cleanQueue,
             this::applyReceivedUpdate,
@@ -121,6 +133,11 @@ public class OpsWorkerTest {
         return true;
     }
 
+    static ConsumerRecord<Object,OpMessage> newKeyRecord(long offset, Object key) {
+        return new ConsumerRecord<>(TOPIC_OPS, 0,
+            offset, key, new MapUpdate(OP_PUT, CLIENT2_ID, 0, null, "upd" + key, null));
+    }
+
     static ConsumerRecord<Object,OpMessage> newPutRecord(long clientId, long offset) {
         Random rnd = ThreadLocalRandom.current();
         return new ConsumerRecord<>(TOPIC_OPS, 0,
@@ -189,6 +206,152 @@ public class OpsWorkerTest {
         assertEquals(200700, opsWorker.lastFlushNotifications.get(opsPart).getFlushOffsetData());
     }
 
+    @Test
+    void testRemovePartitions() {
+        TopicPartition opsPart1 = new TopicPartition(TOPIC_OPS, 1);
+        Map<TopicPartition,Long> offsets = new HashMap<>();
+        offsets.put(opsPart, 100L);
+        offsets.put(opsPart1, 200L);
+
+        parts = new HashSet<>(asList(0, 1));
+        flushQueues = asList(new FlushQueue(null), new FlushQueue(null));
+        opsWorker = newOpsWorker();
+        opsWorker.seekOpsOffsets(offsets);
+
+        CompletableFuture<Void> fut = opsWorker.removePartitions(singleton(1));
+        assertFalse(fut.isDone());
+
+        opsWorker.processRemoveRequests();
+
+        assertTrue(fut.isDone());
+        assertEquals(singleton(0), opsWorker.getAssignedPartitions());
+        assertEquals(singleton(opsPart), opsConsumer.assignment());
+
+        // Loading the partition again resets the flush queue.
+        offsets.remove(opsPart1);
+        offsets.put(opsPart, 150L);
+        opsWorker.seekOpsOffsets(offsets);
+        assertEquals(149L, flushQueues.get(0).getMaxAddOffset());
+
+        fut = opsWorker.removePartitions(singleton(0));
+        opsWorker.processOps();
+
+        assertTrue(fut.isDone());
+        assertTrue(opsWorker.getAssignedPartitions().isEmpty());
+        assertTrue(opsWorker.getSteadyFuture().isDone());
+        assertTrue(opsConsumer.closed());
+
+        opsWorker.stopped = true;
+        assertTrue(opsWorker.removePartitions(singleton(0)).isCompletedExceptionally());
+    }
+
+    @Test
+    void testMaterializeFlushQueue() {
+        flushQueues = singletonList(new FlushQueue(null, key -> "cur" + key));
+        opsWorker = newOpsWorker();
+
+        FlushQueue q = flushQueues.get(0);
+        opsWorker.seekOpsOffsets(singletonMap(opsPart, 100L));
+
+        opsWorker.applyOpsTopicRecords(opsPart, asList(
+            newKeyRecord(100, 1),
+            newKeyRecord(101, 2),
+            newKeyRecord(102, 3)
+        ));
+
+        assertEquals(3, appliedUpdates.get());
+        assertEquals(0, q.size());
+
+        q.clean(100, "test");
+        q.addFlushOwner();
+
+        opsWorker.materializeFlushQueues();
+
+        // Seek back to replay the keys after the last clean.
+        assertEquals(101, opsConsumer.position(opsPart));
+        assertFalse(q.isMaterialized());
+
+        opsWorker.applyOpsTopicRecords(opsPart, asList(newKeyRecord(101, 2)));
+        assertFalse(q.isMaterialized());
+
+        opsWorker.applyOpsTopicRecords(opsPart, asList(
+            newKeyRecord(102, 3),
+            newKeyRecord(103, 4)
+        ));
+
+        // Only the new record is applied.
+        assertEquals(4, appliedUpdates.get());
+        assertTrue(q.isMaterialized());
+
+        // The flush request for the materialized offset.
+        assertEquals(1, flushProducer.history().size());
+        assertEquals(102, flushProducer.history().get(0).value().getFlushOffsetOps());
+
+        FlushQueue.Batch batch = q.collect(LongStream.of(103));
+
+        assertEquals(3, batch.size());
+        assertEquals("cur2", batch.get(2));
+        assertEquals("cur3", batch.get(3));
+        assertTrue(batch.containsKey(4));
+
+        q.removeFlushOwner();
+        opsWorker.materializeFlushQueues();
+
+        assertFalse(q.isMaterialized());
+        assertEquals(0, q.size());
+    }
+
+    @Test
+    void testNoFlushQueues() {
+        flushQueues = null;
+        opsWorker = newOpsWorker();
+
+        applyRecordsWithFlushNotification();
+
+        // The flush request is sent for the local updates, but there is nothing to clean.
+        assertEquals(2, flushProducer.history().size());
+        assertTrue(cleanQueue.isEmpty());
+    }
+
+    @Test
+    void testReadOnly() {
+        flushQueues = null;
+        flushProducer = null;
+        opsWorker = newOpsWorker();
+
+        applyRecordsWithFlushNotification();
+        assertTrue(cleanQueue.isEmpty());
+    }
+
+    void applyRecordsWithFlushNotification() {
+        opsWorker.seekOpsOffsets(singletonMap(opsPart, 1000L));
+
+        List<ConsumerRecord<Object,OpMessage>> recs = new ArrayList<>();
+        for (long offset = 1000; offset < 1000 + FLUSH_MAX_OPS * 2; offset++)
+            recs.add(newPutRecord(CLIENT1_ID, offset));
+        recs.add(Utils.cast(newFlushNotification(CLIENT2_ID, 100500, 1010, 1000 + FLUSH_MAX_OPS * 2)));
+
+        opsWorker.applyOpsTopicRecords(opsPart, recs);
+        opsWorker.flushRequests.flush(Long.MAX_VALUE);
+
+        assertEquals(FLUSH_MAX_OPS * 2, appliedUpdates.get());
+    }
+
+    @Test
+    void testFlushValue() {
+        byte[] bytes = {1, 2, 3};
+        Object upd = 5L;
+
+        MapUpdate op = new MapUpdate(OP_PUT, CLIENT1_ID, 0, null, upd, null, bytes);
+
+        assertSame(bytes, ((SerializedValue)opsWorker.flushValue(op, upd)).getBytes());
+        assertEquals(7L, opsWorker.flushValue(op, 7L)); // Function result.
+        assertNull(opsWorker.flushValue(op, null));
+
+        op = new MapUpdate(OP_PUT, CLIENT1_ID, 0, null, upd, null);
+        assertSame(upd, opsWorker.flushValue(op, upd));
+    }
+
     @Test
     void testLoadDataForPartition() {
         long offset = 1000;
@@ -300,6 +463,55 @@ public class OpsWorkerTest {
         assertEquals(60, flushReq.getFlushOffsetOps());
     }
 
+    @Test
+    void testPartitionSteadyFutures() {
+        TopicPartition opsPart1 = new TopicPartition(TOPIC_OPS, 1);
+        TopicPartition opsPart2 = new TopicPartition(TOPIC_OPS, 2);
+
+        parts = new HashSet<>(asList(0, 1, 2));
+        flushQueues = asList(new FlushQueue(null), new FlushQueue(null), new FlushQueue(null));
+        opsWorker = newOpsWorker();
+
+        Map<TopicPartition,Long> endOffsets = new HashMap<>();
+        endOffsets.put(opsPart, 100L);
+        endOffsets.put(opsPart1, 200L);
+        endOffsets.put(opsPart2, 300L);
+        opsConsumer.updateEndOffsets(endOffsets);
+
+        opsConsumer.assign(endOffsets.keySet());
+        opsConsumer.seek(opsPart, 100L);
+        opsConsumer.seek(opsPart1, 150L);
+        opsConsumer.seek(opsPart2, 250L);
+
+        CompletableFuture<Void> fut0 = opsWorker.getPartitionSteadyFuture(0);
+        CompletableFuture<Void> fut1 = opsWorker.getPartitionSteadyFuture(1);
+        CompletableFuture<Void> fut2 = opsWorker.getPartitionSteadyFuture(2);
+        assertNull(opsWorker.getPartitionSteadyFuture(3));
+
+        assertFalse(opsWorker.processOpsRecords(new ConsumerRecords<>(emptyMap())));
+        assertTrue(fut0.isDone());
+        assertFalse(fut1.isDone());
+        assertFalse(fut2.isDone());
+
+        // The partition does not have to catch up with the updates that came after the loading.
+        opsConsumer.updateEndOffsets(singletonMap(opsPart1, 1000L));
+        opsConsumer.seek(opsPart1, 200L);
+
+        assertFalse(opsWorker.processOpsRecords(new ConsumerRecords<>(emptyMap())));
+        assertTrue(fut1.isDone());
+        assertFalse(fut2.isDone());
+        assertFalse(opsWorker.getSteadyFuture().isDone());
+
+        opsWorker.removePartitions(singleton(2));
+        opsWorker.processRemoveRequests();
+
+        assertTrue(fut2.isCompletedExceptionally());
+        assertNull(opsWorker.getPartitionSteadyFuture(2));
+
+        assertFalse(fut0.isCompletedExceptionally());
+        assertFalse(fut1.isCompletedExceptionally());
+    }
+
     @Test
     void testLoadData() {
         dataConsumer.updateBeginningOffsets(singletonMap(dataPart, 100L));